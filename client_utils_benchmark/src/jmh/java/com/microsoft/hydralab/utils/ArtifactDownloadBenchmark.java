@@ -0,0 +1,66 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download throughput of large blobs to files, plain or as a log with the gzip copy and the crash index written in the
+ * same pass.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ArtifactDownloadBenchmark {
+    @Param({"16", "64"})
+    public int blobSizeMB;
+
+    @Param({"false", "true"})
+    public boolean logArtifact;
+
+    @Param({"1", "4"})
+    public int parallelDownloads;
+
+    private LabStandIn lab;
+    private ArtifactDownloader downloader;
+    private File dir;
+
+    @Setup
+    public void setUp() throws IOException {
+        lab = new LabStandIn(1, 1, blobSizeMB * 1024 * 1024);
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = lab.apiConfig();
+        downloader = new ArtifactDownloader(HydraLabClientUtils.client, ArtifactDownloader.Options.of(apiConfig));
+        dir = Files.createTempDirectory("hydra-lab-download-benchmark").toFile();
+    }
+
+    @Benchmark
+    public long download() {
+        List<CompletableFuture<ArtifactDownloader.DownloadResult>> downloads = new ArrayList<>();
+        for (int i = 0; i < parallelDownloads; i++) {
+            downloads.add(downloader.download(lab.blobUrl(i + "/logcat.log"), new File(dir, "logcat-" + i + ".log"), logArtifact));
+        }
+        long bytes = 0;
+        for (CompletableFuture<ArtifactDownloader.DownloadResult> download : downloads) {
+            ArtifactDownloader.DownloadResult result = download.join();
+            if (!result.success) {
+                throw new IllegalStateException("Download failed: " + result.url);
+            }
+            bytes += result.bytes;
+        }
+        return bytes;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        downloader.close();
+        lab.close();
+        FileUtils.deleteQuietly(dir);
+    }
+}
@@ -0,0 +1,175 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * In-process stand-in of the Hydra Lab API for the benchmarks. It answers the upload, run and status calls with canned
+ * responses and serves the device blobs from memory, so the numbers measure the client and not the lab.
+ */
+class LabStandIn implements AutoCloseable {
+    static final String TEST_TASK_ID = "benchmark-task";
+    private static final String BLOB_PATH = "/blob/";
+
+    private final MockWebServer server = new MockWebServer();
+    private final int deviceCount;
+    private final int casesPerDevice;
+    private final byte[] logBlob;
+
+    LabStandIn(int deviceCount, int casesPerDevice, int logBlobSize) throws IOException {
+        this.deviceCount = deviceCount;
+        this.casesPerDevice = casesPerDevice;
+        this.logBlob = logBlob(logBlobSize);
+        // uploads are only counted, never kept in memory
+        server.setBodyLimit(0);
+        server.setDispatcher(new Dispatcher() {
+            @NotNull
+            @Override
+            public MockResponse dispatch(@NotNull RecordedRequest request) {
+                return LabStandIn.this.dispatch(request);
+            }
+        });
+        server.start();
+    }
+
+    HydraLabClientUtils.HydraLabAPIConfig apiConfig() {
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        apiConfig.schema = "http";
+        apiConfig.host = server.getHostName() + ":" + server.getPort();
+        apiConfig.authToken = "benchmark";
+        apiConfig.pkgName = "com.microsoft.hydralab.benchmark";
+        apiConfig.testPkgName = "com.microsoft.hydralab.benchmark.test";
+        apiConfig.runningType = "INSTRUMENTATION";
+        apiConfig.apkUploadCacheEnabled = false;
+        apiConfig.testResultCacheEnabled = false;
+        apiConfig.connectionWarmUpEnabled = false;
+        return apiConfig;
+    }
+
+    String blobUrl(String name) {
+        return server.url(BLOB_PATH + name).toString();
+    }
+
+    private MockResponse dispatch(RecordedRequest request) {
+        HydraLabClientUtils.HydraLabAPIConfig paths = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        String path = request.getPath();
+        if (path.startsWith(paths.uploadChunkAPIPath)) {
+            if ("GET".equals(request.getMethod())) {
+                return new MockResponse().setResponseCode(404);
+            }
+            // Content-Range: bytes <first>-<last>/<total>
+            String range = request.getHeader("Content-Range");
+            long last = Long.parseLong(range.substring(range.indexOf('-') + 1, range.indexOf('/')));
+            return json("{\"code\":200,\"content\":{\"offset\":" + (last + 1) + "}}");
+        }
+        if (path.startsWith(paths.uploadAPKAPIPath)) {
+            return json("{\"code\":200,\"content\":{\"id\":\"benchmark-apk-set\"}}");
+        }
+        if (path.startsWith(paths.runTestAPIPath)) {
+            return json("{\"code\":200,\"content\":{\"testTaskId\":\"" + TEST_TASK_ID + "\"}}");
+        }
+        if (path.startsWith(paths.testStatusAPIPath)) {
+            return json(testTaskJson(server.url(BLOB_PATH).toString(), deviceCount, casesPerDevice, HydraLabClientUtils.TestTask.TestStatus.FINISHED));
+        }
+        if (path.startsWith(BLOB_PATH)) {
+            if (path.endsWith(".xml")) {
+                int device = Integer.parseInt(path.substring(BLOB_PATH.length(), path.indexOf('/', BLOB_PATH.length())));
+                return new MockResponse().setBody(junitReport(device, casesPerDevice));
+            }
+            return new MockResponse().setBody(new Buffer().write(logBlob));
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+    }
+
+    /**
+     * Status response of a finished task, every device result carries its blob links and a few of them a crash stack.
+     */
+    static String testTaskJson(String blobBaseUrl, int deviceCount, int casesPerDevice, String status) {
+        StringBuilder sb = new StringBuilder(deviceCount * 4096);
+        int failedDevices = 0;
+        StringBuilder devices = new StringBuilder();
+        for (int i = 0; i < deviceCount; i++) {
+            boolean failed = i % 10 == 0;
+            if (failed) {
+                failedDevices++;
+            }
+            if (i > 0) {
+                devices.append(',');
+            }
+            String base = blobBaseUrl + i + "/";
+            devices.append(String.format(Locale.US, "{\"id\":\"device-result-%d\",\"deviceSerialNumber\":\"SN%08d\",\"deviceName\":\"Pixel %d\","
+                            + "\"instrumentReportPath\":\"storage/test/result/%d/adb.log\",\"controlLogPath\":\"storage/test/result/%d/control.log\","
+                            + "\"instrumentReportBlobUrl\":\"%sadb.log\",\"testXmlReportBlobUrl\":\"%sreport.xml\",\"logcatBlobUrl\":\"%slogcat.log\","
+                            + "\"testGifBlobUrl\":\"%srec.gif\",\"crashStackId\":\"%s\",\"errorInProcess\":\"%s\",\"crashStack\":\"%s\","
+                            + "\"totalCount\":%d,\"failCount\":%d,\"success\":%s,\"testStartTimeMillis\":1650000000000,\"testEndTimeMillis\":1650000600000}",
+                    i, i, i % 7, i, i, base, base, base, base,
+                    failed ? "crash-" + i : "", failed ? "Process crashed" : "", failed ? crashStack() : "",
+                    casesPerDevice, failed ? casesPerDevice / 20 : 0, !failed));
+        }
+        sb.append("{\"code\":200,\"message\":\"OK\",\"content\":{");
+        sb.append(String.format(Locale.US, "\"id\":\"%s\",\"testDevicesCount\":%d,\"startDate\":1650000000000,\"endDate\":1650000600000,"
+                        + "\"totalTestCount\":%d,\"totalFailCount\":%d,\"testSuite\":\"com.microsoft.hydralab.benchmark.Suite\","
+                        + "\"reportImagePath\":\"\",\"baseUrl\":\"%s\",\"status\":\"%s\",\"testErrorMsg\":\"\",\"message\":\"\",\"retryTime\":0,",
+                TEST_TASK_ID, deviceCount, deviceCount * casesPerDevice, failedDevices * (casesPerDevice / 20), blobBaseUrl, status));
+        sb.append("\"deviceTestResults\":[").append(devices).append("]}}");
+        return sb.toString();
+    }
+
+    private static String crashStack() {
+        StringBuilder sb = new StringBuilder("java.lang.IllegalStateException: benchmark crash\\n");
+        for (int i = 0; i < 40; i++) {
+            sb.append("\\tat com.microsoft.hydralab.benchmark.Frame").append(i).append(".invoke(Frame").append(i).append(".java:").append(i + 10).append(")\\n");
+        }
+        return sb.toString();
+    }
+
+    static String junitReport(int device, int cases) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append(String.format(Locale.US, "<testsuite name=\"com.microsoft.hydralab.benchmark.Suite\" tests=\"%d\" failures=\"0\" errors=\"0\" skipped=\"0\" time=\"60.0\">\n", cases));
+        for (int i = 0; i < cases; i++) {
+            sb.append(String.format(Locale.US, "  <testcase classname=\"com.microsoft.hydralab.benchmark.Test%d\" name=\"case%d\" time=\"0.%03d\"", i / 20, i, (i * 37 + device) % 1000));
+            // a few cases fail everywhere, a few only on some devices
+            if (i % 50 == 0 || (i % 50 == 1 && device % 3 == 0)) {
+                sb.append(">\n    <failure message=\"expected true\">java.lang.AssertionError: expected true\n\tat com.microsoft.hydralab.benchmark.Test.case(Test.java:42)</failure>\n  </testcase>\n");
+            } else {
+                sb.append("/>\n");
+            }
+        }
+        return sb.append("</testsuite>\n").toString();
+    }
+
+    /**
+     * Logcat-like lines with an occasional crash, so the gzip copy and the crash index do realistic work.
+     */
+    static byte[] logBlob(int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        int line = 0;
+        while (sb.length() < size) {
+            if (line % 5000 == 4999) {
+                sb.append("04-15 10:00:00.000  1234  1234 E AndroidRuntime: FATAL EXCEPTION: main\n");
+            } else {
+                sb.append(String.format(Locale.US, "04-15 10:%02d:%02d.%03d  1234  %4d D BenchmarkTag: message number %d with some payload\n",
+                        line / 60000 % 60, line / 1000 % 60, line % 1000, 1234 + line % 16, line));
+            }
+            line++;
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,77 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reporting a finished run: merging the per-device JUnit reports into the cross-device matrix, and the whole path from
+ * the final status to the summary markdown, including the artifact downloads, against the in-process lab.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SummaryBenchmark {
+    private static final int CASES_PER_DEVICE = 500;
+    private static final int LOG_BLOB_SIZE = 64 * 1024;
+
+    @Param({"10", "100"})
+    public int deviceCount;
+
+    private LabStandIn lab;
+    private HydraLabClient client;
+    private File dir;
+    private File reportDir;
+    private File apk;
+    private final LinkedHashMap<String, File> xmlReports = new LinkedHashMap<>();
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() throws IOException {
+        lab = new LabStandIn(deviceCount, CASES_PER_DEVICE, LOG_BLOB_SIZE);
+        client = new HydraLabClient(lab.apiConfig());
+        dir = Files.createTempDirectory("hydra-lab-summary-benchmark").toFile();
+        reportDir = new File(dir, "report");
+        FileUtils.forceMkdir(reportDir);
+        apk = new File(dir, "app.apk");
+        FileUtils.writeByteArrayToFile(apk, new byte[1024]);
+        for (int i = 0; i < deviceCount; i++) {
+            File report = new File(dir, "TEST-" + i + ".xml");
+            FileUtils.writeStringToFile(report, LabStandIn.junitReport(i, CASES_PER_DEVICE), StandardCharsets.UTF_8);
+            xmlReports.put(String.format("SN%08d", i), report);
+        }
+        // the client logs every step to stdout, which would dominate the report path
+        stdout = System.out;
+        System.setOut(new PrintStream(new NullOutputStream()));
+    }
+
+    @Benchmark
+    public JUnitReportMerger.MatrixSummary mergeJUnitReports() throws IOException {
+        JUnitReportMerger merger = new JUnitReportMerger(xmlReports);
+        merger.merge(new File(dir, "JUnitMerged.xml"), Runtime.getRuntime().availableProcessors());
+        merger.writeMatrixCsv(new File(dir, "TestMatrix.csv"));
+        return merger.summarize();
+    }
+
+    @Benchmark
+    public boolean reportTestRun() {
+        client.runTestOnDeviceWithAPK(apk.getAbsolutePath(), apk.getAbsolutePath(), "benchmark", "com.microsoft.hydralab.benchmark.Suite",
+                null, null, 3600, reportDir.getAbsolutePath(), null, null);
+        return client.isMarkedFail();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setOut(stdout);
+        lab.close();
+        FileUtils.deleteQuietly(dir);
+    }
+}
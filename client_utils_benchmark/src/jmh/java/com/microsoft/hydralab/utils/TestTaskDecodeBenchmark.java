@@ -0,0 +1,43 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the test status response, which grows with the device count and is fetched on every poll.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TestTaskDecodeBenchmark {
+    @Param({"100", "500"})
+    public int deviceCount;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        json = LabStandIn.testTaskJson("https://blob.example.com/", deviceCount, 200, HydraLabClientUtils.TestTask.TestStatus.RUNNING);
+    }
+
+    @Benchmark
+    public HydraLabClientUtils.TestTask decodeJsonTree() {
+        // how the status was decoded before the streaming decoder: the whole body as a tree, then bound to the task
+        JsonObject envelope = HydraLabClientUtils.GSON.fromJson(json, JsonObject.class);
+        return HydraLabClientUtils.GSON.fromJson(envelope.getAsJsonObject("content"), HydraLabClientUtils.TestTask.class);
+    }
+
+    @Benchmark
+    public TestTaskJsonDecoder.Envelope decodeStreaming() throws IOException {
+        return TestTaskJsonDecoder.decode(new StringReader(json), false);
+    }
+
+    @Benchmark
+    public TestTaskJsonDecoder.Envelope decodeStreamingSkipHeavyFields() throws IOException {
+        return TestTaskJsonDecoder.decode(new StringReader(json), true);
+    }
+}
@@ -0,0 +1,60 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming the APK set to the lab, as one multipart request or chunk by chunk. The upload cache is off so every
+ * invocation sends the files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+    @Param({"16", "128"})
+    public int apkSizeMB;
+
+    @Param({"false", "true"})
+    public boolean chunked;
+
+    private LabStandIn lab;
+    private HydraLabClient client;
+    private File dir;
+    private File apk;
+    private File testApk;
+
+    @Setup
+    public void setUp() throws IOException {
+        lab = new LabStandIn(1, 1, 0);
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = lab.apiConfig();
+        apiConfig.chunkedUploadEnabled = chunked;
+        client = new HydraLabClient(apiConfig);
+        dir = Files.createTempDirectory("hydra-lab-upload-benchmark").toFile();
+        apk = sparseFile(new File(dir, "app.apk"), apkSizeMB * 1024L * 1024L);
+        testApk = sparseFile(new File(dir, "test.apk"), 1024L * 1024L);
+    }
+
+    private static File sparseFile(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        return file;
+    }
+
+    @Benchmark
+    public String uploadApkSet() {
+        return client.uploadAsync("benchmark", "0000000", "1", "benchmark", apk, testApk).join();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        lab.close();
+        FileUtils.deleteQuietly(dir);
+    }
+}
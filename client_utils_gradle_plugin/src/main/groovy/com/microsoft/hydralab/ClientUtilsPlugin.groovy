@@ -1,147 +1,188 @@
 package com.microsoft.hydralab
 
+import com.microsoft.hydralab.utils.HydraLabClient
 import com.microsoft.hydralab.utils.HydraLabClientUtils
+import com.microsoft.hydralab.utils.TestMatrixRunner
+import org.gradle.api.GradleException
 import org.gradle.api.Plugin
 import org.gradle.api.Project
 
+import java.lang.reflect.Field
+
 
 class ClientUtilsPlugin implements Plugin<Project> {
+    // params of the hydraLab block that go to the API config, by the name of the config field, on top of the settings
+    static final Map<String, String> API_CONFIG_PARAM_NAMES = [schema       : 'deviceLabProtocal', host: 'deviceLabHost', authToken: 'authToken',
+                                                               pkgName      : 'pkgName', testPkgName: 'testPkgName', groupTestType: 'groupTestType',
+                                                               runningType  : 'runningType', frameworkType: 'frameworkType']
+    // params the test outcome depends on besides the APKs, authToken and tuning params are left out on purpose. The config
+    // fields are those of the test result cache key of the client
+    static final List<String> RUN_PARAMETER_NAMES = HydraLabClient.RUN_CONFIG_FIELD_NAMES.collect { API_CONFIG_PARAM_NAMES.getOrDefault(it, it) } +
+            ['buildFlavor', 'testSuiteName', 'deviceIdentifier', 'timeOutSeconds', 'instrumentationArgs', 'extraArgs', 'maxStepCount', 'deviceTestCount']
+
     @Override
     void apply(Project target) {
-        target.task("triggerDeviceLabTest"){
-            doFirst {
-                // try run with params:
-                // -PappApkPath=path/to/apk -PtestApkPath=path/to/apk -PbuildFlavor=flavor -PtestSuiteName=SuiteFullName -PinstrumentationArgs="a=b,c=d"
-                // to ignore a case use -PinstrumentationArgs="ignores=testA|testB"
-                if (!project.appApkPath || !project.runningType || !project.pkgName || !project.deviceIdentifier || !project.timeOutSeconds || !project.authToken) {
-                    throw 'Required params not provided! Make sure the following params are all provided: authToken, appApkPath, pkgName, runningType, deviceIdentifier, timeOutSeconds.'
-                }
-                // running type specified params
-                if (project.runningType == "APPIUM") {
-                    if (!project.testApkPath) {
-                        throw 'Required param testApkPath not provided!'
-                    }
-                    if (!project.testSuiteName) {
-                        throw 'Required param testSuiteName not provided!'
-                    }
-                } else {
-                    if (project.runningType == "INSTRUMENTATION") {
-                        if (!project.testApkPath) {
-                            throw 'Required param testApkPath not provided!'
-                        }
-                        if (!project.testPkgName) {
-                            throw 'Required param testPkgName not provided!'
-                        }
-                        if (!project.testSuiteName) {
-                            throw 'Required param testSuiteName not provided!'
-                        }
-                    } else if (project.runningType == "SMART") {
-                        if (!project.maxStepCount) {
-                            throw 'Required param maxStepCount not provided!'
-                        }
-                        if (!project.deviceTestCount) {
-                            throw 'Required param deviceTestCount not provided!'
-                        }
-                    }
-                }
+        def labService = target.gradle.sharedServices.registerIfAbsent('hydraLab', DeviceLabService) {}
+        def hydraLab = target.extensions.create('hydraLab', HydraLabExtension)
+        def matrix = target.extensions.create('hydraLabMatrix', HydraLabMatrixExtension)
+        // resolved lazily, the params are only required when the task runs
+        def runParams = target.providers.provider { hydraLab.runParams() }
+        def testResultCacheParam = { String name -> runParams.map { Boolean.parseBoolean(it.get(name)) } }
+        def triggerTaskPath = "${target.path == ':' ? '' : target.path}:triggerDeviceLabTest"
+
+        target.tasks.register("triggerDeviceLabTest", TriggerDeviceLabTestTask) { task ->
+            task.labService.set(labService)
+            task.usesService(labService)
+            task.authToken.set(hydraLab.authToken)
+            task.appApk.set(hydraLab.appApk)
+            task.testApk.set(hydraLab.testApk)
+            task.runParams.set(runParams)
+            task.runParameters.set(runParams.map { params -> new TreeMap<String, String>(params.subMap(RUN_PARAMETER_NAMES)) })
+            task.instrumentationArgs.set(hydraLab.instrumentationArgs)
+            task.extraArgs.set(hydraLab.extraArgs)
+            task.reportDir.set(hydraLab.reportDir)
+            task.testResultCacheEnabled.set(testResultCacheParam('testResultCacheEnabled'))
+            task.testResultCacheIncludeFailures.set(testResultCacheParam('testResultCacheIncludeFailures'))
+            task.testResultGradleBuildCache.set(hydraLab.testResultGradleBuildCache)
+            // a skipped run still has to report its artifacts and summary to the pipeline
+            task.finalizedBy 'replayDeviceLabTestResult'
+        }
+
+        target.tasks.register("replayDeviceLabTestResult", ReplayDeviceLabTestResultTask) { task ->
+            task.labService.set(labService)
+            task.usesService(labService)
+            task.reportDir.set(hydraLab.reportDir)
+            task.triggerTaskPath.set(triggerTaskPath)
+        }
+
+        target.tasks.register("triggerDeviceLabTestMatrix", TriggerDeviceLabTestMatrixTask) { task ->
+            task.labService.set(labService)
+            task.usesService(labService)
+            task.authToken.set(hydraLab.authToken)
+            task.runParams.set(runParams)
+            task.cells.set(target.providers.provider {
+                matrix.cells().collectEntries { matrixCell -> [(matrixCell.name): hydraLab.resolvePaths(matrixCell.params)] }
+            })
+            task.instrumentationArgs.set(hydraLab.instrumentationArgs)
+            task.extraArgs.set(hydraLab.extraArgs)
+            task.matrixDir.set(target.layout.buildDirectory.dir("outputs/androidTest-results/connected/matrix"))
+            task.maxConcurrentRuns.set(target.providers.gradleProperty('matrixMaxConcurrentRuns').map { Integer.parseInt(it) }
+                    .orElse(target.providers.provider { matrix.maxConcurrentRuns }))
+        }
+    }
 
-                println("Param appApkPath: ${project.appApkPath}")
-                println("Param testApkPath: ${project.testApkPath}")
-                if (!project.file(project.appApkPath).exists()) {
-                    throw "${project.appApkPath} file not exist!"
+    /**
+     * Check the params of a run and build its arguments, the API config included.
+     *
+     * @param params the params of the hydraLab block, or those of a matrix cell on top of them, with absolute paths
+     * @param instrumentationArgs the args of the hydraLab block, unless the cell sets its own as a string
+     */
+    static TestMatrixRunner.Cell cellOf(RunParams params, File reportDir, Map<String, String> instrumentationArgs, Map<String, String> extraArgs) {
+        if (!params.appApkPath || !params.runningType || !params.pkgName || !params.deviceIdentifier || !params.timeOutSeconds || !params.authToken) {
+            throw new GradleException('Required params not provided! Make sure the following params are all provided: authToken, appApkPath, pkgName, runningType, deviceIdentifier, timeOutSeconds.')
+        }
+        // running type specified params
+        if (params.runningType == "APPIUM") {
+            if (!params.testApkPath) {
+                throw new GradleException('Required param testApkPath not provided!')
+            }
+            if (!params.testSuiteName) {
+                throw new GradleException('Required param testSuiteName not provided!')
+            }
+        } else {
+            if (params.runningType == "INSTRUMENTATION") {
+                if (!params.testApkPath) {
+                    throw new GradleException('Required param testApkPath not provided!')
                 }
-                if (!project.file(project.testApkPath).exists()) {
-                    throw "${project.testApkPath} file not exist!"
+                if (!params.testPkgName) {
+                    throw new GradleException('Required param testPkgName not provided!')
                 }
-
-                def buildFlavorValue = "UNKNOWN"
-                if (project.hasProperty('buildFlavor')) {
-                    buildFlavorValue = project.buildFlavor
+                if (!params.testSuiteName) {
+                    throw new GradleException('Required param testSuiteName not provided!')
                 }
-                def reportDir = new File(project.buildDir, "outputs/androidTest-results/connected/flavors/${buildFlavorValue}")
-                if (!reportDir.exists()) reportDir.mkdirs()
-
-                def argsMap = null
-                if (project.hasProperty('instrumentationArgs')) {
-                    argsMap = [:]
-                    // quotation marks not support
-                    def argLines = project.instrumentationArgs.replace("\"", "").split(",")
-                    for (i in 0..<argLines.size()) {
-                        String[] kv = argLines[i].split("=")
-                        // use | to represent comma to avoid conflicts
-                        argsMap.put(kv[0], kv[1].replace("|", ","))
-                    }
+            } else if (params.runningType == "SMART") {
+                if (!params.maxStepCount) {
+                    throw new GradleException('Required param maxStepCount not provided!')
                 }
-
-                def extraArgsMap = null
-                if (project.hasProperty('extraArgs')) {
-                    extraArgsMap = [:]
-                    // quotation marks not support
-                    def argLines = project.extraArgs.replace("\"", "").split(",")
-                    for (i in 0..<argLines.size()) {
-                        String[] kv = argLines[i].split("=")
-                        // use | to represent comma to avoid conflicts
-                        extraArgsMap.put(kv[0], kv[1].replace("|", ","))
-                    }
+                if (!params.deviceTestCount) {
+                    throw new GradleException('Required param deviceTestCount not provided!')
                 }
+            }
+        }
+
+        println("Param appApkPath: ${params.appApkPath}")
+        println("Param testApkPath: ${params.testApkPath}")
+        if (!new File(params.appApkPath).exists()) {
+            throw new GradleException("${params.appApkPath} file not exist!")
+        }
+        if (!new File(params.testApkPath).exists()) {
+            throw new GradleException("${params.testApkPath} file not exist!")
+        }
 
-                HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI()
+        def buildFlavorValue = "UNKNOWN"
+        if (params.hasProperty('buildFlavor')) {
+            buildFlavorValue = params.buildFlavor
+        }
+        if (!reportDir.exists()) reportDir.mkdirs()
 
-                if (project.hasProperty('deviceLabProtocal')) {
-                    apiConfig.schema = project.deviceLabProtocal
-                }
-                if (project.hasProperty('deviceLabHost')) {
-                    apiConfig.host = project.deviceLabHost
-                }
+        def argsMap = params.hasProperty('instrumentationArgs') ? RunParams.parseArgs(params.instrumentationArgs) : instrumentationArgs
+        def extraArgsMap = params.hasProperty('extraArgs') ? RunParams.parseArgs(params.extraArgs) : extraArgs
 
-                if (project.hasProperty('authToken')) {
-                    apiConfig.authToken = project.authToken
-                }
-                if (project.hasProperty('onlyAuthPost')) {
-                    apiConfig.onlyAuthPost = Boolean.parseBoolean(project.onlyAuthPost)
-                }
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI()
+        applyApiConfigParams(params, apiConfig)
 
-                if (project.hasProperty('pkgName')) {
-                    apiConfig.pkgName = project.pkgName
-                }
-                if (project.hasProperty('testPkgName')) {
-                    apiConfig.testPkgName = project.testPkgName
-                }
-                if (project.hasProperty('groupTestType')) {
-                    apiConfig.groupTestType = project.groupTestType
-                }
-                if (project.hasProperty('runningType')) {
-                    apiConfig.runningType = project.runningType
-                }
-                if (project.hasProperty('frameworkType')) {
-                    apiConfig.frameworkType = project.frameworkType
-                }
+        def deviceIdentifierArg = null
+        if (params.hasProperty('deviceIdentifier')) {
+            deviceIdentifierArg = params.deviceIdentifier
+        }
 
-                def deviceIdentifierArg = null
-                if (project.hasProperty('deviceIdentifier')) {
-                    deviceIdentifierArg = project.deviceIdentifier
-                }
+        def reportAudienceArg = null
+        if (params.hasProperty('reportAudience')) {
+            reportAudienceArg = params.reportAudience
+        }
 
-                def reportAudienceArg = null
-                if (project.hasProperty('reportAudience')) {
-                    reportAudienceArg = project.reportAudience
-                }
+        println "##[section]All args: appApkPath: ${params.appApkPath}, testApkPath: ${params.testApkPath}, buildFlavor: ${buildFlavorValue}, " +
+                "\n##[section]\ttestSuiteName: ${params.testSuiteName}, timeOutSeconds: ${params.timeOutSeconds}, argsMap: ${argsMap}" +
+                "\n##[section]\treportAudience: ${reportAudienceArg}, deviceIdentifier: ${deviceIdentifierArg}, extraArgsMap: ${extraArgsMap}, apiConfig: ${apiConfig}"
+
+        def cell = new TestMatrixRunner.Cell()
+        cell.apiConfig = apiConfig
+        cell.apkPath = params.appApkPath
+        cell.testApkPath = params.testApkPath
+        cell.buildFlavor = buildFlavorValue
+        cell.testSuiteName = params.testSuiteName
+        cell.deviceIdentifier = deviceIdentifierArg
+        cell.reportAudience = reportAudienceArg
+        cell.timeoutSec = Integer.parseInt(params.timeOutSeconds)
+        cell.reportFolderPath = reportDir.absolutePath
+        cell.instrumentationArgs = argsMap
+        cell.extraArgs = extraArgsMap
+        return cell
+    }
 
-                println "##[section]All args: appApkPath: ${project.appApkPath}, testApkPath: ${project.testApkPath}, buildFlavor: ${buildFlavorValue}, " +
-                        "\n##[section]\ttestSuiteName: ${project.testSuiteName}, timeOutSeconds: ${project.timeOutSeconds}, argsMap: ${argsMap}" +
-                        "\n##[section]\treportAudience: ${reportAudienceArg}, deviceIdentifier: ${deviceIdentifierArg}, extraArgsMap: ${extraArgsMap}, apiConfig: ${apiConfig}"
-
-                HydraLabClientUtils.runTestOnDeviceWithAPK(
-                        project.file(project.appApkPath).absolutePath, project.file(project.testApkPath).absolutePath,
-                        buildFlavorValue, project.testSuiteName,
-                        deviceIdentifierArg, reportAudienceArg, Integer.parseInt(project.timeOutSeconds),
-                        reportDir.absolutePath, argsMap, extraArgsMap,
-                        apiConfig
-                )
+    /**
+     * Set the API config fields from the params of the same names, see {@link HydraLabExtension#SETTING_NAMES}, converted to
+     * the type of the field.
+     */
+    static void applyApiConfigParams(RunParams params, HydraLabClientUtils.HydraLabAPIConfig apiConfig) {
+        Map<String, String> paramNames = new LinkedHashMap<>(API_CONFIG_PARAM_NAMES)
+        HydraLabExtension.SETTING_NAMES.each { paramNames.put(it, it) }
+        paramNames.each { fieldName, paramName ->
+            if (!params.hasProperty(paramName)) {
+                return
             }
-
-            doLast {
-                println('Plugin completed running')
+            String value = params."${paramName}"
+            Field field = HydraLabClientUtils.HydraLabAPIConfig.getField(fieldName)
+            if (field.type == int) {
+                try {
+                    field.setInt(apiConfig, Integer.parseInt(value.trim()))
+                } catch (NumberFormatException ignored) {
+                    throw new GradleException("Param ${paramName} must be an integer, but is: ${value}")
+                }
+            } else if (field.type == boolean) {
+                field.setBoolean(apiConfig, Boolean.parseBoolean(value.trim()))
+            } else {
+                field.set(apiConfig, value)
             }
         }
     }
@@ -0,0 +1,48 @@
+package com.microsoft.hydralab
+
+import com.microsoft.hydralab.utils.HydraLabClient
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Shared by the lab tasks of a build. Hands the run group of a task over to its work, which runs on a worker thread
+ * after the task is done. Also remembers which tasks ran, a trigger task skipped as up to date or loaded from the build
+ * cache gets its results replayed.
+ * <p>
+ * A cancelled build interrupts the workers, which cancels their runs. Closed at the end of the build, the service
+ * cancels the runs still going on, so none keeps its devices after the build is gone.
+ */
+abstract class DeviceLabService implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+    private final Map<String, HydraLabClient.RunGroup> runs = new ConcurrentHashMap<>()
+    private final Set<String> ranTaskPaths = ConcurrentHashMap.newKeySet()
+
+    /**
+     * @return id of the run, for the work to take the run group back
+     */
+    String startRun(String taskPath, HydraLabClient.RunGroup runGroup) {
+        ranTaskPaths.add(taskPath)
+        String runId = "${taskPath}@${UUID.randomUUID()}"
+        runs.put(runId, runGroup)
+        return runId
+    }
+
+    HydraLabClient.RunGroup runGroup(String runId) {
+        return runs.get(runId)
+    }
+
+    void finishRun(String runId) {
+        runs.remove(runId)
+    }
+
+    boolean hasRun(String taskPath) {
+        return ranTaskPaths.contains(taskPath)
+    }
+
+    @Override
+    void close() {
+        runs.values().each { it.cancel('the Gradle build is over') }
+        runs.clear()
+    }
+}
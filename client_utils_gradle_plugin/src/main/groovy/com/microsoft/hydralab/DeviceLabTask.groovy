@@ -0,0 +1,44 @@
+package com.microsoft.hydralab
+
+import com.microsoft.hydralab.utils.HydraLabClient
+import org.gradle.api.Action
+import org.gradle.api.DefaultTask
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.Internal
+import org.gradle.workers.WorkerExecutor
+
+import javax.inject.Inject
+
+/**
+ * A task that runs tests on the lab. The run goes to a worker, the task is done once it is submitted so the tasks of
+ * other modules run meanwhile, and the build waits for the worker before it ends.
+ */
+abstract class DeviceLabTask extends DefaultTask {
+    @Internal
+    abstract Property<DeviceLabService> getLabService()
+
+    /**
+     * Read by the worker when the run starts, kept apart from the other params so it is not stored with them.
+     */
+    @Internal
+    abstract Property<String> getAuthToken()
+
+    @Inject
+    abstract WorkerExecutor getWorkerExecutor()
+
+    protected void submit(HydraLabClient.RunGroup runGroup, Action<DeviceLabTestWork.Parameters> configure) {
+        Property<DeviceLabService> service = labService
+        Property<String> token = authToken
+        String runId = service.get().startRun(path, runGroup)
+        // the run group is handed over in memory through the service, an isolated class loader would load a copy of its class
+        workerExecutor.noIsolation().submit(DeviceLabTestWork, new Action<DeviceLabTestWork.Parameters>() {
+            @Override
+            void execute(DeviceLabTestWork.Parameters parameters) {
+                parameters.labService.set(service)
+                parameters.runId.set(runId)
+                parameters.authToken.set(token)
+                configure.execute(parameters)
+            }
+        })
+    }
+}
@@ -0,0 +1,74 @@
+package com.microsoft.hydralab
+
+import com.microsoft.hydralab.utils.HydraLabClient
+import com.microsoft.hydralab.utils.TestMatrixRunner
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.provider.MapProperty
+import org.gradle.api.provider.Property
+import org.gradle.workers.WorkAction
+import org.gradle.workers.WorkParameters
+
+/**
+ * The test run of a lab task, or the cells of a test matrix, on a worker thread. The lab tasks of other modules run
+ * meanwhile. An interrupt of the worker thread, as when the build is cancelled, cancels the run.
+ */
+abstract class DeviceLabTestWork implements WorkAction<Parameters> {
+    static interface Parameters extends WorkParameters {
+        Property<DeviceLabService> getLabService()
+
+        Property<String> getRunId()
+
+        Property<String> getAuthToken()
+
+        MapProperty<String, String> getRunParams()
+
+        MapProperty<String, String> getInstrumentationArgs()
+
+        MapProperty<String, String> getExtraArgs()
+
+        /**
+         * The report dir of the run, or of the matrix with a dir per cell in it.
+         */
+        DirectoryProperty getReportDir()
+
+        /**
+         * The params each matrix cell overrides by cell name, empty for a single run.
+         */
+        MapProperty<String, Map<String, String>> getCells()
+
+        Property<Integer> getMaxConcurrentRuns()
+    }
+
+    @Override
+    void execute() {
+        DeviceLabService labService = parameters.labService.get()
+        String runId = parameters.runId.get()
+        try {
+            HydraLabClient.RunGroup runGroup = labService.runGroup(runId)
+            Map<String, String> runParams = new LinkedHashMap<>(parameters.runParams.get())
+            if (parameters.authToken.isPresent()) {
+                runParams.put('authToken', parameters.authToken.get())
+            }
+            File reportDir = parameters.reportDir.get().asFile
+            Map<String, String> instrumentationArgs = parameters.instrumentationArgs.getOrNull()
+            Map<String, String> extraArgs = parameters.extraArgs.getOrNull()
+            Map<String, Map<String, String>> matrixCells = parameters.cells.get()
+            if (matrixCells.isEmpty()) {
+                def cell = ClientUtilsPlugin.cellOf(new RunParams(runParams), reportDir, instrumentationArgs, extraArgs)
+                new HydraLabClient(cell.apiConfig, runGroup).runTestOnDeviceWithAPK(cell.apkPath, cell.testApkPath, cell.buildFlavor, cell.testSuiteName,
+                        cell.deviceIdentifier, cell.reportAudience, cell.timeoutSec, cell.reportFolderPath, cell.instrumentationArgs, cell.extraArgs)
+            } else {
+                def cells = matrixCells.collect { cellName, cellParams ->
+                    println("##[section]Test matrix cell ${cellName}: ${cellParams}")
+                    def cell = ClientUtilsPlugin.cellOf(new RunParams(runParams + cellParams), new File(reportDir, cellName), instrumentationArgs, extraArgs)
+                    cell.name = cellName
+                    return cell
+                }
+                TestMatrixRunner.run(cells, parameters.maxConcurrentRuns.get(), reportDir, runGroup)
+            }
+            println('Plugin completed running')
+        } finally {
+            labService.finishRun(runId)
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.microsoft.hydralab
+
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.ProjectLayout
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.MapProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
+import org.gradle.api.provider.ProviderFactory
+
+import javax.inject.Inject
+
+/**
+ * The hydraLab block, the params of triggerDeviceLabTest. Every value defaults to the gradle property of the same name,
+ * so gradle.properties and -PXXX=xxx keep working, and a value set in the block wins over both:
+ * <pre>
+ * hydraLab {
+ *     appApk = layout.buildDirectory.file('outputs/apk/debug/app-debug.apk')
+ *     testSuiteName = 'com.example.SmokeSuite'
+ *     instrumentationArgs = [size: 'small']
+ *     settings.put('pollMaxIntervalSec', '30')
+ * }
+ * </pre>
+ * The values are only read when a lab task is in the task graph, applying the plugin costs no configuration time.
+ */
+abstract class HydraLabExtension {
+    // params of the API config, set by name in settings, see gradle.properties of the template. Each is the name of a field
+    // of HydraLabAPIConfig, which the plugin sets from it
+    static final List<String> SETTING_NAMES = ['onlyAuthPost', 'downloadConcurrency', 'downloadMaxRequestsPerHost', 'incrementalDownloadEnabled',
+                                               'apkUploadCacheEnabled', 'apkUploadCacheDir', 'apkUploadCacheTtlHours', 'chunkedUploadEnabled',
+                                               'uploadChunkSizeMB', 'uploadChunkRetryCount', 'pollingStrategy', 'pollInitialIntervalSec', 'pollMaxIntervalSec',
+                                               'expectedTestDurationSec', 'callbackEnabled', 'callbackHost', 'callbackPort', 'callbackSafetyPollIntervalSec',
+                                               'skipHeavyFieldsWhilePolling', 'statusDecodeStats', 'mergeJUnitReports', 'logGzipEnabled',
+                                               'logCrashIndexEnabled', 'gitMetadataInProcess', 'connectionWarmUpEnabled', 'testResultCacheEnabled',
+                                               'testResultCacheTtlHours', 'testResultCacheIncludeFailures', 'telemetryEnabled', 'retryBaseDelayMillis',
+                                               'retryMaxDelaySec', 'uploadRetryBudgetSec', 'triggerRetryBudgetSec', 'statusRetryBudgetSec',
+                                               'downloadRetryBudgetSec', 'triggerBusyRetryBaseDelaySec', 'circuitBreakerFailureThreshold',
+                                               'circuitBreakerOpenSec', 'triggerQueueAware', 'http2Enabled', 'connectionPoolMaxIdle',
+                                               'connectionKeepAliveSec', 'connectTimeoutSec', 'uploadTimeoutSec', 'triggerTimeoutSec', 'statusTimeoutSec',
+                                               'downloadTimeoutSec', 'httpCacheEnabled', 'httpCacheDir', 'httpCacheMaxSizeMB', 'httpCacheMaxAgeHours',
+                                               'testShardCount', 'shardingStrategy', 'shardGroupTestType', 'failedTestRerunCount',
+                                               'testImpactEnabled', 'testImpactFullRunEvery', 'testImpactFullRunFiles', 'artifactTypes', 'artifactsOfFailedDevicesOnly',
+                                               'artifactMaxSizeMB', 'logTailSizeMB', 'downloadSegmentThresholdMB', 'downloadSegmentSizeMB',
+                                               'pipelineArtifactName']
+    // params holding a path, relative to the project dir
+    static final List<String> PATH_PARAM_NAMES = ['appApkPath', 'testApkPath', 'apkUploadCacheDir']
+
+    private final ProviderFactory providers
+    private final ProjectLayout layout
+
+    abstract Property<String> getDeviceLabProtocal()
+
+    abstract Property<String> getDeviceLabHost()
+
+    /**
+     * The gradle property authToken, or else the environment variable HYDRA_LAB_AUTH_TOKEN. Kept out of {@link #runParams()},
+     * the tasks read it when the run starts so it is never written to the configuration cache.
+     */
+    abstract Property<String> getAuthToken()
+
+    abstract Property<String> getPkgName()
+
+    abstract Property<String> getTestPkgName()
+
+    abstract Property<String> getGroupTestType()
+
+    abstract Property<String> getRunningType()
+
+    abstract Property<String> getFrameworkType()
+
+    abstract Property<String> getBuildFlavor()
+
+    abstract Property<String> getTestSuiteName()
+
+    abstract Property<String> getDeviceIdentifier()
+
+    abstract Property<String> getReportAudience()
+
+    abstract Property<Integer> getTimeOutSeconds()
+
+    abstract Property<Integer> getMaxStepCount()
+
+    abstract Property<Integer> getDeviceTestCount()
+
+    /**
+     * The gradle property appApkPath.
+     */
+    abstract RegularFileProperty getAppApk()
+
+    /**
+     * The gradle property testApkPath.
+     */
+    abstract RegularFileProperty getTestApk()
+
+    abstract MapProperty<String, String> getInstrumentationArgs()
+
+    abstract MapProperty<String, String> getExtraArgs()
+
+    abstract DirectoryProperty getReportDir()
+
+    /**
+     * Reuse the runs from the Gradle build cache, keyed by the APKs and the run params.
+     */
+    abstract Property<Boolean> getTestResultGradleBuildCache()
+
+    /**
+     * The other params by name, on top of the gradle properties of the same names.
+     */
+    abstract MapProperty<String, String> getSettings()
+
+    @Inject
+    HydraLabExtension(ProviderFactory providers, ProjectLayout layout) {
+        this.providers = providers
+        this.layout = layout
+        stringParams().each { name, property -> property.convention(providers.gradleProperty(name)) }
+        authToken.convention(providers.gradleProperty('authToken').orElse(providers.environmentVariable('HYDRA_LAB_AUTH_TOKEN')))
+        timeOutSeconds.convention(intProperty('timeOutSeconds'))
+        maxStepCount.convention(intProperty('maxStepCount'))
+        deviceTestCount.convention(intProperty('deviceTestCount'))
+        appApk.convention(layout.projectDirectory.file(providers.gradleProperty('appApkPath')))
+        testApk.convention(layout.projectDirectory.file(providers.gradleProperty('testApkPath')))
+        instrumentationArgs.convention(providers.gradleProperty('instrumentationArgs').map { RunParams.parseArgs(it) })
+        extraArgs.convention(providers.gradleProperty('extraArgs').map { RunParams.parseArgs(it) })
+        reportDir.convention(layout.buildDirectory.dir(buildFlavor.orElse('UNKNOWN').map { "outputs/androidTest-results/connected/flavors/${it}" }))
+        testResultGradleBuildCache.convention(providers.gradleProperty('testResultGradleBuildCache').map { Boolean.parseBoolean(it) }.orElse(false))
+    }
+
+    /**
+     * The values as the params of a run, named as the gradle properties, with the paths made absolute. The instrumentation
+     * and extra args are left out, and so is authToken.
+     */
+    Map<String, String> runParams() {
+        Map<String, String> params = new LinkedHashMap<>()
+        for (name in SETTING_NAMES) {
+            def value = providers.gradleProperty(name).getOrNull()
+            if (value != null) {
+                params.put(name, value)
+            }
+        }
+        params.putAll(settings.get())
+        Map<String, Property<?>> typedParams = new LinkedHashMap<>(stringParams())
+        typedParams.putAll([timeOutSeconds: timeOutSeconds, maxStepCount: maxStepCount, deviceTestCount: deviceTestCount])
+        typedParams.each { name, property ->
+            if (property.isPresent()) {
+                params.put(name, String.valueOf(property.get()))
+            }
+        }
+        if (appApk.isPresent()) {
+            params.put('appApkPath', appApk.get().asFile.absolutePath)
+        }
+        if (testApk.isPresent()) {
+            params.put('testApkPath', testApk.get().asFile.absolutePath)
+        }
+        return resolvePaths(params)
+    }
+
+    /**
+     * @return the params with the relative paths resolved against the project dir
+     */
+    Map<String, String> resolvePaths(Map<String, String> params) {
+        Map<String, String> resolved = new LinkedHashMap<>(params)
+        for (name in PATH_PARAM_NAMES) {
+            if (resolved.containsKey(name)) {
+                resolved.put(name, layout.projectDirectory.file(resolved.get(name)).asFile.absolutePath)
+            }
+        }
+        return resolved
+    }
+
+    private Provider<Integer> intProperty(String name) {
+        return providers.gradleProperty(name).map { Integer.parseInt(it) }
+    }
+
+    private Map<String, Property<String>> stringParams() {
+        return [deviceLabProtocal: deviceLabProtocal, deviceLabHost: deviceLabHost, pkgName: pkgName, testPkgName: testPkgName,
+                groupTestType    : groupTestType, runningType: runningType, frameworkType: frameworkType, buildFlavor: buildFlavor,
+                testSuiteName    : testSuiteName, deviceIdentifier: deviceIdentifier, reportAudience: reportAudience]
+    }
+}
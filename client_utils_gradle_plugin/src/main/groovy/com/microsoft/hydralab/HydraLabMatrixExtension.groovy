@@ -0,0 +1,96 @@
+package com.microsoft.hydralab
+
+/**
+ * The hydraLabMatrix block, the runs of triggerDeviceLabTestMatrix. Each axis sets a param of triggerDeviceLabTest, or
+ * several of them when its values are maps, and the cells are all combinations of the axis values:
+ * <pre>
+ * hydraLabMatrix {
+ *     maxConcurrentRuns = 4
+ *     axis 'buildFlavor', ['debug', 'release']
+ *     axis 'device', [[name: 'phones', deviceIdentifier: 'PhoneGroup'], [name: 'tablets', deviceIdentifier: 'TabletGroup', timeOutSeconds: 1800]]
+ *     exclude buildFlavor: 'release', device: 'tablets'
+ *     include buildFlavor: 'debug', testSuiteName: 'com.example.SmokeSuite', deviceIdentifier: 'PhoneGroup'
+ * }
+ * </pre>
+ * The params a cell doesn't set come from the hydraLab block, as for triggerDeviceLabTest. An exclude matches the
+ * params or the axis values of a cell, by the name key for a map.
+ */
+class HydraLabMatrixExtension {
+    /**
+     * Cells running at once, 0 to run all of them at once.
+     */
+    int maxConcurrentRuns = 0
+    final Map<String, List<Object>> axes = new LinkedHashMap<>()
+    final List<Map<String, Object>> excludes = []
+    final List<Map<String, Object>> includes = []
+
+    void axis(String name, List<Object> values) {
+        axes.put(name, values)
+    }
+
+    void exclude(Map<String, Object> match) {
+        excludes.add(match)
+    }
+
+    void include(Map<String, Object> cell) {
+        includes.add(cell)
+    }
+
+    List<MatrixCell> cells() {
+        List<MatrixCell> cells = []
+        List<Map<String, Object>> combinations = axes.isEmpty() ? [] : [[:]]
+        axes.each { axisName, values ->
+            combinations = combinations.collectMany { combination -> values.collect { value -> combination + [(axisName): value] } }
+        }
+        for (combination in combinations) {
+            Map<String, String> params = [:]
+            Map<String, String> labels = [:]
+            combination.each { axisName, value ->
+                labels.put(axisName, labelOf(value))
+                if (value instanceof Map) {
+                    value.each { k, v -> if (k != 'name') params.put(String.valueOf(k), String.valueOf(v)) }
+                } else {
+                    params.put(axisName, String.valueOf(value))
+                }
+            }
+            def matched = excludes.find { match -> match.every { k, v -> String.valueOf(v) == (labels.containsKey(k) ? labels.get(k) : params.get(k)) } }
+            if (!matched) {
+                cells.add(new MatrixCell(labels.values().join('-'), params))
+            }
+        }
+        for (cell in includes) {
+            Map<String, String> params = [:]
+            cell.each { k, v -> if (k != 'name') params.put(String.valueOf(k), String.valueOf(v)) }
+            cells.add(new MatrixCell(labelOf(cell), params))
+        }
+
+        // the name is a report dir and part of a pipeline artifact name, keep it plain and unique
+        Set<String> names = new HashSet<>()
+        for (cell in cells) {
+            String name = cell.name.replaceAll(/[^A-Za-z0-9._-]/, '_')
+            String uniqueName = name
+            for (int i = 2; !names.add(uniqueName); i++) {
+                uniqueName = "${name}-${i}"
+            }
+            cell.name = uniqueName
+        }
+        return cells
+    }
+
+    static String labelOf(Object value) {
+        if (value instanceof Map) {
+            return value.containsKey('name') ? String.valueOf(value.name) : value.values().join('-')
+        }
+        return String.valueOf(value)
+    }
+
+    static class MatrixCell {
+        String name
+        final Map<String, String> params
+
+        MatrixCell(String name, Map<String, String> params) {
+            this.name = name
+            this.params = params
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.microsoft.hydralab
+
+import com.microsoft.hydralab.utils.TestResultCache
+import org.gradle.api.DefaultTask
+import org.gradle.api.Task
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.specs.Spec
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Reports the artifacts and summary of a trigger task skipped as up to date or loaded from the build cache to the pipeline,
+ * as if it had run.
+ */
+abstract class ReplayDeviceLabTestResultTask extends DefaultTask {
+    @Internal
+    abstract DirectoryProperty getReportDir()
+
+    @Internal
+    abstract Property<String> getTriggerTaskPath()
+
+    @Internal
+    abstract Property<DeviceLabService> getLabService()
+
+    ReplayDeviceLabTestResultTask() {
+        onlyIf(notRunSpec(labService, triggerTaskPath))
+    }
+
+    // stored with the task in the configuration cache, holds the properties but not the task
+    private static Spec<Task> notRunSpec(Property<DeviceLabService> labService, Property<String> triggerTaskPath) {
+        return { Task task -> !labService.get().hasRun(triggerTaskPath.get()) } as Spec<Task>
+    }
+
+    @TaskAction
+    void replay() {
+        TestResultCache.replay(reportDir.get().asFile)
+    }
+}
@@ -0,0 +1,40 @@
+package com.microsoft.hydralab
+
+/**
+ * Params of one run by name, as strings: those of the hydraLab block, with the values of a matrix cell on top of them.
+ * Read the same way as the project properties, with hasProperty('name') and params.name.
+ */
+class RunParams {
+    private final Map<String, String> values
+
+    RunParams(Map<String, String> values) {
+        this.values = values
+    }
+
+    boolean hasProperty(String name) {
+        return values.containsKey(name)
+    }
+
+    def propertyMissing(String name) {
+        return values.get(name)
+    }
+
+    /**
+     * Parse args given as a string, e.g. -PinstrumentationArgs="a=b,c=d". Quotation marks are not supported, use | for a
+     * comma in a value.
+     */
+    static Map<String, String> parseArgs(String value) {
+        Map<String, String> args = new LinkedHashMap<>()
+        for (arg in value.replace("\"", "").split(",")) {
+            if (arg.trim().isEmpty()) {
+                continue
+            }
+            int separator = arg.indexOf('=')
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Arg ${arg} is not in the form of name=value: ${value}")
+            }
+            args.put(arg.substring(0, separator).trim(), arg.substring(separator + 1).replace("|", ","))
+        }
+        return args
+    }
+}
@@ -0,0 +1,54 @@
+package com.microsoft.hydralab
+
+import com.microsoft.hydralab.utils.HydraLabClient
+import org.gradle.api.GradleException
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.provider.MapProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Runs the cells of the hydraLabMatrix block on the lab, each with the params of the hydraLab block it doesn't override.
+ */
+abstract class TriggerDeviceLabTestMatrixTask extends DeviceLabTask {
+    @Internal
+    abstract MapProperty<String, String> getRunParams()
+
+    /**
+     * The params each cell overrides, by cell name.
+     */
+    @Internal
+    abstract MapProperty<String, Map<String, String>> getCells()
+
+    @Internal
+    abstract MapProperty<String, String> getInstrumentationArgs()
+
+    @Internal
+    abstract MapProperty<String, String> getExtraArgs()
+
+    @Internal
+    abstract DirectoryProperty getMatrixDir()
+
+    @Internal
+    abstract Property<Integer> getMaxConcurrentRuns()
+
+    @TaskAction
+    void trigger() {
+        // each cell overrides some of the params of triggerDeviceLabTest, e.g.
+        // hydraLabMatrix { axis 'buildFlavor', ['debug', 'release']; axis 'testSuiteName', ['com.a.SuiteA', 'com.a.SuiteB'] }
+        if (cells.get().isEmpty()) {
+            throw new GradleException('No cell in hydraLabMatrix! Add an axis or include a cell.')
+        }
+        // the parameters have properties of the same names, which the closure would resolve first
+        def task = this
+        submit(new HydraLabClient.RunGroup()) { DeviceLabTestWork.Parameters parameters ->
+            parameters.runParams.set(task.runParams)
+            parameters.cells.set(task.cells)
+            parameters.instrumentationArgs.set(task.instrumentationArgs)
+            parameters.extraArgs.set(task.extraArgs)
+            parameters.reportDir.set(task.matrixDir)
+            parameters.maxConcurrentRuns.set(task.maxConcurrentRuns)
+        }
+    }
+}
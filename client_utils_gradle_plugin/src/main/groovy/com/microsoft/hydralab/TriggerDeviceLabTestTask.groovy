@@ -0,0 +1,110 @@
+package com.microsoft.hydralab
+
+import com.microsoft.hydralab.utils.HydraLabClient
+import com.microsoft.hydralab.utils.TestResultCache
+import org.gradle.api.Task
+import org.gradle.api.file.DirectoryProperty
+import org.gradle.api.file.RegularFileProperty
+import org.gradle.api.provider.MapProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.specs.Spec
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputDirectory
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+/**
+ * Runs the test suite on the lab with the params of the hydraLab block.
+ */
+abstract class TriggerDeviceLabTestTask extends DeviceLabTask {
+    /**
+     * The APK, or a directory with exactly one APK in it. Only the content counts, the same APK elsewhere is up to date.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    @Optional
+    abstract RegularFileProperty getAppApk()
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    @Optional
+    abstract RegularFileProperty getTestApk()
+
+    /**
+     * All params of the run but authToken, the tuning params included.
+     */
+    @Internal
+    abstract MapProperty<String, String> getRunParams()
+
+    /**
+     * The params the test outcome depends on besides the APKs.
+     */
+    @Input
+    abstract MapProperty<String, String> getRunParameters()
+
+    @Input
+    @Optional
+    abstract MapProperty<String, String> getInstrumentationArgs()
+
+    @Input
+    @Optional
+    abstract MapProperty<String, String> getExtraArgs()
+
+    @OutputDirectory
+    abstract DirectoryProperty getReportDir()
+
+    @Internal
+    abstract Property<Boolean> getTestResultCacheEnabled()
+
+    @Internal
+    abstract Property<Boolean> getTestResultCacheIncludeFailures()
+
+    @Internal
+    abstract Property<Boolean> getTestResultGradleBuildCache()
+
+    TriggerDeviceLabTestTask() {
+        outputs.upToDateWhen(upToDateSpec(reportDir, testResultCacheEnabled, testResultCacheIncludeFailures, testResultGradleBuildCache))
+        outputs.cacheIf(cacheableSpec(reportDir, testResultCacheIncludeFailures, testResultGradleBuildCache))
+    }
+
+    // the specs are stored with the task in the configuration cache, they hold the properties but not the task
+
+    private static Spec<Task> upToDateSpec(DirectoryProperty reportDir, Property<Boolean> cacheEnabled, Property<Boolean> includeFailures,
+                                           Property<Boolean> gradleBuildCache) {
+        // reuse the last run only when asked to, and a failed one only if failures are reusable too
+        return { Task task ->
+            return (cacheEnabled.get() || gradleBuildCache.get()) && TestResultCache.isReusable(reportDir.get().asFile, includeFailures.get())
+        } as Spec<Task>
+    }
+
+    private static Spec<Task> cacheableSpec(DirectoryProperty reportDir, Property<Boolean> includeFailures, Property<Boolean> gradleBuildCache) {
+        // decided before the run: a report dir with no run in it yet, e.g. on a fresh agent, may load an entry of another build,
+        // one with a run that is not reusable neither loads nor stores, so the next run goes to the lab again
+        return { Task task ->
+            if (!gradleBuildCache.get()) {
+                return false
+            }
+            File dir = reportDir.get().asFile
+            return TestResultCache.readRecord(dir) == null || TestResultCache.isReusable(dir, includeFailures.get())
+        } as Spec<Task>
+    }
+
+    @TaskAction
+    void trigger() {
+        // try run with params:
+        // -PappApkPath=path/to/apk -PtestApkPath=path/to/apk -PbuildFlavor=flavor -PtestSuiteName=SuiteFullName -PinstrumentationArgs="a=b,c=d"
+        // to ignore a case use -PinstrumentationArgs="ignores=testA|testB"
+        // the parameters have properties of the same names, which the closure would resolve first
+        def task = this
+        submit(new HydraLabClient.RunGroup(true)) { DeviceLabTestWork.Parameters parameters ->
+            parameters.runParams.set(task.runParams)
+            parameters.instrumentationArgs.set(task.instrumentationArgs)
+            parameters.extraArgs.set(task.extraArgs)
+            parameters.reportDir.set(task.reportDir)
+        }
+    }
+}
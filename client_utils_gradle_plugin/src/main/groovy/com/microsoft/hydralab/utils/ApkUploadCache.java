@@ -0,0 +1,154 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local persistent map from the content of an APK set (plus commit) to the apkSetId returned by the lab,
+ * so that uploading byte-identical APKs again can be skipped.
+ */
+public class ApkUploadCache {
+    private static final String CACHE_FILE_NAME = "apk-upload-cache.json";
+    private static final long MAP_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    private final File cacheFile;
+    private final long ttlMillis;
+    private final Gson gson = new Gson();
+
+    public ApkUploadCache(File cacheDir, int ttlHours) {
+        this.cacheFile = new File(cacheDir, CACHE_FILE_NAME);
+        this.ttlMillis = TimeUnit.HOURS.toMillis(ttlHours);
+    }
+
+    /**
+     * @param schema      schema of the lab URL, together with the host and context path the lab the set was uploaded to
+     * @param contextPath context path of the lab URL, empty if it has none
+     */
+    public static String buildKey(String schema, String host, String contextPath, String buildFlavor, String commitId, String apkSha256, String testApkSha256) {
+        return String.join("|", schema + "://" + host + contextPath, buildFlavor, commitId, apkSha256, testApkSha256);
+    }
+
+    public synchronized String lookup(String key) {
+        Entry entry = load().get(key);
+        if (entry == null || isExpired(entry)) {
+            return null;
+        }
+        return entry.apkSetId;
+    }
+
+    public synchronized void store(String key, String apkSetId) {
+        Map<String, Entry> entries = load();
+        entries.values().removeIf(this::isExpired);
+        Entry entry = new Entry();
+        entry.apkSetId = apkSetId;
+        entry.uploadTimeMillis = System.currentTimeMillis();
+        entries.put(key, entry);
+        save(entries);
+    }
+
+    /**
+     * Forget the set id of the key, e.g. as the lab rejected it. A set id stored meanwhile by another build is kept.
+     */
+    public synchronized void remove(String key, String apkSetId) {
+        Map<String, Entry> entries = load();
+        Entry entry = entries.get(key);
+        if (entry == null || !apkSetId.equals(entry.apkSetId)) {
+            return;
+        }
+        entries.remove(key);
+        save(entries);
+    }
+
+    private void save(Map<String, Entry> entries) {
+        File dir = cacheFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Failed to create APK upload cache dir " + dir);
+        }
+        try {
+            // write aside and move, so that concurrent builds never read a half written cache
+            File tmp = File.createTempFile(CACHE_FILE_NAME, ".tmp", dir);
+            try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                gson.toJson(entries, writer);
+            }
+            Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache is only an optimization, failing to persist it should not fail the test
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return ttlMillis > 0 && System.currentTimeMillis() - entry.uploadTimeMillis > ttlMillis;
+    }
+
+    private Map<String, Entry> load() {
+        if (!cacheFile.exists()) {
+            return new HashMap<>();
+        }
+        try (Reader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            Map<String, Entry> entries = gson.fromJson(reader, new TypeToken<Map<String, Entry>>() {
+            }.getType());
+            if (entries == null) {
+                return new HashMap<>();
+            }
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                if (entry == null || entry.apkSetId == null) {
+                    iterator.remove();
+                }
+            }
+            return entries;
+        } catch (IOException | JsonSyntaxException e) {
+            e.printStackTrace();
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Hash the file through memory mapped chunks, the file is never loaded on heap as a whole.
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_CHUNK_SIZE, size - position));
+                digest.update(buffer);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static class Entry {
+        String apkSetId;
+        long uploadTimeMillis;
+    }
+}
@@ -0,0 +1,800 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.*;
+import okio.BufferedSource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Downloads test artifacts concurrently on top of the shared {@link OkHttpClient}.
+ * The worker pool bounds the overall concurrency and the dispatcher bounds the requests sent to a single host.
+ * <p>
+ * An artifact is written to a {@code .part} file next to it and renamed once complete and checked against the
+ * Content-Length, and the Content-MD5 of the blob when the server sends one, so a failed download never leaves a truncated
+ * artifact behind. A transfer cut off midway resumes where it stopped with a Range request, guarded by If-Range with the
+ * ETag of the first response so the bytes of a changed blob are never appended. Blobs from the segment threshold up are
+ * fetched as parallel byte ranges, written in place into a pre-sized file.
+ */
+public class ArtifactDownloader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final String PART_SUFFIX = ".part";
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hydra-lab-download-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ExecutorService executor;
+    private final OkHttpClient client;
+    private final boolean gzipLogs;
+    private final boolean indexLogCrashes;
+    @Nullable
+    private final RetryPolicy retryPolicy;
+    private final long segmentThresholdBytes;
+    private final long segmentBytes;
+    private final Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+
+    public ArtifactDownloader(OkHttpClient baseClient, Options options) {
+        this.gzipLogs = options.gzipLogs;
+        this.indexLogCrashes = options.indexLogCrashes;
+        this.retryPolicy = options.retryPolicy;
+        this.segmentThresholdBytes = options.segmentBytes > 0 ? Math.max(0, options.segmentThresholdBytes) : 0;
+        this.segmentBytes = options.segmentBytes;
+        int workers = Math.max(1, options.concurrency);
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "hydra-lab-download-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = Executors.newFixedThreadPool(workers, threadFactory);
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequests(workers);
+        dispatcher.setMaxRequestsPerHost(Math.max(1, Math.min(options.maxRequestsPerHost, workers)));
+        // newBuilder() keeps the connection pool of the base client, only the dispatcher is replaced
+        client = baseClient.newBuilder().dispatcher(dispatcher).build();
+    }
+
+    public CompletableFuture<DownloadResult> download(String url, File file) {
+        return download(url, file, false);
+    }
+
+    /**
+     * @param logArtifact whether the artifact is a text log, which gets the gzip copy and crash index if enabled
+     */
+    public CompletableFuture<DownloadResult> download(String url, File file, boolean logArtifact) {
+        return download(url, file, logArtifact, 0, 0);
+    }
+
+    /**
+     * @param maxBytes  skip the artifact if the server announces a larger body, 0 for no cap
+     * @param tailBytes only request the last bytes of the artifact with a Range header, 0 for the whole artifact. A server
+     *                  that ignores the Range header sends it whole.
+     */
+    public CompletableFuture<DownloadResult> download(String url, File file, boolean logArtifact, long maxBytes, long tailBytes) {
+        CompletableFuture<DownloadResult> future = new CompletableFuture<>();
+        if (url == null) {
+            future.complete(DownloadResult.skipped(url, file));
+            return future;
+        }
+        Transfer transfer = new Transfer(url, file, logArtifact, maxBytes, tailBytes, future);
+        transfers.add(transfer);
+        future.whenComplete((result, error) -> transfers.remove(transfer));
+        transfer.attempt();
+        return future;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stop the downloads in flight and delete their part files, the downloads fail with "cancelled". The artifacts already
+     * complete are kept.
+     */
+    public void cancel() {
+        cancelled = true;
+        client.dispatcher().cancelAll();
+        executor.shutdownNow();
+        try {
+            // a worker still writing would create the part file again
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Transfer transfer : transfers) {
+            transfer.cancel();
+        }
+    }
+
+    private static File partFile(File file) {
+        return new File(file.getPath() + PART_SUFFIX);
+    }
+
+    private static void moveIntoPlace(File part, File target) throws IOException {
+        try {
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return the ETag if it can be sent in If-Range, which takes strong validators only
+     */
+    @Nullable
+    private static String strongETag(@Nullable String etag) {
+        return etag == null || etag.startsWith("W/") ? null : etag;
+    }
+
+    private static String md5Base64(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * One artifact, from the first request to the rename of the complete file, across the resumed attempts.
+     */
+    private class Transfer {
+        final String url;
+        final File file;
+        final File partFile;
+        final boolean logArtifact;
+        final long maxBytes;
+        final CompletableFuture<DownloadResult> future;
+        @Nullable
+        final RetryPolicy.Backoff backoff;
+        final long start = System.nanoTime();
+        long tailBytes;
+        // validator of the blob version being written, null if the server sent none usable in If-Range
+        @Nullable
+        String etag;
+        @Nullable
+        String expectedMd5;
+        // offset of the first byte of the file in the blob, more than 0 for a tail
+        long rangeStart = 0;
+        // size of the complete file, -1 until known
+        long expectedBytes = -1;
+        long remoteBytes = -1;
+        // bytes of the file written so far, a resume continues from here
+        long written = 0;
+        final AtomicInteger resumes = new AtomicInteger();
+        int segmentCount = 0;
+        // the gzip copy and crash index are written while streaming, unless the file was written in several parts
+        boolean logProcessed = false;
+        @Nullable
+        LogCrashIndexer indexer;
+
+        Transfer(String url, File file, boolean logArtifact, long maxBytes, long tailBytes, CompletableFuture<DownloadResult> future) {
+            this.url = url;
+            this.file = file;
+            this.partFile = partFile(file);
+            this.logArtifact = logArtifact;
+            this.maxBytes = maxBytes;
+            this.tailBytes = tailBytes;
+            this.future = future;
+            this.backoff = retryPolicy == null ? null : retryPolicy.newBackoff();
+        }
+
+        void attempt() {
+            if (cancelled) {
+                cancel();
+                return;
+            }
+            Request.Builder reqBuilder = new Request.Builder().get().url(url);
+            if (written > 0) {
+                reqBuilder.header("Range", "bytes=" + (rangeStart + written) + "-");
+                if (etag != null) {
+                    reqBuilder.header("If-Range", etag);
+                }
+            } else if (tailBytes > 0) {
+                reqBuilder.header("Range", "bytes=-" + tailBytes);
+            }
+            client.newCall(reqBuilder.build()).enqueue(new Callback() {
+                @Override
+                public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                    retryOrFail(e);
+                }
+
+                @Override
+                public void onResponse(@NotNull Call call, @NotNull Response response) {
+                    try (Response res = response) {
+                        receive(res);
+                    } catch (IOException e) {
+                        retryOrFail(e);
+                    } catch (RuntimeException e) {
+                        deleteParts();
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+
+        private void receive(Response res) throws IOException {
+            RetryPolicy.checkResponse(res, "Download " + file.getName());
+            boolean resuming = written > 0;
+            if (res.code() == 416) {
+                if (resuming && written == expectedBytes) {
+                    // the previous attempt got every byte and failed after
+                    finish();
+                    return;
+                }
+                if (!resuming) {
+                    // an empty blob has no last bytes
+                    tailBytes = 0;
+                }
+                restart();
+                attempt();
+                return;
+            }
+            ResponseBody body = res.body();
+            if (!res.isSuccessful() || body == null) {
+                deleteParts();
+                future.complete(DownloadResult.failed(url, file, System.nanoTime() - start, "HTTP " + res.code()));
+                return;
+            }
+            if (res.code() == 206) {
+                Matcher contentRange = CONTENT_RANGE.matcher(String.valueOf(res.header("Content-Range")));
+                if (!contentRange.matches()) {
+                    throw new IOException("Unexpected Content-Range " + res.header("Content-Range") + " for " + file.getName());
+                }
+                long first = Long.parseLong(contentRange.group(1));
+                if (resuming && first != rangeStart + written) {
+                    restart();
+                    throw new IOException(String.format(Locale.US, "Resume of %s got bytes from %d instead of %d, download it again", file.getName(), first, rangeStart + written));
+                }
+                if (!resuming) {
+                    rangeStart = first;
+                    remoteBytes = "*".equals(contentRange.group(3)) ? -1 : Long.parseLong(contentRange.group(3));
+                }
+                expectedBytes = Long.parseLong(contentRange.group(2)) + 1 - rangeStart;
+            } else {
+                if (resuming) {
+                    // If-Range no longer matches, or the server ignores ranges: the body is the whole blob
+                    HydraLabClientUtils.printlnf("##[warning]Server sent all of %s instead of the rest, download it from the start again", file.getName());
+                    restart();
+                    resuming = false;
+                }
+                expectedBytes = body.contentLength();
+                remoteBytes = expectedBytes;
+                expectedMd5 = res.header("Content-MD5");
+            }
+            if (!resuming) {
+                etag = strongETag(res.header("ETag"));
+                String blobMd5 = res.header("x-ms-blob-content-md5");
+                if (blobMd5 != null && rangeStart == 0) {
+                    expectedMd5 = blobMd5;
+                }
+                if (maxBytes > 0 && body.contentLength() > maxBytes) {
+                    // closing the response drops the connection instead of reading the body
+                    future.complete(DownloadResult.tooLarge(url, file, body.contentLength(), maxBytes));
+                    return;
+                }
+                if (res.code() == 200 && segmentThresholdBytes > 0 && expectedBytes >= segmentThresholdBytes
+                        && "bytes".equalsIgnoreCase(res.header("Accept-Ranges")) && res.cacheResponse() == null) {
+                    new Segments(expectedBytes).start(body.source());
+                    return;
+                }
+            }
+            stream(body, resuming);
+            finish();
+        }
+
+        /**
+         * Append the body to the part file, and write the gzip copy and crash index in the same pass if it is the whole log.
+         */
+        private void stream(ResponseBody body, boolean resuming) throws IOException {
+            boolean processLog = logArtifact && (gzipLogs || indexLogCrashes) && !resuming;
+            File gzipPart = processLog && gzipLogs ? partFile(gzipFile()) : null;
+            LogCrashIndexer streamIndexer = processLog && indexLogCrashes ? new LogCrashIndexer() : null;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = body.byteStream();
+                 FileOutputStream fos = new FileOutputStream(partFile, resuming);
+                 OutputStream gzip = gzipPart == null ? null : new FastGZIPOutputStream(new FileOutputStream(gzipPart))) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    fos.write(buffer, 0, read);
+                    written += read;
+                    if (gzip != null) {
+                        gzip.write(buffer, 0, read);
+                    }
+                    if (streamIndexer != null) {
+                        streamIndexer.update(buffer, 0, read);
+                    }
+                }
+            }
+            if (processLog) {
+                indexer = streamIndexer;
+                logProcessed = true;
+            }
+        }
+
+        /**
+         * Check the part file and rename it, with the gzip copy, to the artifact.
+         */
+        private void finish() throws IOException {
+            if (expectedBytes >= 0 && written != expectedBytes) {
+                throw new IOException(String.format(Locale.US, "%s is truncated, got %d of %d bytes", file.getName(), written, expectedBytes));
+            }
+            if (expectedMd5 != null && !expectedMd5.equals(md5Base64(partFile))) {
+                restart();
+                throw new IOException("Content-MD5 of " + file.getName() + " does not match, download it again");
+            }
+            if (logArtifact && (gzipLogs || indexLogCrashes) && !logProcessed) {
+                processLogFile();
+            }
+            moveIntoPlace(partFile, file);
+            File gzipFile = null;
+            if (logArtifact && gzipLogs) {
+                gzipFile = gzipFile();
+                moveIntoPlace(partFile(gzipFile), gzipFile);
+            }
+            File crashIndexFile = null;
+            if (indexer != null) {
+                indexer.finish();
+                crashIndexFile = new File(file.getPath() + ".crash-index.json");
+                // the raw log stays on the agent, the index points to the copy that is uploaded
+                indexer.writeIndex(crashIndexFile, (gzipFile != null ? gzipFile : file).getName());
+            }
+            future.complete(new DownloadResult(url, file, true, written, System.nanoTime() - start, gzipFile, indexer, crashIndexFile,
+                    null, rangeStart, remoteBytes >= 0 ? remoteBytes : rangeStart + written, null, resumes.get(), segmentCount));
+        }
+
+        /**
+         * Write the gzip copy and crash index from the part file, when it was not written in a single stream.
+         */
+        private void processLogFile() throws IOException {
+            LogCrashIndexer fileIndexer = indexLogCrashes ? new LogCrashIndexer() : null;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(partFile);
+                 OutputStream gzip = gzipLogs ? new FastGZIPOutputStream(new FileOutputStream(partFile(gzipFile()))) : null) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (gzip != null) {
+                        gzip.write(buffer, 0, read);
+                    }
+                    if (fileIndexer != null) {
+                        fileIndexer.update(buffer, 0, read);
+                    }
+                }
+            }
+            indexer = fileIndexer;
+            logProcessed = true;
+        }
+
+        private File gzipFile() {
+            return new File(file.getPath() + ".gz");
+        }
+
+        /**
+         * Drop what was written, the next attempt downloads the blob from the start.
+         */
+        private void restart() {
+            deleteParts();
+            written = 0;
+            rangeStart = 0;
+            expectedBytes = -1;
+            remoteBytes = -1;
+            etag = null;
+            expectedMd5 = null;
+            logProcessed = false;
+            indexer = null;
+        }
+
+        private void deleteParts() {
+            partFile.delete();
+            partFile(gzipFile()).delete();
+        }
+
+        private void cancel() {
+            deleteParts();
+            future.complete(DownloadResult.failed(url, file, System.nanoTime() - start, "cancelled"));
+        }
+
+        private void retryOrFail(IOException e) {
+            if (cancelled) {
+                cancel();
+                return;
+            }
+            long delayMillis = backoff == null ? -1 : backoff.failed(e);
+            if (delayMillis < 0) {
+                deleteParts();
+                future.complete(DownloadResult.failed(url, file, System.nanoTime() - start, e.getMessage() == null ? e.toString() : e.getMessage()));
+                return;
+            }
+            if (written > 0) {
+                resumes.incrementAndGet();
+                HydraLabClientUtils.printlnf("Resume downloading %s from byte %d", file.getName(), rangeStart + written);
+            }
+            RETRY_SCHEDULER.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * The byte ranges of one segmented attempt. The first is read from the response already open while the others are
+         * requested, each range retries on its own and resumes from what it received. A range that can't be completed
+         * fails the attempt, which the transfer retries from the start.
+         */
+        private class Segments {
+            final long length;
+            final List<Segment> segments = new ArrayList<>();
+            final AtomicInteger remaining;
+            final AtomicBoolean failed = new AtomicBoolean();
+            FileChannel channel;
+
+            Segments(long length) {
+                this.length = length;
+                for (long first = 0; first < length; first += segmentBytes) {
+                    segments.add(new Segment(first, Math.min(length, first + segmentBytes) - 1));
+                }
+                remaining = new AtomicInteger(segments.size());
+            }
+
+            void start(BufferedSource firstBody) throws IOException {
+                segmentCount = segments.size();
+                try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                    raf.setLength(length);
+                }
+                channel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+                for (int i = 1; i < segments.size(); i++) {
+                    segments.get(i).attempt();
+                }
+                Segment first = segments.get(0);
+                try {
+                    first.write(firstBody);
+                } catch (IOException e) {
+                    first.retryOrFail(e);
+                    return;
+                }
+                first.done();
+            }
+
+            private void segmentDone() {
+                if (remaining.decrementAndGet() > 0 || failed.get()) {
+                    return;
+                }
+                try {
+                    channel.close();
+                    written = length;
+                    finish();
+                } catch (IOException e) {
+                    Transfer.this.retryOrFail(e);
+                }
+            }
+
+            private void fail(IOException e) {
+                if (!failed.compareAndSet(false, true)) {
+                    return;
+                }
+                for (Segment segment : segments) {
+                    segment.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // the part file is dropped anyway
+                }
+                restart();
+                Transfer.this.retryOrFail(e);
+            }
+
+            private class Segment {
+                final long first;
+                final long last;
+                @Nullable
+                final RetryPolicy.Backoff segmentBackoff = retryPolicy == null ? null : retryPolicy.newBackoff();
+                long received = 0;
+                @Nullable
+                volatile Call call;
+
+                Segment(long first, long last) {
+                    this.first = first;
+                    this.last = last;
+                }
+
+                void attempt() {
+                    if (failed.get()) {
+                        return;
+                    }
+                    if (cancelled) {
+                        fail(new IOException("cancelled"));
+                        return;
+                    }
+                    Request.Builder reqBuilder = new Request.Builder().get().url(url).header("Range", "bytes=" + (first + received) + "-" + last);
+                    if (etag != null) {
+                        reqBuilder.header("If-Range", etag);
+                    }
+                    Call segmentCall = client.newCall(reqBuilder.build());
+                    call = segmentCall;
+                    segmentCall.enqueue(new Callback() {
+                        @Override
+                        public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                            retryOrFail(e);
+                        }
+
+                        @Override
+                        public void onResponse(@NotNull Call call, @NotNull Response response) {
+                            try (Response res = response) {
+                                RetryPolicy.checkResponse(res, "Download " + file.getName());
+                                ResponseBody body = res.body();
+                                if (res.code() != 206 || body == null) {
+                                    // the blob changed, or the server gave up on ranges
+                                    fail(new IOException("Range of " + file.getName() + " answered with " + res.code()));
+                                    return;
+                                }
+                                Matcher contentRange = CONTENT_RANGE.matcher(String.valueOf(res.header("Content-Range")));
+                                if (!contentRange.matches() || Long.parseLong(contentRange.group(1)) != first + received) {
+                                    fail(new IOException("Unexpected Content-Range " + res.header("Content-Range") + " for " + file.getName()));
+                                    return;
+                                }
+                                write(body.source());
+                            } catch (IOException e) {
+                                retryOrFail(e);
+                                return;
+                            } catch (RuntimeException e) {
+                                fail(new IOException(e));
+                                return;
+                            }
+                            done();
+                        }
+                    });
+                }
+
+                /**
+                 * Write the rest of the range at its position in the part file.
+                 */
+                void write(BufferedSource source) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    long rest = last + 1 - first - received;
+                    while (rest > 0) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(BUFFER_SIZE, rest));
+                        if (source.read(buffer) == -1) {
+                            throw new EOFException(String.format(Locale.US, "Range of %s ended %d bytes early", file.getName(), rest));
+                        }
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            int count = channel.write(buffer, first + received);
+                            received += count;
+                            rest -= count;
+                        }
+                    }
+                }
+
+                void done() {
+                    if (segmentBackoff != null) {
+                        segmentBackoff.succeeded();
+                    }
+                    segmentDone();
+                }
+
+                void retryOrFail(IOException e) {
+                    if (failed.get()) {
+                        return;
+                    }
+                    if (cancelled) {
+                        fail(e);
+                        return;
+                    }
+                    long delayMillis = segmentBackoff == null ? -1 : segmentBackoff.failed(e);
+                    if (delayMillis < 0) {
+                        fail(e);
+                        return;
+                    }
+                    if (received > 0) {
+                        resumes.incrementAndGet();
+                    }
+                    RETRY_SCHEDULER.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+                }
+
+                void cancel() {
+                    Call segmentCall = call;
+                    if (segmentCall != null) {
+                        segmentCall.cancel();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * How the downloader fetches and writes the artifacts, all extras off by default.
+     */
+    public static class Options {
+        public int concurrency = 4;
+        public int maxRequestsPerHost = 4;
+        /**
+         * Also write a gzip copy of log artifacts, next to the raw file.
+         */
+        public boolean gzipLogs = false;
+        /**
+         * Index the crash signatures of log artifacts while they are downloaded.
+         */
+        public boolean indexLogCrashes = false;
+        /**
+         * Retries of the downloads that fail to connect, get a transient error or are cut off, null to not retry.
+         */
+        @Nullable
+        public RetryPolicy retryPolicy;
+        /**
+         * Blobs of at least this size that the server serves in ranges are downloaded in parallel segments, 0 to always
+         * use a single stream.
+         */
+        public long segmentThresholdBytes = 0;
+        public long segmentBytes = 0;
+
+        public static Options of(HydraLabClientUtils.HydraLabAPIConfig apiConfig) {
+            Options options = new Options();
+            options.concurrency = apiConfig.downloadConcurrency;
+            options.maxRequestsPerHost = apiConfig.downloadMaxRequestsPerHost;
+            options.gzipLogs = apiConfig.logGzipEnabled;
+            options.indexLogCrashes = apiConfig.logCrashIndexEnabled;
+            options.segmentThresholdBytes = apiConfig.downloadSegmentThresholdMB * 1024L * 1024L;
+            options.segmentBytes = apiConfig.downloadSegmentSizeMB * 1024L * 1024L;
+            return options;
+        }
+    }
+
+    public static class DownloadResult {
+        public final String url;
+        public final File file;
+        public final boolean success;
+        public final long bytes;
+        public final long elapsedNanos;
+        /**
+         * Gzip copy of a log artifact, null if not written.
+         */
+        public final File gzipFile;
+        /**
+         * Crashes found in a log artifact, null if it was not indexed.
+         */
+        public final LogCrashIndexer crashIndexer;
+        public final File crashIndexFile;
+        /**
+         * Why the artifact was not downloaded although it exists, null if it was or it does not exist.
+         */
+        public final String skipReason;
+        /**
+         * Offset of the first byte of the file in the artifact, more than 0 if only the tail was downloaded.
+         */
+        public final long rangeStart;
+        /**
+         * Size of the artifact on the server, -1 if unknown.
+         */
+        public final long remoteBytes;
+        /**
+         * Error of the last attempt of a failed download, null if it did not fail.
+         */
+        public final String failure;
+        /**
+         * Attempts that continued from the bytes already received.
+         */
+        public final int resumes;
+        /**
+         * Byte ranges fetched in parallel, 0 if downloaded in a single stream.
+         */
+        public final int segments;
+
+        DownloadResult(String url, File file, boolean success, long bytes, long elapsedNanos) {
+            this(url, file, success, bytes, elapsedNanos, null, null, null);
+        }
+
+        DownloadResult(String url, File file, boolean success, long bytes, long elapsedNanos, File gzipFile, LogCrashIndexer crashIndexer, File crashIndexFile) {
+            this(url, file, success, bytes, elapsedNanos, gzipFile, crashIndexer, crashIndexFile, null, 0, success ? bytes : -1, null, 0, 0);
+        }
+
+        private DownloadResult(String url, File file, boolean success, long bytes, long elapsedNanos, File gzipFile, LogCrashIndexer crashIndexer, File crashIndexFile,
+                               String skipReason, long rangeStart, long remoteBytes, String failure, int resumes, int segments) {
+            this.url = url;
+            this.file = file;
+            this.success = success;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.gzipFile = gzipFile;
+            this.crashIndexer = crashIndexer;
+            this.crashIndexFile = crashIndexFile;
+            this.skipReason = skipReason;
+            this.rangeStart = rangeStart;
+            this.remoteBytes = remoteBytes;
+            this.failure = failure;
+            this.resumes = resumes;
+            this.segments = segments;
+        }
+
+        static DownloadResult skipped(String url, File file) {
+            return new DownloadResult(url, file, false, 0, 0);
+        }
+
+        /**
+         * @param skipReason why the existing artifact is left on the server
+         */
+        public static DownloadResult skipped(String url, File file, String skipReason) {
+            return new DownloadResult(url, file, false, 0, 0, null, null, null, skipReason, 0, -1, null, 0, 0);
+        }
+
+        static DownloadResult tooLarge(String url, File file, long remoteBytes, long maxBytes) {
+            return new DownloadResult(url, file, false, 0, 0, null, null, null,
+                    String.format(Locale.US, "larger than the cap of %.1f MB", maxBytes / 1048576.0), 0, remoteBytes, null, 0, 0);
+        }
+
+        static DownloadResult failed(String url, File file, long elapsedNanos, String failure) {
+            return new DownloadResult(url, file, false, 0, elapsedNanos, null, null, null, null, 0, -1, failure, 0, 0);
+        }
+
+        public boolean isPartial() {
+            return rangeStart > 0;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        public String describeThroughput() {
+            return formatThroughput(bytes, elapsedNanos);
+        }
+
+        public static String formatThroughput(long bytes, long elapsedNanos) {
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            return String.format(Locale.US, "%.2f MB in %.2fs (%.2f MB/s)", bytes / 1048576.0, seconds, bytes / 1048576.0 / seconds);
+        }
+    }
+
+    /**
+     * Logs compress well even at the fastest level, which keeps up with the download.
+     */
+    private static class FastGZIPOutputStream extends GZIPOutputStream {
+        FastGZIPOutputStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.DeviceTestResult;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Which artifacts of a device are downloaded. The others stay on the lab and are linked from the summary instead.
+ * <p>
+ * The XML report is the result of the device, {@link #failedDevicesOnly} never skips it, the merged report and the test
+ * durations need it from every device. Logs over the size cap are not skipped when a tail size is set, only their last
+ * bytes are fetched with a Range request.
+ */
+public class ArtifactPolicy {
+    /**
+     * In the order of {@link DeviceArtifactHarvester#ARTIFACT_NAMES}.
+     */
+    public enum Type {
+        ADB_LOG(true), XML_REPORT(false), LOGCAT(true), TEST_GIF(false);
+
+        public final boolean log;
+
+        Type(boolean log) {
+            this.log = log;
+        }
+    }
+
+    public static final ArtifactPolicy ALL = new ArtifactPolicy(EnumSet.allOf(Type.class), false, 0, 0);
+
+    private final Set<Type> types;
+    private final boolean failedDevicesOnly;
+    private final long maxBytes;
+    private final long logTailBytes;
+
+    /**
+     * @param maxBytes     largest artifact downloaded, 0 for no cap
+     * @param logTailBytes bytes fetched from the end of each log, 0 for the whole log
+     */
+    public ArtifactPolicy(Set<Type> types, boolean failedDevicesOnly, long maxBytes, long logTailBytes) {
+        this.types = types.isEmpty() ? EnumSet.noneOf(Type.class) : EnumSet.copyOf(types);
+        this.failedDevicesOnly = failedDevicesOnly;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.logTailBytes = Math.max(0, logTailBytes);
+    }
+
+    public static ArtifactPolicy of(HydraLabClientUtils.HydraLabAPIConfig apiConfig) {
+        return new ArtifactPolicy(parseTypes(apiConfig.artifactTypes), apiConfig.artifactsOfFailedDevicesOnly,
+                apiConfig.artifactMaxSizeMB * 1024L * 1024L, apiConfig.logTailSizeMB * 1024L * 1024L);
+    }
+
+    /**
+     * @param types comma separated names of {@link Type}, e.g. "XML_REPORT,LOGCAT"
+     */
+    static Set<Type> parseTypes(String types) {
+        Set<Type> parsed = EnumSet.noneOf(Type.class);
+        for (String name : types.split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                parsed.add(Type.valueOf(name.trim().toUpperCase(Locale.US)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown artifact type " + name.trim() + " in artifactTypes, expected some of " + EnumSet.allOf(Type.class), e);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return why the artifact of the device is not downloaded, null to download it
+     */
+    @Nullable
+    public String skipReason(Type type, DeviceTestResult deviceTestResult) {
+        if (!types.contains(type)) {
+            return "not in artifactTypes";
+        }
+        boolean failed = deviceTestResult.failCount > 0 || deviceTestResult.totalCount == 0;
+        if (failedDevicesOnly && !failed && type != Type.XML_REPORT) {
+            return "all tests passed on the device";
+        }
+        return null;
+    }
+
+    /**
+     * @return largest response body downloaded, 0 for no cap
+     */
+    public long maxBytes(Type type) {
+        return type.log && logTailBytes > 0 ? 0 : maxBytes;
+    }
+
+    /**
+     * @return bytes to request from the end of the artifact, 0 for the whole artifact
+     */
+    public long tailBytes(Type type) {
+        return type.log ? logTailBytes : 0;
+    }
+}
@@ -0,0 +1,236 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import okhttp3.*;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads a file to the lab in fixed-size chunks. The upload id is derived from the file content, so an interrupted
+ * upload, even from a previous build, resumes from the last offset acknowledged by the server.
+ * <p>
+ * Protocol, relative to {@link HydraLabClientUtils.HydraLabAPIConfig#getUploadChunkUrl(String)}:
+ * GET returns the acknowledged offset, PUT with a Content-Range header appends a chunk and returns the new offset.
+ */
+public class ChunkedApkUploader {
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+    private static final Gson GSON = new Gson();
+
+    private final OkHttpClient client;
+    private final HydraLabClientUtils.HydraLabAPIConfig apiConfig;
+    private final long chunkSize;
+    private final RetryPolicy retryPolicy;
+    private final AtomicInteger retryCount = new AtomicInteger();
+
+    public ChunkedApkUploader(OkHttpClient client, HydraLabClientUtils.HydraLabAPIConfig apiConfig) {
+        this(client, apiConfig, new RetryPolicy("Upload chunk", apiConfig.retryBaseDelayMillis, TimeUnit.SECONDS.toMillis(apiConfig.retryMaxDelaySec),
+                TimeUnit.SECONDS.toMillis(apiConfig.uploadRetryBudgetSec), true, null, null));
+    }
+
+    /**
+     * @param retryPolicy delays of the chunk retries, each chunk is retried at most {@code uploadChunkRetryCount} times
+     */
+    public ChunkedApkUploader(OkHttpClient client, HydraLabClientUtils.HydraLabAPIConfig apiConfig, RetryPolicy retryPolicy) {
+        this.client = client;
+        this.apiConfig = apiConfig;
+        this.chunkSize = Math.max(1, apiConfig.uploadChunkSizeMB) * 1024L * 1024L;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Upload the file chunk by chunk. The chunks are sent from the executor, the scheduler keeps the delays between the
+     * retries of a chunk, no thread waits meanwhile.
+     *
+     * @return future of the upload id to reference the file in the APK set creation request
+     */
+    public CompletableFuture<String> uploadAsync(File file, Executor executor, ScheduledExecutorService scheduler) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                long total = file.length();
+                String uploadId = ApkUploadCache.sha256(file) + "-" + total;
+                long offset = queryOffset(uploadId);
+                if (offset > 0) {
+                    HydraLabClientUtils.printlnf("Resuming upload of %s from offset %d/%d", file.getName(), offset, total);
+                }
+                new FileUpload(file, uploadId, offset, total, result, executor, scheduler).run();
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return number of chunk uploads retried so far
+     */
+    public int getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * The chunks of one file, sent one after the other.
+     */
+    private class FileUpload implements Runnable {
+        final File file;
+        final String uploadId;
+        final long total;
+        final long start = System.nanoTime();
+        final CompletableFuture<String> result;
+        final Executor executor;
+        final ScheduledExecutorService scheduler;
+        long offset;
+        // attempt of the current chunk, each chunk is retried at most uploadChunkRetryCount times
+        int attempt = 0;
+        RetryPolicy.Backoff backoff = retryPolicy.newBackoff();
+
+        FileUpload(File file, String uploadId, long offset, long total, CompletableFuture<String> result, Executor executor, ScheduledExecutorService scheduler) {
+            this.file = file;
+            this.uploadId = uploadId;
+            this.offset = offset;
+            this.total = total;
+            this.result = result;
+            this.executor = executor;
+            this.scheduler = scheduler;
+        }
+
+        /**
+         * Send the chunks from the current offset, until one fails and its retry is scheduled.
+         */
+        @Override
+        public void run() {
+            try {
+                while (offset < total) {
+                    long length = Math.min(chunkSize, total - offset);
+                    try {
+                        backoff.beforeAttempt();
+                        long acknowledged = -1;
+                        if (attempt > 0) {
+                            // the previous attempt may have landed partially or completely, continue from what the server has
+                            acknowledged = queryOffset(uploadId);
+                        }
+                        if (acknowledged < 0 || acknowledged == offset) {
+                            acknowledged = uploadChunk(uploadId, file, offset, length, total);
+                        }
+                        backoff.succeeded();
+                        offset = acknowledged;
+                        attempt = 0;
+                        backoff = retryPolicy.newBackoff();
+                    } catch (IOException e) {
+                        long delayMillis;
+                        if (attempt >= apiConfig.uploadChunkRetryCount) {
+                            backoff.abandoned();
+                            delayMillis = -1;
+                        } else {
+                            delayMillis = backoff.failed(e);
+                        }
+                        if (delayMillis < 0) {
+                            result.completeExceptionally(e);
+                            return;
+                        }
+                        attempt++;
+                        retryCount.incrementAndGet();
+                        scheduler.schedule(() -> executor.execute(this), delayMillis, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    HydraLabClientUtils.printlnf("Uploaded %s: %d/%d bytes (%d%%), %s", file.getName(), offset, total,
+                            total == 0 ? 100 : offset * 100 / total, ArtifactDownloader.DownloadResult.formatThroughput(offset, System.nanoTime() - start));
+                }
+                result.complete(uploadId);
+            } catch (RuntimeException e) {
+                backoff.abandoned();
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private long uploadChunk(String uploadId, File file, long offset, long length, long total) throws IOException {
+        Request req = new Request.Builder()
+                .addHeader("Authorization", "Bearer " + apiConfig.authToken)
+                .addHeader("Content-Range", String.format(Locale.US, "bytes %d-%d/%d", offset, offset + length - 1, total))
+                .url(apiConfig.getUploadChunkUrl(uploadId))
+                .put(new FileRegionRequestBody(file, offset, length))
+                .build();
+        try (Response response = client.newCall(req).execute()) {
+            return readOffset(response, "uploadChunk");
+        }
+    }
+
+    private long queryOffset(String uploadId) throws IOException {
+        Request req = new Request.Builder()
+                .addHeader("Authorization", "Bearer " + apiConfig.authToken)
+                .url(apiConfig.getUploadChunkUrl(uploadId))
+                .build();
+        try (Response response = client.newCall(req).execute()) {
+            if (response.code() == 404) {
+                return 0;
+            }
+            return readOffset(response, "queryUploadOffset");
+        }
+    }
+
+    private static long readOffset(Response response, String action) throws IOException {
+        RetryPolicy.checkResponse(response, action);
+        ResponseBody body = response.body();
+        if (!response.isSuccessful() || body == null) {
+            throw new IOException(action + " failed: " + response);
+        }
+        JsonObject jsonObject = GSON.fromJson(body.string(), JsonObject.class);
+        int resultCode = jsonObject.get("code").getAsInt();
+        if (resultCode != 200) {
+            throw new IOException(action + " server returned code: " + resultCode + ", " + jsonObject);
+        }
+        return jsonObject.getAsJsonObject("content").get("offset").getAsLong();
+    }
+
+    /**
+     * Streams a region of the file straight from disk into the request, nothing but the okio segment buffer is held in memory.
+     */
+    private static class FileRegionRequestBody extends RequestBody {
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        FileRegionRequestBody(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return OCTET_STREAM;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(@NotNull BufferedSink sink) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.position(offset);
+                try (InputStream in = Channels.newInputStream(channel); Source source = Okio.source(in)) {
+                    sink.write(source, length);
+                }
+            }
+        }
+    }
+}
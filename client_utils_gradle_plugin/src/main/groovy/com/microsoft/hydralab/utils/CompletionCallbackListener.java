@@ -0,0 +1,157 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Embedded HTTP endpoint the lab posts the final {@link HydraLabClientUtils.TestTask} to, so the client does not have to
+ * poll for the end of the test. The path carries a random token, other requests are rejected. Once the trigger returns,
+ * only the task it started is accepted, a post of another task is answered with 409.
+ */
+public class CompletionCallbackListener implements AutoCloseable {
+    private static final String CALLBACK_PATH = "/hydra-lab/callback/";
+
+    private final HttpServer server;
+    private final String callbackUrl;
+    private final CompletableFuture<HydraLabClientUtils.TestTask> completion = new CompletableFuture<>();
+    private volatile boolean delivered = false;
+    // null until the trigger returns the id of the task
+    private String expectedTestTaskId;
+    // ended tasks posted before the id was known, by task id
+    private final Map<String, HydraLabClientUtils.TestTask> earlyTasks = new HashMap<>();
+
+    public CompletionCallbackListener(String host, int port) throws IOException {
+        String path = CALLBACK_PATH + UUID.randomUUID();
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(path, this::handle);
+        server.start();
+        String publicHost = host == null || host.isEmpty() ? InetAddress.getLocalHost().getCanonicalHostName() : host;
+        callbackUrl = String.format(Locale.US, "http://%s:%d%s", publicHost, server.getAddress().getPort(), path);
+    }
+
+    public String getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    /**
+     * @return future completed once the lab has posted the ended task
+     */
+    public CompletableFuture<HydraLabClientUtils.TestTask> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Accept the callback of this task only, a post that came in before is checked now.
+     */
+    public void expectTestTask(String testTaskId) {
+        HydraLabClientUtils.TestTask endedTask;
+        synchronized (this) {
+            expectedTestTaskId = testTaskId;
+            endedTask = earlyTasks.get(testTaskId);
+            earlyTasks.clear();
+        }
+        if (endedTask != null) {
+            completion.complete(endedTask);
+        }
+    }
+
+    public boolean isDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return the task posted by the lab the first time it is asked for after the callback arrived, null otherwise
+     */
+    public HydraLabClientUtils.TestTask takeCompletedTask() {
+        if (delivered || !completion.isDone()) {
+            return null;
+        }
+        delivered = true;
+        return completion.getNow(null);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        HydraLabClientUtils.TestTask endedTask = null;
+        HydraLabClientUtils.TestTask rejectedTask = null;
+        try (InputStream in = exchange.getRequestBody()) {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                status = 405;
+            } else {
+                HydraLabClientUtils.TestTask testTask = parseTask(IOUtils.toString(in, StandardCharsets.UTF_8));
+                if (testTask == null) {
+                    status = 400;
+                } else if (isEnded(testTask.status)) {
+                    synchronized (this) {
+                        if (expectedTestTaskId == null) {
+                            earlyTasks.putIfAbsent(String.valueOf(testTask.id), testTask);
+                        } else if (expectedTestTaskId.equals(testTask.id)) {
+                            endedTask = testTask;
+                        } else {
+                            rejectedTask = testTask;
+                            status = 409;
+                        }
+                    }
+                }
+            }
+        } catch (JsonParseException e) {
+            status = 400;
+        }
+        byte[] response = String.format(Locale.US, "{\"code\":%d}", status).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+        if (rejectedTask != null) {
+            HydraLabClientUtils.printlnf("##[warning]Ignored completion callback of test task %s, listening for test task %s", rejectedTask.id, expectedTestTaskId);
+        }
+        // complete only after answering, the waiting side stops the server right away
+        if (endedTask != null) {
+            HydraLabClientUtils.printlnf("##[command]Received completion callback of test task %s, status: %s", endedTask.id, endedTask.status);
+            completion.complete(endedTask);
+        }
+    }
+
+    private static HydraLabClientUtils.TestTask parseTask(String body) {
+        JsonObject jsonObject = HydraLabClientUtils.GSON.fromJson(body, JsonObject.class);
+        if (jsonObject == null) {
+            return null;
+        }
+        // accept both the API envelope and a bare task
+        if (jsonObject.has("content") && jsonObject.get("content").isJsonObject()) {
+            jsonObject = jsonObject.getAsJsonObject("content");
+        }
+        HydraLabClientUtils.TestTask testTask = HydraLabClientUtils.GSON.fromJson(jsonObject, HydraLabClientUtils.TestTask.class);
+        if (testTask == null || testTask.status == null) {
+            return null;
+        }
+        return testTask;
+    }
+
+    private static boolean isEnded(String status) {
+        return HydraLabClientUtils.TestTask.TestStatus.FINISHED.equals(status)
+                || HydraLabClientUtils.TestTask.TestStatus.CANCELED.equals(status)
+                || HydraLabClientUtils.TestTask.TestStatus.EXCEPTION.equals(status);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,119 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.DeviceTestResult;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.TestTask;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+import static com.microsoft.hydralab.utils.HydraLabClientUtils.printlnf;
+
+/**
+ * Starts the artifact downloads of each device as soon as the device is done, while the rest of the task is still running.
+ */
+public class DeviceArtifactHarvester {
+    public static final String[] ARTIFACT_NAMES = {"adb log", "xml test report", "logcat log", "test Gif"};
+    public static final int XML_REPORT_INDEX = 1;
+
+    private final ArtifactDownloader downloader;
+    private final String reportFolderPath;
+    private final String testSuiteName;
+    @Nullable
+    private final String shardLabel;
+    private final ArtifactPolicy artifactPolicy;
+    private final Map<String, DeviceDownloads> deviceDownloads = new HashMap<>();
+
+    public DeviceArtifactHarvester(ArtifactDownloader downloader, String reportFolderPath, String testSuiteName) {
+        this(downloader, reportFolderPath, testSuiteName, null, ArtifactPolicy.ALL);
+    }
+
+    /**
+     * @param shardLabel     added to the file names, a device may run several shards of the suite
+     * @param artifactPolicy artifacts to download, the others complete right away with a skip reason
+     */
+    public DeviceArtifactHarvester(ArtifactDownloader downloader, String reportFolderPath, String testSuiteName, @Nullable String shardLabel,
+                                   ArtifactPolicy artifactPolicy) {
+        this.downloader = downloader;
+        this.reportFolderPath = reportFolderPath;
+        this.testSuiteName = testSuiteName;
+        this.shardLabel = shardLabel;
+        this.artifactPolicy = artifactPolicy;
+    }
+
+    /**
+     * Called with every status seen while polling, picks up the devices that have finished since the last call.
+     */
+    public synchronized void harvestFinishedDevices(TestTask runningTest) {
+        if (runningTest.deviceTestResults == null) {
+            return;
+        }
+        for (DeviceTestResult deviceTestResult : runningTest.deviceTestResults) {
+            if (deviceTestResult.testEndTimeMillis <= 0 || deviceTestResult.testXmlReportBlobUrl == null) {
+                continue;
+            }
+            DeviceDownloads downloads = deviceDownloads.get(deviceTestResult.deviceSerialNumber);
+            if (downloads != null && Objects.equals(downloads.urls[1], deviceTestResult.testXmlReportBlobUrl)) {
+                continue;
+            }
+            printlnf("Device %s finished, start downloading its artifacts while the test is still running", deviceTestResult.deviceSerialNumber);
+            downloads(deviceTestResult);
+        }
+    }
+
+    /**
+     * @return the downloads of the device artifacts, in the order of {@link #ARTIFACT_NAMES}, started now if they were not yet
+     */
+    public synchronized List<CompletableFuture<ArtifactDownloader.DownloadResult>> downloads(DeviceTestResult deviceTestResult) {
+        String[] urls = {deviceTestResult.instrumentReportBlobUrl, deviceTestResult.testXmlReportBlobUrl, deviceTestResult.logcatBlobUrl, deviceTestResult.testGifBlobUrl};
+        String suiteName = shardLabel == null ? testSuiteName : testSuiteName + "-" + shardLabel;
+        String recordingName = shardLabel == null ? deviceTestResult.deviceSerialNumber : shardLabel + "-" + deviceTestResult.deviceSerialNumber;
+        File[] files = {
+                new File(reportFolderPath, "ADB-" + suiteName + "-" + deviceTestResult.deviceSerialNumber + ".log"),
+                new File(reportFolderPath, "TEST-" + suiteName + "-" + deviceTestResult.deviceSerialNumber + ".xml"),
+                new File(reportFolderPath, "logcat-" + suiteName + "-" + deviceTestResult.deviceSerialNumber + ".log"),
+                new File(reportFolderPath, "rec_" + recordingName + ".gif")
+        };
+
+        DeviceDownloads previous = deviceDownloads.get(deviceTestResult.deviceSerialNumber);
+        DeviceDownloads current = new DeviceDownloads();
+        for (int i = 0; i < ARTIFACT_NAMES.length; i++) {
+            if (previous != null && Objects.equals(previous.urls[i], urls[i])) {
+                current.futures.add(previous.futures.get(i));
+            } else {
+                ArtifactPolicy.Type type = ArtifactPolicy.Type.values()[i];
+                String skipReason = urls[i] == null ? null : artifactPolicy.skipReason(type, deviceTestResult);
+                if (skipReason != null) {
+                    current.futures.add(CompletableFuture.completedFuture(ArtifactDownloader.DownloadResult.skipped(urls[i], files[i], skipReason)));
+                } else if (previous != null) {
+                    // the lab retried the device, the outdated download must not write the same file concurrently, start after
+                    // it instead of waiting for it on the polling thread
+                    int index = i;
+                    current.futures.add(previous.futures.get(i).handle((result, error) -> null)
+                            .thenCompose(ignored -> startDownload(index, urls[index], files[index], deviceTestResult)));
+                } else {
+                    current.futures.add(startDownload(i, urls[i], files[i], deviceTestResult));
+                }
+            }
+            current.urls[i] = urls[i];
+        }
+        deviceDownloads.put(deviceTestResult.deviceSerialNumber, current);
+        return new ArrayList<>(current.futures);
+    }
+
+    private CompletableFuture<ArtifactDownloader.DownloadResult> startDownload(int index, String url, File file, DeviceTestResult deviceTestResult) {
+        ArtifactPolicy.Type type = ArtifactPolicy.Type.values()[index];
+        printlnf("Start downloading %s for device %s, device name %s, link: %s", ARTIFACT_NAMES[index], deviceTestResult.deviceSerialNumber, deviceTestResult.deviceName, url);
+        return downloader.download(url, file, type.log, artifactPolicy.maxBytes(type), artifactPolicy.tailBytes(type));
+    }
+
+    private static class DeviceDownloads {
+        final String[] urls = new String[ARTIFACT_NAMES.length];
+        final List<CompletableFuture<ArtifactDownloader.DownloadResult>> futures = new ArrayList<>();
+    }
+}
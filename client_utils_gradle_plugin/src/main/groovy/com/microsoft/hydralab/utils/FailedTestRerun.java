@@ -0,0 +1,156 @@
+package com.microsoft.hydralab.utils;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * The failed test cases of a run, run again on their own through the class filter of AndroidJUnitRunner until they pass or
+ * the attempts run out. A case that passes on a re-run is flaky, it is reported but doesn't fail the build. Cases are named
+ * class#method, the way both the merged JUnit report and the runner name them.
+ */
+public class FailedTestRerun {
+    // more failures than this are a broken build rather than flaky tests, and would make the filter arg too long
+    public static final int MAX_RERUN_CASES = 100;
+    private static final String[] TEST_FILTERS = {"class", "notClass", "package", "notPackage", "numShards", "shardIndex"};
+
+    private final SortedSet<String> failing = new TreeSet<>();
+    // case -> attempt it passed on
+    private final SortedMap<String, Integer> flaky = new TreeMap<>();
+    private int attempts;
+
+    /**
+     * @param junitReports reports of every test task of the run
+     */
+    public FailedTestRerun(Collection<File> junitReports) throws IOException {
+        for (File report : junitReports) {
+            for (Map.Entry<String, Boolean> entry : readCaseFailures(report).entrySet()) {
+                if (entry.getValue()) {
+                    failing.add(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cases that failed on every attempt so far
+     */
+    public SortedSet<String> getFailing() {
+        return Collections.unmodifiableSortedSet(failing);
+    }
+
+    /**
+     * @return the cases that passed on a re-run, with the attempt they passed on
+     */
+    public SortedMap<String, Integer> getFlaky() {
+        return Collections.unmodifiableSortedMap(flaky);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return the args of the run without its test filters, with the failing cases as the class filter
+     */
+    public Map<String, String> rerunInstrumentationArgs(@Nullable Map<String, String> instrumentationArgs) {
+        Map<String, String> rerunArgs = new LinkedHashMap<>();
+        if (instrumentationArgs != null) {
+            rerunArgs.putAll(instrumentationArgs);
+        }
+        for (String filter : TEST_FILTERS) {
+            rerunArgs.remove(filter);
+        }
+        Set<String> filters = new TreeSet<>();
+        for (String testCase : failing) {
+            // the cases of a parameterized method, e.g. test[1], only run together as the method
+            int parameters = testCase.indexOf('[', testCase.indexOf('#'));
+            filters.add(parameters > 0 ? testCase.substring(0, parameters) : testCase);
+        }
+        rerunArgs.put("class", String.join(",", filters));
+        return rerunArgs;
+    }
+
+    /**
+     * Learn from the reports of a re-run. A case they don't report passing, e.g. as its device crashed, keeps failing.
+     */
+    public void update(Collection<File> junitReports) throws IOException {
+        attempts++;
+        Map<String, Boolean> caseFailures = new HashMap<>();
+        for (File report : junitReports) {
+            for (Map.Entry<String, Boolean> entry : readCaseFailures(report).entrySet()) {
+                caseFailures.merge(entry.getKey(), entry.getValue(), Boolean::logicalOr);
+            }
+        }
+        for (Iterator<String> iterator = failing.iterator(); iterator.hasNext(); ) {
+            String testCase = iterator.next();
+            if (Boolean.FALSE.equals(caseFailures.get(testCase))) {
+                flaky.put(testCase, attempts);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the markdown of the re-runs, for the summary
+     */
+    public String describe() {
+        StringBuilder mdBuilder = new StringBuilder();
+        mdBuilder.append(String.format(Locale.US, "\n### Re-ran the failed cases %d times: %d flaky, %d still failing\n\n", attempts, flaky.size(), failing.size()));
+        if (!flaky.isEmpty()) {
+            mdBuilder.append("#### Flaky, passed on a re-run\n\n");
+            for (Map.Entry<String, Integer> entry : flaky.entrySet()) {
+                mdBuilder.append(String.format(Locale.US, "- `%s` passed on re-run %d\n", entry.getKey(), entry.getValue()));
+            }
+            mdBuilder.append("\n");
+        }
+        if (!failing.isEmpty()) {
+            mdBuilder.append("#### Failed on every attempt\n\n");
+            for (String testCase : failing) {
+                mdBuilder.append(String.format(Locale.US, "- `%s`\n", testCase));
+            }
+            mdBuilder.append("\n");
+        }
+        return mdBuilder.toString();
+    }
+
+    /**
+     * @return whether each test case in the report failed or had an error
+     */
+    static Map<String, Boolean> readCaseFailures(File junitReport) throws IOException {
+        Map<String, Boolean> caseFailures = new HashMap<>();
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(junitReport))) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            String testCaseId = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("testcase".equals(name)) {
+                        testCaseId = reader.getAttributeValue(null, "classname") + "#" + reader.getAttributeValue(null, "name");
+                        caseFailures.putIfAbsent(testCaseId, false);
+                    } else if (testCaseId != null && ("failure".equals(name) || "error".equals(name))) {
+                        caseFailures.put(testCaseId, true);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "testcase".equals(reader.getLocalName())) {
+                    testCaseId = null;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to read JUnit report " + junitReport + ": " + e.getMessage(), e);
+        }
+        return caseFailures;
+    }
+}
@@ -0,0 +1,677 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads the commit metadata the client needs straight from the {@code .git} directory, without spawning {@code git}:
+ * HEAD and refs (loose and packed), and commits from loose objects or pack files (v2 index, including deltified objects).
+ * Anything it does not understand is reported as an {@link IOException}, so the caller can fall back to the git command.
+ */
+public class GitMetadataReader implements Closeable {
+    private static final int OBJ_COMMIT = 1;
+    private static final int OBJ_OFS_DELTA = 6;
+    private static final int OBJ_REF_DELTA = 7;
+    private static final int HASH_LENGTH = 20;
+    private static final int MIN_ABBREV_LENGTH = 7;
+    // the largest array the JVM allocates
+    private static final int MAX_OBJECT_SIZE = Integer.MAX_VALUE - 8;
+    private static final String COUNT_CACHE_FILE_NAME = "git-first-parent-count.json";
+    private static final int COUNT_CACHE_MAX_ENTRIES = 256;
+
+    private final File gitDir;
+    private final File commonDir;
+    private final Set<String> shallowCommits;
+    private List<PackFile> packs;
+
+    private GitMetadataReader(File gitDir, File commonDir) throws IOException {
+        this.gitDir = gitDir;
+        this.commonDir = commonDir;
+        File shallowFile = new File(commonDir, "shallow");
+        this.shallowCommits = shallowFile.exists()
+                ? new HashSet<>(Files.readAllLines(shallowFile.toPath(), StandardCharsets.UTF_8))
+                : Collections.emptySet();
+    }
+
+    /**
+     * @return reader of the repository containing the dir, null if the dir is not in a git work tree
+     */
+    @Nullable
+    public static GitMetadataReader open(File dir) throws IOException {
+        for (File current = dir.getCanonicalFile(); current != null; current = current.getParentFile()) {
+            File dotGit = new File(current, ".git");
+            if (dotGit.isDirectory()) {
+                return new GitMetadataReader(dotGit, dotGit);
+            }
+            if (dotGit.isFile()) {
+                // linked work tree or submodule, the file points to the actual git dir
+                String content = readText(dotGit).trim();
+                if (!content.startsWith("gitdir:")) {
+                    throw new IOException("Unsupported .git file: " + dotGit);
+                }
+                File gitDir = resolve(current, content.substring("gitdir:".length()).trim());
+                File commonDirFile = new File(gitDir, "commondir");
+                File commonDir = commonDirFile.exists() ? resolve(gitDir, readText(commonDirFile).trim()) : gitDir;
+                return new GitMetadataReader(gitDir, commonDir);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return full hash of the commit checked out
+     */
+    public String resolveHead() throws IOException {
+        return resolveRef("HEAD", 0);
+    }
+
+    private String resolveRef(String name, int depth) throws IOException {
+        if (depth > 5) {
+            throw new IOException("Too deep symbolic ref " + name);
+        }
+        String value = null;
+        for (File dir : new File[]{gitDir, commonDir}) {
+            File refFile = new File(dir, name);
+            if (refFile.isFile()) {
+                value = readText(refFile).trim();
+                break;
+            }
+        }
+        if (value == null) {
+            value = findPackedRef(name);
+        }
+        if (value == null) {
+            throw new IOException("Ref not found: " + name);
+        }
+        if (value.startsWith("ref:")) {
+            return resolveRef(value.substring("ref:".length()).trim(), depth + 1);
+        }
+        if (!isFullHash(value)) {
+            throw new IOException("Unexpected value of ref " + name + ": " + value);
+        }
+        return value;
+    }
+
+    @Nullable
+    private String findPackedRef(String name) throws IOException {
+        File packedRefs = new File(commonDir, "packed-refs");
+        if (!packedRefs.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(packedRefs.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.startsWith("^")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                if (space > 0 && line.substring(space + 1).equals(name)) {
+                    return line.substring(0, space);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Abbreviate the hash like {@code git log --pretty=format:%h} with the default {@code core.abbrev}: long enough for the
+     * number of objects in the repository and unique among them.
+     */
+    public String abbreviate(String hash) throws IOException {
+        long objectCount = 0;
+        for (PackFile pack : getPacks()) {
+            objectCount += pack.objectCount;
+        }
+        // same heuristic as the auto abbrev of git: half the bit length of the object count, in hex digits
+        int bits = 64 - Long.numberOfLeadingZeros(objectCount);
+        int length = Math.max(MIN_ABBREV_LENGTH, (bits + 1) / 2);
+        while (length < hash.length() && countObjectsWithPrefix(hash.substring(0, length)) > 1) {
+            length++;
+        }
+        return hash.substring(0, length);
+    }
+
+    /**
+     * @param hashOrPrefix full or abbreviated commit hash
+     */
+    public Commit readCommit(String hashOrPrefix) throws IOException {
+        String hash = resolvePrefix(hashOrPrefix.toLowerCase(Locale.US));
+        GitObject object = readObject(hash);
+        if (object.type != OBJ_COMMIT) {
+            throw new IOException(hash + " is not a commit");
+        }
+        return Commit.parse(hash, object.data);
+    }
+
+    /**
+     * Count like {@code git rev-list --first-parent --right-only --count <startCommit>..<headCommit>} by walking the
+     * first-parent chain of the head down to the start commit. Counts are cached in the cache dir, as commits never change.
+     *
+     * @return the count, or -1 if the start commit is not on the first-parent chain of the head
+     */
+    public int countFirstParentCommits(String startCommit, String headCommit, @Nullable File cacheDir) throws IOException {
+        String start = resolvePrefix(startCommit.toLowerCase(Locale.US));
+        String head = resolvePrefix(headCommit.toLowerCase(Locale.US));
+        String cacheKey = start + ".." + head;
+        Map<String, Integer> cache = cacheDir == null ? null : loadCountCache(cacheDir);
+        if (cache != null && cache.containsKey(cacheKey)) {
+            return cache.get(cacheKey);
+        }
+        int count = 0;
+        String current = head;
+        while (!current.equals(start)) {
+            count++;
+            Commit commit = readCommit(current);
+            if (commit.parents.isEmpty() || shallowCommits.contains(current)) {
+                return -1;
+            }
+            current = commit.parents.get(0);
+        }
+        if (cache != null) {
+            cache.put(cacheKey, count);
+            storeCountCache(cacheDir, cache);
+        }
+        return count;
+    }
+
+    private String resolvePrefix(String prefix) throws IOException {
+        if (isFullHash(prefix)) {
+            return prefix;
+        }
+        if (prefix.length() < 4 || !prefix.matches("[0-9a-f]+")) {
+            throw new IOException("Not a commit hash: " + prefix);
+        }
+        Set<String> matches = new HashSet<>();
+        collectLooseObjects(prefix, matches);
+        for (PackFile pack : getPacks()) {
+            pack.collect(prefix, matches);
+        }
+        if (matches.size() != 1) {
+            throw new IOException((matches.isEmpty() ? "Unknown" : "Ambiguous") + " commit hash: " + prefix);
+        }
+        return matches.iterator().next();
+    }
+
+    private int countObjectsWithPrefix(String prefix) throws IOException {
+        Set<String> matches = new HashSet<>();
+        collectLooseObjects(prefix, matches);
+        for (PackFile pack : getPacks()) {
+            pack.collect(prefix, matches);
+        }
+        return matches.size();
+    }
+
+    private void collectLooseObjects(String prefix, Set<String> matches) {
+        File dir = new File(commonDir, "objects/" + prefix.substring(0, 2));
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix.substring(2))) {
+                matches.add(prefix.substring(0, 2) + name);
+            }
+        }
+    }
+
+    private GitObject readObject(String hash) throws IOException {
+        File looseFile = new File(commonDir, "objects/" + hash.substring(0, 2) + "/" + hash.substring(2));
+        if (looseFile.isFile()) {
+            return readLooseObject(looseFile);
+        }
+        for (PackFile pack : getPacks()) {
+            long offset = pack.findOffset(hash);
+            if (offset >= 0) {
+                return pack.readObject(offset, this);
+            }
+        }
+        throw new IOException("Object not found: " + hash);
+    }
+
+    private static GitObject readLooseObject(File file) throws IOException {
+        byte[] raw;
+        try (InputStream in = new InflaterInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            raw = readAll(in);
+        }
+        int headerEnd = indexOf(raw, (byte) 0);
+        if (headerEnd < 0) {
+            throw new IOException("Corrupt loose object " + file);
+        }
+        String header = new String(raw, 0, headerEnd, StandardCharsets.US_ASCII);
+        int type = header.startsWith("commit ") ? OBJ_COMMIT : 0;
+        return new GitObject(type, Arrays.copyOfRange(raw, headerEnd + 1, raw.length));
+    }
+
+    private synchronized List<PackFile> getPacks() throws IOException {
+        if (packs == null) {
+            List<PackFile> loaded = new ArrayList<>();
+            File[] indexFiles = new File(commonDir, "objects/pack").listFiles((dir, name) -> name.endsWith(".idx"));
+            if (indexFiles != null) {
+                for (File indexFile : indexFiles) {
+                    File packFile = new File(indexFile.getPath().replaceAll("\\.idx$", ".pack"));
+                    if (packFile.exists()) {
+                        loaded.add(new PackFile(indexFile, packFile));
+                    }
+                }
+            }
+            packs = loaded;
+        }
+        return packs;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (packs != null) {
+            for (PackFile pack : packs) {
+                pack.close();
+            }
+            packs = null;
+        }
+    }
+
+    private static Map<String, Integer> loadCountCache(File cacheDir) {
+        File cacheFile = new File(cacheDir, COUNT_CACHE_FILE_NAME);
+        if (!cacheFile.exists()) {
+            return new LinkedHashMap<>();
+        }
+        try (Reader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            Map<String, Integer> cache = new Gson().fromJson(reader, new TypeToken<LinkedHashMap<String, Integer>>() {
+            }.getType());
+            return cache == null ? new LinkedHashMap<>() : cache;
+        } catch (IOException | JsonSyntaxException e) {
+            e.printStackTrace();
+            return new LinkedHashMap<>();
+        }
+    }
+
+    private static void storeCountCache(File cacheDir, Map<String, Integer> cache) {
+        Iterator<String> iterator = cache.keySet().iterator();
+        while (cache.size() > COUNT_CACHE_MAX_ENTRIES && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        try {
+            if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+                throw new IOException("Failed to create cache dir " + cacheDir);
+            }
+            File tmp = File.createTempFile(COUNT_CACHE_FILE_NAME, ".tmp", cacheDir);
+            try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                new Gson().toJson(cache, writer);
+            }
+            Files.move(tmp.toPath(), new File(cacheDir, COUNT_CACHE_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache is only an optimization
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean isFullHash(String value) {
+        return value.length() == 40 && value.matches("[0-9a-f]+");
+    }
+
+    private static File resolve(File base, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+
+    private static String readText(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String toHex(byte[] bytes, int offset) {
+        StringBuilder hex = new StringBuilder(HASH_LENGTH * 2);
+        for (int i = offset; i < offset + HASH_LENGTH; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hash) throws IOException {
+        byte[] bytes = new byte[hash.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) hexByte(hash, i * 2);
+        }
+        return bytes;
+    }
+
+    private static int hexByte(String hash, int index) throws IOException {
+        int high = Character.digit(hash.charAt(index), 16);
+        int low = Character.digit(hash.charAt(index + 1), 16);
+        if (high < 0 || low < 0) {
+            throw new IOException("Not a hash: " + hash);
+        }
+        return high << 4 | low;
+    }
+
+    /**
+     * Apply a git delta, a base size and result size then copy and insert commands, to its base object.
+     *
+     * @throws IOException if the delta does not fit its base or runs past its own end
+     */
+    static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+        int[] position = {0};
+        if (readVarInt(delta, position) != base.length) {
+            throw new IOException("Corrupt delta, base size mismatch");
+        }
+        long resultSize = readVarInt(delta, position);
+        if (resultSize > MAX_OBJECT_SIZE) {
+            throw new IOException("Delta result too large: " + resultSize);
+        }
+        byte[] result = new byte[(int) resultSize];
+        int resultPosition = 0;
+        int i = position[0];
+        while (i < delta.length) {
+            int cmd = delta[i++] & 0xff;
+            if ((cmd & 0x80) != 0) {
+                long copyOffset = 0;
+                int copySize = 0;
+                for (int bit = 0; bit < 4; bit++) {
+                    if ((cmd & (1 << bit)) != 0) {
+                        copyOffset |= (long) (deltaByte(delta, i++)) << (bit * 8);
+                    }
+                }
+                for (int bit = 0; bit < 3; bit++) {
+                    if ((cmd & (0x10 << bit)) != 0) {
+                        copySize |= deltaByte(delta, i++) << (bit * 8);
+                    }
+                }
+                if (copySize == 0) {
+                    copySize = 0x10000;
+                }
+                if (copyOffset + copySize > base.length || copySize > result.length - resultPosition) {
+                    throw new IOException("Corrupt delta, copy out of bounds");
+                }
+                System.arraycopy(base, (int) copyOffset, result, resultPosition, copySize);
+                resultPosition += copySize;
+            } else if (cmd != 0) {
+                if (cmd > delta.length - i || cmd > result.length - resultPosition) {
+                    throw new IOException("Corrupt delta, insert out of bounds");
+                }
+                System.arraycopy(delta, i, result, resultPosition, cmd);
+                i += cmd;
+                resultPosition += cmd;
+            } else {
+                throw new IOException("Corrupt delta");
+            }
+        }
+        if (resultPosition != result.length) {
+            throw new IOException("Corrupt delta, size mismatch");
+        }
+        return result;
+    }
+
+    private static int deltaByte(byte[] delta, int index) throws IOException {
+        if (index >= delta.length) {
+            throw new IOException("Truncated delta");
+        }
+        return delta[index] & 0xff;
+    }
+
+    private static long readVarInt(byte[] data, int[] position) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 56) {
+                throw new IOException("Corrupt delta, size too large");
+            }
+            b = deltaByte(data, position[0]++);
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public static class Commit {
+        public final String hash;
+        public final List<String> parents;
+        public final String message;
+
+        private Commit(String hash, List<String> parents, String message) {
+            this.hash = hash;
+            this.parents = parents;
+            this.message = message;
+        }
+
+        /**
+         * @return the subject like {@code git log --pretty=format:%s}: the first paragraph of the message on one line
+         */
+        public String getSubject() {
+            StringBuilder subject = new StringBuilder();
+            for (String line : message.split("\n", -1)) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    if (subject.length() > 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (subject.length() > 0) {
+                    subject.append(' ');
+                }
+                subject.append(trimmed);
+            }
+            return subject.toString();
+        }
+
+        static Commit parse(String hash, byte[] data) {
+            String text = new String(data, StandardCharsets.UTF_8);
+            int headerEnd = text.indexOf("\n\n");
+            String headers = headerEnd < 0 ? text : text.substring(0, headerEnd);
+            List<String> parents = new ArrayList<>();
+            for (String line : headers.split("\n")) {
+                if (line.startsWith("parent ")) {
+                    parents.add(line.substring("parent ".length()).trim());
+                }
+            }
+            return new Commit(hash, parents, headerEnd < 0 ? "" : text.substring(headerEnd + 2));
+        }
+    }
+
+    private static class GitObject {
+        final int type;
+        final byte[] data;
+
+        GitObject(int type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A pack and its v2 index, the index is memory mapped and searched through its fan-out table.
+     */
+    private static class PackFile implements Closeable {
+        private final MappedByteBuffer index;
+        private final FileChannel pack;
+        private final int objectCount;
+
+        PackFile(File indexFile, File packFile) throws IOException {
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (index.getInt(0) != 0xff744f63 || index.getInt(4) != 2) {
+                throw new IOException("Unsupported pack index version: " + indexFile);
+            }
+            objectCount = index.getInt(8 + 255 * 4);
+            pack = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+        }
+
+        private int fanout(int firstByte) {
+            return firstByte < 0 ? 0 : index.getInt(8 + firstByte * 4);
+        }
+
+        private int compareHash(int position, byte[] hash) {
+            int base = 8 + 256 * 4 + position * HASH_LENGTH;
+            for (int i = 0; i < hash.length; i++) {
+                int cmp = Integer.compare(index.get(base + i) & 0xff, hash[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        long findOffset(String hash) throws IOException {
+            byte[] bytes = fromHex(hash);
+            int first = bytes[0] & 0xff;
+            int low = fanout(first - 1);
+            int high = fanout(first) - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareHash(mid, bytes);
+                if (cmp == 0) {
+                    return offsetAt(mid);
+                } else if (cmp < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return -1;
+        }
+
+        void collect(String prefix, Set<String> matches) throws IOException {
+            int first = hexByte(prefix, 0);
+            byte[] hashBytes = new byte[HASH_LENGTH];
+            for (int i = fanout(first - 1); i < fanout(first); i++) {
+                for (int j = 0; j < HASH_LENGTH; j++) {
+                    hashBytes[j] = index.get(8 + 256 * 4 + i * HASH_LENGTH + j);
+                }
+                String hash = toHex(hashBytes, 0);
+                if (hash.startsWith(prefix)) {
+                    matches.add(hash);
+                }
+            }
+        }
+
+        private long offsetAt(int position) {
+            int offsetTable = 8 + 256 * 4 + objectCount * (HASH_LENGTH + 4);
+            int offset = index.getInt(offsetTable + position * 4);
+            if ((offset & 0x80000000) == 0) {
+                return offset;
+            }
+            int largeOffsetTable = offsetTable + objectCount * 4;
+            return index.getLong(largeOffsetTable + (offset & 0x7fffffff) * 8);
+        }
+
+        GitObject readObject(long offset, GitMetadataReader reader) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(32);
+            int headerLength = pack.read(header, offset);
+            int position = 0;
+            int b = headerByte(header, headerLength, position++);
+            int type = (b >> 4) & 7;
+            long size = b & 0x0f;
+            int shift = 4;
+            while ((b & 0x80) != 0) {
+                b = headerByte(header, headerLength, position++);
+                size |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            }
+            if (type == OBJ_OFS_DELTA) {
+                b = headerByte(header, headerLength, position++);
+                long baseDistance = b & 0x7f;
+                while ((b & 0x80) != 0) {
+                    b = headerByte(header, headerLength, position++);
+                    baseDistance = ((baseDistance + 1) << 7) | (b & 0x7f);
+                }
+                if (baseDistance <= 0 || baseDistance > offset) {
+                    throw new IOException("Corrupt pack object, base out of the pack at " + offset);
+                }
+                GitObject base = readObject(offset - baseDistance, reader);
+                return new GitObject(base.type, applyDelta(base.data, inflate(offset + position, size)));
+            }
+            if (type == OBJ_REF_DELTA) {
+                byte[] baseHash = new byte[HASH_LENGTH];
+                ByteBuffer hashBuffer = ByteBuffer.wrap(baseHash);
+                if (pack.read(hashBuffer, offset + position) != HASH_LENGTH) {
+                    throw new IOException("Unexpected end of pack");
+                }
+                GitObject base = reader.readObject(toHex(baseHash, 0));
+                return new GitObject(base.type, applyDelta(base.data, inflate(offset + position + HASH_LENGTH, size)));
+            }
+            return new GitObject(type, inflate(offset + position, size));
+        }
+
+        /**
+         * @return the byte of the object header at the index, the header being the first headerLength bytes read
+         */
+        private static int headerByte(ByteBuffer header, int headerLength, int index) throws IOException {
+            if (index >= headerLength) {
+                throw new IOException(headerLength < 0 ? "Unexpected end of pack" : "Corrupt pack object header");
+            }
+            return header.get(index) & 0xff;
+        }
+
+        private byte[] inflate(long position, long size) throws IOException {
+            if (size > MAX_OBJECT_SIZE) {
+                throw new IOException("Pack object too large: " + size);
+            }
+            byte[] out = new byte[(int) size];
+            Inflater inflater = new Inflater();
+            try {
+                ByteBuffer in = ByteBuffer.allocate(8192);
+                int produced = 0;
+                while (produced < out.length) {
+                    if (inflater.finished()) {
+                        throw new IOException("Pack object shorter than its header says");
+                    }
+                    if (inflater.needsInput()) {
+                        in.clear();
+                        int read = pack.read(in, position);
+                        if (read <= 0) {
+                            throw new IOException("Unexpected end of pack");
+                        }
+                        position += read;
+                        inflater.setInput(in.array(), 0, read);
+                    }
+                    produced += inflater.inflate(out, produced, out.length - produced);
+                }
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt pack object: " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            pack.close();
+        }
+    }
+}
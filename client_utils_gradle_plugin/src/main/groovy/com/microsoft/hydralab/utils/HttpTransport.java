@@ -0,0 +1,84 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP clients built from the transport settings of the API config. Runs with the same settings share the clients in the
+ * JVM, so concurrent runs reuse the same pooled connections, multiplexed over HTTP/2 when the lab speaks it over TLS.
+ * <p>
+ * The blob client adds the on-disk cache, the API calls never go through it: the status is revalidated with its own ETag.
+ */
+public class HttpTransport {
+    private static final Map<String, HttpTransport> TRANSPORTS = new ConcurrentHashMap<>();
+    // OkHttp needs a single cache instance per directory
+    private static final Map<String, Cache> CACHES = new ConcurrentHashMap<>();
+
+    private final OkHttpClient apiClient;
+    private final OkHttpClient blobClient;
+
+    private HttpTransport(HydraLabClientUtils.HydraLabAPIConfig apiConfig) {
+        apiClient = HydraLabClientUtils.client.newBuilder()
+                .protocols(apiConfig.http2Enabled ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1) : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(Math.max(1, apiConfig.connectionPoolMaxIdle), apiConfig.connectionKeepAliveSec, TimeUnit.SECONDS))
+                .connectTimeout(apiConfig.connectTimeoutSec, TimeUnit.SECONDS)
+                .build();
+        if (!apiConfig.httpCacheEnabled) {
+            blobClient = apiClient;
+            return;
+        }
+        File cacheDir = new File(apiConfig.httpCacheDir).getAbsoluteFile();
+        Cache cache = CACHES.computeIfAbsent(cacheDir.getPath(), dir -> new Cache(cacheDir, Math.max(1, apiConfig.httpCacheMaxSizeMB) * 1024L * 1024L));
+        blobClient = apiClient.newBuilder()
+                .cache(cache)
+                .addNetworkInterceptor(immutableResponses(apiConfig.httpCacheMaxAgeHours))
+                .build();
+    }
+
+    public static HttpTransport of(HydraLabClientUtils.HydraLabAPIConfig apiConfig) {
+        String key = String.format(Locale.US, "%b|%d|%d|%d|%b|%s|%d|%d", apiConfig.http2Enabled, apiConfig.connectionPoolMaxIdle, apiConfig.connectionKeepAliveSec,
+                apiConfig.connectTimeoutSec, apiConfig.httpCacheEnabled, apiConfig.httpCacheDir, apiConfig.httpCacheMaxSizeMB, apiConfig.httpCacheMaxAgeHours);
+        return TRANSPORTS.computeIfAbsent(key, k -> new HttpTransport(apiConfig));
+    }
+
+    /**
+     * @return client of the lab API calls
+     */
+    public OkHttpClient getApiClient() {
+        return apiClient;
+    }
+
+    /**
+     * @return client of the artifact blobs and static resources, with the on-disk cache if enabled
+     */
+    public OkHttpClient getBlobClient() {
+        return blobClient;
+    }
+
+    /**
+     * The blobs of a device result are not rewritten once uploaded, cache them even if the storage sends no caching headers.
+     */
+    private static Interceptor immutableResponses(int maxAgeHours) {
+        long maxAgeSec = TimeUnit.HOURS.toSeconds(maxAgeHours);
+        return chain -> {
+            Response response = chain.proceed(chain.request());
+            if (!response.isSuccessful() || !"GET".equals(chain.request().method())
+                    || response.header("Cache-Control") != null || response.header("Expires") != null) {
+                return response;
+            }
+            return response.newBuilder().header("Cache-Control", "public, max-age=" + maxAgeSec).build();
+        };
+    }
+}
@@ -0,0 +1,1902 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.JsonObject;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.DeviceTestResult;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.HydraLabAPIConfig;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.TestTask;
+import okhttp3.*;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static com.microsoft.hydralab.utils.HydraLabClientUtils.*;
+
+/**
+ * Client of test runs on Hydra Lab. Each instance holds its own API config and pass/fail outcome, so concurrent runs in
+ * the same JVM don't interfere. The async methods are driven by a shared scheduler: waiting for a test, or for the next
+ * attempt of a call, does not hold a thread. The status and trigger calls run on the small shared IO pool, the uploads,
+ * APK hashing and git reads on a bounded pool of their own, so a matrix of runs uploading at once does not hold up the
+ * status checks of the others.
+ */
+public class HydraLabClient {
+    private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(2, daemonThreadFactory("hydra-lab-scheduler"));
+    private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(8, daemonThreadFactory("hydra-lab-io"));
+    private static final ExecutorService UPLOAD_EXECUTOR = Executors.newFixedThreadPool(4, daemonThreadFactory("hydra-lab-upload"));
+    private static final int MAX_LISTED_FAILED_CASES = 20;
+    private static final int MAX_LISTED_CRASHES = 5;
+    private static final Pattern APK_SET_REJECTED_MESSAGE = Pattern.compile("file ?set|apk ?set", Pattern.CASE_INSENSITIVE);
+    /**
+     * Fields of the API config the outcome of a run or the artifacts it downloads depend on besides its arguments, in the
+     * test result cache key. The Gradle task inputs are built from the same list.
+     */
+    public static final List<String> RUN_CONFIG_FIELD_NAMES = Collections.unmodifiableList(Arrays.asList("schema", "host", "contextPath", "pkgName",
+            "testPkgName", "groupTestType", "runningType", "frameworkType", "testShardCount", "shardGroupTestType", "shardingStrategy",
+            "failedTestRerunCount", "artifactTypes", "artifactsOfFailedDevicesOnly"));
+
+    private final HydraLabAPIConfig apiConfig;
+    private final AtomicBoolean markedFail = new AtomicBoolean(false);
+    private final Map<String, CompletionCallbackListener> callbackListeners = new ConcurrentHashMap<>();
+    private final OkHttpClient httpClient;
+    private final OkHttpClient blobClient;
+    // outside the run hooks, the cancel requests go out after the calls of the run are cancelled
+    private final OkHttpClient cancelClient;
+    private final RunGroup runGroup;
+    private final Set<String> activeTestTaskIds = ConcurrentHashMap.newKeySet();
+    private volatile RunTelemetry telemetry = new RunTelemetry(Collections.emptyMap());
+    private volatile RunCancellation cancellation = new RunCancellation();
+
+    public HydraLabClient(@Nullable HydraLabAPIConfig apiConfig) {
+        this(apiConfig, new RunGroup(true));
+    }
+
+    /**
+     * @param runGroup runs going out together with the runs of this client, e.g. the cells of a test matrix
+     */
+    public HydraLabClient(@Nullable HydraLabAPIConfig apiConfig, RunGroup runGroup) {
+        this.apiConfig = apiConfig == null ? HydraLabAPIConfig.defaultAPI() : apiConfig;
+        this.runGroup = runGroup;
+        HttpTransport transport = HttpTransport.of(this.apiConfig);
+        this.httpClient = withRunHooks(transport.getApiClient());
+        this.blobClient = withRunHooks(transport.getBlobClient());
+        this.cancelClient = transport.getApiClient().newBuilder().callTimeout(this.apiConfig.statusTimeoutSec, TimeUnit.SECONDS).build();
+        runGroup.clients.add(this);
+    }
+
+    /**
+     * Keeps the connection pool of the shared client, sets the timeouts of each operation, cancels the calls with the
+     * current run and times them into its telemetry.
+     */
+    private OkHttpClient withRunHooks(OkHttpClient sharedClient) {
+        OkHttpClient.Builder builder = sharedClient.newBuilder().addInterceptor(chain -> cancellation.intercept(chain)).addInterceptor(chain -> {
+            int timeoutSec = timeoutSecOf(operationOf(chain.request()));
+            return chain.withReadTimeout(timeoutSec, TimeUnit.SECONDS)
+                    .withWriteTimeout(timeoutSec, TimeUnit.SECONDS)
+                    .proceed(chain.request());
+        });
+        if (apiConfig.telemetryEnabled) {
+            builder.eventListenerFactory(call -> telemetry.newEventListener(operationOf(call.request())));
+        }
+        return builder.build();
+    }
+
+    private int timeoutSecOf(RunTelemetry.Operation operation) {
+        switch (operation) {
+            case UPLOAD:
+                return apiConfig.uploadTimeoutSec;
+            case RUN:
+                return apiConfig.triggerTimeoutSec;
+            case BLOB:
+                return apiConfig.downloadTimeoutSec;
+            default:
+                return apiConfig.statusTimeoutSec;
+        }
+    }
+
+    public HydraLabAPIConfig getApiConfig() {
+        return apiConfig;
+    }
+
+    public boolean isMarkedFail() {
+        return markedFail.get();
+    }
+
+    /**
+     * @return telemetry of the last run started by this client
+     */
+    public RunTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Cancel the current run from another thread: the waiting thread fails with a {@link CancellationException}, the test
+     * tasks triggered are cancelled on the lab and the partial artifacts deleted. Interrupting the waiting thread does the
+     * same.
+     */
+    public void cancel(String reason) {
+        cancellation.cancel(reason);
+    }
+
+    public void runTestOnDeviceWithAPK(String apkPath, String testApkPath,
+                                       String buildFlavor,
+                                       String testSuiteName,
+                                       @Nullable String deviceIdentifier,
+                                       @Nullable String reportAudience,
+                                       int timeoutSec,
+                                       String reportFolderPath,
+                                       Map<String, String> instrumentationArgs,
+                                       Map<String, String> extraArgs) {
+        markedFail.set(false);
+        activeTestTaskIds.clear();
+        RunCancellation runCancellation = new RunCancellation();
+        cancellation = runCancellation;
+        // the devices are released first, then the downloads stop
+        runCancellation.onCancel(this::cancelTestTasks);
+        // a pipeline cancelled or a build aborted from the console ends the JVM, not the wait
+        Thread shutdownHook = new Thread(() -> runCancellation.cancel("the JVM is shutting down"), "hydra-lab-cancel");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        String groupCancelReason = runGroup.cancelReason;
+        if (groupCancelReason != null) {
+            runCancellation.cancel(groupCancelReason);
+        }
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put("suite", testSuiteName);
+        labels.put("flavor", buildFlavor);
+        labels.put("running_type", apiConfig.runningType);
+        telemetry = new RunTelemetry(labels);
+        long start = System.nanoTime();
+        try {
+            runTestInner(apkPath, testApkPath, buildFlavor, testSuiteName, deviceIdentifier, reportAudience,
+                    timeoutSec, reportFolderPath, instrumentationArgs, extraArgs);
+            markBuildSuccess();
+        } catch (RuntimeException e) {
+            markBuildFail();
+            throw e;
+        } finally {
+            removeShutdownHook(shutdownHook);
+            telemetry.endPhase(RunTelemetry.Phase.TOTAL, start);
+            telemetry.setFailed(markedFail.get());
+            if (apiConfig.telemetryEnabled) {
+                writeTelemetry(reportFolderPath);
+            }
+        }
+    }
+
+    private static void removeShutdownHook(Thread shutdownHook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is shutting down already, the hook is cancelling the run
+        }
+    }
+
+    /**
+     * Written outside the test run record, the telemetry describes this run even if its results were restored from the cache.
+     */
+    private void writeTelemetry(String reportFolderPath) {
+        File reportDir = new File(reportFolderPath);
+        if (!reportDir.isDirectory()) {
+            return;
+        }
+        File jsonFile = new File(reportDir, RunTelemetry.JSON_FILE_NAME);
+        File prometheusFile = new File(reportDir, RunTelemetry.PROMETHEUS_FILE_NAME);
+        try {
+            telemetry.writeJson(jsonFile);
+            telemetry.writePrometheus(prometheusFile);
+            printlnf("##vso[artifact.upload artifactname=%s;]%s", apiConfig.pipelineArtifactName, jsonFile.getAbsolutePath());
+            printlnf("##vso[artifact.upload artifactname=%s;]%s", apiConfig.pipelineArtifactName, prometheusFile.getAbsolutePath());
+        } catch (IOException e) {
+            // telemetry is only diagnostics, failing to write it should not fail the test
+            e.printStackTrace();
+        }
+    }
+
+    private RunTelemetry.Operation operationOf(Request request) {
+        if ("HEAD".equals(request.method())) {
+            return RunTelemetry.Operation.WARM_UP;
+        }
+        String path = request.url().encodedPath();
+        String basePath = apiConfig.contextPath;
+        if (path.startsWith(basePath + apiConfig.uploadAPKAPIPath) || path.startsWith(basePath + apiConfig.uploadChunkAPIPath)) {
+            return RunTelemetry.Operation.UPLOAD;
+        }
+        // the run path is under the status path, check it first
+        if (path.startsWith(basePath + apiConfig.runTestAPIPath)) {
+            return RunTelemetry.Operation.RUN;
+        }
+        if (path.startsWith(basePath + apiConfig.testStatusAPIPath)) {
+            return RunTelemetry.Operation.STATUS;
+        }
+        return RunTelemetry.Operation.BLOB;
+    }
+
+    private void runTestInner(String apkPath, String testApkPath, String buildFlavor, String testSuiteName, @Nullable String deviceIdentifier, @Nullable String reportAudience, int timeoutSec, String reportFolderPath, Map<String, String> instrumentationArgs, Map<String, String> extraArgs) {
+        printlnf("##[section]RunTestOnDeviceWithAPK-> buildFlavor: %s, testSuiteName: %s, deviceIdentifier: %s, reportAudience: %s, timeoutSec: %d, reportFolderPath: %s",
+                buildFlavor, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, reportFolderPath);
+        long taskStart = System.nanoTime();
+        // git info, APK hashing and the connection warm-up overlap, the upload only waits for all of them
+        CompletableFuture<CommitInfo> commitInfoFuture = runGroup.commitInfo(this::collectCommitInfo);
+        if (apiConfig.connectionWarmUpEnabled) {
+            warmUpConnection();
+        }
+
+        File apk;
+        File testApk;
+        try {
+            apk = resolveApk(apkPath, "apk");
+            testApk = resolveApk(testApkPath, "testApk");
+        } catch (Exception e) {
+            throw new IllegalArgumentException("APK not found: " + e.getMessage(), e);
+        }
+
+        CompletableFuture<String> apkSha = hashAsync(apk);
+        CompletableFuture<String> testApkSha = hashAsync(testApk);
+
+        TestResultCache resultCache = null;
+        String resultCacheKey = null;
+        if (apiConfig.testResultCacheEnabled) {
+            resultCache = new TestResultCache(new File(apiConfig.apkUploadCacheDir, "test-results"), apiConfig.testResultCacheTtlHours);
+            resultCacheKey = join(apkSha.thenCombine(testApkSha, (sha, testSha) -> sha == null || testSha == null ? null
+                    : TestResultCache.buildKey(sha, testSha, runParameters(buildFlavor, testSuiteName, deviceIdentifier, timeoutSec, instrumentationArgs, extraArgs))));
+            TestResultCache.TestRunRecord cachedRun = resultCacheKey == null ? null : resultCache.restore(resultCacheKey, new File(reportFolderPath),
+                    apiConfig.testResultCacheIncludeFailures);
+            if (cachedRun != null) {
+                telemetry.increment(RunTelemetry.Counter.RESULT_CACHE_HITS);
+                telemetry.setTestTaskId(cachedRun.testTaskId);
+                cachedRun.artifactName = apiConfig.pipelineArtifactName;
+                TestResultCache.replay(cachedRun, new File(reportFolderPath), runGroup.solo);
+                if (cachedRun.failed) {
+                    markBuildFail();
+                }
+                return;
+            }
+        }
+
+        CommitInfo commitInfo = join(commitInfoFuture);
+        printlnf("Commit ID: %s", commitInfo.commitId);
+        printlnf("Commit Count: %s", commitInfo.commitCount);
+        printlnf("Commit Message: %s", commitInfo.commitMsg);
+
+        TestImpactMap impactMap = null;
+        Map<String, String> runInstrumentationArgs = instrumentationArgs;
+        if (apiConfig.testImpactEnabled && supportsTestImpact(commitInfo.commitId, instrumentationArgs)) {
+            impactMap = TestImpactMap.load(new File(apiConfig.apkUploadCacheDir, "test-impact"), TestDurationHistory.buildKey(suiteParameters(testSuiteName)));
+            TestImpactMap.Selection selection = selectImpactedTests(impactMap, commitInfo.commitId);
+            if (!selection.isFullRun()) {
+                if (selection.classes.isEmpty()) {
+                    skipUnaffectedRun(impactMap, reportFolderPath);
+                    return;
+                }
+                runInstrumentationArgs = new LinkedHashMap<>();
+                if (instrumentationArgs != null) {
+                    runInstrumentationArgs.putAll(instrumentationArgs);
+                }
+                runInstrumentationArgs.put("class", String.join(",", selection.classes));
+            }
+        }
+        boolean selective = runInstrumentationArgs != instrumentationArgs;
+
+        String apkSetId = join(apkSha.thenCombine(testApkSha, (sha, testSha) -> new String[]{sha, testSha}).thenCompose(shas -> {
+            printlnf("Ready to upload %d ms after the task start", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - taskStart));
+            String uploadKey = shas[0] == null || shas[1] == null ? null : apkSetCacheKey(buildFlavor, commitInfo.commitId, shas[0], shas[1]);
+            return runGroup.upload(uploadKey, telemetry, () -> {
+                long uploadStart = System.nanoTime();
+                return uploadAPKWithCache(buildFlavor, commitInfo.commitId, commitInfo.commitCount, commitInfo.commitMsg, apk, testApk, shas[0], shas[1])
+                        .whenComplete((uploadedSetId, error) -> telemetry.endPhase(RunTelemetry.Phase.UPLOAD, uploadStart));
+            });
+        }));
+        printlnf("##[section]Uploaded APK set id: %s", apkSetId);
+        assertNotNull(apkSetId, "apkSetId");
+
+        apiConfig.pipelineLink = System.getenv("SYSTEM_TEAMFOUNDATIONSERVERURI") + System.getenv("SYSTEM_TEAMPROJECT") + "/_build/results?buildId=" + System.getenv("BUILD_BUILDID");
+        printlnf("##[section]Callback pipeline link is: %s", apiConfig.pipelineLink);
+
+        TestDurationHistory durationHistory = null;
+        List<TestShardPlanner.Shard> shards = null;
+        if (apiConfig.testShardCount > 1 && selective) {
+            printlnf("The selected test classes run as a single test task, sharding is left to the runs of the whole suite");
+        } else if (apiConfig.testShardCount > 1) {
+            durationHistory = TestDurationHistory.load(new File(apiConfig.apkUploadCacheDir, "test-durations"), TestDurationHistory.buildKey(suiteParameters(testSuiteName)));
+            shards = planShards(durationHistory);
+        }
+
+        if (selective && resultCacheKey != null) {
+            // the key stands for the whole suite, the results of the selected classes are not stored under it
+            printlnf("The results of the selected test classes are left out of the test result cache");
+            resultCacheKey = null;
+        }
+
+        long triggerStart = System.nanoTime();
+        ArtifactDownloader.Options downloadOptions = ArtifactDownloader.Options.of(apiConfig);
+        downloadOptions.retryPolicy = retryPolicy(RunTelemetry.Operation.BLOB);
+        try (ArtifactDownloader downloader = new ArtifactDownloader(blobClient, downloadOptions)) {
+            cancellation.onCancel(downloader::cancel);
+            try {
+                collectTestRuns(downloader, apkSetId, buildFlavor, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, reportFolderPath,
+                        runInstrumentationArgs, extraArgs, shards, durationHistory, impactMap, triggerStart, resultCache, resultCacheKey);
+            } catch (RuntimeException e) {
+                // the downloads still in flight would leave part files behind
+                downloader.cancel();
+                throw e;
+            }
+        }
+    }
+
+    private void collectTestRuns(ArtifactDownloader downloader, String apkSetId, String buildFlavor, String testSuiteName, @Nullable String deviceIdentifier,
+                                 @Nullable String reportAudience, int timeoutSec, String reportFolderPath, Map<String, String> instrumentationArgs,
+                                 Map<String, String> extraArgs, @Nullable List<TestShardPlanner.Shard> shards, @Nullable TestDurationHistory durationHistory,
+                                 @Nullable TestImpactMap impactMap, long triggerStart, @Nullable TestResultCache resultCache, @Nullable String resultCacheKey) {
+        ArtifactPolicy artifactPolicy = ArtifactPolicy.of(apiConfig);
+        List<ShardRun> runs = new ArrayList<>();
+        if (shards == null) {
+            String testTaskId = join(triggerAsync(apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, instrumentationArgs, extraArgs));
+            runs.add(new ShardRun(null, testTaskId, new DeviceArtifactHarvester(downloader, reportFolderPath, testSuiteName, null, artifactPolicy)));
+        } else {
+            // all shards are triggered at once, the lab spreads them over the free devices of the group
+            List<CompletableFuture<String>> triggers = new ArrayList<>();
+            for (TestShardPlanner.Shard shard : shards) {
+                Map<String, String> shardInstrumentationArgs = new LinkedHashMap<>();
+                if (instrumentationArgs != null) {
+                    shardInstrumentationArgs.putAll(instrumentationArgs);
+                }
+                shardInstrumentationArgs.putAll(shard.instrumentationArgs);
+                Map<String, String> shardExtraArgs = new LinkedHashMap<>();
+                if (extraArgs != null) {
+                    shardExtraArgs.putAll(extraArgs);
+                }
+                // the extra args are added last to the request, each shard runs on a single device
+                shardExtraArgs.put("groupTestType", apiConfig.shardGroupTestType);
+                triggers.add(triggerAsync(apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, shardInstrumentationArgs, shardExtraArgs));
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                TestShardPlanner.Shard shard = shards.get(i);
+                runs.add(new ShardRun(shard, join(triggers.get(i)),
+                        new DeviceArtifactHarvester(downloader, reportFolderPath, testSuiteName, shard.getLabel(), artifactPolicy)));
+            }
+        }
+        telemetry.endPhase(RunTelemetry.Phase.TRIGGER, triggerStart);
+        telemetry.setTestTaskId(joinTestTaskIds(runs));
+
+        long pollingStart = System.nanoTime();
+        List<CompletableFuture<TestTask>> completions = new ArrayList<>();
+        for (ShardRun run : runs) {
+            // devices that are done get their artifacts downloaded while the others are still running
+            completions.add(awaitCompletionAsync(run.testTaskId, timeoutSec,
+                    apiConfig.incrementalDownloadEnabled ? run.harvester::harvestFinishedDevices : null));
+        }
+        for (int i = 0; i < runs.size(); i++) {
+            runs.get(i).testTask = join(completions.get(i));
+        }
+        telemetry.endPhase(RunTelemetry.Phase.POLLING, pollingStart);
+        TestResultCache.TestRunRecord record = reportTestResults(runs, testSuiteName, reportFolderPath, runRecord -> rerunFailedTests(downloader,
+                apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, reportFolderPath, instrumentationArgs, extraArgs, runs, runRecord));
+        if (durationHistory != null) {
+            updateDurationHistory(durationHistory, runs);
+        }
+        if (impactMap != null) {
+            updateImpactMap(impactMap, runs);
+        }
+        record.failed = markedFail.get();
+        try {
+            TestResultCache.writeRecord(new File(reportFolderPath), record);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (resultCache != null && resultCacheKey != null && (!record.failed || apiConfig.testResultCacheIncludeFailures)) {
+            resultCache.store(resultCacheKey, new File(reportFolderPath), record);
+        }
+    }
+
+    /**
+     * @return the parameters the outcome of a run depends on, besides the APKs
+     */
+    private Map<String, String> runParameters(String buildFlavor, String testSuiteName, @Nullable String deviceIdentifier, int timeoutSec,
+                                              Map<String, String> instrumentationArgs, Map<String, String> extraArgs) {
+        Map<String, String> parameters = new TreeMap<>();
+        for (String fieldName : RUN_CONFIG_FIELD_NAMES) {
+            try {
+                parameters.put(fieldName, String.valueOf(HydraLabAPIConfig.class.getField(fieldName).get(apiConfig)));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("No API config field " + fieldName, e);
+            }
+        }
+        parameters.put("buildFlavor", buildFlavor);
+        parameters.put("testSuiteName", testSuiteName);
+        parameters.put("deviceIdentifier", deviceIdentifier);
+        parameters.put("timeoutSec", String.valueOf(timeoutSec));
+        parameters.put("instrumentationArgs", instrumentationArgs == null ? null : new TreeMap<>(instrumentationArgs).toString());
+        parameters.put("extraArgs", extraArgs == null ? null : new TreeMap<>(extraArgs).toString());
+        return parameters;
+    }
+
+    /**
+     * @return the parameters the test durations of a suite depend on
+     */
+    private Map<String, String> suiteParameters(String testSuiteName) {
+        Map<String, String> parameters = new TreeMap<>();
+        parameters.put("host", apiConfig.host + apiConfig.contextPath);
+        parameters.put("runningType", apiConfig.runningType);
+        parameters.put("pkgName", apiConfig.pkgName);
+        parameters.put("testPkgName", apiConfig.testPkgName);
+        parameters.put("testSuiteName", testSuiteName);
+        return parameters;
+    }
+
+    private List<TestShardPlanner.Shard> planShards(TestDurationHistory durationHistory) {
+        List<TestShardPlanner.Shard> shards = TestShardPlanner.plan(apiConfig.testShardCount, apiConfig.shardingStrategy, durationHistory);
+        boolean byDuration = shards.get(0).estimatedSeconds >= 0;
+        printlnf("##[section]Split the test suite into %d shards %s", shards.size(),
+                byDuration ? "balanced by the test durations of previous runs" : "by test count, no test durations known yet");
+        for (TestShardPlanner.Shard shard : shards) {
+            if (byDuration) {
+                printlnf("%s: %d test classes, estimated %.0f seconds", shard.getLabel(), shard.classes.size(), shard.estimatedSeconds);
+            } else {
+                printlnf("%s: %s", shard.getLabel(), shard.instrumentationArgs);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Learn the test durations from the reports of a run where every shard reported, so no class is missing from them.
+     */
+    private static void updateDurationHistory(TestDurationHistory durationHistory, List<ShardRun> runs) {
+        List<File> xmlReports = new ArrayList<>();
+        for (ShardRun run : runs) {
+            if (run.xmlReports.isEmpty()) {
+                printlnf("##[warning]No JUnit report from %s, the test durations are not updated", run.getLabel());
+                return;
+            }
+            xmlReports.addAll(run.xmlReports);
+        }
+        try {
+            durationHistory.update(xmlReports);
+            durationHistory.save();
+            printlnf("Updated the durations of %d test classes for the next sharded run", durationHistory.getClassSeconds().size());
+        } catch (IOException e) {
+            // the history only balances the shards, failing to update it should not fail the test
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return whether the run can select its test classes, the class filter of AndroidJUnitRunner is left to the user otherwise
+     */
+    private boolean supportsTestImpact(String commitId, @Nullable Map<String, String> instrumentationArgs) {
+        if (!"INSTRUMENTATION".equals(apiConfig.runningType)) {
+            printlnf("##[warning]Test impact selection only works for the INSTRUMENTATION running type, running the whole suite");
+            return false;
+        }
+        if (StringUtils.isEmpty(commitId)) {
+            printlnf("##[warning]No commit to select the affected tests for, running the whole suite");
+            return false;
+        }
+        if (instrumentationArgs != null) {
+            for (String filter : new String[]{"class", "notClass", "package", "notPackage", "numShards"}) {
+                if (instrumentationArgs.containsKey(filter)) {
+                    printlnf("##[warning]The instrumentation arg %s filters the tests already, test impact selection is skipped", filter);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private TestImpactMap.Selection selectImpactedTests(TestImpactMap impactMap, String commitId) {
+        String lastTestedCommit = impactMap.getLastTestedCommit();
+        List<String> changedPaths = null;
+        if (lastTestedCommit != null) {
+            try {
+                changedPaths = getChangedPaths(new File("."), lastTestedCommit, commitId);
+            } catch (IOException e) {
+                printlnf("##[warning]Failed to read the changes since commit %s: %s", lastTestedCommit, e.getMessage());
+            }
+        }
+        List<String> fullRunFileNames = new ArrayList<>();
+        for (String name : apiConfig.testImpactFullRunFiles.split(",")) {
+            if (!name.trim().isEmpty()) {
+                fullRunFileNames.add(name.trim());
+            }
+        }
+        TestImpactMap.Selection selection = impactMap.select(commitId, changedPaths, apiConfig.testImpactFullRunEvery, fullRunFileNames);
+        if (selection.isFullRun()) {
+            printlnf("##[section]Running the whole test suite, %s", selection.fullRunReason);
+        } else if (!selection.classes.isEmpty()) {
+            printlnf("##[section]Running %d test classes affected by the %d paths changed since commit %s: %s", selection.classes.size(),
+                    changedPaths.size(), lastTestedCommit, String.join(",", selection.classes));
+        }
+        return selection;
+    }
+
+    /**
+     * Report a run with no test class affected by the changes, nothing goes to the lab.
+     */
+    private void skipUnaffectedRun(TestImpactMap impactMap, String reportFolderPath) {
+        String message = String.format("No test affected by the changes since commit %s, the test run is skipped", impactMap.getLastTestedCommit());
+        printlnf("##[section]%s", message);
+        File reportDir = new File(reportFolderPath);
+        File summaryMd = new File(reportDir, "TestLabSummary.md");
+        try {
+            if (!reportDir.exists() && !reportDir.mkdirs()) {
+                throw new IOException("Failed to create report dir " + reportDir);
+            }
+            try (FileOutputStream fos = new FileOutputStream(summaryMd)) {
+                IOUtils.write("# Device Lab Test Result Details\n\n\n### " + message + "\n", fos, StandardCharsets.UTF_8);
+            }
+            if (runGroup.solo) {
+                printlnf("##vso[task.uploadsummary]%s", summaryMd.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            // no need to rethrow
+            e.printStackTrace();
+        }
+        impactMap.recordSkippedRun();
+        saveImpactMap(impactMap);
+    }
+
+    /**
+     * Learn which tests the changes affect from the reports of a run where every test task reported.
+     */
+    private static void updateImpactMap(TestImpactMap impactMap, List<ShardRun> runs) {
+        List<File> xmlReports = new ArrayList<>();
+        for (ShardRun run : runs) {
+            if (run.xmlReports.isEmpty()) {
+                printlnf("##[warning]No JUnit report from %s, the test impact map is not updated", run.getLabel());
+                return;
+            }
+            xmlReports.addAll(run.xmlReports);
+        }
+        try {
+            impactMap.update(xmlReports);
+        } catch (IOException e) {
+            // the map only selects the tests, failing to update it should not fail the test
+            e.printStackTrace();
+            return;
+        }
+        saveImpactMap(impactMap);
+    }
+
+    private static void saveImpactMap(TestImpactMap impactMap) {
+        try {
+            impactMap.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run the failed cases of the run again on their own, on the same device group, until they pass or failedTestRerunCount
+     * attempts ran. The re-runs download only their XML reports.
+     *
+     * @return the outcome, null if the reports don't tell which cases failed
+     */
+    @Nullable
+    private FailedTestRerun rerunFailedTests(ArtifactDownloader downloader, String apkSetId, String testSuiteName, @Nullable String deviceIdentifier,
+                                             @Nullable String reportAudience, int timeoutSec, String reportFolderPath, Map<String, String> instrumentationArgs,
+                                             Map<String, String> extraArgs, List<ShardRun> runs, TestResultCache.TestRunRecord record) {
+        List<File> xmlReports = new ArrayList<>();
+        for (ShardRun run : runs) {
+            xmlReports.addAll(run.xmlReports);
+        }
+        FailedTestRerun rerun;
+        try {
+            rerun = new FailedTestRerun(xmlReports);
+        } catch (IOException e) {
+            printlnf("##[warning]Failed to read the failed cases to run again: %s", e.getMessage());
+            return null;
+        }
+        if (rerun.getFailing().isEmpty()) {
+            printlnf("##[warning]No failed case found in the JUnit reports to run again, the failures stand");
+            return null;
+        }
+        if (rerun.getFailing().size() > FailedTestRerun.MAX_RERUN_CASES) {
+            printlnf("##[warning]%d cases failed, more than %d are not run again", rerun.getFailing().size(), FailedTestRerun.MAX_RERUN_CASES);
+            return null;
+        }
+        ArtifactPolicy xmlReportOnly = new ArtifactPolicy(EnumSet.of(ArtifactPolicy.Type.XML_REPORT), false, 0, 0);
+        while (rerun.getAttempts() < apiConfig.failedTestRerunCount && !rerun.getFailing().isEmpty()) {
+            int attempt = rerun.getAttempts() + 1;
+            Map<String, String> rerunArgs = rerun.rerunInstrumentationArgs(instrumentationArgs);
+            printlnf("##[section]Running %d failed cases again, attempt %d of %d: %s", rerun.getFailing().size(), attempt,
+                    apiConfig.failedTestRerunCount, rerunArgs.get("class"));
+            TestTask rerunTask;
+            try {
+                String testTaskId = join(triggerAsync(apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, rerunArgs, extraArgs));
+                rerunTask = join(awaitCompletionAsync(testTaskId, timeoutSec));
+            } catch (RuntimeException e) {
+                if (cancellation.isCancelled()) {
+                    throw e;
+                }
+                // the run itself is over, a failed re-run leaves its failures as they are
+                printlnf("##[warning]Failed to run the failed cases again: %s", e.getMessage());
+                break;
+            }
+            telemetry.increment(RunTelemetry.Counter.TEST_RERUNS);
+            DeviceArtifactHarvester harvester = new DeviceArtifactHarvester(downloader, reportFolderPath, testSuiteName, "rerun" + attempt, xmlReportOnly);
+            List<File> rerunReports = new ArrayList<>();
+            if (rerunTask.deviceTestResults != null) {
+                for (DeviceTestResult deviceTestResult : rerunTask.deviceTestResults) {
+                    if (deviceTestResult.testXmlReportBlobUrl == null) {
+                        continue;
+                    }
+                    ArtifactDownloader.DownloadResult result = finishDownload(DeviceArtifactHarvester.ARTIFACT_NAMES[DeviceArtifactHarvester.XML_REPORT_INDEX],
+                            deviceTestResult, harvester.downloads(deviceTestResult).get(DeviceArtifactHarvester.XML_REPORT_INDEX), record);
+                    if (result != null) {
+                        rerunReports.add(result.file);
+                    }
+                }
+            }
+            int failingBefore = rerun.getFailing().size();
+            try {
+                rerun.update(rerunReports);
+            } catch (IOException e) {
+                printlnf("##[warning]Failed to read the reports of the re-run: %s", e.getMessage());
+                break;
+            }
+            printlnf("Attempt %d: %d cases passed, %d still failing", attempt, failingBefore - rerun.getFailing().size(), rerun.getFailing().size());
+        }
+        telemetry.add(RunTelemetry.Counter.FLAKY_TESTS, rerun.getFlaky().size());
+        return rerun;
+    }
+
+    private static String joinTestTaskIds(List<ShardRun> runs) {
+        List<String> testTaskIds = new ArrayList<>();
+        for (ShardRun run : runs) {
+            testTaskIds.add(run.testTaskId);
+        }
+        return String.join(",", testTaskIds);
+    }
+
+    /**
+     * @return record of the reports written and the pipeline commands issued, to replay them if the run is reused
+     */
+    private TestResultCache.TestRunRecord reportTestResults(List<ShardRun> runs, String testSuiteName, String reportFolderPath,
+                                                            Function<TestResultCache.TestRunRecord, FailedTestRerun> failureRerun) {
+        int totalTestCount = 0;
+        int totalFailCount = 0;
+        int testDevicesCount = 0;
+        for (ShardRun run : runs) {
+            assertNotNull(run.testTask.deviceTestResults, "runningTest.deviceTestResults");
+            totalTestCount += run.testTask.totalTestCount;
+            totalFailCount += run.testTask.totalFailCount;
+            testDevicesCount += run.testTask.testDevicesCount;
+        }
+        boolean sharded = runs.get(0).shard != null;
+
+        String testReportUrl = apiConfig.getTestReportUrl(runs.get(0).testTask.id);
+        TestResultCache.TestRunRecord record = new TestResultCache.TestRunRecord();
+        record.testTaskId = joinTestTaskIds(runs);
+        record.testReportUrl = testReportUrl;
+        record.createTimeMillis = System.currentTimeMillis();
+        record.totalTestCount = totalTestCount;
+        record.totalFailCount = totalFailCount;
+        record.artifactName = apiConfig.pipelineArtifactName;
+
+        StringBuilder mdBuilder = new StringBuilder("# Device Lab Test Result Details\n\n\n");
+        if (sharded) {
+            mdBuilder.append(String.format(Locale.US, "### Sharded into %d test tasks\n\n", runs.size()));
+            for (ShardRun run : runs) {
+                mdBuilder.append(String.format(Locale.US, "- %s: [Link to full report](%s), total test case count: %d, failed: %d%s\n", run.getLabel(),
+                        apiConfig.getTestReportUrl(run.testTask.id), run.testTask.totalTestCount, run.testTask.totalFailCount, describeShardDuration(run)));
+            }
+            mdBuilder.append("\n\n");
+        } else {
+            mdBuilder.append(String.format("### [Link to full report](%s)\n\n\n", testReportUrl));
+        }
+        mdBuilder.append(String.format("### Statistic: total test case count: %s, failed: %s\n\n", totalTestCount, totalFailCount));
+        for (ShardRun run : runs) {
+            if (run.testTask.totalFailCount > 0 && run.testTask.reportImagePath != null) {
+                printlnf("##[warning] %d cases failed during the test", run.testTask.totalFailCount);
+            }
+        }
+
+        // the failed cases get a chance to pass on their own before they fail the build
+        boolean rerunFailures = totalFailCount > 0 && apiConfig.failedTestRerunCount > 0;
+        if (totalFailCount > 0 && !rerunFailures) {
+            markBuildFail();
+        }
+
+        int index = 0;
+
+        printlnf("##vso[task.setprogress value=90;]Almost Done with testing");
+        for (ShardRun run : runs) {
+            printlnf("##[section]Start going through device test results, Test overall info: %s", run.testTask);
+        }
+
+        long totalBytes = 0;
+        long collectStart = System.nanoTime();
+        // kick off the remaining downloads first, then walk the devices in order so the log and summary keep the same sequence
+        List<DeviceTestResult> reportedResults = new ArrayList<>();
+        List<ShardRun> reportedRuns = new ArrayList<>();
+        List<List<CompletableFuture<ArtifactDownloader.DownloadResult>>> artifactDownloads = new ArrayList<>();
+        for (ShardRun run : runs) {
+            for (DeviceTestResult deviceTestResult : run.testTask.deviceTestResults) {
+                if (deviceTestResult.testXmlReportBlobUrl == null) {
+                    continue;
+                }
+                reportedResults.add(deviceTestResult);
+                reportedRuns.add(run);
+                artifactDownloads.add(run.harvester.downloads(deviceTestResult));
+            }
+        }
+        LinkedHashMap<String, File> xmlReports = new LinkedHashMap<>();
+
+        for (int i = 0; i < reportedResults.size(); i++) {
+            DeviceTestResult deviceTestResult = reportedResults.get(i);
+            ShardRun run = reportedRuns.get(i);
+            if (sharded) {
+                printlnf(">>>>>>\n %s on device %s, failed cases count: %d, total cases: %d", run.getLabel(), deviceTestResult.deviceSerialNumber, deviceTestResult.failCount, deviceTestResult.totalCount);
+            } else {
+                printlnf(">>>>>>\n Device %s, failed cases count: %d, total cases: %d", deviceTestResult.deviceSerialNumber, deviceTestResult.failCount, deviceTestResult.totalCount);
+            }
+            if (deviceTestResult.failCount > 0 || deviceTestResult.totalCount == 0) {
+                if (deviceTestResult.crashStack != null && deviceTestResult.crashStack.length() > 0) {
+                    printlnf("##[error]Fatal error during test on device %s, stack:\n%s", deviceTestResult.deviceSerialNumber, deviceTestResult.crashStack);
+                }
+                else {
+                    printlnf("##[error]Fatal error during test on device %s with no stack found.", deviceTestResult.deviceSerialNumber);
+                }
+                // a device that ran no test has no failed case to run again
+                if (!rerunFailures || deviceTestResult.totalCount == 0) {
+                    markBuildFail();
+                }
+            }
+
+            List<CompletableFuture<ArtifactDownloader.DownloadResult>> downloads = artifactDownloads.get(i);
+            StringBuilder crashBuilder = new StringBuilder();
+            StringBuilder remoteBuilder = new StringBuilder();
+            for (int j = 0; j < downloads.size(); j++) {
+                ArtifactDownloader.DownloadResult result = finishDownload(DeviceArtifactHarvester.ARTIFACT_NAMES[j], deviceTestResult, downloads.get(j), record);
+                if (result == null) {
+                    ArtifactDownloader.DownloadResult skipped = downloads.get(j).join();
+                    if (skipped.skipReason != null) {
+                        telemetry.increment(RunTelemetry.Counter.ARTIFACTS_SKIPPED);
+                        remoteBuilder.append(String.format(Locale.US, "  - [%s](%s) left on the lab, %s%s\n", DeviceArtifactHarvester.ARTIFACT_NAMES[j], skipped.url,
+                                skipped.skipReason, skipped.remoteBytes >= 0 ? String.format(Locale.US, " (%.1f MB)", skipped.remoteBytes / 1048576.0) : ""));
+                    }
+                    continue;
+                }
+                if (result.isPartial()) {
+                    remoteBuilder.append(String.format(Locale.US, "  - `%s` holds the last %.1f MB of %s, [full %s](%s)\n", result.file.getName(), result.bytes / 1048576.0,
+                            result.remoteBytes >= 0 ? String.format(Locale.US, "%.1f MB", result.remoteBytes / 1048576.0) : "the log",
+                            DeviceArtifactHarvester.ARTIFACT_NAMES[j], result.url));
+                }
+                totalBytes += result.bytes;
+                telemetry.add(RunTelemetry.Counter.DOWNLOAD_RESUMES, result.resumes);
+                if (result.segments > 0) {
+                    telemetry.increment(RunTelemetry.Counter.SEGMENTED_DOWNLOADS);
+                }
+                if (j == DeviceArtifactHarvester.XML_REPORT_INDEX) {
+                    // a device may run several shards, one after the other
+                    xmlReports.put(sharded ? deviceTestResult.deviceSerialNumber + "-" + run.getLabel() : deviceTestResult.deviceSerialNumber, result.file);
+                    run.xmlReports.add(result.file);
+                }
+                if (result.crashIndexer != null) {
+                    appendCrashes(crashBuilder, deviceTestResult, result);
+                }
+            }
+
+            String deviceTestVideoUrl = apiConfig.getDeviceTestVideoUrl(deviceTestResult.id);
+            printlnf("##[command]Device %s test video link: %s\n>>>>>>>>", deviceTestResult.deviceSerialNumber, deviceTestVideoUrl);
+            // set this as a variable as we might need this in next task
+            setVariable(record, "TestVideoLink" + ++index, deviceTestVideoUrl);
+
+            mdBuilder.append(String.format(Locale.US, "- %sOn device %s (SN: %s), total case count: %d, failed: %d **[Video Link](%s)**\n", sharded ? run.getLabel() + ": " : "",
+                    deviceTestResult.deviceName, deviceTestResult.deviceSerialNumber, deviceTestResult.totalCount, deviceTestResult.failCount, deviceTestVideoUrl));
+            mdBuilder.append(crashBuilder);
+            mdBuilder.append(remoteBuilder);
+        }
+        printlnf("##[section]Collected artifacts of all devices in %d ms after the test finished, %d bytes in total",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - collectStart), totalBytes);
+        telemetry.endPhase(RunTelemetry.Phase.DOWNLOAD, collectStart);
+        telemetry.add(RunTelemetry.Counter.ARTIFACT_BYTES, totalBytes);
+
+        FailedTestRerun rerun = null;
+        if (rerunFailures) {
+            long rerunStart = System.nanoTime();
+            rerun = failureRerun.apply(record);
+            if (rerun == null || !rerun.getFailing().isEmpty()) {
+                markBuildFail();
+            }
+            telemetry.endPhase(RunTelemetry.Phase.RERUN, rerunStart);
+        }
+        long reportStart = System.nanoTime();
+
+        if (apiConfig.mergeJUnitReports && !xmlReports.isEmpty()) {
+            mdBuilder.append(mergeJUnitReports(xmlReports, testSuiteName, reportFolderPath, record));
+        }
+        if (rerun != null) {
+            mdBuilder.append(rerun.describe());
+        }
+
+        printlnf("##[section]All done, overall failed cases count: %d, total count: %d, devices count: %d", totalFailCount, totalTestCount, testDevicesCount);
+        if (rerun != null) {
+            printlnf("##[section]Re-ran the failed cases %d times, %d flaky, %d failed on every attempt", rerun.getAttempts(), rerun.getFlaky().size(), rerun.getFailing().size());
+        }
+        printlnf("##[section]Test task report link:");
+        printlnf(testReportUrl);
+        setVariable(record, "TestTaskReportLink", testReportUrl);
+        if (sharded) {
+            for (ShardRun run : runs) {
+                printlnf("%s%s", run.getLabel(), describeShardDuration(run));
+                setVariable(record, "TestTaskReportLink" + (run.shard.index + 1), apiConfig.getTestReportUrl(run.testTask.id));
+            }
+        }
+
+        File summaryMd = new File(reportFolderPath, "TestLabSummary.md");
+        try (FileOutputStream fos = new FileOutputStream(summaryMd)) {
+            IOUtils.write(mdBuilder.toString(), fos, StandardCharsets.UTF_8);
+            if (runGroup.solo) {
+                printlnf("##vso[task.uploadsummary]%s", summaryMd.getAbsolutePath());
+            }
+            record.summary = summaryMd.getName();
+        } catch (IOException e) {
+            // no need to rethrow
+            e.printStackTrace();
+        }
+        telemetry.endPhase(RunTelemetry.Phase.REPORT, reportStart);
+        return record;
+    }
+
+    private static String describeShardDuration(ShardRun run) {
+        StringBuilder sb = new StringBuilder();
+        if (run.testTask.startDate != null && run.testTask.endDate != null) {
+            sb.append(String.format(Locale.US, ", took %d seconds", TimeUnit.MILLISECONDS.toSeconds(run.testTask.endDate.getTime() - run.testTask.startDate.getTime())));
+        }
+        if (run.shard.estimatedSeconds >= 0) {
+            sb.append(String.format(Locale.US, ", estimated %.0f seconds", run.shard.estimatedSeconds));
+        }
+        return sb.toString();
+    }
+
+    private static void uploadArtifact(TestResultCache.TestRunRecord record, File file) {
+        printlnf("##vso[artifact.upload artifactname=%s;]%s", record.artifactName, file.getAbsolutePath());
+        record.artifacts.add(file.getName());
+    }
+
+    private static void setVariable(TestResultCache.TestRunRecord record, String name, String value) {
+        printlnf("##vso[task.setvariable variable=%s;]%s", name, value);
+        record.variables.put(name, value);
+    }
+
+    /**
+     * Upload the APK set, or reuse the id of an identical set uploaded before.
+     *
+     * @return future of the APK set id
+     */
+    public CompletableFuture<String> uploadAsync(String buildFlavor, String commitId, String commitCount, String commitMsg, File apk, File testApk) {
+        return hashAsync(apk).thenCombine(hashAsync(testApk), (sha, testSha) -> new String[]{sha, testSha})
+                .thenCompose(shas -> uploadAPKWithCache(buildFlavor, commitId, commitCount, commitMsg, apk, testApk, shas[0], shas[1]));
+    }
+
+    /**
+     * Trigger the test run, retrying while all devices are busy in the lab or it can't be reached. If the lab rejects a set
+     * id reused from the APK upload cache, e.g. as it purged the set, the set is uploaded once more and the run triggered
+     * with the new id. Other failures are not helped by a new upload, they fail the trigger as they are.
+     *
+     * @return future of the test task id
+     */
+    public CompletableFuture<String> triggerAsync(String apkSetId, String testSuiteName, @Nullable String deviceIdentifier, @Nullable String reportAudience,
+                                                  int timeoutSec, Map<String, String> instrumentationArgs, Map<String, String> extraArgs) {
+        CompletableFuture<String> replacement = runGroup.replacedApkSets.get(apkSetId);
+        if (replacement != null) {
+            return replacement.thenCompose(newApkSetId -> triggerOnceAsync(newApkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec,
+                    instrumentationArgs, extraArgs));
+        }
+        CompletableFuture<String> trigger = triggerOnceAsync(apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, instrumentationArgs, extraArgs);
+        Supplier<CompletableFuture<String>> reupload = runGroup.reusedApkSets.get(apkSetId);
+        if (reupload == null) {
+            return trigger;
+        }
+        return trigger.handle((testTaskId, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (!(cause instanceof ApkSetRejectedException) || cancellation.isCancelled()) {
+                return trigger;
+            }
+            CompletableFuture<String> newApkSet = runGroup.replacedApkSets.computeIfAbsent(apkSetId, rejectedApkSetId -> {
+                printlnf("##[warning]The lab rejected the APK set id %s from the upload cache, upload the APK set again: %s", rejectedApkSetId,
+                        cause.getMessage());
+                runGroup.reusedApkSets.remove(rejectedApkSetId);
+                return failWith("uploadAPK again fail: ", CompletableFuture.completedFuture(rejectedApkSetId).thenCompose(id -> reupload.get()));
+            });
+            return newApkSet.thenCompose(newApkSetId -> {
+                printlnf("##[section]Uploaded APK set id: %s", newApkSetId);
+                return triggerOnceAsync(newApkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, instrumentationArgs, extraArgs);
+            });
+        }).thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<String> triggerOnceAsync(String apkSetId, String testSuiteName, @Nullable String deviceIdentifier, @Nullable String reportAudience,
+                                                       int timeoutSec, Map<String, String> instrumentationArgs, Map<String, String> extraArgs) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletionCallbackListener callbackListener = startCallbackListener();
+        RetryPolicy.Backoff backoff = retryPolicy(RunTelemetry.Operation.RUN).newBackoff();
+        // devices stay busy for minutes, no point in asking again right away
+        RetryPolicy.Backoff busyBackoff = new RetryPolicy("Trigger test run while all devices are busy", TimeUnit.SECONDS.toMillis(apiConfig.triggerBusyRetryBaseDelaySec),
+                TimeUnit.SECONDS.toMillis(apiConfig.retryMaxDelaySec), TimeUnit.SECONDS.toMillis(apiConfig.triggerRetryBudgetSec), false, null, null).newBackoff();
+        String callbackUrl = callbackListener == null ? null : callbackListener.getCallbackUrl();
+        IO_EXECUTOR.execute(() -> triggerAttempt(result, backoff, busyBackoff, callbackUrl, apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, instrumentationArgs, extraArgs));
+        return result.whenComplete((testTaskId, error) -> {
+            if (callbackListener == null) {
+                return;
+            }
+            if (error == null) {
+                callbackListener.expectTestTask(testTaskId);
+                callbackListeners.put(testTaskId, callbackListener);
+            } else {
+                callbackListener.close();
+            }
+        });
+    }
+
+    private void triggerAttempt(CompletableFuture<String> result, RetryPolicy.Backoff backoff, RetryPolicy.Backoff busyBackoff, @Nullable String callbackUrl,
+                                String apkSetId, String testSuiteName, @Nullable String deviceIdentifier, @Nullable String reportAudience, int timeoutSec,
+                                Map<String, String> instrumentationArgs, Map<String, String> extraArgs) {
+        Runnable retry = () -> triggerAttempt(result, backoff, busyBackoff, callbackUrl, apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, instrumentationArgs, extraArgs);
+        try {
+            JsonObject responseContent;
+            try {
+                backoff.beforeAttempt();
+                responseContent = triggerTestRun(callbackUrl, apkSetId, testSuiteName, deviceIdentifier, reportAudience, timeoutSec, instrumentationArgs, extraArgs);
+                backoff.succeeded();
+            } catch (IOException e) {
+                long delayMillis = backoff.failed(e);
+                assertTrue(delayMillis >= 0, "triggerTestRun fail: " + e.getMessage(), null);
+                runLater(retry, delayMillis);
+                return;
+            } catch (RuntimeException e) {
+                backoff.abandoned();
+                throw e;
+            }
+            int resultCode = responseContent.get("code").getAsInt();
+            // all devices are busy, the lab has not queued the task
+            if (resultCode == 500) {
+                long delayMillis = busyBackoff.nextDelayMillis(-1);
+                if (delayMillis >= 0) {
+                    telemetry.increment(RunTelemetry.Counter.TRIGGER_BUSY_RETRIES);
+                    printlnf("##[command]All devices are busy in the lab, trigger again in %d ms", delayMillis);
+                    runLater(retry, delayMillis);
+                    return;
+                }
+            }
+            assertTrue(resultCode != 500, "All devices are busy in the lab", null);
+            if (isApkSetRejected(resultCode, responseContent)) {
+                throw new ApkSetRejectedException(apkSetId, "Server returned code: " + resultCode + ": " + responseContent);
+            }
+            assertTrue(resultCode == 200, "Server returned code: " + resultCode, responseContent);
+
+            String testTaskId = responseContent.getAsJsonObject("content").get("testTaskId").getAsString();
+            printlnf("##[section]Triggered test task id: %s successful!", testTaskId);
+            activeTestTaskIds.add(testTaskId);
+            if (cancellation.isCancelled()) {
+                // cancelled while the trigger was on its way, the task got past the cleanup
+                cancelTestTasks();
+            }
+            result.complete(testTaskId);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return true if the lab answered the trigger with an unknown set, a 404 or a 400 about the set id like "Error fileSetId"
+     */
+    static boolean isApkSetRejected(int resultCode, JsonObject responseContent) {
+        if (resultCode == 404) {
+            return true;
+        }
+        if (resultCode != 400 || !responseContent.has("message") || !responseContent.get("message").isJsonPrimitive()) {
+            return false;
+        }
+        return APK_SET_REJECTED_MESSAGE.matcher(responseContent.get("message").getAsString()).find();
+    }
+
+    /**
+     * Follow the test task until it finishes, times out, or fails.
+     *
+     * @return future of the finished task
+     */
+    public CompletableFuture<TestTask> awaitCompletionAsync(String testTaskId, int timeoutSec) {
+        return awaitCompletionAsync(testTaskId, timeoutSec, null);
+    }
+
+    /**
+     * @param progressListener called with every status seen before the task finishes
+     */
+    public CompletableFuture<TestTask> awaitCompletionAsync(String testTaskId, int timeoutSec, @Nullable Consumer<TestTask> progressListener) {
+        CompletionCallbackListener callbackListener = callbackListeners.remove(testTaskId);
+        StatusPoll statusPoll = new StatusPoll(testTaskId, timeoutSec, callbackListener, progressListener);
+        cancellation.onCancel(statusPoll::cancel);
+        if (callbackListener != null) {
+            callbackListener.getCompletion().thenRun(statusPoll::checkNow);
+            statusPoll.result.whenComplete((task, error) -> callbackListener.close());
+        }
+        statusPoll.checkNow();
+        return statusPoll.result;
+    }
+
+    /**
+     * Status checks of one test task, each check schedules the next one instead of sleeping.
+     */
+    private class StatusPoll {
+        final String testTaskId;
+        final int timeoutSec;
+        final long timeoutMillis;
+        @Nullable
+        final CompletionCallbackListener callbackListener;
+        @Nullable
+        final Consumer<TestTask> progressListener;
+        final PollingStrategy pollingStrategy;
+        final TestStatusCache statusCache = new TestStatusCache();
+        final CompletableFuture<TestTask> result = new CompletableFuture<>();
+        long totalWaitMillis = 0;
+        long lastCheckMillis = 0;
+        boolean lastRunning = false;
+        boolean lastWaiting = false;
+        int HydraRetryTime = 0;
+        ScheduledFuture<?> pendingCheck;
+        final RetryPolicy.Backoff statusBackoff = retryPolicy(RunTelemetry.Operation.STATUS).newBackoff();
+
+        StatusPoll(String testTaskId, int timeoutSec, @Nullable CompletionCallbackListener callbackListener, @Nullable Consumer<TestTask> progressListener) {
+            this.testTaskId = testTaskId;
+            this.timeoutSec = timeoutSec;
+            this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSec);
+            this.callbackListener = callbackListener;
+            this.progressListener = progressListener;
+            this.pollingStrategy = PollingStrategy.create(apiConfig, timeoutSec);
+        }
+
+        synchronized void checkNow() {
+            if (pendingCheck != null) {
+                pendingCheck.cancel(false);
+            }
+            IO_EXECUTOR.execute(this::check);
+        }
+
+        /**
+         * Stop checking without waiting for a check in flight, its call is cancelled with the run.
+         */
+        void cancel() {
+            ScheduledFuture<?> check = pendingCheck;
+            if (check != null) {
+                check.cancel(false);
+            }
+            result.completeExceptionally(cancellation.newCancellationException());
+        }
+
+        private synchronized void check() {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                long now = System.currentTimeMillis();
+                // only the time running counts toward the timeout, not the time queued in the lab
+                if (lastRunning) {
+                    totalWaitMillis += now - lastCheckMillis;
+                    telemetry.addPhaseTime(RunTelemetry.Phase.EXECUTION, TimeUnit.MILLISECONDS.toNanos(now - lastCheckMillis));
+                } else if (lastWaiting) {
+                    telemetry.addPhaseTime(RunTelemetry.Phase.QUEUE, TimeUnit.MILLISECONDS.toNanos(now - lastCheckMillis));
+                }
+                lastCheckMillis = now;
+                if (totalWaitMillis > timeoutMillis) {
+                    finish(null);
+                    return;
+                }
+
+                TestTask runningTest;
+                TestTask callbackTask = callbackListener == null ? null : callbackListener.takeCompletedTask();
+                if (callbackTask != null && callbackTask.deviceTestResults != null) {
+                    runningTest = callbackTask;
+                } else {
+                    printlnf("Get test status after waiting for %d seconds", TimeUnit.MILLISECONDS.toSeconds(totalWaitMillis));
+                    runningTest = getTestStatusWithRetry(apiConfig.skipHeavyFieldsWhilePolling);
+                    if (runningTest == null) {
+                        return;
+                    }
+                }
+                assertNotNull(runningTest, "testTask");
+                printlnf("Current running test info: %s", runningTest.toString());
+
+                String currentStatus = runningTest.status;
+                if (HydraRetryTime != runningTest.retryTime) {
+                    HydraRetryTime = runningTest.retryTime;
+                    telemetry.increment(RunTelemetry.Counter.LAB_TASK_RETRIES);
+                    printlnf("##[command]Retrying to run task again, waitSecond will be reset. current retryTime is : %d", HydraRetryTime);
+                    totalWaitMillis = 0;
+                    pollingStrategy.reset();
+                }
+
+                long waitMillis;
+                if (TestTask.TestStatus.WAITING.equals(currentStatus)) {
+                    lastRunning = false;
+                    lastWaiting = true;
+                    waitMillis = nextPollDelayMillis(runningTest);
+                    printlnf("##[command]" + runningTest.message + " Start waiting: %d ms", waitMillis);
+                } else {
+                    //printlnf("##[command]Running test on %d devices, status for now: %s", runningTest.testDevicesCount, runningTest.status);
+                    printlnf("##[command]Running test on %d device, status for now: %s", runningTest.testDevicesCount, currentStatus);
+                    assertTrue(!TestTask.TestStatus.CANCELED.equals(currentStatus), "The test task is canceled", runningTest);
+                    assertTrue(!TestTask.TestStatus.EXCEPTION.equals(currentStatus), "The test task is error", runningTest);
+                    if (TestTask.TestStatus.FINISHED.equals(currentStatus)) {
+                        if (runningTest == statusCache.testTask && statusCache.heavyFieldsSkipped) {
+                            // the crash stacks are reported at the end, fetch them once now
+                            runningTest = getTestStatusWithRetry(false);
+                            if (runningTest == null) {
+                                return;
+                            }
+                        }
+                        finish(runningTest);
+                        return;
+                    }
+                    lastRunning = true;
+                    lastWaiting = false;
+                    if (progressListener != null) {
+                        progressListener.accept(runningTest);
+                    }
+                    waitMillis = nextPollDelayMillis(runningTest);
+                    // using ##[command] as a highlight indicator
+                    printlnf("##[command]Start waiting: %d ms", waitMillis);
+                }
+                pendingCheck = runLater(this::check, waitMillis);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * @return the status, or null if the check failed and the next one is scheduled
+         */
+        @Nullable
+        private TestTask getTestStatusWithRetry(boolean skipHeavyFields) {
+            try {
+                statusBackoff.beforeAttempt();
+                TestTask testTask = getTestStatus(testTaskId, statusCache, skipHeavyFields);
+                statusBackoff.succeeded();
+                return testTask;
+            } catch (IOException e) {
+                long delayMillis = statusBackoff.failed(e);
+                assertTrue(delayMillis >= 0, "getTestStatus fail: " + e.getMessage(), null);
+                pendingCheck = runLater(this::check, delayMillis);
+                return null;
+            } catch (RuntimeException e) {
+                statusBackoff.abandoned();
+                throw e;
+            }
+        }
+
+        private long nextPollDelayMillis(TestTask runningTest) {
+            long waitMillis = pollingStrategy.nextDelayMillis(runningTest, totalWaitMillis);
+            if (callbackListener != null && !callbackListener.isDelivered()) {
+                // the callback ends the wait early, polling is only the safety net
+                waitMillis = Math.max(waitMillis, TimeUnit.SECONDS.toMillis(apiConfig.callbackSafetyPollIntervalSec));
+            }
+            return waitMillis;
+        }
+
+        private void finish(@Nullable TestTask finishedTest) {
+            printlnf("Polled test status %d times, %d of them unchanged (304)", statusCache.requestCount, statusCache.notModifiedCount);
+            telemetry.add(RunTelemetry.Counter.POLLS, statusCache.requestCount);
+            telemetry.add(RunTelemetry.Counter.POLLS_NOT_MODIFIED, statusCache.notModifiedCount);
+            if (finishedTest == null && activeTestTaskIds.remove(testTaskId)) {
+                // nobody waits for the task anymore, free its devices for the other runs
+                cancelTestTask(testTaskId, "the client timed out after " + timeoutSec + " seconds");
+            }
+            assertTrue(finishedTest != null, "Time out after waiting for " + timeoutSec + " seconds! Test id", testTaskId);
+            activeTestTaskIds.remove(testTaskId);
+            result.complete(finishedTest);
+        }
+    }
+
+    @Nullable
+    private CompletionCallbackListener startCallbackListener() {
+        if (!apiConfig.callbackEnabled) {
+            return null;
+        }
+        try {
+            CompletionCallbackListener callbackListener = new CompletionCallbackListener(apiConfig.callbackHost, apiConfig.callbackPort);
+            printlnf("##[section]Listening for test completion callback on: %s", callbackListener.getCallbackUrl());
+            return callbackListener;
+        } catch (IOException e) {
+            printlnf("##[warning]Failed to start the test completion callback listener, fall back to polling: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    private CommitInfo collectCommitInfo() {
+        File commandDir = new File(".");
+        // TODO: make the commit info fetch approach compatible to other types of pipeline variables.
+        String commitId = System.getenv("BUILD_SOURCEVERSION");
+        String commitCount = "";
+        String commitMsg = System.getenv("BUILD_SOURCEVERSIONMESSAGE");
+        long start = System.nanoTime();
+        boolean inProcess = false;
+        try {
+            if (apiConfig.gitMetadataInProcess) {
+                try (GitMetadataReader gitReader = GitMetadataReader.open(commandDir)) {
+                    if (gitReader != null) {
+                        String headCommit = gitReader.resolveHead();
+                        if (StringUtils.isEmpty(commitId)) {
+                            commitId = gitReader.abbreviate(headCommit);
+                        }
+                        int count = gitReader.countFirstParentCommits(commitId, headCommit,
+                                apiConfig.apkUploadCacheEnabled ? new File(apiConfig.apkUploadCacheDir) : null);
+                        if (count >= 0) {
+                            commitCount = String.valueOf(count);
+                        }
+                        if (StringUtils.isEmpty(commitMsg)) {
+                            commitMsg = gitReader.readCommit(commitId).getSubject();
+                        }
+                        inProcess = true;
+                    }
+                } catch (IOException e) {
+                    printlnf("##[warning]Read git metadata from .git fail, fall back to the git command: %s", e.getMessage());
+                }
+            }
+
+            if (StringUtils.isEmpty(commitId)){
+                commitId = getLatestCommitHash(commandDir);
+            }
+            if (!StringUtils.isEmpty(commitId)){
+                if (StringUtils.isEmpty(commitCount)){
+                    commitCount = getCommitCount(commandDir, commitId);
+                }
+                if (StringUtils.isEmpty(commitMsg)){
+                    commitMsg = getCommitMessage(commandDir, commitId);
+                }
+            }
+            if (StringUtils.isEmpty(commitCount)){
+                commitCount = "-1";
+            }
+            if (StringUtils.isEmpty(commitMsg)){
+                commitMsg = "NOT PARSED";
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Get commit info failed: " + e.getMessage(), e);
+        }
+        printlnf("Collected commit info in %d ms%s", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), inProcess ? " from .git" : "");
+        telemetry.endPhase(RunTelemetry.Phase.GIT, start);
+        return new CommitInfo(commitId, commitCount, commitMsg);
+    }
+
+    /**
+     * Open a connection to the lab in the background, so DNS, TCP and TLS are done by the time the upload starts.
+     */
+    private void warmUpConnection() {
+        Request req = new Request.Builder()
+                .head()
+                .url(String.format(Locale.US, "%s://%s%s/", apiConfig.schema, apiConfig.host, apiConfig.contextPath))
+                .build();
+        httpClient.newCall(req).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                // only an optimization, the upload reports real connection errors
+            }
+
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) {
+                response.close();
+            }
+        });
+    }
+
+    private void markBuildFail() {
+        if (!markedFail.compareAndSet(false, true) || !runGroup.solo) {
+            return;
+        }
+        printlnf("##vso[build.addbuildtag]FAIL");
+    }
+
+    private void markBuildSuccess() {
+        if (markedFail.get() || !runGroup.solo) {
+            return;
+        }
+        printlnf("##vso[build.addbuildtag]SUCCESS");
+    }
+
+    /**
+     * @return the finished download, null if the artifact does not exist or was skipped
+     */
+    @Nullable
+    private ArtifactDownloader.DownloadResult finishDownload(String artifactName, DeviceTestResult deviceTestResult, CompletableFuture<ArtifactDownloader.DownloadResult> download,
+                                                             TestResultCache.TestRunRecord record) {
+        ArtifactDownloader.DownloadResult result = join(download);
+        if (result.skipReason != null) {
+            printlnf("Skip downloading %s for device %s, %s, link: %s", artifactName, deviceTestResult.deviceSerialNumber, result.skipReason, result.url);
+            return null;
+        }
+        if (result.success && result.file.exists()) {
+            printlnf("Finish downloading %s for device %s: %s%s%s", artifactName, deviceTestResult.deviceSerialNumber, result.describeThroughput(),
+                    result.segments > 0 ? String.format(Locale.US, ", %d segments", result.segments) : "",
+                    result.resumes > 0 ? String.format(Locale.US, ", resumed %d times", result.resumes) : "");
+            // use the https://docs.microsoft.com/en-us/azure/devops/pipelines/scripts/logging-commands?view=azure-devops&tabs=powershell#build-commands
+            // to upload the report, logs go up as their much smaller gzip copy when there is one
+            uploadArtifact(record, uploadFileOf(result));
+            if (result.crashIndexFile != null) {
+                uploadArtifact(record, result.crashIndexFile);
+            }
+            return result;
+        }
+        if (result.failure != null) {
+            printlnf("##[warning]Failed to download %s for device %s: %s, link: %s", artifactName, deviceTestResult.deviceSerialNumber, result.failure, result.url);
+            return null;
+        }
+        printlnf("No %s for device %s exists, skip downloading.", artifactName, deviceTestResult.deviceSerialNumber);
+        return null;
+    }
+
+    private static File uploadFileOf(ArtifactDownloader.DownloadResult result) {
+        return result.gzipFile != null && result.gzipFile.exists() ? result.gzipFile : result.file;
+    }
+
+    /**
+     * List the crashes indexed while downloading a log under the device line of the summary, pointing to the log as
+     * uploaded.
+     */
+    private static void appendCrashes(StringBuilder mdBuilder, DeviceTestResult deviceTestResult, ArtifactDownloader.DownloadResult result) {
+        LogCrashIndexer indexer = result.crashIndexer;
+        if (indexer.getCrashCount() == 0) {
+            return;
+        }
+        printlnf("##[warning]Found %d crashes in %s of device %s", indexer.getCrashCount(), result.file.getName(), deviceTestResult.deviceSerialNumber);
+        File logFile = uploadFileOf(result);
+        String offsetNote = logFile == result.file ? "" : " of the decompressed log";
+        List<LogCrashIndexer.CrashEntry> entries = indexer.getEntries();
+        for (int i = 0; i < entries.size() && i < MAX_LISTED_CRASHES; i++) {
+            LogCrashIndexer.CrashEntry entry = entries.get(i);
+            mdBuilder.append(String.format(Locale.US, "  - %s in `%s` at line %d (byte offset %d%s): `%s`\n",
+                    entry.type.displayName, logFile.getName(), entry.line, entry.offset, offsetNote, entry.text.replace('`', '\'')));
+        }
+        if (indexer.getCrashCount() > MAX_LISTED_CRASHES) {
+            mdBuilder.append(String.format(Locale.US, "  - ... and %d more, see `%s`\n", indexer.getCrashCount() - MAX_LISTED_CRASHES, result.crashIndexFile.getName()));
+        }
+    }
+
+    /**
+     * Merge the per-device JUnit reports and build the test x device matrix.
+     *
+     * @return summary section listing the tests failing on every device and the ones failing on some devices only
+     */
+    private static String mergeJUnitReports(LinkedHashMap<String, File> xmlReports, String testSuiteName, String reportFolderPath, TestResultCache.TestRunRecord record) {
+        long mergeStart = System.nanoTime();
+        JUnitReportMerger merger = new JUnitReportMerger(xmlReports);
+        File mergedReport = new File(reportFolderPath, "JUnitMerged-" + testSuiteName + ".xml");
+        File matrixCsv = new File(reportFolderPath, "TestMatrix-" + testSuiteName + ".csv");
+        try {
+            merger.merge(mergedReport, Runtime.getRuntime().availableProcessors());
+            merger.writeMatrixCsv(matrixCsv);
+        } catch (IOException e) {
+            // the per-device reports are already uploaded, a failed merge shouldn't fail the build
+            printlnf("##[warning]Merge JUnit reports fail: %s", e.getMessage());
+            return "";
+        }
+        JUnitReportMerger.MatrixSummary summary = merger.summarize();
+        printlnf("##[section]Merged JUnit reports of %d devices in %d ms, %d distinct cases, %d failed on every device, %d failed on some devices only",
+                xmlReports.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mergeStart), summary.testCount,
+                summary.failedOnAllDevices.size(), summary.failedOnSomeDevices.size());
+        uploadArtifact(record, mergedReport);
+        uploadArtifact(record, matrixCsv);
+
+        StringBuilder mdBuilder = new StringBuilder();
+        mdBuilder.append(String.format(Locale.US, "\n### Cross-device matrix: %d cases on %d devices, %d failed on every device, %d failed on some devices only\n\n",
+                summary.testCount, xmlReports.size(), summary.failedOnAllDevices.size(), summary.failedOnSomeDevices.size()));
+        appendFailedCases(mdBuilder, "Failed on every device", summary.failedOnAllDevices, xmlReports.size());
+        appendFailedCases(mdBuilder, "Failed on some devices only, possibly flaky or device specific", summary.failedOnSomeDevices, xmlReports.size());
+        return mdBuilder.toString();
+    }
+
+    private static void appendFailedCases(StringBuilder mdBuilder, String title, Map<String, List<String>> failedCases, int deviceCount) {
+        if (failedCases.isEmpty()) {
+            return;
+        }
+        mdBuilder.append(String.format(Locale.US, "#### %s\n\n", title));
+        int listed = 0;
+        for (Map.Entry<String, List<String>> entry : failedCases.entrySet()) {
+            if (listed++ == MAX_LISTED_FAILED_CASES) {
+                mdBuilder.append(String.format(Locale.US, "- ... and %d more, see the test matrix\n", failedCases.size() - MAX_LISTED_FAILED_CASES));
+                break;
+            }
+            mdBuilder.append(String.format(Locale.US, "- `%s` failed on %d/%d devices: %s\n", entry.getKey(), entry.getValue().size(), deviceCount, String.join(", ", entry.getValue())));
+        }
+        mdBuilder.append("\n");
+    }
+
+    /**
+     * Cancel the test tasks of the run still going on the lab, so their devices are released right away instead of
+     * running tests nobody waits for.
+     */
+    private void cancelTestTasks() {
+        for (String testTaskId : activeTestTaskIds) {
+            if (activeTestTaskIds.remove(testTaskId)) {
+                cancelTestTask(testTaskId, cancellation.getReason());
+            }
+        }
+    }
+
+    /**
+     * Best effort: a task left running still ends with its own timeout on the lab.
+     */
+    private void cancelTestTask(String testTaskId, String reason) {
+        HttpUrl url = HttpUrl.get(apiConfig.getCancelTestUrl(testTaskId)).newBuilder()
+                .addQueryParameter("reason", reason)
+                .build();
+        Request req = new Request.Builder()
+                .addHeader("Authorization", "Bearer " + apiConfig.authToken)
+                .url(url)
+                .build();
+        try (Response response = cancelClient.newCall(req).execute()) {
+            if (response.isSuccessful()) {
+                telemetry.increment(RunTelemetry.Counter.TEST_TASKS_CANCELLED);
+                printlnf("##[section]Cancelled test task %s on the lab, its devices are released", testTaskId);
+            } else {
+                printlnf("##[warning]Cancel test task %s fail: %s", testTaskId, response);
+            }
+        } catch (IOException e) {
+            printlnf("##[warning]Cancel test task %s fail: %s", testTaskId, e.getMessage());
+        }
+    }
+
+    /**
+     * @throws IOException if the lab could not be reached or answered with a transient error
+     */
+    private TestTask getTestStatus(String testId, TestStatusCache statusCache, boolean skipHeavyFields) throws IOException {
+        Request.Builder reqBuilder = new Request.Builder()
+                .addHeader("Authorization", "Bearer " + apiConfig.authToken)
+                .url(apiConfig.getTestStatusUrl(testId));
+        boolean canReuse = statusCache.testTask != null && (skipHeavyFields || !statusCache.heavyFieldsSkipped);
+        if (statusCache.etag != null && canReuse) {
+            reqBuilder.addHeader("If-None-Match", statusCache.etag);
+        }
+        OkHttpClient clientToUse = httpClient;
+        try (Response response = clientToUse.newCall(reqBuilder.build()).execute()) {
+            statusCache.requestCount++;
+            if (response.code() == 304 && canReuse) {
+                statusCache.notModifiedCount++;
+                return statusCache.testTask;
+            }
+            RetryPolicy.checkResponse(response, "getTestStatus");
+            assertTrue(response.isSuccessful(), "getTestStatus", response);
+            ResponseBody body = response.body();
+            assertNotNull(body, response + ": getTestStatus ResponseBody");
+
+            long allocatedBefore = apiConfig.statusDecodeStats ? TestTaskJsonDecoder.currentThreadAllocatedBytes() : -1;
+            long decodeStart = System.nanoTime();
+            TestTaskJsonDecoder.Envelope envelope = TestTaskJsonDecoder.decode(body.charStream(), skipHeavyFields);
+            if (allocatedBefore >= 0) {
+                printlnf("Decoded test status of %d bytes in %d us, allocated %d bytes", body.contentLength(),
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - decodeStart), TestTaskJsonDecoder.currentThreadAllocatedBytes() - allocatedBefore);
+            }
+
+            assertTrue(envelope.code == 200, "Server returned code: " + envelope.code, envelope);
+
+            statusCache.testTask = envelope.content;
+            statusCache.heavyFieldsSkipped = skipHeavyFields;
+            statusCache.etag = response.header("ETag");
+            return statusCache.testTask;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("get test status fail: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param callbackUrl URL of the completion callback listener of this trigger, null if it has none
+     * @throws IOException if the lab could not be reached or answered with a transient error
+     */
+    private JsonObject triggerTestRun(@Nullable String callbackUrl, String apkSetId, String testSuiteName, @Nullable String deviceIdentifier, @Nullable String reportAudience,
+                                      int timeoutSec, Map<String, String> instrumentationArgs, Map<String, String> extraArgs) throws IOException {
+        JsonObject jsonElement = new JsonObject();
+        jsonElement.addProperty("testSuiteClass", testSuiteName);
+        jsonElement.addProperty("testTimeOutSec", timeoutSec);
+        jsonElement.addProperty("pkgName", apiConfig.getPkgName());
+        jsonElement.addProperty("testPkgName", apiConfig.getTestPkgName());
+        jsonElement.addProperty("apkSetId", apkSetId);
+        jsonElement.addProperty("groupTestType", apiConfig.groupTestType);
+        jsonElement.addProperty("pipelineLink", apiConfig.pipelineLink);
+        if (!StringUtils.isEmpty(callbackUrl)) {
+            jsonElement.addProperty("callbackUrl", callbackUrl);
+        }
+        jsonElement.addProperty("runningType", apiConfig.runningType);
+        jsonElement.addProperty("frameworkType", apiConfig.frameworkType);
+        if (apiConfig.triggerQueueAware) {
+            // the lab keeps the task WAITING until a device is free, which the status polling already follows
+            jsonElement.addProperty("queueIfBusy", true);
+        }
+
+        if (reportAudience != null) {
+            jsonElement.addProperty("reportAudience", reportAudience);
+        }
+        if (deviceIdentifier != null) {
+            jsonElement.addProperty("deviceIdentifier", deviceIdentifier);
+        }
+        if (instrumentationArgs != null) {
+            jsonElement.add("instrumentationArgs", GSON.toJsonTree(instrumentationArgs).getAsJsonObject());
+        }
+        if (extraArgs != null) {
+            extraArgs.forEach(jsonElement::addProperty);
+        }
+
+        String content = GSON.toJson(jsonElement);
+        printlnf("triggerTestRun api post body: %s", content);
+        RequestBody jsonBody = RequestBody.create(MediaType.parse("application/json; charset=utf-8"), GSON.toJson(jsonElement));
+
+        Request req = new Request.Builder()
+                .addHeader("Authorization", "Bearer " + apiConfig.authToken)
+                .url(apiConfig.getRunTestUrl())
+                .post(jsonBody).build();
+        OkHttpClient clientToUse = httpClient;
+        try (Response response = clientToUse.newCall(req).execute()) {
+            RetryPolicy.checkResponse(response, "triggerTestRun");
+            assertTrue(response.isSuccessful(), "triggerTestRun", response);
+            ResponseBody body = response.body();
+            assertNotNull(body, response + ": triggerTestRun ResponseBody");
+            String string = body.string();
+            printlnf("RunningTestJson: %s", string);
+            JsonObject jsonObject = GSON.fromJson(string, JsonObject.class);
+
+            return jsonObject;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("trigger test run fail: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return future of the SHA-256 of the file, completed with null if no cache is on or the file can't be read
+     */
+    private CompletableFuture<String> hashAsync(File file) {
+        // the runs of a group also find the upload they share by the hashes
+        if (!apiConfig.apkUploadCacheEnabled && !apiConfig.testResultCacheEnabled && runGroup.solo) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                long start = System.nanoTime();
+                String sha = ApkUploadCache.sha256(file);
+                printlnf("Hashed %s in %d ms", file.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                telemetry.endPhase(RunTelemetry.Phase.HASH, start);
+                return sha;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }, UPLOAD_EXECUTOR);
+    }
+
+    private CompletableFuture<String> uploadAPKWithCache(String buildFlavor, String commitId, String commitCount, String commitMsg, File apk, File testApk,
+                                                         @Nullable String apkSha, @Nullable String testApkSha) {
+        if (!apiConfig.apkUploadCacheEnabled || apkSha == null || testApkSha == null) {
+            return uploadAPK(buildFlavor, commitId, commitCount, commitMsg, apk, testApk);
+        }
+        String cacheKey = apkSetCacheKey(buildFlavor, commitId, apkSha, testApkSha);
+        printlnf("APK set cache key: %s", cacheKey);
+
+        ApkUploadCache cache = new ApkUploadCache(new File(apiConfig.apkUploadCacheDir), apiConfig.apkUploadCacheTtlHours);
+        Supplier<CompletableFuture<String>> upload = () -> uploadAPK(buildFlavor, commitId, commitCount, commitMsg, apk, testApk).thenApply(apkSetId -> {
+            cache.store(cacheKey, apkSetId);
+            return apkSetId;
+        });
+        String cachedApkSetId = cache.lookup(cacheKey);
+        if (cachedApkSetId != null) {
+            printlnf("##[section]Identical APK set was uploaded before, skip uploading and reuse APK set id: %s", cachedApkSetId);
+            telemetry.increment(RunTelemetry.Counter.APK_UPLOAD_CACHE_HITS);
+            // the lab may have purged the set meanwhile, a rejected trigger drops it and uploads once more
+            runGroup.reusedApkSets.put(cachedApkSetId, () -> {
+                cache.remove(cacheKey, cachedApkSetId);
+                return upload.get();
+            });
+            return CompletableFuture.completedFuture(cachedApkSetId);
+        }
+        return upload.get();
+    }
+
+    private String apkSetCacheKey(String buildFlavor, String commitId, String apkSha, String testApkSha) {
+        return ApkUploadCache.buildKey(apiConfig.schema, apiConfig.host, apiConfig.contextPath, buildFlavor, commitId, apkSha, testApkSha);
+    }
+
+    private CompletableFuture<String> uploadAPK(String buildFlavor, String commitId, String commitCount, String commitMsg, File apk, File testApk) {
+        MultipartBody.Builder formBuilder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("commitId", commitId)
+                .addFormDataPart("commitCount", commitCount)
+                .addFormDataPart("commitMessage", commitMsg)
+                .addFormDataPart("buildFlavor", buildFlavor);
+        CompletableFuture<MultipartBody.Builder> form;
+        if (apiConfig.chunkedUploadEnabled) {
+            // the files are uploaded chunk by chunk ahead, the set is then created from the upload ids
+            ChunkedApkUploader chunkedUploader = new ChunkedApkUploader(httpClient, apiConfig, retryPolicy(RunTelemetry.Operation.UPLOAD));
+            form = failWith("uploadAPK chunks fail: ", chunkedUploader.uploadAsync(apk, UPLOAD_EXECUTOR, SCHEDULER)
+                    .thenCompose(apkUploadId -> chunkedUploader.uploadAsync(testApk, UPLOAD_EXECUTOR, SCHEDULER)
+                            .thenApply(testApkUploadId -> formBuilder.addFormDataPart("apkFileName", apk.getName())
+                                    .addFormDataPart("apkUploadId", apkUploadId)
+                                    .addFormDataPart("testApkFileName", testApk.getName())
+                                    .addFormDataPart("testApkUploadId", testApkUploadId)))
+                    .whenComplete((builder, error) -> telemetry.add(RunTelemetry.Counter.UPLOAD_CHUNK_RETRIES, chunkedUploader.getRetryCount())));
+        } else {
+            MediaType contentType = MediaType.get("application/vnd.android.package-archive");
+            form = CompletableFuture.completedFuture(formBuilder.addFormDataPart("apkFile", apk.getName(), RequestBody.create(contentType, apk))
+                    .addFormDataPart("testApkFile", testApk.getName(), RequestBody.create(contentType, testApk)));
+        }
+        OkHttpClient clientToUse = httpClient;
+        return form.thenCompose(builder -> {
+            Request req = new Request.Builder()
+                    .addHeader("Authorization", "Bearer " + apiConfig.authToken)
+                    .url(apiConfig.getUploadUrl())
+                    .post(builder.build())
+                    .build();
+            // the files are read again for every attempt
+            return failWith("uploadAPK APK fail: ", retryPolicy(RunTelemetry.Operation.UPLOAD).callAsync(() -> {
+                try (Response response = clientToUse.newCall(req).execute()) {
+                    RetryPolicy.checkResponse(response, "uploadAPK");
+                    assertTrue(response.isSuccessful(), "uploadAPK", response);
+                    ResponseBody body = response.body();
+
+                    assertNotNull(body, response + ": uploadAPK ResponseBody");
+                    JsonObject jsonObject = GSON.fromJson(body.string(), JsonObject.class);
+
+                    int resultCode = jsonObject.get("code").getAsInt();
+                    assertTrue(resultCode == 200, "Server returned code: " + resultCode, jsonObject);
+
+                    return jsonObject.getAsJsonObject("content").get("id").getAsString();
+                }
+            }, UPLOAD_EXECUTOR, SCHEDULER));
+        });
+    }
+
+    /**
+     * @return the future, failed with a RuntimeException of the message and the failure of the future
+     */
+    private static <T> CompletableFuture<T> failWith(String message, CompletableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            result.completeExceptionally(new RuntimeException(message + cause.getMessage(), cause));
+        });
+        return result;
+    }
+
+    /**
+     * @return the APK at the path, or the only APK in it if it is a directory
+     */
+    private static File resolveApk(String path, String name) {
+        File file = new File(path);
+        assertTrue(file.exists(), name + " not exist", null);
+        if (!file.isDirectory()) {
+            return file;
+        }
+        File[] apks = file.listFiles((dir, fileName) -> fileName.endsWith(".apk"));
+        assertTrue(apks != null && apks.length == 1, name + " directory " + path + " must contain exactly one .apk file, found",
+                apks == null ? 0 : apks.length);
+        return apks[0];
+    }
+
+    /**
+     * Retries of the calls of one operation. The calls to the lab share the circuit breaker of its host, the artifact
+     * blobs may be served from elsewhere and don't trip it.
+     */
+    private RetryPolicy retryPolicy(RunTelemetry.Operation operation) {
+        String name;
+        int budgetSec;
+        RunTelemetry.Counter counter;
+        switch (operation) {
+            case UPLOAD:
+                name = "Upload";
+                budgetSec = apiConfig.uploadRetryBudgetSec;
+                counter = RunTelemetry.Counter.UPLOAD_RETRIES;
+                break;
+            case RUN:
+                name = "Trigger test run";
+                budgetSec = apiConfig.triggerRetryBudgetSec;
+                counter = RunTelemetry.Counter.TRIGGER_RETRIES;
+                break;
+            case STATUS:
+                name = "Get test status";
+                budgetSec = apiConfig.statusRetryBudgetSec;
+                counter = RunTelemetry.Counter.STATUS_RETRIES;
+                break;
+            default:
+                name = "Download";
+                budgetSec = apiConfig.downloadRetryBudgetSec;
+                counter = RunTelemetry.Counter.DOWNLOAD_RETRIES;
+                break;
+        }
+        RetryPolicy.CircuitBreaker circuitBreaker = operation == RunTelemetry.Operation.BLOB ? null
+                : RetryPolicy.circuitBreaker(apiConfig.host, apiConfig.circuitBreakerFailureThreshold, TimeUnit.SECONDS.toMillis(apiConfig.circuitBreakerOpenSec));
+        // a trigger that reached the lab may have created the task, it is only sent again if it surely did not
+        return new RetryPolicy(name, apiConfig.retryBaseDelayMillis, TimeUnit.SECONDS.toMillis(apiConfig.retryMaxDelaySec), TimeUnit.SECONDS.toMillis(budgetSec),
+                operation != RunTelemetry.Operation.RUN, circuitBreaker,
+                (error, delayMillis) -> telemetry.increment(error instanceof RetryPolicy.CircuitOpenException ? RunTelemetry.Counter.CIRCUIT_OPEN_REJECTIONS : counter));
+    }
+
+    private static ScheduledFuture<?> runLater(Runnable runnable, long delayMillis) {
+        // the scheduler only keeps time, the work itself runs on the IO pool
+        return SCHEDULER.schedule(() -> IO_EXECUTOR.execute(runnable), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for the future and rethrow its failure as is, instead of wrapped in a {@link CompletionException}.
+     *
+     * @throws CancellationException if the run is cancelled meanwhile
+     */
+    private <T> T join(CompletableFuture<T> future) {
+        cancellation.await(future);
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, namePrefix + "-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The lab does not know the APK set a trigger refers to, uploading the set again may help.
+     */
+    public static class ApkSetRejectedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public final String apkSetId;
+
+        ApkSetRejectedException(String apkSetId, String message) {
+            super(message);
+            this.apkSetId = apkSetId;
+        }
+    }
+
+    /**
+     * A test task of the run, one per shard when the suite is sharded.
+     */
+    private static class ShardRun {
+        @Nullable
+        final TestShardPlanner.Shard shard;
+        final String testTaskId;
+        final DeviceArtifactHarvester harvester;
+        final List<File> xmlReports = new ArrayList<>();
+        TestTask testTask;
+
+        ShardRun(@Nullable TestShardPlanner.Shard shard, String testTaskId, DeviceArtifactHarvester harvester) {
+            this.shard = shard;
+            this.testTaskId = testTaskId;
+            this.harvester = harvester;
+        }
+
+        String getLabel() {
+            return shard == null ? "test task " + testTaskId : shard.getLabel();
+        }
+    }
+
+    /**
+     * Runs that go out together from one build, like the cells of a test matrix. The commit info is collected once for the
+     * group and each distinct APK set is uploaded once, the runs with the same set wait for its upload. The runs of a shared
+     * group leave the build tag and the pipeline summary to whoever runs the group.
+     */
+    public static class RunGroup {
+        private final boolean solo;
+        private final Map<String, CompletableFuture<String>> uploads = new ConcurrentHashMap<>();
+        // APK set ids reused from the upload cache, with the upload that replaces each if the lab rejects it
+        private final Map<String, Supplier<CompletableFuture<String>>> reusedApkSets = new ConcurrentHashMap<>();
+        // set ids the lab rejected, with the upload of the set again
+        private final Map<String, CompletableFuture<String>> replacedApkSets = new ConcurrentHashMap<>();
+        private final Set<HydraLabClient> clients = ConcurrentHashMap.newKeySet();
+        private CompletableFuture<CommitInfo> commitInfo;
+        private volatile String cancelReason;
+
+        public RunGroup() {
+            this(false);
+        }
+
+        /**
+         * @param solo true for the group of a single run, which reports the build tag and the pipeline summary itself
+         */
+        public RunGroup(boolean solo) {
+            this.solo = solo;
+        }
+
+        /**
+         * Cancel the runs of the group going on, and the ones that start later right as they start.
+         */
+        public void cancel(String reason) {
+            cancelReason = reason;
+            for (HydraLabClient client : clients) {
+                client.cancel(reason);
+            }
+        }
+
+        private synchronized CompletableFuture<CommitInfo> commitInfo(Supplier<CommitInfo> collector) {
+            // a client on its own may run again after a new commit, it collects the commit info every run
+            if (solo || commitInfo == null) {
+                commitInfo = CompletableFuture.supplyAsync(collector, UPLOAD_EXECUTOR);
+            }
+            return commitInfo;
+        }
+
+        /**
+         * @param key identifies the APK set, null to upload it without sharing
+         * @return future of the APK set id
+         */
+        private CompletableFuture<String> upload(@Nullable String key, RunTelemetry telemetry, Supplier<CompletableFuture<String>> uploader) {
+            if (solo || key == null) {
+                return uploader.get();
+            }
+            CompletableFuture<String> upload = new CompletableFuture<>();
+            CompletableFuture<String> sharedUpload = uploads.putIfAbsent(key, upload);
+            if (sharedUpload != null) {
+                printlnf("##[section]The same APK set is uploaded by another run of the group, reuse its APK set id");
+                telemetry.increment(RunTelemetry.Counter.APK_UPLOADS_SHARED);
+                return sharedUpload;
+            }
+            // a failure to start the upload fails the shared future too, instead of leaving it pending
+            CompletableFuture.completedFuture(key).thenCompose(k -> uploader.get()).whenComplete((apkSetId, error) -> {
+                if (error != null) {
+                    // the runs waiting now fail with it, a later run tries again
+                    uploads.remove(key, upload);
+                    upload.completeExceptionally(error);
+                } else {
+                    upload.complete(apkSetId);
+                }
+            });
+            return upload;
+        }
+    }
+
+    private static class CommitInfo {
+        final String commitId;
+        final String commitCount;
+        final String commitMsg;
+
+        CommitInfo(String commitId, String commitCount, String commitMsg) {
+            this.commitId = commitId;
+            this.commitCount = commitCount;
+            this.commitMsg = commitMsg;
+        }
+    }
+
+    /**
+     * Last status response of a test task, used to send conditional requests while polling.
+     */
+    private static class TestStatusCache {
+        String etag;
+        TestTask testTask;
+        boolean heavyFieldsSkipped;
+        int requestCount;
+        int notModifiedCount;
+    }
+}
@@ -0,0 +1,253 @@
+package com.microsoft.hydralab.utils;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.*;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Merges the JUnit XML reports of all devices into one report and builds a test x device result matrix, both with StAX so
+ * no report is ever loaded as a DOM. The reports are read in parallel, each into its own fragment, and the fragments are
+ * concatenated at the end. Per test only a status byte and a duration per device are kept.
+ */
+public class JUnitReportMerger {
+    public static final byte ABSENT = 0;
+    public static final byte PASSED = 1;
+    public static final byte FAILED = 2;
+    public static final byte SKIPPED = 3;
+    private static final String[] STATUS_NAMES = {"", "PASS", "FAIL", "SKIP"};
+
+    private final List<String> deviceSerials;
+    private final List<File> reports;
+    private final Map<String, TestRow> rows = new ConcurrentHashMap<>();
+
+    /**
+     * @param reports JUnit XML report of each device, keyed by device serial number, in report order
+     */
+    public JUnitReportMerger(LinkedHashMap<String, File> reports) {
+        this.deviceSerials = new ArrayList<>(reports.keySet());
+        this.reports = new ArrayList<>(reports.values());
+    }
+
+    public List<String> getDeviceSerials() {
+        return deviceSerials;
+    }
+
+    /**
+     * Merge all reports into a single {@code <testsuites>} report, with one {@code <testsuite>} per device.
+     */
+    public void merge(File mergedReport, int parallelism) throws IOException {
+        List<File> fragments = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, reports.size())));
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < reports.size(); i++) {
+                File fragment = File.createTempFile("junit-fragment-", ".xml", mergedReport.getAbsoluteFile().getParentFile());
+                fragments.add(fragment);
+                int deviceIndex = i;
+                futures.add(CompletableFuture.runAsync(() -> copyDeviceReport(deviceIndex, fragment), executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mergedReport))) {
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n".getBytes(StandardCharsets.UTF_8));
+                for (File fragment : fragments) {
+                    Files.copy(fragment.toPath(), out);
+                    out.write('\n');
+                }
+                out.write("</testsuites>\n".getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Merge JUnit reports failed: " + e.getMessage(), e);
+        } finally {
+            executor.shutdown();
+            for (File fragment : fragments) {
+                Files.deleteIfExists(fragment.toPath());
+            }
+        }
+    }
+
+    private void copyDeviceReport(int deviceIndex, File fragment) {
+        String deviceSerial = deviceSerials.get(deviceIndex);
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(reports.get(deviceIndex)));
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fragment), StandardCharsets.UTF_8))) {
+            XMLEventReader reader = inputFactory.createXMLEventReader(in);
+            XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out);
+            String testCaseId = null;
+            float testCaseTime = 0;
+            byte testCaseStatus = PASSED;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartDocument() || event.isEndDocument() || event.getEventType() == XMLStreamConstants.DTD) {
+                    continue;
+                }
+                if (event.isStartElement()) {
+                    StartElement element = event.asStartElement();
+                    String name = element.getName().getLocalPart();
+                    if ("testsuites".equals(name)) {
+                        continue;
+                    }
+                    if ("testsuite".equals(name)) {
+                        event = renameSuite(eventFactory, element, deviceSerial);
+                    } else if ("testcase".equals(name)) {
+                        testCaseId = attribute(element, "classname") + "#" + attribute(element, "name");
+                        testCaseTime = parseTime(attribute(element, "time"));
+                        testCaseStatus = PASSED;
+                    } else if (testCaseId != null && ("failure".equals(name) || "error".equals(name))) {
+                        testCaseStatus = FAILED;
+                    } else if (testCaseId != null && "skipped".equals(name) && testCaseStatus != FAILED) {
+                        testCaseStatus = SKIPPED;
+                    }
+                } else if (event.isEndElement()) {
+                    String name = event.asEndElement().getName().getLocalPart();
+                    if ("testsuites".equals(name)) {
+                        continue;
+                    }
+                    if ("testcase".equals(name) && testCaseId != null) {
+                        record(testCaseId, deviceIndex, testCaseStatus, testCaseTime);
+                        testCaseId = null;
+                    }
+                }
+                writer.add(event);
+            }
+            writer.flush();
+            writer.close();
+            reader.close();
+        } catch (IOException | XMLStreamException e) {
+            throw new IllegalStateException("Failed to read JUnit report of device " + deviceSerial + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static StartElement renameSuite(XMLEventFactory eventFactory, StartElement element, String deviceSerial) {
+        List<Attribute> attributes = new ArrayList<>();
+        boolean named = false;
+        Iterator<?> iterator = element.getAttributes();
+        while (iterator.hasNext()) {
+            Attribute attribute = (Attribute) iterator.next();
+            if ("name".equals(attribute.getName().getLocalPart())) {
+                attribute = eventFactory.createAttribute("name", attribute.getValue() + "-" + deviceSerial);
+                named = true;
+            }
+            attributes.add(attribute);
+        }
+        if (!named) {
+            attributes.add(eventFactory.createAttribute("name", deviceSerial));
+        }
+        return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    private void record(String testCaseId, int deviceIndex, byte status, float time) {
+        TestRow row = rows.computeIfAbsent(testCaseId, id -> new TestRow(deviceSerials.size()));
+        synchronized (row) {
+            // a test case reported twice on a device counts as failed if any run failed
+            if (row.statuses[deviceIndex] != FAILED) {
+                row.statuses[deviceIndex] = status;
+            }
+            row.durations[deviceIndex] += time;
+        }
+    }
+
+    public MatrixSummary summarize() {
+        MatrixSummary summary = new MatrixSummary();
+        summary.testCount = rows.size();
+        for (Map.Entry<String, TestRow> entry : rows.entrySet()) {
+            TestRow row = entry.getValue();
+            int ran = 0;
+            List<String> failedOn = new ArrayList<>();
+            for (int i = 0; i < row.statuses.length; i++) {
+                if (row.statuses[i] == PASSED || row.statuses[i] == FAILED) {
+                    ran++;
+                }
+                if (row.statuses[i] == FAILED) {
+                    failedOn.add(deviceSerials.get(i));
+                }
+            }
+            if (failedOn.isEmpty()) {
+                continue;
+            }
+            if (failedOn.size() == ran) {
+                summary.failedOnAllDevices.put(entry.getKey(), failedOn);
+            } else {
+                summary.failedOnSomeDevices.put(entry.getKey(), failedOn);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Write the matrix as CSV, one line per test and a {@code STATUS:seconds} cell per device.
+     */
+    public void writeMatrixCsv(File csv) throws IOException {
+        List<String> testIds = new ArrayList<>(rows.keySet());
+        Collections.sort(testIds);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8))) {
+            writer.write("test");
+            for (String deviceSerial : deviceSerials) {
+                writer.write(',');
+                writer.write(csvEscape(deviceSerial));
+            }
+            writer.write('\n');
+            for (String testId : testIds) {
+                TestRow row = rows.get(testId);
+                writer.write(csvEscape(testId));
+                for (int i = 0; i < row.statuses.length; i++) {
+                    writer.write(',');
+                    if (row.statuses[i] != ABSENT) {
+                        writer.write(STATUS_NAMES[row.statuses[i]]);
+                        writer.write(':');
+                        writer.write(String.format(Locale.US, "%.3f", row.durations[i]));
+                    }
+                }
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static String csvEscape(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String attribute(StartElement element, String name) {
+        Attribute attribute = element.getAttributeByName(new QName(name));
+        return attribute == null ? "" : attribute.getValue();
+    }
+
+    private static float parseTime(String time) {
+        try {
+            return time.isEmpty() ? 0 : Float.parseFloat(time.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static class TestRow {
+        final byte[] statuses;
+        final float[] durations;
+
+        TestRow(int deviceCount) {
+            statuses = new byte[deviceCount];
+            durations = new float[deviceCount];
+        }
+    }
+
+    public static class MatrixSummary {
+        public int testCount;
+        public final SortedMap<String, List<String>> failedOnAllDevices = new TreeMap<>();
+        public final SortedMap<String, List<String>> failedOnSomeDevices = new TreeMap<>();
+    }
+}
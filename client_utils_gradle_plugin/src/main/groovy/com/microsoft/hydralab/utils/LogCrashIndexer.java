@@ -0,0 +1,166 @@
+package com.microsoft.hydralab.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans a logcat or ADB log for crash signatures while it is being downloaded, and records the byte offset and line of
+ * each one. Only the head of the current line is buffered, so the memory used does not depend on the log size.
+ */
+public class LogCrashIndexer {
+    public enum CrashType {
+        JAVA_CRASH("Java crash"),
+        ANR("ANR"),
+        NATIVE_CRASH("Native crash");
+
+        public final String displayName;
+
+        CrashType(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    private static final byte[][] SIGNATURES = {
+            "FATAL EXCEPTION".getBytes(StandardCharsets.US_ASCII),
+            "ANR in ".getBytes(StandardCharsets.US_ASCII),
+            "Fatal signal ".getBytes(StandardCharsets.US_ASCII),
+            "*** *** *** *** *** *** *** ***".getBytes(StandardCharsets.US_ASCII)
+    };
+    private static final CrashType[] SIGNATURE_TYPES = {CrashType.JAVA_CRASH, CrashType.ANR, CrashType.NATIVE_CRASH, CrashType.NATIVE_CRASH};
+    private static final int LINE_HEAD_SIZE = 1024;
+    private static final int MAX_TEXT_LENGTH = 200;
+    private static final int MAX_ENTRIES = 200;
+    /**
+     * A native crash prints both the libc signal line and the tombstone header, lines this close belong to the same crash.
+     */
+    private static final int NATIVE_CRASH_LINE_WINDOW = 100;
+
+    private final byte[] lineHead = new byte[LINE_HEAD_SIZE];
+    private int lineHeadLength = 0;
+    private long lineStartOffset = 0;
+    private long offset = 0;
+    private long lineNumber = 1;
+    private long lastNativeCrashLine = -NATIVE_CRASH_LINE_WINDOW;
+    private int crashCount = 0;
+    private final List<CrashEntry> entries = new ArrayList<>();
+
+    public void update(byte[] buffer, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte b = buffer[i];
+            offset++;
+            if (b == '\n') {
+                endLine();
+                lineStartOffset = offset;
+                lineNumber++;
+            } else if (lineHeadLength < LINE_HEAD_SIZE) {
+                lineHead[lineHeadLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Flush the last line if the log does not end with a line break.
+     */
+    public void finish() {
+        if (lineHeadLength > 0) {
+            endLine();
+        }
+    }
+
+    private void endLine() {
+        int length = lineHeadLength;
+        lineHeadLength = 0;
+        if (length > 0 && lineHead[length - 1] == '\r') {
+            length--;
+        }
+        for (int i = 0; i < SIGNATURES.length; i++) {
+            int index = indexOf(lineHead, length, SIGNATURES[i]);
+            if (index < 0) {
+                continue;
+            }
+            CrashType type = SIGNATURE_TYPES[i];
+            if (type == CrashType.NATIVE_CRASH) {
+                boolean sameCrash = lineNumber - lastNativeCrashLine < NATIVE_CRASH_LINE_WINDOW;
+                lastNativeCrashLine = lineNumber;
+                if (sameCrash) {
+                    return;
+                }
+            }
+            crashCount++;
+            if (entries.size() < MAX_ENTRIES) {
+                String text = new String(lineHead, index, Math.min(length - index, MAX_TEXT_LENGTH), StandardCharsets.UTF_8).trim();
+                entries.add(new CrashEntry(type, lineStartOffset, lineNumber, text));
+            }
+            return;
+        }
+    }
+
+    private static int indexOf(byte[] line, int length, byte[] signature) {
+        byte first = signature[0];
+        int last = length - signature.length;
+        outer:
+        for (int i = 0; i <= last; i++) {
+            if (line[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < signature.length; j++) {
+                if (line[i + j] != signature[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public List<CrashEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return number of crashes found, may be larger than the recorded entries
+     */
+    public int getCrashCount() {
+        return crashCount;
+    }
+
+    public void writeIndex(File indexFile, String logFileName) throws IOException {
+        CrashIndex index = new CrashIndex();
+        index.logFile = logFileName;
+        index.bytes = offset;
+        index.crashCount = crashCount;
+        index.crashes = entries;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile), StandardCharsets.UTF_8)) {
+            HydraLabClientUtils.GSON.toJson(index, writer);
+        }
+    }
+
+    public static class CrashEntry {
+        public final CrashType type;
+        public final long offset;
+        public final long line;
+        public final String text;
+
+        CrashEntry(CrashType type, long offset, long line, String text) {
+            this.type = type;
+            this.offset = offset;
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    private static class CrashIndex {
+        // the offsets and lines are those of the decompressed log if it is a gzip file
+        String logFile;
+        long bytes;
+        int crashCount;
+        List<CrashEntry> crashes;
+    }
+}
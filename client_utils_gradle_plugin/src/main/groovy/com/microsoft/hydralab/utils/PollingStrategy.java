@@ -0,0 +1,122 @@
+package com.microsoft.hydralab.utils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long to wait before the next test status check.
+ */
+public interface PollingStrategy {
+    String ADAPTIVE = "adaptive";
+    String LEGACY = "legacy";
+
+    /**
+     * @param task          the latest status returned by the lab
+     * @param elapsedMillis time spent waiting on the running test since it was triggered or retried
+     * @return the time to wait before the next status check
+     */
+    long nextDelayMillis(HydraLabClientUtils.TestTask task, long elapsedMillis);
+
+    /**
+     * Called when the lab retries the task, the schedule starts over.
+     */
+    void reset();
+
+    static PollingStrategy create(HydraLabClientUtils.HydraLabAPIConfig apiConfig, int timeoutSec) {
+        if (LEGACY.equalsIgnoreCase(apiConfig.pollingStrategy)) {
+            return new BinaryBackoff(timeoutSec);
+        }
+        return new Adaptive(TimeUnit.SECONDS.toMillis(apiConfig.pollInitialIntervalSec), TimeUnit.SECONDS.toMillis(apiConfig.pollMaxIntervalSec),
+                TimeUnit.SECONDS.toMillis(apiConfig.expectedTestDurationSec));
+    }
+
+    /**
+     * The original schedule: wait a third of the timeout first, then halve the wait down to 15 seconds.
+     */
+    class BinaryBackoff implements PollingStrategy {
+        private static final int MIN_WAIT_SEC = 15;
+        private static final int QUEUE_WAIT_SEC = 30;
+        private final int timeoutSec;
+        private int sleepSecond;
+
+        public BinaryBackoff(int timeoutSec) {
+            this.timeoutSec = timeoutSec;
+            reset();
+        }
+
+        @Override
+        public long nextDelayMillis(HydraLabClientUtils.TestTask task, long elapsedMillis) {
+            if (HydraLabClientUtils.TestTask.TestStatus.WAITING.equals(task.status)) {
+                return TimeUnit.SECONDS.toMillis(QUEUE_WAIT_SEC);
+            }
+            int delay = sleepSecond;
+            // binary wait with min boundary
+            sleepSecond = Math.max(sleepSecond / 2, MIN_WAIT_SEC);
+            return TimeUnit.SECONDS.toMillis(delay);
+        }
+
+        @Override
+        public void reset() {
+            sleepSecond = timeoutSec / 3;
+        }
+    }
+
+    /**
+     * Starts with short intervals and backs off with jitter. When an expected duration is given, it sleeps through to the
+     * predicted end instead; once some devices of the task are done, it polls fast for the remaining ones.
+     */
+    class Adaptive implements PollingStrategy {
+        private static final double BACKOFF_MULTIPLIER = 1.5;
+        private static final double JITTER = 0.2;
+        private static final long MIN_DELAY_MILLIS = 1000;
+        private final long initialMillis;
+        private final long maxMillis;
+        private final long expectedDurationMillis;
+        private final Random random = new Random();
+        private long currentMillis;
+
+        public Adaptive(long initialMillis, long maxMillis, long expectedDurationMillis) {
+            this.initialMillis = Math.max(initialMillis, MIN_DELAY_MILLIS);
+            this.maxMillis = Math.max(maxMillis, this.initialMillis);
+            this.expectedDurationMillis = expectedDurationMillis;
+            reset();
+        }
+
+        @Override
+        public long nextDelayMillis(HydraLabClientUtils.TestTask task, long elapsedMillis) {
+            boolean running = !HydraLabClientUtils.TestTask.TestStatus.WAITING.equals(task.status);
+            long delay;
+            if (running && isPartiallyFinished(task)) {
+                // the rest of the devices are most likely close to the end as well
+                delay = initialMillis;
+                currentMillis = initialMillis;
+            } else if (running && expectedDurationMillis > 0 && elapsedMillis + initialMillis < expectedDurationMillis) {
+                delay = Math.min(expectedDurationMillis - elapsedMillis, maxMillis);
+                currentMillis = initialMillis;
+            } else {
+                delay = currentMillis;
+                currentMillis = Math.min((long) (currentMillis * BACKOFF_MULTIPLIER), maxMillis);
+            }
+            long jittered = (long) (delay * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+            return Math.max(jittered, MIN_DELAY_MILLIS);
+        }
+
+        @Override
+        public void reset() {
+            currentMillis = initialMillis;
+        }
+
+        private static boolean isPartiallyFinished(HydraLabClientUtils.TestTask task) {
+            if (task.deviceTestResults == null || task.testDevicesCount <= 1) {
+                return false;
+            }
+            int finishedDevices = 0;
+            for (HydraLabClientUtils.DeviceTestResult deviceTestResult : task.deviceTestResults) {
+                if (deviceTestResult.testEndTimeMillis > 0) {
+                    finishedDevices++;
+                }
+            }
+            return finishedDevices > 0 && finishedDevices < task.testDevicesCount;
+        }
+    }
+}
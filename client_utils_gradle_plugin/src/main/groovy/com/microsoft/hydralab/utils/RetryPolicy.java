@@ -0,0 +1,367 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.Response;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.hydralab.utils.HydraLabClientUtils.printlnf;
+
+/**
+ * Retries of the calls to the lab. The delays grow exponentially with decorrelated jitter, so the agents that failed at
+ * the same moment don't come back at the same moment, and are never shorter than what the server asks for in
+ * {@code Retry-After}. A streak of failures gives up once it has used up the time budget of the operation.
+ * <p>
+ * A {@link CircuitBreaker} per host, shared by all clients in the JVM, stops calling a lab that keeps failing until it had
+ * time to recover, calls made meanwhile fail right away and are retried after the break.
+ */
+public class RetryPolicy {
+    private static final Map<String, CircuitBreaker> CIRCUIT_BREAKERS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long budgetMillis;
+    private final boolean idempotent;
+    @Nullable
+    private final CircuitBreaker circuitBreaker;
+    @Nullable
+    private final RetryListener retryListener;
+
+    /**
+     * @param name           operation name used in the logs
+     * @param budgetMillis   longest time a streak of failures is retried for
+     * @param idempotent     whether the call can be sent again after it may have reached the server, if not only failures to
+     *                       connect and answers that the server did not process it (429, 503) are retried
+     * @param circuitBreaker breaker of the host called, null to call it regardless of earlier failures
+     */
+    public RetryPolicy(String name, long baseDelayMillis, long maxDelayMillis, long budgetMillis, boolean idempotent,
+                       @Nullable CircuitBreaker circuitBreaker, @Nullable RetryListener retryListener) {
+        this.name = name;
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.budgetMillis = budgetMillis;
+        this.idempotent = idempotent;
+        this.circuitBreaker = circuitBreaker;
+        this.retryListener = retryListener;
+    }
+
+    /**
+     * @return the breaker shared by every call to the host in this JVM
+     */
+    public static CircuitBreaker circuitBreaker(String host, int failureThreshold, long openMillis) {
+        return CIRCUIT_BREAKERS.computeIfAbsent(host, h -> new CircuitBreaker(h, failureThreshold, openMillis));
+    }
+
+    public Backoff newBackoff() {
+        return new Backoff();
+    }
+
+    /**
+     * Run the attempt until it succeeds, fails with an error that is not transient, or the budget is spent. The attempts
+     * run on the executor and the scheduler keeps the delays between them, no thread waits meanwhile.
+     *
+     * @return future of the result, or of the error of the last attempt
+     */
+    public <T> CompletableFuture<T> callAsync(Attempt<T> attempt, Executor executor, ScheduledExecutorService scheduler) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Backoff backoff = newBackoff();
+        executor.execute(() -> runAttempt(attempt, backoff, result, executor, scheduler));
+        return result;
+    }
+
+    private <T> void runAttempt(Attempt<T> attempt, Backoff backoff, CompletableFuture<T> result, Executor executor, ScheduledExecutorService scheduler) {
+        try {
+            backoff.beforeAttempt();
+            T value = attempt.run();
+            backoff.succeeded();
+            result.complete(value);
+        } catch (IOException e) {
+            long delayMillis = backoff.failed(e);
+            if (delayMillis < 0) {
+                result.completeExceptionally(e);
+                return;
+            }
+            scheduler.schedule(() -> executor.execute(() -> runAttempt(attempt, backoff, result, executor, scheduler)), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            backoff.abandoned();
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Throw a {@link RetryableException} if the status code says the call can be sent again later.
+     */
+    public static void checkResponse(Response response, String action) throws RetryableException {
+        int code = response.code();
+        if (code == 408 || code == 425 || code == 429 || code == 500 || code == 502 || code == 503 || code == 504) {
+            throw new RetryableException(action + " failed: " + response, code, parseRetryAfterMillis(response.header("Retry-After")));
+        }
+    }
+
+    /**
+     * @return the delay asked for by a Retry-After header in seconds or as an HTTP date, -1 if there is none
+     */
+    static long parseRetryAfterMillis(@Nullable String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        String value = retryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return Math.max(0, httpDate.parse(value).getTime() - System.currentTimeMillis());
+            } catch (ParseException ignored) {
+                return -1;
+            }
+        }
+    }
+
+    public interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    public interface RetryListener {
+        void onRetry(IOException error, long delayMillis);
+    }
+
+    /**
+     * Delays of one call, or of a sequence of calls like the status checks of a task. A success ends the failure streak.
+     * <p>
+     * Every attempt let through by {@link #beforeAttempt()} has to end in {@link #succeeded()}, {@link #failed(IOException)}
+     * or {@link #abandoned()}, otherwise a probe of an open circuit is only released once it timed out.
+     */
+    public class Backoff {
+        private long streakStartMillis = 0;
+        private long previousDelayMillis = 0;
+        private int retries = 0;
+        // id of the probe the current attempt sends to the host, 0 if it is no probe
+        private long probeId = 0;
+
+        /**
+         * @throws CircuitOpenException if the circuit of the host is open, to be handled like any failed attempt
+         */
+        public void beforeAttempt() throws CircuitOpenException {
+            if (circuitBreaker == null) {
+                return;
+            }
+            long permit = circuitBreaker.acquire();
+            if (permit < 0) {
+                throw new CircuitOpenException(circuitBreaker);
+            }
+            probeId = permit;
+        }
+
+        public void succeeded() {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordSuccess();
+            }
+            probeId = 0;
+            streakStartMillis = 0;
+            previousDelayMillis = 0;
+        }
+
+        /**
+         * For attempts that ended with an error that says nothing about the health of the host, like a rejected request
+         * or a bad answer. A probe ends without a verdict, so the next call probes again.
+         */
+        public void abandoned() {
+            if (circuitBreaker != null && probeId != 0) {
+                circuitBreaker.releaseProbe(probeId);
+            }
+            probeId = 0;
+        }
+
+        /**
+         * @return the delay before the next attempt, -1 if the error is not transient or the budget is spent
+         */
+        public long failed(IOException error) {
+            // the run is cancelled, the host is fine
+            if (error instanceof RunCancellation.CancelledException) {
+                abandoned();
+                return -1;
+            }
+            if (circuitBreaker != null && !(error instanceof CircuitOpenException)) {
+                if (isServerFailure(error)) {
+                    circuitBreaker.recordFailure();
+                } else {
+                    circuitBreaker.recordSuccess();
+                }
+            }
+            probeId = 0;
+            if (!isRetryable(error)) {
+                return -1;
+            }
+            long retryAfterMillis = error instanceof RetryableException ? ((RetryableException) error).retryAfterMillis : -1;
+            long delayMillis = nextDelayMillis(retryAfterMillis);
+            if (delayMillis >= 0) {
+                printlnf("##[warning]%s failed (%s), retry %d in %d ms", name, error.getMessage(), retries, delayMillis);
+                if (retryListener != null) {
+                    retryListener.onRetry(error, delayMillis);
+                }
+            }
+            return delayMillis;
+        }
+
+        /**
+         * For answers that are no errors but ask to come back later, like all devices being busy.
+         *
+         * @return the delay before the next attempt, -1 if the budget is spent
+         */
+        public long nextDelayMillis(long retryAfterMillis) {
+            long now = System.currentTimeMillis();
+            if (streakStartMillis == 0) {
+                streakStartMillis = now;
+            }
+            // decorrelated jitter: anywhere between the base and three times the previous delay
+            long upperMillis = Math.max(baseDelayMillis, Math.min(maxDelayMillis, previousDelayMillis * 3));
+            long delayMillis = baseDelayMillis + ThreadLocalRandom.current().nextLong(upperMillis - baseDelayMillis + 1);
+            delayMillis = Math.max(delayMillis, retryAfterMillis);
+            if (now - streakStartMillis + delayMillis > budgetMillis) {
+                return -1;
+            }
+            previousDelayMillis = delayMillis;
+            retries++;
+            return delayMillis;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+
+        private boolean isRetryable(IOException error) {
+            if (idempotent || error instanceof CircuitOpenException) {
+                return true;
+            }
+            if (error instanceof RetryableException) {
+                int code = ((RetryableException) error).statusCode;
+                return code == 429 || code == 503;
+            }
+            // the request never left the client
+            return error instanceof ConnectException || error instanceof UnknownHostException || error instanceof NoRouteToHostException;
+        }
+
+        private boolean isServerFailure(IOException error) {
+            // throttling means the lab is up and answering
+            return !(error instanceof RetryableException) || ((RetryableException) error).statusCode != 429;
+        }
+    }
+
+    /**
+     * Opens after a number of failures in a row and then rejects calls for a while. The first call after that is let
+     * through as a probe: a success closes the circuit, a failure opens it again. A probe that ends without a verdict, or
+     * gives none within the open time, lets the next call probe.
+     */
+    public static class CircuitBreaker {
+        private final String host;
+        private final int failureThreshold;
+        private final long openMillis;
+        private int consecutiveFailures = 0;
+        private long openUntilMillis = 0;
+        // id of the probe on its way, 0 if there is none
+        private long probeId = 0;
+        private long probeStartMillis = 0;
+        private long lastProbeId = 0;
+
+        CircuitBreaker(String host, int failureThreshold, long openMillis) {
+            this.host = host;
+            this.failureThreshold = Math.max(1, failureThreshold);
+            this.openMillis = openMillis;
+        }
+
+        public boolean allowRequest() {
+            return acquire() >= 0;
+        }
+
+        /**
+         * @return -1 if the call is rejected, 0 if the circuit is closed, or the id of the probe the call is
+         */
+        synchronized long acquire() {
+            if (openUntilMillis == 0) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            if (now < openUntilMillis || (probeId != 0 && now - probeStartMillis < Math.max(1, openMillis))) {
+                return -1;
+            }
+            probeId = ++lastProbeId;
+            probeStartMillis = now;
+            return probeId;
+        }
+
+        /**
+         * End the probe without a verdict, if it is still the one on its way.
+         */
+        synchronized void releaseProbe(long id) {
+            if (probeId == id) {
+                probeId = 0;
+            }
+        }
+
+        public synchronized void recordSuccess() {
+            if (openUntilMillis != 0) {
+                printlnf("##[section]Calls to %s succeed again, circuit closed", host);
+            }
+            consecutiveFailures = 0;
+            openUntilMillis = 0;
+            probeId = 0;
+        }
+
+        public synchronized void recordFailure() {
+            consecutiveFailures++;
+            if (probeId != 0 || (openUntilMillis == 0 && consecutiveFailures >= failureThreshold)) {
+                probeId = 0;
+                openUntilMillis = System.currentTimeMillis() + openMillis;
+                printlnf("##[warning]%s failed %d times in a row, stop calling it for %d s", host, consecutiveFailures, TimeUnit.MILLISECONDS.toSeconds(openMillis));
+            }
+        }
+
+        synchronized long remainingOpenMillis() {
+            return Math.max(0, openUntilMillis - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * A failure the server said can be tried again later.
+     */
+    public static class RetryableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int statusCode;
+        public final long retryAfterMillis;
+
+        public RetryableException(String message, int statusCode, long retryAfterMillis) {
+            super(message);
+            this.statusCode = statusCode;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /**
+     * A call not sent because the circuit of the host is open, to be retried once it may close.
+     */
+    public static class CircuitOpenException extends RetryableException {
+        private static final long serialVersionUID = 1L;
+
+        CircuitOpenException(CircuitBreaker circuitBreaker) {
+            super(String.format(Locale.US, "circuit to %s is open", circuitBreaker.host), -1, circuitBreaker.remainingOpenMillis());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.microsoft.hydralab.utils.HydraLabClientUtils.printlnf;
+
+/**
+ * Cancellation of one test run, by an interrupt of the thread waiting for it, a cancelled Gradle build or the JVM shutting
+ * down. Cancelling fails the waits of the run right away, cancels its HTTP calls in flight and rejects new ones, then runs
+ * the cleanup the run registered, like cancelling its test tasks on the lab so the devices are released.
+ */
+public class RunCancellation {
+    private final CompletableFuture<Void> cancelled = new CompletableFuture<>();
+    private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile String reason;
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    @Nullable
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Cancel the run, only the first call has an effect. The listeners run on the calling thread.
+     */
+    public void cancel(String reason) {
+        synchronized (this) {
+            if (this.reason != null) {
+                return;
+            }
+            this.reason = reason;
+        }
+        printlnf("##[warning]Cancelling the test run: %s", reason);
+        cancelled.completeExceptionally(newCancellationException());
+        for (Call call : calls) {
+            call.cancel();
+        }
+        for (Runnable listener : listeners) {
+            // onCancel may run a listener added meanwhile itself, whoever removes it runs it
+            if (!listeners.remove(listener)) {
+                continue;
+            }
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                // one failed cleanup should not keep the others from running
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param listener cleanup to run on cancel, right away if the run is already cancelled
+     */
+    public void onCancel(Runnable listener) {
+        listeners.add(listener);
+        if (isCancelled() && listeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Wait for the future, or until the run is cancelled. An interrupt of the waiting thread cancels the run.
+     *
+     * @throws CancellationException if the run is cancelled
+     */
+    public void await(CompletableFuture<?> future) {
+        try {
+            CompletableFuture.anyOf(future, cancelled).get();
+        } catch (InterruptedException e) {
+            // the cleanup sends calls of its own, they would fail on an interrupted thread
+            cancel("interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // the failure of the future is for the caller to report
+        }
+        if (isCancelled()) {
+            throw newCancellationException();
+        }
+    }
+
+    CancellationException newCancellationException() {
+        return new CancellationException("Test run cancelled: " + reason);
+    }
+
+    /**
+     * Send the call of the run, tracked to be cancelled with it. A call of a cancelled run fails with
+     * {@link CancelledException}, which the retries give up on.
+     */
+    Response intercept(Interceptor.Chain chain) throws IOException {
+        Call call = chain.call();
+        calls.add(call);
+        try {
+            if (isCancelled()) {
+                throw new CancelledException(reason);
+            }
+            return chain.proceed(chain.request());
+        } catch (IOException e) {
+            if (isCancelled() && !(e instanceof CancelledException)) {
+                throw new CancelledException(reason);
+            }
+            throw e;
+        } finally {
+            calls.remove(call);
+        }
+    }
+
+    /**
+     * A call of a cancelled run, never retried.
+     */
+    public static class CancelledException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException(String reason) {
+            super("Test run cancelled: " + reason);
+        }
+    }
+}
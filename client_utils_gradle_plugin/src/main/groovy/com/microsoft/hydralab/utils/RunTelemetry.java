@@ -0,0 +1,384 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of the phases of one test run, counters of polls and retries, and per-call HTTP timings collected by an OkHttp
+ * {@link EventListener}. Written next to the test summary as JSON and in the Prometheus text format, so runs can be
+ * compared on dashboards.
+ */
+public class RunTelemetry {
+    public static final String JSON_FILE_NAME = "TestLabTelemetry.json";
+    public static final String PROMETHEUS_FILE_NAME = "TestLabTelemetry.prom";
+
+    public enum Phase {
+        GIT, HASH, UPLOAD, TRIGGER, QUEUE, EXECUTION, POLLING, DOWNLOAD, RERUN, REPORT, TOTAL
+    }
+
+    public enum Counter {
+        POLLS, POLLS_NOT_MODIFIED, TRIGGER_BUSY_RETRIES, UPLOAD_CHUNK_RETRIES, LAB_TASK_RETRIES,
+        APK_UPLOAD_CACHE_HITS, APK_UPLOADS_SHARED, RESULT_CACHE_HITS, ARTIFACT_BYTES, ARTIFACTS_SKIPPED,
+        UPLOAD_RETRIES, TRIGGER_RETRIES, STATUS_RETRIES, DOWNLOAD_RETRIES, CIRCUIT_OPEN_REJECTIONS,
+        DOWNLOAD_RESUMES, SEGMENTED_DOWNLOADS, TEST_TASKS_CANCELLED, TEST_RERUNS, FLAKY_TESTS
+    }
+
+    public enum Operation {
+        UPLOAD, RUN, STATUS, BLOB, WARM_UP
+    }
+
+    private final long startTimeMillis = System.currentTimeMillis();
+    private final Map<String, String> labels = new LinkedHashMap<>();
+    private final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+    private final Map<Counter, Long> counters = new EnumMap<>(Counter.class);
+    private final Map<Operation, HttpStats> httpStats = new EnumMap<>(Operation.class);
+    private String testTaskId;
+    private boolean failed;
+
+    /**
+     * @param labels identify the run in the Prometheus samples, e.g. the suite and flavor
+     */
+    public RunTelemetry(Map<String, String> labels) {
+        this.labels.putAll(labels);
+    }
+
+    public synchronized void setTestTaskId(String testTaskId) {
+        this.testTaskId = testTaskId;
+    }
+
+    public synchronized void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+
+    /**
+     * Add the time since the start to the phase. Phases done more than once, like hashing both APKs, add up.
+     */
+    public void endPhase(Phase phase, long startNanos) {
+        addPhaseTime(phase, System.nanoTime() - startNanos);
+    }
+
+    public synchronized void addPhaseTime(Phase phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public synchronized void add(Counter counter, long delta) {
+        counters.merge(counter, delta, Long::sum);
+    }
+
+    /**
+     * @return listener timing a call of the given operation, to plug into {@link OkHttpClient.Builder#eventListenerFactory}
+     */
+    public EventListener newEventListener(Operation operation) {
+        return new CallListener(operation);
+    }
+
+    private synchronized void record(Operation operation, CallListener listener, boolean success) {
+        HttpStats stats = httpStats.computeIfAbsent(operation, o -> new HttpStats());
+        stats.calls++;
+        if (!success) {
+            stats.failures++;
+        }
+        stats.connectFailures += listener.connectFailures;
+        stats.bytesSent += listener.bytesSent;
+        stats.bytesReceived += listener.bytesReceived;
+        stats.dnsNanos += listener.dnsNanos;
+        stats.connectNanos += listener.connectNanos;
+        stats.tlsNanos += listener.tlsNanos;
+        stats.ttfbNanos += listener.ttfbNanos;
+        stats.maxTtfbNanos = Math.max(stats.maxTtfbNanos, listener.ttfbNanos);
+        stats.totalNanos += listener.totalNanos;
+    }
+
+    public synchronized void writeJson(File file) throws IOException {
+        Report report = new Report();
+        report.testTaskId = testTaskId;
+        report.labels = labels;
+        report.startTimeMillis = startTimeMillis;
+        report.failed = failed;
+        for (Map.Entry<Phase, Long> entry : phaseNanos.entrySet()) {
+            report.phasesMillis.put(nameOf(entry.getKey()), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        }
+        for (Map.Entry<Counter, Long> entry : counters.entrySet()) {
+            report.counters.put(nameOf(entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<Operation, HttpStats> entry : httpStats.entrySet()) {
+            report.http.put(nameOf(entry.getKey()), new HttpReport(entry.getValue()));
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            HydraLabClientUtils.GSON.toJson(report, writer);
+        }
+    }
+
+    public synchronized void writePrometheus(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String runLabels = formatLabels(labels, null, null);
+
+        appendHeader(sb, "hydra_lab_run_start_time_seconds", "gauge", "Start time of the test run.");
+        sb.append("hydra_lab_run_start_time_seconds").append(runLabels).append(' ').append(startTimeMillis / 1000).append('\n');
+        appendHeader(sb, "hydra_lab_run_failed", "gauge", "Whether the test run failed.");
+        sb.append("hydra_lab_run_failed").append(runLabels).append(' ').append(failed ? 1 : 0).append('\n');
+
+        appendHeader(sb, "hydra_lab_phase_seconds", "gauge", "Time spent in each phase of the test run.");
+        for (Map.Entry<Phase, Long> entry : phaseNanos.entrySet()) {
+            appendSample(sb, "hydra_lab_phase_seconds", formatLabels(labels, "phase", nameOf(entry.getKey())), seconds(entry.getValue()));
+        }
+        appendHeader(sb, "hydra_lab_events_total", "counter", "Polls, retries, cache hits and artifact bytes of the test run.");
+        for (Map.Entry<Counter, Long> entry : counters.entrySet()) {
+            sb.append("hydra_lab_events_total").append(formatLabels(labels, "event", nameOf(entry.getKey())))
+                    .append(' ').append(entry.getValue()).append('\n');
+        }
+
+        appendHeader(sb, "hydra_lab_http_requests_total", "counter", "HTTP calls by operation.");
+        appendHttpSamples(sb, "hydra_lab_http_requests_total", stats -> stats.calls);
+        appendHeader(sb, "hydra_lab_http_failures_total", "counter", "HTTP calls failed with an IO error, by operation.");
+        appendHttpSamples(sb, "hydra_lab_http_failures_total", stats -> stats.failures);
+        appendHeader(sb, "hydra_lab_http_sent_bytes_total", "counter", "Request body bytes sent, by operation.");
+        appendHttpSamples(sb, "hydra_lab_http_sent_bytes_total", stats -> stats.bytesSent);
+        appendHeader(sb, "hydra_lab_http_received_bytes_total", "counter", "Response body bytes received, by operation.");
+        appendHttpSamples(sb, "hydra_lab_http_received_bytes_total", stats -> stats.bytesReceived);
+        appendHeader(sb, "hydra_lab_http_seconds_total", "counter", "Time spent in each step of the HTTP calls, by operation.");
+        for (Map.Entry<Operation, HttpStats> entry : httpStats.entrySet()) {
+            HttpStats stats = entry.getValue();
+            long[] stepNanos = {stats.dnsNanos, stats.connectNanos, stats.tlsNanos, stats.ttfbNanos, stats.totalNanos};
+            String[] steps = {"dns", "connect", "tls", "ttfb", "total"};
+            for (int i = 0; i < steps.length; i++) {
+                Map<String, String> stepLabels = new LinkedHashMap<>(labels);
+                stepLabels.put("operation", nameOf(entry.getKey()));
+                appendSample(sb, "hydra_lab_http_seconds_total", formatLabels(stepLabels, "step", steps[i]), seconds(stepNanos[i]));
+            }
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(sb.toString());
+        }
+    }
+
+    private void appendHttpSamples(StringBuilder sb, String name, HttpStatsValue value) {
+        for (Map.Entry<Operation, HttpStats> entry : httpStats.entrySet()) {
+            sb.append(name).append(formatLabels(labels, "operation", nameOf(entry.getKey())))
+                    .append(' ').append(value.of(entry.getValue())).append('\n');
+        }
+    }
+
+    private static void appendHeader(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name).append(labels).append(' ').append(String.format(Locale.US, "%.6f", value)).append('\n');
+    }
+
+    private static String formatLabels(Map<String, String> labels, @Nullable String extraName, @Nullable String extraValue) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, String> entry : labels.entrySet()) {
+            appendLabel(sb, entry.getKey(), entry.getValue());
+        }
+        if (extraName != null) {
+            appendLabel(sb, extraName, extraValue);
+        }
+        if (sb.length() == 1) {
+            return "";
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void appendLabel(StringBuilder sb, String name, @Nullable String value) {
+        if (sb.length() > 1) {
+            sb.append(',');
+        }
+        String escaped = value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        sb.append(name).append("=\"").append(escaped).append('"');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String nameOf(Enum<?> value) {
+        return value.name().toLowerCase(Locale.US);
+    }
+
+    private interface HttpStatsValue {
+        long of(HttpStats stats);
+    }
+
+    private static class HttpStats {
+        long calls;
+        long failures;
+        long connectFailures;
+        long bytesSent;
+        long bytesReceived;
+        long dnsNanos;
+        long connectNanos;
+        long tlsNanos;
+        long ttfbNanos;
+        long maxTtfbNanos;
+        long totalNanos;
+    }
+
+    /**
+     * Times the steps of one call. Connect and DNS are only seen on calls that open a new connection, TLS is part of the
+     * connect time. Time to first byte runs from the end of the request to the start of the response headers.
+     */
+    private class CallListener extends EventListener {
+        final Operation operation;
+        long callStart;
+        long dnsStart;
+        long connectStart;
+        long secureConnectStart;
+        long requestSent;
+        long dnsNanos;
+        long connectNanos;
+        long tlsNanos;
+        long ttfbNanos;
+        long totalNanos;
+        long bytesSent;
+        long bytesReceived;
+        int connectFailures;
+
+        CallListener(Operation operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public void callStart(@NotNull Call call) {
+            callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(@NotNull Call call, @NotNull String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(@NotNull Call call, @NotNull String domainName, @NotNull List<InetAddress> inetAddressList) {
+            dnsNanos += System.nanoTime() - dnsStart;
+        }
+
+        @Override
+        public void connectStart(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy) {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(@NotNull Call call) {
+            secureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(@NotNull Call call, @Nullable Handshake handshake) {
+            tlsNanos += System.nanoTime() - secureConnectStart;
+        }
+
+        @Override
+        public void connectEnd(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy, @Nullable Protocol protocol) {
+            connectNanos += System.nanoTime() - connectStart;
+        }
+
+        @Override
+        public void connectFailed(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy, @Nullable Protocol protocol, @NotNull IOException ioe) {
+            connectNanos += System.nanoTime() - connectStart;
+            connectFailures++;
+        }
+
+        @Override
+        public void requestHeadersEnd(@NotNull Call call, @NotNull Request request) {
+            requestSent = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(@NotNull Call call, long byteCount) {
+            requestSent = System.nanoTime();
+            bytesSent += byteCount;
+        }
+
+        @Override
+        public void responseHeadersStart(@NotNull Call call) {
+            if (requestSent > 0) {
+                ttfbNanos += System.nanoTime() - requestSent;
+                requestSent = 0;
+            }
+        }
+
+        @Override
+        public void responseBodyEnd(@NotNull Call call, long byteCount) {
+            bytesReceived += byteCount;
+        }
+
+        @Override
+        public void callEnd(@NotNull Call call) {
+            totalNanos = System.nanoTime() - callStart;
+            record(operation, this, true);
+        }
+
+        @Override
+        public void callFailed(@NotNull Call call, @NotNull IOException ioe) {
+            totalNanos = System.nanoTime() - callStart;
+            record(operation, this, false);
+        }
+    }
+
+    private static class Report {
+        String testTaskId;
+        Map<String, String> labels;
+        long startTimeMillis;
+        boolean failed;
+        Map<String, Long> phasesMillis = new LinkedHashMap<>();
+        Map<String, Long> counters = new LinkedHashMap<>();
+        Map<String, HttpReport> http = new LinkedHashMap<>();
+    }
+
+    private static class HttpReport {
+        long calls;
+        long failures;
+        long connectFailures;
+        long bytesSent;
+        long bytesReceived;
+        long dnsMillis;
+        long connectMillis;
+        long tlsMillis;
+        long ttfbMillis;
+        long maxTtfbMillis;
+        long totalMillis;
+        /**
+         * Body bytes over the summed call time, i.e. the average throughput of a single call.
+         */
+        long bytesPerSecond;
+
+        HttpReport(HttpStats stats) {
+            calls = stats.calls;
+            failures = stats.failures;
+            connectFailures = stats.connectFailures;
+            bytesSent = stats.bytesSent;
+            bytesReceived = stats.bytesReceived;
+            dnsMillis = TimeUnit.NANOSECONDS.toMillis(stats.dnsNanos);
+            connectMillis = TimeUnit.NANOSECONDS.toMillis(stats.connectNanos);
+            tlsMillis = TimeUnit.NANOSECONDS.toMillis(stats.tlsNanos);
+            ttfbMillis = TimeUnit.NANOSECONDS.toMillis(stats.ttfbNanos);
+            maxTtfbMillis = TimeUnit.NANOSECONDS.toMillis(stats.maxTtfbNanos);
+            totalMillis = TimeUnit.NANOSECONDS.toMillis(stats.totalNanos);
+            bytesPerSecond = (long) ((stats.bytesSent + stats.bytesReceived) / Math.max(seconds(stats.totalNanos), 1e-9));
+        }
+    }
+}
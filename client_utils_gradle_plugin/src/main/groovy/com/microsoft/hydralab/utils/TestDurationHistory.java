@@ -0,0 +1,157 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Durations of the test classes of a suite, learned from the JUnit reports of its previous runs, for
+ * {@link TestShardPlanner} to balance the shards. One JSON file per suite, written to a temp file and moved so concurrent
+ * builds never read a half written one.
+ */
+public class TestDurationHistory {
+    private static final Gson GSON = new Gson();
+    // weight of the latest run, the average follows slower or faster tests in a few runs without jumping on a single outlier
+    private static final double LATEST_WEIGHT = 0.5;
+
+    private final File file;
+    private final SortedMap<String, Double> classSeconds;
+
+    private TestDurationHistory(File file, SortedMap<String, Double> classSeconds) {
+        this.file = file;
+        this.classSeconds = classSeconds;
+    }
+
+    public static String buildKey(Map<String, String> suiteParameters) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder keySource = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<>(suiteParameters).entrySet()) {
+            keySource.append('|').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(keySource.toString().getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the history of the key, empty if there is none or it can't be read
+     */
+    public static TestDurationHistory load(File historyDir, String key) {
+        File file = new File(historyDir, key + ".json");
+        SortedMap<String, Double> classSeconds = new TreeMap<>();
+        if (file.isFile()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                Map<String, Double> stored = GSON.fromJson(reader, new TypeToken<Map<String, Double>>() {
+                }.getType());
+                if (stored != null) {
+                    classSeconds.putAll(stored);
+                }
+            } catch (IOException | JsonSyntaxException e) {
+                // a broken history only costs the balance of one run
+                e.printStackTrace();
+            }
+        }
+        return new TestDurationHistory(file, classSeconds);
+    }
+
+    public boolean isEmpty() {
+        return classSeconds.isEmpty();
+    }
+
+    /**
+     * @return seconds per test class, sorted by class name
+     */
+    public SortedMap<String, Double> getClassSeconds() {
+        return Collections.unmodifiableSortedMap(classSeconds);
+    }
+
+    /**
+     * Learn from the reports of a run that covered the whole suite. A class reported in several files, e.g. by several
+     * devices, counts with its mean duration. Classes the run did not report are forgotten, they were removed or renamed.
+     */
+    public void update(Collection<File> junitReports) throws IOException {
+        Map<String, Double> totalSeconds = new HashMap<>();
+        Map<String, Integer> reportCounts = new HashMap<>();
+        for (File report : junitReports) {
+            for (Map.Entry<String, Double> entry : readClassSeconds(report).entrySet()) {
+                totalSeconds.merge(entry.getKey(), entry.getValue(), Double::sum);
+                reportCounts.merge(entry.getKey(), 1, Integer::sum);
+            }
+        }
+        SortedMap<String, Double> updated = new TreeMap<>();
+        for (Map.Entry<String, Double> entry : totalSeconds.entrySet()) {
+            double latest = entry.getValue() / reportCounts.get(entry.getKey());
+            Double previous = classSeconds.get(entry.getKey());
+            updated.put(entry.getKey(), previous == null ? latest : LATEST_WEIGHT * latest + (1 - LATEST_WEIGHT) * previous);
+        }
+        classSeconds.clear();
+        classSeconds.putAll(updated);
+    }
+
+    public void save() throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create test duration history dir " + dir);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                GSON.toJson(classSeconds, writer);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * @return total seconds of the test cases of each class in the report
+     */
+    static Map<String, Double> readClassSeconds(File junitReport) throws IOException {
+        Map<String, Double> classSeconds = new HashMap<>();
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(junitReport))) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "testcase".equals(reader.getLocalName())) {
+                    String className = reader.getAttributeValue(null, "classname");
+                    if (className != null && !className.isEmpty()) {
+                        classSeconds.merge(className, parseSeconds(reader.getAttributeValue(null, "time")), Double::sum);
+                    }
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to read JUnit report " + junitReport + ": " + e.getMessage(), e);
+        }
+        return classSeconds;
+    }
+
+    private static double parseSeconds(String time) {
+        try {
+            return time == null || time.isEmpty() ? 0 : Double.parseDouble(time.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
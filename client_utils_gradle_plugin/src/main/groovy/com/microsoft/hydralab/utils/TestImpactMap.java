@@ -0,0 +1,280 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Which test classes of a suite the changes of a commit affect, learned from the JUnit reports of its previous runs, to run
+ * only those through the class filter of AndroidJUnitRunner. A changed path selects:
+ * <ul>
+ * <li>the test class it is the source of, for the androidTest source sets</li>
+ * <li>the known test classes named after the class it is the source of, e.g. FooTest or FooInstrumentedTest for Foo</li>
+ * <li>the test classes that started failing in a previous run with the path among the changes</li>
+ * </ul>
+ * The classes still failing since the last run are always selected. A run with no history, a build config change, too many
+ * changes to tell, a changed path no test class is known for or every fullRunEvery runs covers the whole suite again and
+ * relearns the known classes. Only paths that can't affect a test, like docs, select nothing. One JSON file per
+ * suite, written to a temp file and moved so concurrent builds never read a half written one.
+ */
+public class TestImpactMap {
+    private static final Gson GSON = new Gson();
+    // a change this large touches too much of the app to pick its tests by path
+    private static final int MAX_SELECTIVE_CHANGED_PATHS = 200;
+    // failures after a change this large say little about which of its paths broke them
+    private static final int MAX_LEARNED_CHANGED_PATHS = 50;
+    private static final Pattern SOURCE_PATH = Pattern.compile("(?:^|/)src/([^/]+)/(?:java|kotlin)/(.+)\\.(?:java|kt)$");
+    private static final Pattern TEST_CLASS_SUFFIX = Pattern.compile("(?:Instrumented|Android|Ui|UI)?Tests?|IT");
+    // outside the source sets, nothing of these ends up in the APKs
+    private static final Pattern TEST_IRRELEVANT_PATH = Pattern.compile("^(?!(?:.*/)?src/)(?:"
+            + ".*\\.(?:md|markdown|rst|adoc)|(?:.*/)?(?:LICENSE|NOTICE|CODEOWNERS|\\.gitignore|\\.gitattributes)(?:\\.txt)?|\\.github/.*|docs?/.*)$");
+
+    private final File file;
+    private final State state;
+    private String commitId;
+    @Nullable
+    private List<String> changedPaths;
+    private boolean fullRun = true;
+
+    private TestImpactMap(File file, State state) {
+        this.file = file;
+        this.state = state;
+    }
+
+    /**
+     * @return the map of the key, empty if there is none or it can't be read
+     */
+    public static TestImpactMap load(File mapDir, String key) {
+        File file = new File(mapDir, key + ".json");
+        State state = null;
+        if (file.isFile()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                state = GSON.fromJson(reader, State.class);
+            } catch (IOException | JsonSyntaxException e) {
+                // a broken map only costs a full run
+                e.printStackTrace();
+            }
+        }
+        return new TestImpactMap(file, state == null ? new State() : state);
+    }
+
+    /**
+     * @return the commit the suite last ran for, null if it never ran with the map
+     */
+    @Nullable
+    public String getLastTestedCommit() {
+        return state.lastTestedCommit;
+    }
+
+    /**
+     * Select the test classes to run for a commit, remembered for {@link #update} after the run.
+     *
+     * @param changedPaths paths changed since {@link #getLastTestedCommit()}, null if they are unknown
+     * @param fullRunEvery run the whole suite at least once in this many runs
+     * @param fullRunFileNames names of the build config files, a change to any of them runs the whole suite
+     */
+    public Selection select(String commitId, @Nullable List<String> changedPaths, int fullRunEvery, Collection<String> fullRunFileNames) {
+        this.commitId = commitId;
+        this.changedPaths = changedPaths;
+        String fullRunReason = fullRunReason(changedPaths, fullRunEvery, fullRunFileNames);
+        fullRun = fullRunReason != null;
+        if (fullRun) {
+            return new Selection(fullRunReason, Collections.emptySortedSet());
+        }
+        SortedSet<String> classes = new TreeSet<>(state.failingClasses);
+        for (String path : changedPaths) {
+            Set<String> pathClasses = classesOf(path);
+            if (pathClasses.isEmpty() && !TEST_IRRELEVANT_PATH.matcher(path).matches()) {
+                // no mapping is no proof the tests don't depend on it, e.g. a resource or an untested class
+                fullRun = true;
+                return new Selection("no test class is known to cover the changed path " + path, Collections.emptySortedSet());
+            }
+            classes.addAll(pathClasses);
+        }
+        return new Selection(null, classes);
+    }
+
+    @Nullable
+    private String fullRunReason(@Nullable List<String> changedPaths, int fullRunEvery, Collection<String> fullRunFileNames) {
+        if (state.lastTestedCommit == null || state.knownClasses.isEmpty()) {
+            return "no previous run of the suite to learn from";
+        }
+        if (changedPaths == null) {
+            return "the changes since commit " + state.lastTestedCommit + " are unknown, it is not in the clone";
+        }
+        if (state.selectiveRunsSinceFullRun + 1 >= fullRunEvery) {
+            return String.format(Locale.US, "the whole suite runs every %d runs", fullRunEvery);
+        }
+        if (changedPaths.size() > MAX_SELECTIVE_CHANGED_PATHS) {
+            return String.format(Locale.US, "%d paths changed since commit %s", changedPaths.size(), state.lastTestedCommit);
+        }
+        for (String path : changedPaths) {
+            if (fullRunFileNames.contains(path.substring(path.lastIndexOf('/') + 1))) {
+                return "build config " + path + " changed";
+            }
+        }
+        return null;
+    }
+
+    private Set<String> classesOf(String path) {
+        Set<String> classes = new TreeSet<>();
+        SortedMap<String, Integer> learned = state.pathClasses.get(path);
+        if (learned != null) {
+            classes.addAll(learned.keySet());
+        }
+        Matcher matcher = SOURCE_PATH.matcher(path);
+        if (!matcher.find()) {
+            return classes;
+        }
+        String className = matcher.group(2).replace('/', '.');
+        if (matcher.group(1).startsWith("androidTest")) {
+            // a test class added by the change is not known yet, it runs anyway
+            classes.add(className);
+            return classes;
+        }
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        for (String knownClass : state.knownClasses) {
+            String knownSimpleName = knownClass.substring(knownClass.lastIndexOf('.') + 1);
+            if (knownSimpleName.startsWith(simpleName) && TEST_CLASS_SUFFIX.matcher(knownSimpleName.substring(simpleName.length())).matches()) {
+                classes.add(knownClass);
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Learn from the reports of the run selected last, every test task of it reported. A full run relearns the known
+     * classes, a class it did not report was removed or renamed.
+     */
+    public void update(Collection<File> junitReports) throws IOException {
+        Map<String, Boolean> classFailures = new HashMap<>();
+        for (File report : junitReports) {
+            for (Map.Entry<String, Boolean> entry : readClassFailures(report).entrySet()) {
+                classFailures.merge(entry.getKey(), entry.getValue(), Boolean::logicalOr);
+            }
+        }
+        if (fullRun) {
+            state.knownClasses.clear();
+            state.failingClasses.retainAll(classFailures.keySet());
+            for (SortedMap<String, Integer> classes : state.pathClasses.values()) {
+                classes.keySet().retainAll(classFailures.keySet());
+            }
+            state.pathClasses.values().removeIf(Map::isEmpty);
+        }
+        state.knownClasses.addAll(classFailures.keySet());
+        boolean learnPaths = changedPaths != null && changedPaths.size() <= MAX_LEARNED_CHANGED_PATHS;
+        for (Map.Entry<String, Boolean> entry : classFailures.entrySet()) {
+            if (!entry.getValue()) {
+                state.failingClasses.remove(entry.getKey());
+                continue;
+            }
+            // a class failing before the change was not broken by it
+            if (state.failingClasses.add(entry.getKey()) && learnPaths) {
+                for (String path : changedPaths) {
+                    state.pathClasses.computeIfAbsent(path, p -> new TreeMap<>()).merge(entry.getKey(), 1, Integer::sum);
+                }
+            }
+        }
+        recordRun();
+    }
+
+    /**
+     * Record the commit selected last as tested, when the run was skipped as no test is affected.
+     */
+    public void recordSkippedRun() {
+        recordRun();
+    }
+
+    private void recordRun() {
+        state.lastTestedCommit = commitId;
+        state.selectiveRunsSinceFullRun = fullRun ? 0 : state.selectiveRunsSinceFullRun + 1;
+    }
+
+    public void save() throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create test impact map dir " + dir);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                GSON.toJson(state, writer);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * @return whether any test case of each class in the report failed or had an error
+     */
+    static Map<String, Boolean> readClassFailures(File junitReport) throws IOException {
+        Map<String, Boolean> classFailures = new HashMap<>();
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(junitReport))) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            String className = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("testcase".equals(name)) {
+                        className = reader.getAttributeValue(null, "classname");
+                        if (className != null && !className.isEmpty()) {
+                            classFailures.putIfAbsent(className, false);
+                        }
+                    } else if (className != null && !className.isEmpty() && ("failure".equals(name) || "error".equals(name))) {
+                        classFailures.put(className, true);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "testcase".equals(reader.getLocalName())) {
+                    className = null;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to read JUnit report " + junitReport + ": " + e.getMessage(), e);
+        }
+        return classFailures;
+    }
+
+    /**
+     * The test classes to run, or the reason to run the whole suite.
+     */
+    public static class Selection {
+        @Nullable
+        public final String fullRunReason;
+        public final SortedSet<String> classes;
+
+        Selection(@Nullable String fullRunReason, SortedSet<String> classes) {
+            this.fullRunReason = fullRunReason;
+            this.classes = classes;
+        }
+
+        public boolean isFullRun() {
+            return fullRunReason != null;
+        }
+    }
+
+    private static class State {
+        String lastTestedCommit;
+        int selectiveRunsSinceFullRun;
+        SortedSet<String> knownClasses = new TreeSet<>();
+        SortedSet<String> failingClasses = new TreeSet<>();
+        // changed path -> test class -> runs it started failing in with the path among the changes
+        SortedMap<String, SortedMap<String, Integer>> pathClasses = new TreeMap<>();
+    }
+}
@@ -0,0 +1,223 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.HydraLabAPIConfig;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.hydralab.utils.HydraLabClientUtils.printlnf;
+
+/**
+ * Runs the cells of a test matrix at the same time, at most maxConcurrentRuns at once. The cells are one
+ * {@link HydraLabClient.RunGroup}: the commit info is collected once, each distinct APK set is uploaded once, and the
+ * cells with the same transport settings share the HTTP clients. Instead of a build tag and a summary per cell, the
+ * matrix writes one combined summary and tags the build FAIL if any cell failed.
+ */
+public class TestMatrixRunner {
+    public static final String SUMMARY_FILE_NAME = "TestLabMatrixSummary.md";
+
+    private TestMatrixRunner() {
+    }
+
+    /**
+     * @param maxConcurrentRuns cells running at once, 0 to run all of them at once
+     * @param matrixDir         where the combined summary is written
+     * @return whether every cell passed
+     * @throws IllegalStateException if a cell could not run, after all the other cells finished
+     */
+    public static boolean run(List<Cell> cells, int maxConcurrentRuns, File matrixDir) {
+        return run(cells, maxConcurrentRuns, matrixDir, new HydraLabClient.RunGroup());
+    }
+
+    /**
+     * @param runGroup group of the cells, {@link HydraLabClient.RunGroup#cancel} cancels the cells running and the ones not
+     *                 started yet
+     */
+    public static boolean run(List<Cell> cells, int maxConcurrentRuns, File matrixDir, HydraLabClient.RunGroup runGroup) {
+        HydraLabClientUtils.assertTrue(!cells.isEmpty(), "The test matrix has no cell", null);
+        int concurrency = maxConcurrentRuns > 0 ? Math.min(maxConcurrentRuns, cells.size()) : cells.size();
+        printlnf("##[section]Running %d test matrix cells, %d at a time", cells.size(), concurrency);
+        long start = System.nanoTime();
+        ExecutorService cellExecutor = Executors.newFixedThreadPool(concurrency, HydraLabClient.daemonThreadFactory("hydra-lab-matrix"));
+        List<CellResult> results = new ArrayList<>();
+        try {
+            List<Future<CellResult>> futures = new ArrayList<>();
+            for (Cell cell : cells) {
+                futures.add(cellExecutor.submit(() -> runCell(cell, runGroup)));
+            }
+            for (Future<CellResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the cells release their devices before the matrix gives up on them
+            runGroup.cancel("interrupted");
+            throw new IllegalStateException("Interrupted while running the test matrix", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Run test matrix cell fail: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            cellExecutor.shutdownNow();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        List<String> errorCells = new ArrayList<>();
+        int failedCount = 0;
+        for (CellResult result : results) {
+            if (result.error != null) {
+                errorCells.add(result.cell.name);
+            }
+            if (result.isFailed()) {
+                failedCount++;
+            }
+        }
+        printlnf("##[section]Test matrix done in %d seconds: %d cells, %d failed", TimeUnit.MILLISECONDS.toSeconds(elapsedMillis), results.size(), failedCount);
+        for (CellResult result : results) {
+            printlnf("%s: %s", result.cell.name, result.describe());
+        }
+        writeSummary(results, failedCount, elapsedMillis, matrixDir);
+        printlnf("##vso[build.addbuildtag]%s", failedCount > 0 ? "FAIL" : "SUCCESS");
+        HydraLabClientUtils.assertTrue(errorCells.isEmpty(), errorCells.size() + " test matrix cells could not run", errorCells);
+        return failedCount == 0;
+    }
+
+    private static CellResult runCell(Cell cell, HydraLabClient.RunGroup runGroup) {
+        printlnf("##[section]Test matrix cell %s started", cell.name);
+        long start = System.nanoTime();
+        // the cells upload their reports side by side, each to a pipeline artifact of its own
+        cell.apiConfig.pipelineArtifactName = cell.apiConfig.pipelineArtifactName + "-" + cell.name;
+        HydraLabClient client = new HydraLabClient(cell.apiConfig, runGroup);
+        String error = null;
+        try {
+            client.runTestOnDeviceWithAPK(cell.apkPath, cell.testApkPath, cell.buildFlavor, cell.testSuiteName, cell.deviceIdentifier, cell.reportAudience,
+                    cell.timeoutSec, cell.reportFolderPath, cell.instrumentationArgs, cell.extraArgs);
+        } catch (RuntimeException e) {
+            // the other cells keep running, the matrix fails once they are done
+            printlnf("##[error]Test matrix cell %s fail: %s", cell.name, e.getMessage());
+            e.printStackTrace();
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        printlnf("##[section]Test matrix cell %s finished in %d seconds", cell.name, TimeUnit.MILLISECONDS.toSeconds(elapsedMillis));
+        // the record left by an earlier run of the cell doesn't describe this one
+        TestResultCache.TestRunRecord record = error == null ? TestResultCache.readRecord(new File(cell.reportFolderPath)) : null;
+        return new CellResult(cell, client.isMarkedFail(), error, elapsedMillis, record);
+    }
+
+    private static void writeSummary(List<CellResult> results, int failedCount, long elapsedMillis, File matrixDir) {
+        StringBuilder mdBuilder = new StringBuilder("# Device Lab Test Matrix Results\n\n\n");
+        mdBuilder.append(String.format(Locale.US, "### %d cells, %d failed, in %d seconds\n\n", results.size(), failedCount, TimeUnit.MILLISECONDS.toSeconds(elapsedMillis)));
+        mdBuilder.append("| Cell | Result | Test cases | Failed | Duration | Report |\n");
+        mdBuilder.append("| --- | --- | --- | --- | --- | --- |\n");
+        for (CellResult result : results) {
+            TestResultCache.TestRunRecord record = result.record;
+            mdBuilder.append(String.format(Locale.US, "| %s | %s | %s | %s | %d s | %s |\n", result.cell.name, result.getStatus(),
+                    record == null ? "-" : String.valueOf(record.totalTestCount), record == null ? "-" : String.valueOf(record.totalFailCount),
+                    TimeUnit.MILLISECONDS.toSeconds(result.elapsedMillis), record == null ? "-" : String.format("[Link to full report](%s)", record.testReportUrl)));
+        }
+        for (CellResult result : results) {
+            mdBuilder.append(String.format("\n\n## %s\n\n", result.cell.name));
+            if (result.error != null) {
+                mdBuilder.append(String.format("Could not run: %s\n", result.error));
+                continue;
+            }
+            String cellSummary = readCellSummary(result);
+            mdBuilder.append(cellSummary == null ? "No summary\n" : cellSummary);
+        }
+
+        File summaryMd = new File(matrixDir, SUMMARY_FILE_NAME);
+        try {
+            FileUtils.writeStringToFile(summaryMd, mdBuilder.toString(), StandardCharsets.UTF_8);
+            printlnf("##vso[task.uploadsummary]%s", summaryMd.getAbsolutePath());
+        } catch (IOException e) {
+            // no need to rethrow, the build tag still carries the result
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return summary of the cell without its title, null if it wrote none
+     */
+    @Nullable
+    private static String readCellSummary(CellResult result) {
+        if (result.record == null || result.record.summary == null) {
+            return null;
+        }
+        try {
+            String summary = FileUtils.readFileToString(new File(result.cell.reportFolderPath, result.record.summary), StandardCharsets.UTF_8);
+            return summary.startsWith("# ") ? summary.substring(summary.indexOf('\n') + 1).trim() + "\n" : summary;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * One run of the matrix, with the arguments of {@link HydraLabClient#runTestOnDeviceWithAPK}. Each cell needs an API
+     * config of its own, the run fills in its callback and pipeline links.
+     */
+    public static class Cell {
+        /**
+         * Unique in the matrix, used in the pipeline artifact name.
+         */
+        public String name;
+        public HydraLabAPIConfig apiConfig;
+        public String apkPath;
+        public String testApkPath;
+        public String buildFlavor;
+        public String testSuiteName;
+        @Nullable
+        public String deviceIdentifier;
+        @Nullable
+        public String reportAudience;
+        public int timeoutSec;
+        public String reportFolderPath;
+        public Map<String, String> instrumentationArgs;
+        public Map<String, String> extraArgs;
+    }
+
+    private static class CellResult {
+        final Cell cell;
+        final boolean failed;
+        @Nullable
+        final String error;
+        final long elapsedMillis;
+        @Nullable
+        final TestResultCache.TestRunRecord record;
+
+        CellResult(Cell cell, boolean failed, @Nullable String error, long elapsedMillis, @Nullable TestResultCache.TestRunRecord record) {
+            this.cell = cell;
+            this.failed = failed;
+            this.error = error;
+            this.elapsedMillis = elapsedMillis;
+            this.record = record;
+        }
+
+        boolean isFailed() {
+            return failed || error != null;
+        }
+
+        String getStatus() {
+            return error != null ? "ERROR" : failed ? "FAIL" : "PASS";
+        }
+
+        String describe() {
+            if (error != null) {
+                return "ERROR, " + error;
+            }
+            return record == null ? getStatus() : String.format(Locale.US, "%s, total test case count: %d, failed: %d, report: %s",
+                    getStatus(), record.totalTestCount, record.totalFailCount, record.testReportUrl);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.hydralab.utils.HydraLabClientUtils.printlnf;
+
+/**
+ * Local store of finished test runs keyed by the APK contents and run parameters, so that running the same test again
+ * restores the previous reports and summary instead of booking lab devices. Each entry is a directory holding the report
+ * files of the run and its {@link TestRunRecord}.
+ */
+public class TestResultCache {
+    /**
+     * Written next to the reports of every run, lists what the run produced so it can be cached and replayed.
+     */
+    public static final String RECORD_FILE_NAME = "hydra-lab-result.json";
+    private static final Gson GSON = new Gson();
+    // a dir with no record is an entry another build is still filling, or one left behind by a build that died
+    private static final long UNRECORDED_DIR_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final File cacheDir;
+    private final long ttlMillis;
+
+    public TestResultCache(File cacheDir, int ttlHours) {
+        this.cacheDir = cacheDir;
+        this.ttlMillis = TimeUnit.HOURS.toMillis(ttlHours);
+    }
+
+    public static String buildKey(String apkSha256, String testApkSha256, Map<String, String> runParameters) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder keySource = new StringBuilder(apkSha256).append('|').append(testApkSha256);
+        for (Map.Entry<String, String> entry : new TreeMap<>(runParameters).entrySet()) {
+            keySource.append('|').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(keySource.toString().getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Copy the cached reports of the key into the report dir.
+     *
+     * @param includeFailures whether a cached run that failed is restored too, else the test runs again
+     * @return record of the cached run, null if there is no valid entry
+     */
+    @Nullable
+    public synchronized TestRunRecord restore(String key, File reportDir, boolean includeFailures) {
+        File entryDir = new File(cacheDir, key);
+        TestRunRecord record = readRecord(entryDir);
+        if (record == null || (record.failed && !includeFailures)) {
+            return null;
+        }
+        if (isExpired(record)) {
+            FileUtils.deleteQuietly(entryDir);
+            return null;
+        }
+        try {
+            if (!reportDir.exists() && !reportDir.mkdirs()) {
+                throw new IOException("Failed to create report dir " + reportDir);
+            }
+            for (String name : record.getFileNames()) {
+                Files.copy(new File(entryDir, name).toPath(), new File(reportDir, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            writeRecord(reportDir, record);
+            return record;
+        } catch (IOException e) {
+            // a broken entry is dropped, the test just runs again
+            e.printStackTrace();
+            FileUtils.deleteQuietly(entryDir);
+            return null;
+        }
+    }
+
+    public synchronized void store(String key, File reportDir, TestRunRecord record) {
+        removeExpired();
+        try {
+            if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+                throw new IOException("Failed to create test result cache dir " + cacheDir);
+            }
+            // fill a temp dir and move it, so that concurrent builds never restore a half written entry
+            File tmpDir = Files.createTempDirectory(cacheDir.toPath(), key + ".tmp").toFile();
+            try {
+                for (String name : record.getFileNames()) {
+                    Files.copy(new File(reportDir, name).toPath(), new File(tmpDir, name).toPath());
+                }
+                writeRecord(tmpDir, record);
+                File entryDir = new File(cacheDir, key);
+                FileUtils.deleteQuietly(entryDir);
+                Files.move(tmpDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                FileUtils.deleteQuietly(tmpDir);
+            }
+            printlnf("Stored results of test task %s in the result cache", record.testTaskId);
+        } catch (IOException e) {
+            // the cache is only an optimization, failing to persist it should not fail the test
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isExpired(TestRunRecord record) {
+        return ttlMillis > 0 && System.currentTimeMillis() - record.createTimeMillis > ttlMillis;
+    }
+
+    private void removeExpired() {
+        File[] entryDirs = cacheDir.listFiles(File::isDirectory);
+        if (entryDirs == null) {
+            return;
+        }
+        for (File entryDir : entryDirs) {
+            TestRunRecord record = readRecord(entryDir);
+            if (record == null ? System.currentTimeMillis() - entryDir.lastModified() > UNRECORDED_DIR_MAX_AGE_MILLIS : isExpired(record)) {
+                FileUtils.deleteQuietly(entryDir);
+            }
+        }
+    }
+
+    public static void writeRecord(File dir, TestRunRecord record) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(new File(dir, RECORD_FILE_NAME).toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(record, writer);
+        }
+    }
+
+    @Nullable
+    public static TestRunRecord readRecord(File dir) {
+        File recordFile = new File(dir, RECORD_FILE_NAME);
+        if (!recordFile.isFile()) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(recordFile.toPath(), StandardCharsets.UTF_8)) {
+            TestRunRecord record = GSON.fromJson(reader, TestRunRecord.class);
+            return record == null || record.testTaskId == null ? null : record;
+        } catch (IOException | JsonSyntaxException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Print the pipeline logging commands of a restored run again: artifact uploads, variables and the summary.
+     */
+    public static void replay(TestRunRecord record, File reportDir) {
+        replay(record, reportDir, true);
+    }
+
+    /**
+     * @param uploadSummary false when the run is part of a group that uploads a summary of its own
+     */
+    public static void replay(TestRunRecord record, File reportDir, boolean uploadSummary) {
+        printlnf("##[section]Restored results of test task %s instead of running the test again, failed: %s", record.testTaskId, record.failed);
+        for (String artifact : record.artifacts) {
+            printlnf("##vso[artifact.upload artifactname=%s;]%s", record.artifactName, new File(reportDir, artifact).getAbsolutePath());
+        }
+        for (Map.Entry<String, String> variable : record.variables.entrySet()) {
+            printlnf("##vso[task.setvariable variable=%s;]%s", variable.getKey(), variable.getValue());
+        }
+        printlnf("##[section]Test task report link:");
+        printlnf(record.testReportUrl);
+        if (record.summary != null && uploadSummary) {
+            printlnf("##vso[task.uploadsummary]%s", new File(reportDir, record.summary).getAbsolutePath());
+        }
+    }
+
+    /**
+     * Replay the run recorded in the report dir, including its build tag. Used when Gradle skipped the task as up to date
+     * or restored its outputs from the build cache.
+     *
+     * @return whether a recorded run was found
+     */
+    public static boolean replay(File reportDir) {
+        TestRunRecord record = readRecord(reportDir);
+        if (record == null) {
+            printlnf("##[warning]No recorded test run found in %s", reportDir.getAbsolutePath());
+            return false;
+        }
+        replay(record, reportDir);
+        printlnf("##vso[build.addbuildtag]%s", record.failed ? "FAIL" : "SUCCESS");
+        return true;
+    }
+
+    /**
+     * @return whether the run recorded in the report dir can be reused instead of running the test again
+     */
+    public static boolean isReusable(File reportDir, boolean includeFailures) {
+        TestRunRecord record = readRecord(reportDir);
+        if (record == null || (record.failed && !includeFailures)) {
+            return false;
+        }
+        for (String name : record.getFileNames()) {
+            if (!new File(reportDir, name).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class TestRunRecord {
+        public String testTaskId;
+        public String testReportUrl;
+        public boolean failed;
+        public long createTimeMillis;
+        public int totalTestCount;
+        public int totalFailCount;
+        /**
+         * Name of the pipeline artifact the report files are uploaded to.
+         */
+        public String artifactName = "testResult";
+        /**
+         * Report files uploaded as pipeline artifacts, relative to the report dir.
+         */
+        public List<String> artifacts = new ArrayList<>();
+        public Map<String, String> variables = new LinkedHashMap<>();
+        public String summary;
+
+        List<String> getFileNames() {
+            List<String> names = new ArrayList<>(artifacts);
+            if (summary != null) {
+                names.add(summary);
+            }
+            return names;
+        }
+    }
+}
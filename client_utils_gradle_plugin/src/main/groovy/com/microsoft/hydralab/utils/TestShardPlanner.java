@@ -0,0 +1,104 @@
+package com.microsoft.hydralab.utils;
+
+import java.util.*;
+
+/**
+ * Splits a test suite into shards that each run as their own test task, through the filters of AndroidJUnitRunner passed
+ * as instrumentation args.
+ * <p>
+ * With {@link #DURATION} the test classes known from the {@link TestDurationHistory} are assigned longest first to the
+ * shard with the least work so far, which balances the shards within the duration of the longest class. The shard that
+ * ends up with the least work runs "every class but those of the other shards" instead of a class list, so classes added
+ * since the last run are not missed. Without history, and with {@link #COUNT}, the runner splits the tests itself with
+ * numShards and shardIndex, evenly by count.
+ */
+public class TestShardPlanner {
+    public static final String DURATION = "DURATION";
+    public static final String COUNT = "COUNT";
+
+    private TestShardPlanner() {
+    }
+
+    public static List<Shard> plan(int shardCount, String strategy, TestDurationHistory history) {
+        SortedMap<String, Double> classSeconds = history.getClassSeconds();
+        if (COUNT.equalsIgnoreCase(strategy) || classSeconds.isEmpty()) {
+            return planByCount(shardCount);
+        }
+        List<Map.Entry<String, Double>> classes = new ArrayList<>(classSeconds.entrySet());
+        // longest first, by name on a tie so the same history always gives the same shards
+        classes.sort((a, b) -> {
+            int compare = Double.compare(b.getValue(), a.getValue());
+            return compare != 0 ? compare : a.getKey().compareTo(b.getKey());
+        });
+        // a shard without a class would run no test, which fails the build
+        int count = Math.min(shardCount, classes.size());
+        List<Shard> shards = new ArrayList<>();
+        PriorityQueue<Shard> leastLoaded = new PriorityQueue<>(Comparator.comparingDouble((Shard shard) -> shard.estimatedSeconds).thenComparingInt(shard -> shard.index));
+        for (int i = 0; i < count; i++) {
+            Shard shard = new Shard(i);
+            shards.add(shard);
+            leastLoaded.add(shard);
+        }
+        for (Map.Entry<String, Double> entry : classes) {
+            Shard shard = leastLoaded.poll();
+            shard.classes.add(entry.getKey());
+            shard.estimatedSeconds += entry.getValue();
+            leastLoaded.add(shard);
+        }
+
+        Shard catchAll = leastLoaded.peek();
+        for (Shard shard : shards) {
+            Collections.sort(shard.classes);
+            if (shard != catchAll) {
+                shard.instrumentationArgs.put("class", String.join(",", shard.classes));
+            }
+        }
+        List<String> otherClasses = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard != catchAll) {
+                otherClasses.addAll(shard.classes);
+            }
+        }
+        Collections.sort(otherClasses);
+        if (!otherClasses.isEmpty()) {
+            catchAll.instrumentationArgs.put("notClass", String.join(",", otherClasses));
+        }
+        return shards;
+    }
+
+    private static List<Shard> planByCount(int shardCount) {
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            Shard shard = new Shard(i);
+            shard.estimatedSeconds = -1;
+            shard.instrumentationArgs.put("numShards", String.valueOf(shardCount));
+            shard.instrumentationArgs.put("shardIndex", String.valueOf(i));
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    public static class Shard {
+        public final int index;
+        /**
+         * Filter of the shard, to add to the instrumentation args of the run.
+         */
+        public final Map<String, String> instrumentationArgs = new LinkedHashMap<>();
+        /**
+         * Test classes assigned by duration, empty when sharded by count.
+         */
+        public final List<String> classes = new ArrayList<>();
+        /**
+         * Sum of the historical durations of the classes, -1 when sharded by count.
+         */
+        public double estimatedSeconds;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        public String getLabel() {
+            return "shard" + (index + 1);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decodes the test task API response in a single pass from the response stream, the envelope {@code code} and
+ * {@code content} are read straight into a {@link HydraLabClientUtils.TestTask} without a string copy or a JSON tree.
+ */
+public class TestTaskJsonDecoder {
+    /**
+     * Large text fields of device results that are not needed to follow the progress of a task.
+     */
+    private static final Set<String> HEAVY_DEVICE_RESULT_FIELDS = new HashSet<>(Arrays.asList("crashStack", "errorInProcess"));
+
+    private static final Gson LIGHT_GSON = HydraLabClientUtils.GSON.newBuilder()
+            .addDeserializationExclusionStrategy(new ExclusionStrategy() {
+                @Override
+                public boolean shouldSkipField(FieldAttributes f) {
+                    return f.getDeclaringClass() == HydraLabClientUtils.DeviceTestResult.class && HEAVY_DEVICE_RESULT_FIELDS.contains(f.getName());
+                }
+
+                @Override
+                public boolean shouldSkipClass(Class<?> clazz) {
+                    return false;
+                }
+            })
+            .create();
+
+    public static Envelope decode(Reader reader, boolean skipHeavyFields) throws IOException {
+        Gson gson = skipHeavyFields ? LIGHT_GSON : HydraLabClientUtils.GSON;
+        Envelope envelope = new Envelope();
+        envelope.heavyFieldsSkipped = skipHeavyFields;
+        try (JsonReader jsonReader = new JsonReader(reader)) {
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                String name = jsonReader.nextName();
+                if (jsonReader.peek() == JsonToken.NULL) {
+                    jsonReader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "code":
+                        envelope.code = jsonReader.nextInt();
+                        break;
+                    case "message":
+                        envelope.message = jsonReader.nextString();
+                        break;
+                    case "content":
+                        envelope.content = gson.fromJson(jsonReader, HydraLabClientUtils.TestTask.class);
+                        break;
+                    default:
+                        jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        }
+        return envelope;
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, or -1 if the JVM cannot tell
+     */
+    static long currentThreadAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public static class Envelope {
+        public int code;
+        public String message;
+        public HydraLabClientUtils.TestTask content;
+        public boolean heavyFieldsSkipped;
+
+        @Override
+        public String toString() {
+            return "{code=" + code + ", message='" + message + "'}";
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.microsoft.hydralab;
+
+import com.microsoft.hydralab.utils.HydraLabClient;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.HydraLabAPIConfig;
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientUtilsPluginTest {
+    private File dir;
+    private Project project;
+    private HydraLabExtension hydraLab;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("client-utils-plugin").toFile();
+        project = ProjectBuilder.builder().withProjectDir(dir).build();
+        project.getPluginManager().apply(ClientUtilsPlugin.class);
+        hydraLab = project.getExtensions().getByType(HydraLabExtension.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void registersTheTasksWithoutReadingTheParams() {
+        // no param is set, applying the plugin must not need them
+        assertEquals(new HashSet<>(Arrays.asList("triggerDeviceLabTest", "replayDeviceLabTestResult", "triggerDeviceLabTestMatrix")),
+                project.getTasks().getNames());
+    }
+
+    @Test
+    public void runParamsAreNamedAsTheGradleProperties() {
+        hydraLab.getTestSuiteName().set("com.app.SmokeSuite");
+        hydraLab.getTimeOutSeconds().set(600);
+        hydraLab.getAppApk().set(new File(dir, "app.apk"));
+        hydraLab.getSettings().put("pollMaxIntervalSec", "30");
+        hydraLab.getSettings().put("apkUploadCacheDir", "cache");
+
+        Map<String, String> runParams = hydraLab.runParams();
+        assertEquals("com.app.SmokeSuite", runParams.get("testSuiteName"));
+        assertEquals("600", runParams.get("timeOutSeconds"));
+        assertEquals("30", runParams.get("pollMaxIntervalSec"));
+        assertEquals(new File(dir, "app.apk").getAbsolutePath(), runParams.get("appApkPath"));
+        // relative paths are resolved against the project dir
+        assertEquals(new File(dir, "cache").getAbsolutePath(), runParams.get("apkUploadCacheDir"));
+    }
+
+    @Test
+    public void taskInputsLeaveOutTheTokenAndTheTuningParams() {
+        hydraLab.getTestSuiteName().set("com.app.SmokeSuite");
+        hydraLab.getAuthToken().set("secret");
+        hydraLab.getBuildFlavor().set("debug");
+        hydraLab.getSettings().put("pollMaxIntervalSec", "30");
+        hydraLab.getSettings().put("failedTestRerunCount", "2");
+        hydraLab.getSettings().put("artifactTypes", "XML_REPORT");
+        hydraLab.getInstrumentationArgs().set(Collections.singletonMap("size", "small"));
+        TriggerDeviceLabTestTask task = (TriggerDeviceLabTestTask) project.getTasks().getByName("triggerDeviceLabTest");
+
+        Map<String, String> runParameters = task.getRunParameters().get();
+        assertEquals("com.app.SmokeSuite", runParameters.get("testSuiteName"));
+        assertFalse(runParameters.containsKey("authToken"));
+        assertFalse(runParameters.containsKey("pollMaxIntervalSec"));
+        // a re-run turns failures into flaky passes
+        assertEquals("2", runParameters.get("failedTestRerunCount"));
+        // a report dir restored from the cache has the artifacts of the run that filled it
+        assertEquals("XML_REPORT", runParameters.get("artifactTypes"));
+        // the token is read by the worker, it is not stored with the params
+        assertFalse(task.getRunParams().get().containsKey("authToken"));
+        assertEquals("secret", task.getAuthToken().get());
+        assertEquals(Collections.singletonMap("size", "small"), task.getInstrumentationArgs().get());
+        assertTrue(task.getReportDir().get().getAsFile().getPath(), task.getReportDir().get().getAsFile().getPath().endsWith("flavors" + File.separator + "debug"));
+    }
+
+    @Test
+    public void closingTheServiceCancelsTheRunsLeft() throws Exception {
+        DeviceLabService labService = (DeviceLabService) project.getGradle().getSharedServices().getRegistrations().getByName("hydraLab")
+                .getService().get();
+        HydraLabAPIConfig apiConfig = HydraLabAPIConfig.defaultAPI();
+        apiConfig.connectionWarmUpEnabled = false;
+        apiConfig.telemetryEnabled = false;
+        HydraLabClient.RunGroup runGroup = new HydraLabClient.RunGroup();
+        HydraLabClient client = new HydraLabClient(apiConfig, runGroup);
+        labService.startRun(":triggerDeviceLabTest", runGroup);
+
+        // the build ends before the work got to run
+        labService.close();
+        File apk = new File(dir, "app.apk");
+        FileUtils.write(apk, "app", StandardCharsets.UTF_8);
+        try {
+            client.runTestOnDeviceWithAPK(apk.getPath(), apk.getPath(), "debug", "com.app.SmokeSuite", null, null, 600,
+                    dir.getPath(), new HashMap<>(), new HashMap<>());
+            fail();
+        } catch (CancellationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("build is over"));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class ApkUploadCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("apk-upload-cache").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void storedSetIdIsReused() {
+        new ApkUploadCache(dir, 72).store("key", "set-1");
+        // another build reads what this one stored
+        ApkUploadCache cache = new ApkUploadCache(dir, 72);
+        assertEquals("set-1", cache.lookup("key"));
+        assertNull(cache.lookup("other"));
+    }
+
+    @Test
+    public void expiredSetIdIsNotReused() throws IOException {
+        long uploadTime = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        FileUtils.write(new File(dir, "apk-upload-cache.json"), "{\"key\":{\"apkSetId\":\"set-1\",\"uploadTimeMillis\":" + uploadTime + "}}",
+                StandardCharsets.UTF_8);
+        assertNull(new ApkUploadCache(dir, 1).lookup("key"));
+        assertEquals("set-1", new ApkUploadCache(dir, 3).lookup("key"));
+    }
+
+    @Test
+    public void corruptCacheFileIsIgnored() throws IOException {
+        FileUtils.write(new File(dir, "apk-upload-cache.json"), "{\"key\":", StandardCharsets.UTF_8);
+        ApkUploadCache cache = new ApkUploadCache(dir, 72);
+        assertNull(cache.lookup("key"));
+        cache.store("key", "set-1");
+        assertEquals("set-1", cache.lookup("key"));
+    }
+
+    @Test
+    public void removeForgetsOnlyTheRejectedSetId() {
+        ApkUploadCache cache = new ApkUploadCache(dir, 72);
+        cache.store("key", "set-2");
+        // another build replaced the rejected set meanwhile
+        cache.remove("key", "set-1");
+        assertEquals("set-2", cache.lookup("key"));
+        cache.remove("key", "set-2");
+        assertNull(cache.lookup("key"));
+    }
+
+    @Test
+    public void keyCoversTheLabTheCommitAndBothApks() {
+        String key = ApkUploadCache.buildKey("https", "lab", "", "debug", "c1", "a", "t");
+        assertEquals(key, ApkUploadCache.buildKey("https", "lab", "", "debug", "c1", "a", "t"));
+        assertNotEquals(key, ApkUploadCache.buildKey("http", "lab", "", "debug", "c1", "a", "t"));
+        assertNotEquals(key, ApkUploadCache.buildKey("https", "other-lab", "", "debug", "c1", "a", "t"));
+        assertNotEquals(key, ApkUploadCache.buildKey("https", "lab", "/staging", "debug", "c1", "a", "t"));
+        assertNotEquals(key, ApkUploadCache.buildKey("https", "lab", "", "release", "c1", "a", "t"));
+        assertNotEquals(key, ApkUploadCache.buildKey("https", "lab", "", "debug", "c2", "a", "t"));
+        assertNotEquals(key, ApkUploadCache.buildKey("https", "lab", "", "debug", "c1", "b", "t"));
+        assertNotEquals(key, ApkUploadCache.buildKey("https", "lab", "", "debug", "c1", "a", "u"));
+    }
+
+    @Test
+    public void hashesTheWholeFile() throws IOException {
+        File file = new File(dir, "app.apk");
+        FileUtils.write(file, "abc", StandardCharsets.UTF_8);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", ApkUploadCache.sha256(file));
+    }
+}
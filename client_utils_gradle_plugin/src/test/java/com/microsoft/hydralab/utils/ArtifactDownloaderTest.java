@@ -0,0 +1,419 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArtifactDownloaderTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+    private static final Pattern SEGMENT = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final String ETAG = "\"v1\"";
+
+    private final Queue<Function<RecordedRequest, MockResponse>> responses = new ArrayDeque<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private MockWebServer server;
+    private File dir;
+    private File file;
+    private byte[] blob;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                Function<RecordedRequest, MockResponse> response;
+                synchronized (responses) {
+                    response = responses.poll();
+                }
+                return response == null ? new MockResponse().setResponseCode(404) : response.apply(request);
+            }
+        });
+        server.start();
+        dir = Files.createTempDirectory("artifact-download").toFile();
+        file = new File(dir, "TEST-suite.xml");
+        blob = new byte[256 * 1024];
+        new Random(42).nextBytes(blob);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void downloadsWithinTheConcurrencyBound() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            respond(this::slowly);
+        }
+        List<CompletableFuture<ArtifactDownloader.DownloadResult>> downloads = new ArrayList<>();
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options(4, 2))) {
+            for (int i = 0; i < 6; i++) {
+                downloads.add(downloader.download(server.url("/blob/" + i).toString(), new File(dir, i + ".log")));
+            }
+            for (int i = 0; i < downloads.size(); i++) {
+                ArtifactDownloader.DownloadResult result = downloads.get(i).get(30, TimeUnit.SECONDS);
+                assertTrue(result.success);
+                assertEquals("content of /blob/" + i, FileUtils.readFileToString(result.file, StandardCharsets.UTF_8));
+                assertEquals(("content of /blob/" + i).length(), result.bytes);
+            }
+        }
+        assertEquals(6, server.getRequestCount());
+        // all requests go to one host, which gets at most maxRequestsPerHost at once
+        assertTrue(String.valueOf(maxInFlight.get()), maxInFlight.get() <= 2);
+    }
+
+    @Test
+    public void failedDownloadIsReported() throws Exception {
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options(2, 2))) {
+            ArtifactDownloader.DownloadResult result = downloader.download(server.url("/missing").toString(), new File(dir, "missing.log"))
+                    .get(30, TimeUnit.SECONDS);
+            assertFalse(result.success);
+            assertEquals(0, result.bytes);
+        }
+    }
+
+    @Test
+    public void missingUrlIsSkipped() throws Exception {
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options(2, 2))) {
+            ArtifactDownloader.DownloadResult result = downloader.download(null, new File(dir, "none.log")).get(30, TimeUnit.SECONDS);
+            assertFalse(result.success);
+            assertFalse(result.file.exists());
+        }
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void optionsAreBuiltFromTheApiConfig() {
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        apiConfig.downloadConcurrency = 6;
+        apiConfig.logGzipEnabled = true;
+        apiConfig.downloadSegmentThresholdMB = 32;
+        apiConfig.downloadSegmentSizeMB = 8;
+
+        ArtifactDownloader.Options options = ArtifactDownloader.Options.of(apiConfig);
+        assertEquals(6, options.concurrency);
+        assertEquals(apiConfig.downloadMaxRequestsPerHost, options.maxRequestsPerHost);
+        assertTrue(options.gzipLogs);
+        assertEquals(32L * 1024 * 1024, options.segmentThresholdBytes);
+        assertEquals(8L * 1024 * 1024, options.segmentBytes);
+    }
+
+    @Test
+    public void formatsThroughput() {
+        assertEquals("2.00 MB in 0.50s (4.00 MB/s)", ArtifactDownloader.DownloadResult.formatThroughput(2 * 1048576, 500_000_000));
+    }
+
+    @Test
+    public void logIsGzippedAndIndexedWhileDownloaded() throws Exception {
+        String log = "I/App: start\nE/AndroidRuntime: FATAL EXCEPTION: main\nI/App: end\n";
+        respond(request -> new MockResponse().setBody(log));
+        File logFile = new File(dir, "logcat.log");
+
+        ArtifactDownloader.Options options = options(2, 2);
+        options.gzipLogs = true;
+        options.indexLogCrashes = true;
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options)) {
+            ArtifactDownloader.DownloadResult result = downloader.download(server.url("/blob/logcat").toString(), logFile, true).get(30, TimeUnit.SECONDS);
+            assertTrue(result.success);
+            assertEquals(log, FileUtils.readFileToString(logFile, StandardCharsets.UTF_8));
+            try (InputStream in = new GZIPInputStream(new FileInputStream(result.gzipFile))) {
+                assertEquals(log, IOUtils.toString(in, StandardCharsets.UTF_8));
+            }
+            assertEquals(1, result.crashIndexer.getCrashCount());
+            assertTrue(result.crashIndexFile.isFile());
+        }
+    }
+
+    @Test
+    public void logTailIsFetchedWithRange() throws Exception {
+        respond(request -> new MockResponse().setResponseCode(206)
+                .setHeader("Content-Range", "bytes " + (blob.length - 100) + "-" + (blob.length - 1) + "/" + blob.length)
+                .setBody(new Buffer().write(blob, blob.length - 100, 100)));
+
+        ArtifactDownloader.DownloadResult result;
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options(2, 2))) {
+            result = downloader.download(server.url("/blob").toString(), file, false, 0, 100).get(30, TimeUnit.SECONDS);
+        }
+        assertEquals("bytes=-100", server.takeRequest().getHeader("Range"));
+        assertTrue(result.success);
+        assertTrue(result.isPartial());
+        assertEquals(blob.length - 100, result.rangeStart);
+        assertEquals(blob.length, result.remoteBytes);
+        assertArrayEquals(Arrays.copyOfRange(blob, blob.length - 100, blob.length), FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void artifactOverTheCapIsSkipped() throws Exception {
+        respond(request -> whole(blob));
+
+        ArtifactDownloader.DownloadResult result;
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options(2, 2))) {
+            result = downloader.download(server.url("/blob").toString(), file, false, 1024, 0).get(30, TimeUnit.SECONDS);
+        }
+        assertFalse(result.success);
+        assertNotNull(result.skipReason);
+        assertEquals(blob.length, result.remoteBytes);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void resumesCutOffTransferWithRange() throws Exception {
+        respond(request -> cutOff(blob, ETAG));
+        respond(request -> rest(blob, request, ETAG));
+
+        ArtifactDownloader.DownloadResult result = download(retryPolicy());
+        assertTrue(result.failure, result.success);
+        assertEquals(1, result.resumes);
+        assertArrayEquals(blob, FileUtils.readFileToByteArray(file));
+        assertNoPartFile();
+
+        assertNull(server.takeRequest().getHeader("Range"));
+        RecordedRequest resume = server.takeRequest();
+        assertTrue(resume.getHeader("Range"), RANGE.matcher(resume.getHeader("Range")).matches());
+        assertEquals(ETAG, resume.getHeader("If-Range"));
+    }
+
+    @Test
+    public void changedBlobIsDownloadedAgain() throws Exception {
+        byte[] changed = blob.clone();
+        changed[changed.length - 1]++;
+        respond(request -> cutOff(blob, ETAG));
+        // If-Range no longer matches, the server sends the whole new blob
+        respond(request -> new MockResponse().setHeader("ETag", "\"v2\"").setBody(new Buffer().write(changed)));
+
+        ArtifactDownloader.DownloadResult result = download(retryPolicy());
+        assertTrue(result.failure, result.success);
+        assertArrayEquals(changed, FileUtils.readFileToByteArray(file));
+        assertNoPartFile();
+    }
+
+    @Test
+    public void weakETagIsNotSentInIfRange() throws Exception {
+        respond(request -> cutOff(blob, "W/\"v1\""));
+        respond(request -> rest(blob, request, "W/\"v1\""));
+
+        assertTrue(download(retryPolicy()).success);
+        server.takeRequest();
+        assertNull(server.takeRequest().getHeader("If-Range"));
+    }
+
+    @Test
+    public void md5MismatchDownloadsAgain() throws Exception {
+        respond(request -> whole(blob).setHeader("Content-MD5", md5Base64(new byte[0])));
+        respond(request -> whole(blob).setHeader("Content-MD5", md5Base64(blob)));
+
+        ArtifactDownloader.DownloadResult result = download(retryPolicy());
+        assertTrue(result.failure, result.success);
+        assertArrayEquals(blob, FileUtils.readFileToByteArray(file));
+        server.takeRequest();
+        // the bytes on disk are not trusted, the next attempt starts over
+        assertNull(server.takeRequest().getHeader("Range"));
+    }
+
+    @Test
+    public void md5MismatchWithoutRetryLeavesNothing() throws Exception {
+        respond(request -> whole(blob).setHeader("Content-MD5", md5Base64(new byte[0])));
+
+        ArtifactDownloader.DownloadResult result = download(null);
+        assertFalse(result.success);
+        assertTrue(result.failure, result.failure.contains("Content-MD5"));
+        assertFalse(file.exists());
+        assertNoPartFile();
+    }
+
+    @Test
+    public void resumedBlobIsCheckedAgainstItsMd5() throws Exception {
+        byte[] corrupt = blob.clone();
+        corrupt[corrupt.length - 1]++;
+        respond(request -> cutOff(blob, ETAG).setHeader("x-ms-blob-content-md5", md5Base64(blob)));
+        respond(request -> rest(corrupt, request, ETAG));
+        respond(request -> whole(blob).setHeader("ETag", ETAG).setHeader("x-ms-blob-content-md5", md5Base64(blob)));
+
+        ArtifactDownloader.DownloadResult result = download(retryPolicy());
+        assertTrue(result.failure, result.success);
+        assertArrayEquals(blob, FileUtils.readFileToByteArray(file));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void largeBlobIsDownloadedInSegments() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            respond(request -> segment(blob, request));
+        }
+
+        ArtifactDownloader.DownloadResult result;
+        ArtifactDownloader.Options options = options(4, 4);
+        options.segmentThresholdBytes = 64 * 1024;
+        options.segmentBytes = 64 * 1024;
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options)) {
+            result = downloader.download(server.url("/blob").toString(), file).get(30, TimeUnit.SECONDS);
+        }
+        assertTrue(result.failure, result.success);
+        assertEquals(4, result.segments);
+        assertEquals(4, server.getRequestCount());
+        assertArrayEquals(blob, FileUtils.readFileToByteArray(file));
+        assertNoPartFile();
+    }
+
+    @Test
+    public void cancelDeletesThePartFile() throws Exception {
+        // slow enough to still be streaming when cancelled
+        respond(request -> whole(blob).throttleBody(1024, 1, TimeUnit.SECONDS));
+
+        ArtifactDownloader.Options options = options(2, 2);
+        options.retryPolicy = retryPolicy();
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options)) {
+            CompletableFuture<ArtifactDownloader.DownloadResult> download = downloader.download(server.url("/blob").toString(), file);
+            File partFile = new File(file.getPath() + ".part");
+            for (int i = 0; i < 500 && !partFile.exists(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(partFile.exists());
+
+            downloader.cancel();
+            ArtifactDownloader.DownloadResult result = download.get(30, TimeUnit.SECONDS);
+            assertFalse(result.success);
+            assertEquals("cancelled", result.failure);
+        }
+        assertFalse(file.exists());
+        assertNoPartFile();
+    }
+
+    private void respond(Function<RecordedRequest, MockResponse> response) {
+        synchronized (responses) {
+            responses.add(response);
+        }
+    }
+
+    /**
+     * Answers after a while, long enough for the other downloads to pile up.
+     */
+    private MockResponse slowly(RecordedRequest request) {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(100);
+            return new MockResponse().setBody("content of " + request.getPath());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new MockResponse().setResponseCode(503);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private ArtifactDownloader.DownloadResult download(RetryPolicy retryPolicy) throws Exception {
+        ArtifactDownloader.Options options = options(2, 2);
+        options.retryPolicy = retryPolicy;
+        try (ArtifactDownloader downloader = new ArtifactDownloader(new OkHttpClient(), options)) {
+            return downloader.download(server.url("/blob").toString(), file).get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private void assertNoPartFile() {
+        String[] partFiles = dir.list((parent, name) -> name.endsWith(".part"));
+        assertEquals(0, partFiles == null ? 0 : partFiles.length);
+    }
+
+    private static ArtifactDownloader.Options options(int concurrency, int maxRequestsPerHost) {
+        ArtifactDownloader.Options options = new ArtifactDownloader.Options();
+        options.concurrency = concurrency;
+        options.maxRequestsPerHost = maxRequestsPerHost;
+        return options;
+    }
+
+    private static RetryPolicy retryPolicy() {
+        return new RetryPolicy("Download", 1, 10, 10_000, true, null, null);
+    }
+
+    private static MockResponse whole(byte[] bytes) {
+        return new MockResponse().setBody(new Buffer().write(bytes));
+    }
+
+    /**
+     * The first half of the blob, then the connection drops.
+     */
+    private static MockResponse cutOff(byte[] bytes, String etag) {
+        return whole(bytes).setHeader("ETag", etag).setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+    }
+
+    /**
+     * The bytes from the start of the Range header of the request.
+     */
+    private static MockResponse rest(byte[] bytes, RecordedRequest request, String etag) {
+        Matcher range = RANGE.matcher(String.valueOf(request.getHeader("Range")));
+        if (!range.matches()) {
+            return whole(bytes).setHeader("ETag", etag);
+        }
+        int first = Integer.parseInt(range.group(1));
+        return new MockResponse().setResponseCode(206)
+                .setHeader("ETag", etag)
+                .setHeader("Content-Range", "bytes " + first + "-" + (bytes.length - 1) + "/" + bytes.length)
+                .setBody(new Buffer().write(bytes, first, bytes.length - first));
+    }
+
+    /**
+     * The whole blob offered in ranges, or the range asked for.
+     */
+    private static MockResponse segment(byte[] bytes, RecordedRequest request) {
+        Matcher range = SEGMENT.matcher(String.valueOf(request.getHeader("Range")));
+        if (!range.matches()) {
+            return whole(bytes).setHeader("ETag", ETAG).setHeader("Accept-Ranges", "bytes");
+        }
+        int first = Integer.parseInt(range.group(1));
+        int last = Integer.parseInt(range.group(2));
+        return new MockResponse().setResponseCode(206)
+                .setHeader("ETag", ETAG)
+                .setHeader("Content-Range", "bytes " + first + "-" + last + "/" + bytes.length)
+                .setBody(new Buffer().write(bytes, first, last - first + 1));
+    }
+
+    private static String md5Base64(byte[] bytes) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
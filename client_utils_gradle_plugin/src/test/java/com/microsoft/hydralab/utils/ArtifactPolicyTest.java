@@ -0,0 +1,81 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.DeviceTestResult;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ArtifactPolicyTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void parsesTheArtifactTypes() {
+        assertEquals(EnumSet.of(ArtifactPolicy.Type.XML_REPORT, ArtifactPolicy.Type.LOGCAT), ArtifactPolicy.parseTypes(" xml_report, LOGCAT,"));
+        assertEquals(EnumSet.noneOf(ArtifactPolicy.Type.class), ArtifactPolicy.parseTypes(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownArtifactTypeIsRejected() {
+        ArtifactPolicy.parseTypes("XML_REPORT,SCREENSHOT");
+    }
+
+    @Test
+    public void typesNotPickedAreSkipped() {
+        ArtifactPolicy policy = new ArtifactPolicy(EnumSet.of(ArtifactPolicy.Type.XML_REPORT), false, 0, 0);
+
+        assertNull(policy.skipReason(ArtifactPolicy.Type.XML_REPORT, device(10, 0)));
+        assertNotNull(policy.skipReason(ArtifactPolicy.Type.LOGCAT, device(10, 1)));
+    }
+
+    @Test
+    public void passedDevicesKeepOnlyTheirReport() {
+        ArtifactPolicy policy = new ArtifactPolicy(EnumSet.allOf(ArtifactPolicy.Type.class), true, 0, 0);
+
+        assertNull(policy.skipReason(ArtifactPolicy.Type.XML_REPORT, device(10, 0)));
+        assertNotNull(policy.skipReason(ArtifactPolicy.Type.LOGCAT, device(10, 0)));
+        assertNotNull(policy.skipReason(ArtifactPolicy.Type.TEST_GIF, device(10, 0)));
+        assertNull(policy.skipReason(ArtifactPolicy.Type.LOGCAT, device(10, 1)));
+        // a device that ran no test did not pass either
+        assertNull(policy.skipReason(ArtifactPolicy.Type.ADB_LOG, device(0, 0)));
+    }
+
+    @Test
+    public void logsOverTheCapAreFetchedAsTails() {
+        ArtifactPolicy capped = new ArtifactPolicy(EnumSet.allOf(ArtifactPolicy.Type.class), false, 5 * MB, 0);
+        assertEquals(5 * MB, capped.maxBytes(ArtifactPolicy.Type.LOGCAT));
+        assertEquals(0, capped.tailBytes(ArtifactPolicy.Type.LOGCAT));
+
+        ArtifactPolicy tails = new ArtifactPolicy(EnumSet.allOf(ArtifactPolicy.Type.class), false, 5 * MB, MB);
+        assertEquals(0, tails.maxBytes(ArtifactPolicy.Type.LOGCAT));
+        assertEquals(MB, tails.tailBytes(ArtifactPolicy.Type.LOGCAT));
+        assertEquals(5 * MB, tails.maxBytes(ArtifactPolicy.Type.TEST_GIF));
+        assertEquals(0, tails.tailBytes(ArtifactPolicy.Type.TEST_GIF));
+    }
+
+    @Test
+    public void isBuiltFromTheApiConfig() {
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        apiConfig.artifactTypes = "XML_REPORT,ADB_LOG";
+        apiConfig.artifactsOfFailedDevicesOnly = true;
+        apiConfig.artifactMaxSizeMB = 2;
+        apiConfig.logTailSizeMB = 1;
+        ArtifactPolicy policy = ArtifactPolicy.of(apiConfig);
+
+        assertNotNull(policy.skipReason(ArtifactPolicy.Type.LOGCAT, device(10, 1)));
+        assertNotNull(policy.skipReason(ArtifactPolicy.Type.ADB_LOG, device(10, 0)));
+        assertEquals(MB, policy.tailBytes(ArtifactPolicy.Type.ADB_LOG));
+        assertEquals(2 * MB, policy.maxBytes(ArtifactPolicy.Type.XML_REPORT));
+    }
+
+    private static DeviceTestResult device(int totalCount, int failCount) {
+        DeviceTestResult deviceTestResult = new DeviceTestResult();
+        deviceTestResult.deviceSerialNumber = "D1";
+        deviceTestResult.totalCount = totalCount;
+        deviceTestResult.failCount = failCount;
+        return deviceTestResult;
+    }
+}
@@ -0,0 +1,154 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChunkedApkUploaderTest {
+    private static final String CHUNK_PATH = "/api/package/chunk/";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final int MB = 1024 * 1024;
+
+    /**
+     * Bytes the fake lab received per upload id.
+     */
+    private final Map<String, ByteArrayOutputStream> uploads = new ConcurrentHashMap<>();
+    private final List<String> contentRanges = new CopyOnWriteArrayList<>();
+    private volatile boolean dropNextChunkResponse = false;
+    private MockWebServer server;
+    private File dir;
+    private File apk;
+    private byte[] apkBytes;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = String.valueOf(request.getPath());
+                if (!path.startsWith(CHUNK_PATH)) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                String uploadId = path.substring(CHUNK_PATH.length());
+                if ("GET".equals(request.getMethod())) {
+                    ByteArrayOutputStream upload = uploads.get(uploadId);
+                    return upload == null ? new MockResponse().setResponseCode(404) : offset(upload.size());
+                }
+                String contentRange = request.getHeader("Content-Range");
+                contentRanges.add(contentRange);
+                Matcher matcher = CONTENT_RANGE.matcher(String.valueOf(contentRange));
+                ByteArrayOutputStream upload = uploads.computeIfAbsent(uploadId, id -> new ByteArrayOutputStream());
+                if (!matcher.matches() || Long.parseLong(matcher.group(1)) != upload.size()) {
+                    return new MockResponse().setResponseCode(416);
+                }
+                byte[] chunk = request.getBody().readByteArray();
+                upload.write(chunk, 0, chunk.length);
+                if (dropNextChunkResponse) {
+                    // the chunk landed, its response is lost
+                    dropNextChunkResponse = false;
+                    return offset(upload.size()).setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                }
+                return offset(upload.size());
+            }
+        });
+        server.start();
+        dir = Files.createTempDirectory("chunked-upload").toFile();
+        apk = new File(dir, "app.apk");
+        apkBytes = new byte[2 * MB + MB / 2];
+        new Random(7).nextBytes(apkBytes);
+        FileUtils.writeByteArrayToFile(apk, apkBytes);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void uploadsTheFileInChunks() throws Exception {
+        String uploadId = upload(apk);
+
+        assertEquals(ApkUploadCache.sha256(apk) + "-" + apkBytes.length, uploadId);
+        assertArrayEquals(apkBytes, uploads.get(uploadId).toByteArray());
+        List<String> expected = new ArrayList<>();
+        expected.add("bytes 0-" + (MB - 1) + "/" + apkBytes.length);
+        expected.add("bytes " + MB + "-" + (2 * MB - 1) + "/" + apkBytes.length);
+        expected.add("bytes " + 2 * MB + "-" + (apkBytes.length - 1) + "/" + apkBytes.length);
+        assertEquals(expected, contentRanges);
+    }
+
+    @Test
+    public void resumesFromTheAcknowledgedOffset() throws Exception {
+        // a previous build got the first chunk through
+        String uploadId = ApkUploadCache.sha256(apk) + "-" + apkBytes.length;
+        ByteArrayOutputStream previous = new ByteArrayOutputStream();
+        previous.write(apkBytes, 0, MB);
+        uploads.put(uploadId, previous);
+
+        assertEquals(uploadId, upload(apk));
+        assertArrayEquals(apkBytes, uploads.get(uploadId).toByteArray());
+        assertEquals(2, contentRanges.size());
+        assertEquals("bytes " + MB + "-" + (2 * MB - 1) + "/" + apkBytes.length, contentRanges.get(0));
+    }
+
+    @Test
+    public void lostChunkResponseIsRecoveredFromTheOffset() throws Exception {
+        dropNextChunkResponse = true;
+        String uploadId = upload(apk);
+
+        // the lab rejects a chunk that does not start at its offset, so nothing got appended twice
+        assertArrayEquals(apkBytes, uploads.get(uploadId).toByteArray());
+    }
+
+    private String upload(File file) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            return newUploader().uploadAsync(file, executor, scheduler).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+            scheduler.shutdownNow();
+        }
+    }
+
+    private ChunkedApkUploader newUploader() {
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        apiConfig.schema = "http";
+        apiConfig.host = server.getHostName() + ":" + server.getPort();
+        apiConfig.uploadChunkSizeMB = 1;
+        return new ChunkedApkUploader(new OkHttpClient(), apiConfig);
+    }
+
+    private static MockResponse offset(long offset) {
+        return new MockResponse().setBody("{\"code\":200,\"content\":{\"offset\":" + offset + "}}");
+    }
+}
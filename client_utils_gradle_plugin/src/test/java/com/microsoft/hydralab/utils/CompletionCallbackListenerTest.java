@@ -0,0 +1,107 @@
+package com.microsoft.hydralab.utils;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompletionCallbackListenerTest {
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final OkHttpClient client = new OkHttpClient();
+    private CompletionCallbackListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        listener = new CompletionCallbackListener("localhost", 0);
+    }
+
+    @After
+    public void tearDown() {
+        listener.close();
+    }
+
+    @Test
+    public void endedTaskCompletesTheWait() throws Exception {
+        listener.expectTestTask("task-1");
+        assertEquals(200, post(listener.getCallbackUrl(), "{\"id\":\"task-1\",\"status\":\"finished\",\"totalTestCount\":3}"));
+
+        assertEquals("task-1", listener.getCompletion().get(5, TimeUnit.SECONDS).id);
+        HydraLabClientUtils.TestTask testTask = listener.takeCompletedTask();
+        assertEquals("task-1", testTask.id);
+        assertEquals(3, testTask.totalTestCount);
+        assertTrue(listener.isDelivered());
+        // handed out once only
+        assertNull(listener.takeCompletedTask());
+    }
+
+    @Test
+    public void taskInTheApiEnvelopeIsAccepted() throws Exception {
+        listener.expectTestTask("task-1");
+        assertEquals(200, post(listener.getCallbackUrl(), "{\"code\":200,\"content\":{\"id\":\"task-1\",\"status\":\"error\"}}"));
+
+        assertEquals("task-1", listener.getCompletion().get(5, TimeUnit.SECONDS).id);
+        assertEquals("error", listener.takeCompletedTask().status);
+    }
+
+    @Test
+    public void runningTaskDoesNotCompleteTheWait() throws Exception {
+        listener.expectTestTask("task-1");
+        assertEquals(200, post(listener.getCallbackUrl(), "{\"id\":\"task-1\",\"status\":\"running\"}"));
+
+        assertFalse(listener.getCompletion().isDone());
+        assertNull(listener.takeCompletedTask());
+    }
+
+    @Test
+    public void badRequestsAreRejected() throws Exception {
+        assertEquals(400, post(listener.getCallbackUrl(), "not json"));
+        assertEquals(400, post(listener.getCallbackUrl(), "{\"id\":\"task-1\"}"));
+        try (Response response = client.newCall(new Request.Builder().url(listener.getCallbackUrl()).build()).execute()) {
+            assertEquals(405, response.code());
+        }
+        // the random token is part of the path
+        String otherPath = listener.getCallbackUrl().substring(0, listener.getCallbackUrl().lastIndexOf('/') + 1) + "guessed";
+        assertEquals(404, post(otherPath, "{\"id\":\"task-1\",\"status\":\"finished\"}"));
+        assertFalse(listener.getCompletion().isDone());
+    }
+
+    @Test
+    public void callbackOfAnotherTaskIsIgnored() throws Exception {
+        listener.expectTestTask("task-1");
+        assertEquals(409, post(listener.getCallbackUrl(), "{\"id\":\"task-2\",\"status\":\"finished\"}"));
+
+        assertFalse(listener.getCompletion().isDone());
+        assertNull(listener.takeCompletedTask());
+    }
+
+    @Test
+    public void callbackBeforeTheTriggerReturnedIsKept() throws Exception {
+        // the lab can be faster than the trigger response
+        assertEquals(200, post(listener.getCallbackUrl(), "{\"id\":\"task-2\",\"status\":\"finished\"}"));
+        assertEquals(200, post(listener.getCallbackUrl(), "{\"id\":\"task-1\",\"status\":\"finished\"}"));
+        assertFalse(listener.getCompletion().isDone());
+
+        listener.expectTestTask("task-1");
+        assertEquals("task-1", listener.getCompletion().get(5, TimeUnit.SECONDS).id);
+    }
+
+    private int post(String url, String body) throws IOException {
+        Request request = new Request.Builder().url(url).post(RequestBody.create(body, JSON)).build();
+        try (Response response = client.newCall(request).execute()) {
+            return response.code();
+        }
+    }
+}
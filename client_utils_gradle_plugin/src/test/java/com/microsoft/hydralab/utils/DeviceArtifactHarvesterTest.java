@@ -0,0 +1,127 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.DeviceTestResult;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.TestTask;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceArtifactHarvesterTest {
+    private static final int XML_REPORT = 1;
+
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    private MockWebServer server;
+    private File dir;
+    private ArtifactDownloader downloader;
+    private DeviceArtifactHarvester harvester;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = String.valueOf(request.getPath());
+                paths.add(path);
+                return new MockResponse().setBody("content of " + path);
+            }
+        });
+        server.start();
+        dir = Files.createTempDirectory("artifact-harvest").toFile();
+        downloader = new ArtifactDownloader(new OkHttpClient(), new ArtifactDownloader.Options());
+        harvester = new DeviceArtifactHarvester(downloader, dir.getPath(), "com.app.Suite");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.close();
+        server.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void startsTheDownloadsOfFinishedDevicesOnly() throws Exception {
+        TestTask runningTest = task(device("D1", true, "/blob/D1.xml"), device("D2", false, "/blob/D2.xml"));
+
+        harvester.harvestFinishedDevices(runningTest);
+        join(harvester.downloads(runningTest.deviceTestResults.get(0)));
+
+        assertEquals(1, paths.size());
+        assertEquals("/blob/D1.xml", paths.get(0));
+        assertEquals("content of /blob/D1.xml", FileUtils.readFileToString(new File(dir, "TEST-com.app.Suite-D1.xml"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void finishedDownloadsAreReused() throws Exception {
+        TestTask runningTest = task(device("D1", true, "/blob/D1.xml"));
+        harvester.harvestFinishedDevices(runningTest);
+        List<CompletableFuture<ArtifactDownloader.DownloadResult>> early = harvester.downloads(runningTest.deviceTestResults.get(0));
+        join(early);
+
+        // the same status again, and the final status once the task is done
+        harvester.harvestFinishedDevices(runningTest);
+        List<CompletableFuture<ArtifactDownloader.DownloadResult>> collected = harvester.downloads(runningTest.deviceTestResults.get(0));
+
+        assertSame(early.get(XML_REPORT), collected.get(XML_REPORT));
+        assertEquals(1, paths.size());
+    }
+
+    @Test
+    public void retriedDeviceIsDownloadedAgain() throws Exception {
+        harvester.harvestFinishedDevices(task(device("D1", true, "/blob/D1-try1.xml")));
+        // the lab retried the device, the report moved to a new blob
+        DeviceTestResult retried = device("D1", true, "/blob/D1-try2.xml");
+        harvester.harvestFinishedDevices(task(retried));
+        List<CompletableFuture<ArtifactDownloader.DownloadResult>> downloads = harvester.downloads(retried);
+        join(downloads);
+
+        assertEquals(2, paths.size());
+        assertTrue(downloads.get(XML_REPORT).get().success);
+        assertEquals("content of /blob/D1-try2.xml", FileUtils.readFileToString(new File(dir, "TEST-com.app.Suite-D1.xml"), StandardCharsets.UTF_8));
+    }
+
+    private DeviceTestResult device(String serialNumber, boolean finished, String xmlReportPath) {
+        DeviceTestResult deviceTestResult = new DeviceTestResult();
+        deviceTestResult.deviceSerialNumber = serialNumber;
+        deviceTestResult.testEndTimeMillis = finished ? System.currentTimeMillis() : 0;
+        deviceTestResult.testXmlReportBlobUrl = server.url(xmlReportPath).toString();
+        return deviceTestResult;
+    }
+
+    private static TestTask task(DeviceTestResult... deviceTestResults) {
+        TestTask testTask = new TestTask();
+        testTask.status = TestTask.TestStatus.RUNNING;
+        testTask.testDevicesCount = deviceTestResults.length;
+        testTask.deviceTestResults = new ArrayList<>();
+        for (DeviceTestResult deviceTestResult : deviceTestResults) {
+            testTask.deviceTestResults.add(deviceTestResult);
+        }
+        return testTask;
+    }
+
+    private static void join(List<CompletableFuture<ArtifactDownloader.DownloadResult>> downloads) throws Exception {
+        for (CompletableFuture<ArtifactDownloader.DownloadResult> download : downloads) {
+            download.get(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FailedTestRerunTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("failed-test-rerun").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void readsCaseFailures() throws IOException {
+        Map<String, Boolean> failures = FailedTestRerun.readCaseFailures(JUnitReports.write(dir, "run.xml",
+                "<testcase classname=\"com.app.FooTest\" name=\"passes\"/>",
+                "<testcase classname=\"com.app.FooTest\" name=\"fails\"><failure message=\"boom\">stack</failure></testcase>",
+                "<testcase classname=\"com.app.BarTest\" name=\"errs\"><error message=\"crash\"/></testcase>",
+                "<testcase classname=\"com.app.BarTest\" name=\"skipped\"><skipped/></testcase>"));
+        assertEquals(4, failures.size());
+        assertFalse(failures.get("com.app.FooTest#passes"));
+        assertTrue(failures.get("com.app.FooTest#fails"));
+        assertTrue(failures.get("com.app.BarTest#errs"));
+        assertFalse(failures.get("com.app.BarTest#skipped"));
+    }
+
+    @Test(expected = IOException.class)
+    public void brokenReportFails() throws IOException {
+        FailedTestRerun.readCaseFailures(JUnitReports.write(dir, "broken.xml", "<testcase classname=\"A\" name=\"a\">"));
+    }
+
+    @Test
+    public void rerunsOnlyTheFailedCases() throws IOException {
+        FailedTestRerun rerun = new FailedTestRerun(Arrays.asList(
+                JUnitReports.write(dir, "device1.xml", "<testcase classname=\"A\" name=\"a\"><failure/></testcase>",
+                        "<testcase classname=\"A\" name=\"b\"/>",
+                        "<testcase classname=\"B\" name=\"p[0]\"><failure/></testcase>",
+                        "<testcase classname=\"B\" name=\"p[1]\"><failure/></testcase>"),
+                JUnitReports.write(dir, "device2.xml", "<testcase classname=\"C\" name=\"c\"><error/></testcase>")));
+        Map<String, String> args = new LinkedHashMap<>();
+        args.put("size", "large");
+        args.put("notClass", "D");
+        args.put("numShards", "2");
+        args.put("shardIndex", "1");
+
+        Map<String, String> rerunArgs = rerun.rerunInstrumentationArgs(args);
+        assertEquals("large", rerunArgs.get("size"));
+        assertFalse(rerunArgs.containsKey("notClass"));
+        assertFalse(rerunArgs.containsKey("numShards"));
+        // the parameterized cases run together as their method
+        assertEquals("A#a,B#p,C#c", rerunArgs.get("class"));
+    }
+
+    @Test
+    public void casesThatPassOnARerunAreFlaky() throws IOException {
+        FailedTestRerun rerun = new FailedTestRerun(Collections.singletonList(JUnitReports.write(dir, "run.xml",
+                "<testcase classname=\"A\" name=\"a\"><failure/></testcase>",
+                "<testcase classname=\"A\" name=\"b\"><failure/></testcase>",
+                "<testcase classname=\"A\" name=\"c\"><failure/></testcase>")));
+        rerun.update(Collections.singletonList(JUnitReports.write(dir, "rerun1.xml",
+                "<testcase classname=\"A\" name=\"a\"/>",
+                "<testcase classname=\"A\" name=\"b\"><failure/></testcase>")));
+        rerun.update(Collections.singletonList(JUnitReports.write(dir, "rerun2.xml",
+                "<testcase classname=\"A\" name=\"b\"/>")));
+
+        assertEquals(2, rerun.getAttempts());
+        assertEquals(Integer.valueOf(1), rerun.getFlaky().get("A#a"));
+        assertEquals(Integer.valueOf(2), rerun.getFlaky().get("A#b"));
+        // not reported by a re-run, e.g. as the device crashed, is still failing
+        assertEquals(Collections.singletonList("A#c"), Arrays.asList(rerun.getFailing().toArray()));
+        assertTrue(rerun.describe().contains("2 flaky, 1 still failing"));
+    }
+}
@@ -0,0 +1,160 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the reader against the git command on a repository of commits with long, nearly identical messages, which git
+ * packs as deltas of each other.
+ */
+public class GitMetadataReaderTest {
+    private static final int COMMIT_COUNT = 12;
+
+    private File repo;
+
+    @Before
+    public void setUp() throws Exception {
+        repo = Files.createTempDirectory("git-metadata").toFile();
+        git("init", "-q");
+        git("config", "user.name", "Test");
+        git("config", "user.email", "test@example.com");
+        git("config", "commit.gpgsign", "false");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            body.append("Line ").append(i).append(" of the description that stays the same from one commit to the next\n");
+        }
+        for (int i = 0; i < COMMIT_COUNT; i++) {
+            git("commit", "-q", "--allow-empty", "-m", "Change " + i + "\n\n" + body + "Trailer " + i);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(repo);
+    }
+
+    @Test
+    public void readsLooseCommits() throws Exception {
+        assertMatchesGit();
+    }
+
+    @Test
+    public void readsOffsetDeltas() throws Exception {
+        git("-c", "repack.useDeltaBaseOffset=true", "repack", "-adfq", "--window=50", "--depth=50");
+        assertCommitDeltas();
+        assertMatchesGit();
+    }
+
+    @Test
+    public void readsRefDeltas() throws Exception {
+        git("-c", "repack.useDeltaBaseOffset=false", "repack", "-adfq", "--window=50", "--depth=50");
+        assertCommitDeltas();
+        assertMatchesGit();
+    }
+
+    @Test
+    public void readsPackedRefs() throws Exception {
+        git("pack-refs", "--all");
+        try (GitMetadataReader reader = GitMetadataReader.open(repo)) {
+            assertEquals(git("rev-parse", "HEAD"), reader.resolveHead());
+        }
+    }
+
+    @Test
+    public void outsideARepositoryThereIsNoReader() throws Exception {
+        File dir = Files.createTempDirectory("no-git").toFile();
+        try {
+            // a temp dir inside a work tree would find that one
+            if (!new File(dir.getParentFile(), ".git").exists()) {
+                assertNull(GitMetadataReader.open(dir));
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void truncatedDeltaIsRejected() throws Exception {
+        byte[] base = "hello world".getBytes(StandardCharsets.US_ASCII);
+        // base and result size, copy 5 bytes from offset 0, insert 6 bytes
+        byte[] delta = {11, 11, (byte) 0x91, 0, 5, 6, ' ', 't', 'h', 'e', 'r', 'e'};
+        assertEquals("hello there", new String(GitMetadataReader.applyDelta(base, delta), StandardCharsets.US_ASCII));
+
+        for (int length = 0; length < delta.length; length++) {
+            try {
+                GitMetadataReader.applyDelta(base, Arrays.copyOf(delta, length));
+                fail("delta cut to " + length + " bytes");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("delta"));
+            }
+        }
+    }
+
+    private void assertMatchesGit() throws Exception {
+        List<String> hashes = Arrays.asList(git("rev-list", "HEAD").split("\n"));
+        assertEquals(COMMIT_COUNT, hashes.size());
+        try (GitMetadataReader reader = GitMetadataReader.open(repo)) {
+            String head = reader.resolveHead();
+            assertEquals(hashes.get(0), head);
+            assertEquals(git("rev-parse", "--short", "HEAD"), reader.abbreviate(head));
+            for (String hash : hashes) {
+                GitMetadataReader.Commit commit = reader.readCommit(hash);
+                String raw = git("cat-file", "commit", hash);
+                assertEquals(raw.substring(raw.indexOf("\n\n") + 2), commit.message.trim());
+                assertEquals(git("log", "-1", "--format=%s", hash), commit.getSubject());
+                assertEquals(git("log", "-1", "--format=%P", hash), String.join(" ", commit.parents));
+                assertEquals(hash, reader.readCommit(hash.substring(0, 10)).hash);
+            }
+            String first = hashes.get(hashes.size() - 1);
+            assertEquals(COMMIT_COUNT - 1, reader.countFirstParentCommits(first, head, null));
+            assertEquals(-1, reader.countFirstParentCommits(head, first, null));
+        }
+    }
+
+    /**
+     * Make sure the repack stored commits as deltas, or the test would not cover them.
+     */
+    private void assertCommitDeltas() throws Exception {
+        File[] indexes = new File(repo, ".git/objects/pack").listFiles((dir, name) -> name.endsWith(".idx"));
+        assertTrue(indexes != null && indexes.length == 1);
+        int deltas = 0;
+        for (String line : git("verify-pack", "-v", indexes[0].getAbsolutePath()).split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            // hash, type, size, size in pack, offset, depth, base
+            if (columns.length == 7 && "commit".equals(columns[1])) {
+                deltas++;
+            }
+        }
+        assertTrue("no commit stored as a delta", deltas > 0);
+    }
+
+    private String git(String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).directory(repo).redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        assertEquals(String.join(" ", command) + ": " + output, 0, process.waitFor());
+        return output.trim();
+    }
+}
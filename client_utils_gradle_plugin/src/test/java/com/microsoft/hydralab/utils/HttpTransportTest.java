@@ -0,0 +1,111 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.HydraLabAPIConfig;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HttpTransportTest {
+    private MockWebServer server;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        dir = Files.createTempDirectory("http-transport").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void runsWithTheSameSettingsShareTheClients() {
+        HttpTransport transport = HttpTransport.of(apiConfig(false));
+        assertSame(transport, HttpTransport.of(apiConfig(false)));
+
+        HydraLabAPIConfig otherTimeout = apiConfig(false);
+        otherTimeout.connectTimeoutSec++;
+        assertNotSame(transport, HttpTransport.of(otherTimeout));
+    }
+
+    @Test
+    public void http2CanBeTurnedOff() {
+        HydraLabAPIConfig apiConfig = apiConfig(false);
+        apiConfig.http2Enabled = false;
+        assertEquals(Collections.singletonList(Protocol.HTTP_1_1), HttpTransport.of(apiConfig).getApiClient().protocols());
+
+        apiConfig.http2Enabled = true;
+        assertTrue(HttpTransport.of(apiConfig).getApiClient().protocols().contains(Protocol.HTTP_2));
+    }
+
+    @Test
+    public void blobsWithoutCachingHeadersAreCachedOnDisk() throws IOException {
+        server.enqueue(new MockResponse().setBody("blob"));
+        HttpTransport transport = HttpTransport.of(apiConfig(true));
+
+        assertNull(get(transport.getBlobClient()).cacheResponse());
+        Response cached = get(transport.getBlobClient());
+        assertNotNull(cached.cacheResponse());
+        assertNull(cached.networkResponse());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void apiCallsBypassTheCache() throws IOException {
+        server.enqueue(new MockResponse().setBody("status"));
+        server.enqueue(new MockResponse().setBody("status"));
+        HttpTransport transport = HttpTransport.of(apiConfig(true));
+
+        get(transport.getApiClient());
+        get(transport.getApiClient());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void cachingHeadersOfTheServerAreKept() throws IOException {
+        server.enqueue(new MockResponse().setHeader("Cache-Control", "no-store").setBody("blob"));
+        server.enqueue(new MockResponse().setHeader("Cache-Control", "no-store").setBody("blob"));
+        HttpTransport transport = HttpTransport.of(apiConfig(true));
+
+        get(transport.getBlobClient());
+        get(transport.getBlobClient());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    private HydraLabAPIConfig apiConfig(boolean httpCacheEnabled) {
+        HydraLabAPIConfig apiConfig = HydraLabAPIConfig.defaultAPI();
+        apiConfig.httpCacheEnabled = httpCacheEnabled;
+        apiConfig.httpCacheDir = new File(dir, "http-cache").getAbsolutePath();
+        return apiConfig;
+    }
+
+    private Response get(OkHttpClient client) throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(server.url("/blob/report.xml")).build()).execute()) {
+            response.body().string();
+            return response;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.HydraLabAPIConfig;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.TestTask;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HydraLabClientTest {
+    private static final String TEST_TASK_ID = "task-1";
+
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    private final List<String> cancelPaths = new CopyOnWriteArrayList<>();
+    // status responses in order, the last one is repeated
+    private final Queue<String> statuses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger uploads = new AtomicInteger();
+    // trigger responses in order, then triggerResponse
+    private final Queue<String> triggerResponses = new ConcurrentLinkedQueue<>();
+    private volatile String triggerResponse = "{\"code\":200,\"content\":{\"testTaskId\":\"" + TEST_TASK_ID + "\"}}";
+    private volatile String lastStatus;
+    private volatile String deviceTestResults = "[]";
+    private MockWebServer server;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = String.valueOf(request.getPath());
+                paths.add(path);
+                // the cancel path is under the status path, check it first
+                if (path.startsWith("/api/test/task/cancel/")) {
+                    cancelPaths.add(path);
+                    return json("{\"code\":200,\"content\":{}}");
+                }
+                if (path.startsWith("/api/package/add")) {
+                    return json("{\"code\":200,\"content\":{\"id\":\"set-" + uploads.incrementAndGet() + "\"}}");
+                }
+                if (path.startsWith("/api/test/task/run/")) {
+                    String response = triggerResponses.poll();
+                    return json(response == null ? triggerResponse : response);
+                }
+                if (path.startsWith("/api/test/task/" + TEST_TASK_ID)) {
+                    String status = statuses.poll();
+                    lastStatus = status == null ? lastStatus : status;
+                    return json("{\"code\":200,\"content\":{\"id\":\"" + TEST_TASK_ID + "\",\"status\":\"" + lastStatus + "\",\"testDevicesCount\":2,"
+                            + "\"deviceTestResults\":" + deviceTestResults + "}}");
+                }
+                if (path.startsWith("/blob/")) {
+                    // slow enough to still be streaming when cancelled
+                    return new MockResponse().setBody(new Buffer().write(new byte[256 * 1024])).throttleBody(1024, 1, TimeUnit.SECONDS);
+                }
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        server.start();
+        dir = Files.createTempDirectory("hydra-lab-client").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void uploadAsyncReturnsTheApkSetId() throws Exception {
+        HydraLabClient client = new HydraLabClient(apiConfig());
+
+        assertEquals("set-1", client.uploadAsync("debug", "abc", "1", "message", apk("app.apk"), apk("app-test.apk")).get(10, TimeUnit.SECONDS));
+        assertEquals(1, paths.size());
+    }
+
+    @Test
+    public void triggerAsyncReturnsTheTestTaskId() throws Exception {
+        HydraLabClient client = new HydraLabClient(apiConfig());
+
+        assertEquals(TEST_TASK_ID, client.triggerAsync("set-1", "com.app.Suite", null, null, 600, new HashMap<>(), new HashMap<>())
+                .get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void triggerAsyncFailsOnAnErrorCode() throws Exception {
+        triggerResponse = "{\"code\":400,\"message\":\"bad request\"}";
+        HydraLabClient client = new HydraLabClient(apiConfig());
+
+        try {
+            client.triggerAsync("set-1", "com.app.Suite", null, null, 600, new HashMap<>(), new HashMap<>()).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("400"));
+        }
+    }
+
+    @Test
+    public void rejectedCachedApkSetIsUploadedAgain() throws Exception {
+        HydraLabClient client = new HydraLabClient(cachingApiConfig());
+        File apk = apk("app.apk");
+        File testApk = apk("app-test.apk");
+        client.uploadAsync("debug", "abc", "1", "message", apk, testApk).get(10, TimeUnit.SECONDS);
+        assertEquals("set-1", client.uploadAsync("debug", "abc", "1", "message", apk, testApk).get(10, TimeUnit.SECONDS));
+        // the lab purged the set meanwhile
+        triggerResponses.add("{\"code\":400,\"message\":\"Error fileSetId\"}");
+
+        assertEquals(TEST_TASK_ID, client.triggerAsync("set-1", "com.app.Suite", null, null, 600, new HashMap<>(), new HashMap<>())
+                .get(10, TimeUnit.SECONDS));
+        assertEquals(2, uploads.get());
+    }
+
+    @Test
+    public void otherTriggerErrorKeepsTheCachedApkSet() throws Exception {
+        HydraLabClient client = new HydraLabClient(cachingApiConfig());
+        File apk = apk("app.apk");
+        File testApk = apk("app-test.apk");
+        client.uploadAsync("debug", "abc", "1", "message", apk, testApk).get(10, TimeUnit.SECONDS);
+        assertEquals("set-1", client.uploadAsync("debug", "abc", "1", "message", apk, testApk).get(10, TimeUnit.SECONDS));
+        triggerResponse = "{\"code\":400,\"message\":\"bad request\"}";
+
+        try {
+            client.triggerAsync("set-1", "com.app.Suite", null, null, 600, new HashMap<>(), new HashMap<>()).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("bad request"));
+        }
+        assertEquals(1, uploads.get());
+    }
+
+    @Test
+    public void awaitCompletionAsyncPollsUntilTheTaskIsFinished() throws Exception {
+        statuses.add(TestTask.TestStatus.WAITING);
+        statuses.add(TestTask.TestStatus.RUNNING);
+        statuses.add(TestTask.TestStatus.FINISHED);
+        HydraLabClient client = new HydraLabClient(apiConfig());
+
+        TestTask testTask = client.awaitCompletionAsync(TEST_TASK_ID, 600).get(30, TimeUnit.SECONDS);
+        assertEquals(TestTask.TestStatus.FINISHED, testTask.status);
+        // the finished task is fetched once more with the crash stacks
+        assertEquals(4, paths.size());
+    }
+
+    @Test
+    public void awaitCompletionAsyncFailsWhenTheTaskErrors() throws Exception {
+        statuses.add(TestTask.TestStatus.EXCEPTION);
+        HydraLabClient client = new HydraLabClient(apiConfig());
+
+        try {
+            client.awaitCompletionAsync(TEST_TASK_ID, 600).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("error"));
+        }
+    }
+
+    @Test
+    public void cancelReleasesTheTaskAndDeletesPartialArtifacts() throws Exception {
+        // one device is done while the task is still running, its report is downloaded right away
+        statuses.add(TestTask.TestStatus.RUNNING);
+        deviceTestResults = "[{\"deviceSerialNumber\":\"D1\",\"testEndTimeMillis\":1,\"totalCount\":1,"
+                + "\"testXmlReportBlobUrl\":\"" + server.url("/blob/report.xml") + "\"}]";
+        File reportDir = new File(dir, "report");
+        assertTrue(reportDir.mkdirs());
+        HydraLabClient client = new HydraLabClient(apiConfig());
+        File apk = apk("app.apk");
+        File testApk = apk("app-test.apk");
+        AtomicReference<Throwable> runError = new AtomicReference<>();
+        Thread run = new Thread(() -> {
+            try {
+                client.runTestOnDeviceWithAPK(apk.getPath(), testApk.getPath(), "debug", "com.app.Suite", null, null, 600,
+                        reportDir.getPath(), new HashMap<>(), new HashMap<>());
+            } catch (Throwable e) {
+                runError.set(e);
+            }
+        });
+        run.start();
+
+        File partFile = new File(reportDir, "TEST-com.app.Suite-D1.xml.part");
+        for (int i = 0; i < 1000 && !partFile.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(partFile.exists());
+
+        client.cancel("test");
+        run.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(run.isAlive());
+        assertTrue(String.valueOf(runError.get()), runError.get() instanceof CancellationException);
+        assertTrue(client.isMarkedFail());
+
+        assertEquals(1, cancelPaths.size());
+        assertTrue(cancelPaths.get(0), cancelPaths.get(0).startsWith("/api/test/task/cancel/" + TEST_TASK_ID + "?reason="));
+        String[] partFiles = reportDir.list((parent, name) -> name.endsWith(".part"));
+        assertEquals(0, partFiles == null ? 0 : partFiles.length);
+    }
+
+    private HydraLabAPIConfig apiConfig() {
+        HydraLabAPIConfig apiConfig = HydraLabAPIConfig.defaultAPI();
+        apiConfig.schema = "http";
+        apiConfig.host = server.getHostName() + ":" + server.getPort();
+        apiConfig.apkUploadCacheEnabled = false;
+        apiConfig.apkUploadCacheDir = new File(dir, "cache").getAbsolutePath();
+        apiConfig.connectionWarmUpEnabled = false;
+        apiConfig.telemetryEnabled = false;
+        apiConfig.pollInitialIntervalSec = 1;
+        apiConfig.pollMaxIntervalSec = 1;
+        return apiConfig;
+    }
+
+    private HydraLabAPIConfig cachingApiConfig() {
+        HydraLabAPIConfig apiConfig = apiConfig();
+        apiConfig.apkUploadCacheEnabled = true;
+        return apiConfig;
+    }
+
+    private File apk(String name) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.write(file, name, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json; charset=utf-8").setBody(body);
+    }
+}
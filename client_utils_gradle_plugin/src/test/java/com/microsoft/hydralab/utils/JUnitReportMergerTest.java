@@ -0,0 +1,93 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class JUnitReportMergerTest {
+    private File dir;
+    private JUnitReportMerger merger;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("junit-merge").toFile();
+        LinkedHashMap<String, File> reports = new LinkedHashMap<>();
+        reports.put("D1", report("D1", "<testcase classname=\"com.app.A\" name=\"ok\" time=\"1.5\"/>"
+                + "<testcase classname=\"com.app.A\" name=\"broken\" time=\"0.5\"><failure message=\"boom\">trace</failure></testcase>"
+                + "<testcase classname=\"com.app.A\" name=\"flaky\" time=\"1,000.25\"><error message=\"oops\"/></testcase>"));
+        reports.put("D2", report("D2", "<testcase classname=\"com.app.A\" name=\"ok\" time=\"2\"/>"
+                + "<testcase classname=\"com.app.A\" name=\"broken\" time=\"0.5\"><failure message=\"boom\"/></testcase>"
+                + "<testcase classname=\"com.app.A\" name=\"flaky\" time=\"1\"/>"
+                + "<testcase classname=\"com.app.A\" name=\"ignored\"><skipped/></testcase>"));
+        merger = new JUnitReportMerger(reports);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void mergesOneSuitePerDevice() throws Exception {
+        File merged = new File(dir, "JUnitMerged-Suite.xml");
+        merger.merge(merged, 2);
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(merged);
+        assertEquals("testsuites", document.getDocumentElement().getTagName());
+        NodeList suites = document.getElementsByTagName("testsuite");
+        assertEquals(2, suites.getLength());
+        assertEquals("Suite-D1", suites.item(0).getAttributes().getNamedItem("name").getNodeValue());
+        assertEquals("Suite-D2", suites.item(1).getAttributes().getNamedItem("name").getNodeValue());
+        assertEquals(7, document.getElementsByTagName("testcase").getLength());
+        assertEquals("trace", document.getElementsByTagName("failure").item(0).getTextContent());
+        // the fragments are gone
+        assertEquals(Collections.singletonList("JUnitMerged-Suite.xml"), Arrays.asList(dir.list((parent, name) -> !name.startsWith("TEST-"))));
+    }
+
+    @Test
+    public void summarizesFailuresAcrossDevices() throws Exception {
+        merger.merge(new File(dir, "JUnitMerged-Suite.xml"), 2);
+        JUnitReportMerger.MatrixSummary summary = merger.summarize();
+
+        assertEquals(4, summary.testCount);
+        assertEquals(Collections.singletonMap("com.app.A#broken", Arrays.asList("D1", "D2")), summary.failedOnAllDevices);
+        assertEquals(Collections.singletonMap("com.app.A#flaky", Collections.singletonList("D1")), summary.failedOnSomeDevices);
+    }
+
+    @Test
+    public void writesTheMatrixCsv() throws Exception {
+        merger.merge(new File(dir, "JUnitMerged-Suite.xml"), 1);
+        File csv = new File(dir, "TestMatrix-Suite.csv");
+        merger.writeMatrixCsv(csv);
+
+        List<String> lines = FileUtils.readLines(csv, StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(
+                "test,D1,D2",
+                "com.app.A#broken,FAIL:0.500,FAIL:0.500",
+                "com.app.A#flaky,FAIL:1000.250,PASS:1.000",
+                "com.app.A#ignored,,SKIP:0.000",
+                "com.app.A#ok,PASS:1.500,PASS:2.000"), lines);
+    }
+
+    private File report(String deviceSerial, String testCases) throws IOException {
+        File report = new File(dir, "TEST-Suite-" + deviceSerial + ".xml");
+        FileUtils.write(report, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuite name=\"Suite\" tests=\"3\">" + testCases + "</testsuite>",
+                StandardCharsets.UTF_8);
+        return report;
+    }
+}
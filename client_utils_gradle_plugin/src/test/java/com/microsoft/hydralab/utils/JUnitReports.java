@@ -0,0 +1,26 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JUnit XML reports for the tests of the code that reads them.
+ */
+final class JUnitReports {
+    private JUnitReports() {
+    }
+
+    /**
+     * @param testCases testcase elements of the suite
+     * @return the report, a single testsuite in the dir
+     */
+    static File write(File dir, String name, String... testCases) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.write(file, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuite name=\"suite\">\n" + String.join("\n", testCases) + "\n</testsuite>\n",
+                StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,88 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.JsonObject;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogCrashIndexerTest {
+    private static final String LOG = "10-16 12:00:00.000 I/ActivityManager: Start proc\n"
+            + "10-16 12:00:01.000 E/AndroidRuntime: FATAL EXCEPTION: main\r\n"
+            + "10-16 12:00:01.001 E/AndroidRuntime: java.lang.NullPointerException\n"
+            + "10-16 12:00:02.000 E/ActivityManager: ANR in com.app (com.app/.MainActivity)\n"
+            + "10-16 12:00:03.000 F/libc: Fatal signal 11 (SIGSEGV), code 1\n"
+            + "10-16 12:00:03.001 F/DEBUG: *** *** *** *** *** *** *** *** *** *** *** *** *** *** *** ***\n"
+            + "10-16 12:00:04.000 E/AndroidRuntime: FATAL EXCEPTION: worker";
+
+    @Test
+    public void indexesEachCrashWithItsLineAndOffset() {
+        LogCrashIndexer indexer = index(LOG, 7);
+
+        List<LogCrashIndexer.CrashEntry> entries = indexer.getEntries();
+        // the tombstone header belongs to the native crash of the line before
+        assertEquals(4, indexer.getCrashCount());
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(0), LogCrashIndexer.CrashType.JAVA_CRASH, 2, "FATAL EXCEPTION: main");
+        assertEntry(entries.get(1), LogCrashIndexer.CrashType.ANR, 4, "ANR in com.app (com.app/.MainActivity)");
+        assertEntry(entries.get(2), LogCrashIndexer.CrashType.NATIVE_CRASH, 5, "Fatal signal 11 (SIGSEGV), code 1");
+        // the last line has no line break
+        assertEntry(entries.get(3), LogCrashIndexer.CrashType.JAVA_CRASH, 7, "FATAL EXCEPTION: worker");
+    }
+
+    @Test
+    public void resultDoesNotDependOnTheChunking() {
+        LogCrashIndexer whole = index(LOG, LOG.length());
+        LogCrashIndexer byteByByte = index(LOG, 1);
+
+        assertEquals(whole.getCrashCount(), byteByByte.getCrashCount());
+        for (int i = 0; i < whole.getEntries().size(); i++) {
+            assertEquals(whole.getEntries().get(i).offset, byteByByte.getEntries().get(i).offset);
+            assertEquals(whole.getEntries().get(i).text, byteByByte.getEntries().get(i).text);
+        }
+    }
+
+    @Test
+    public void writesTheIndexAsJson() throws IOException {
+        LogCrashIndexer indexer = index(LOG, 64);
+        File indexFile = File.createTempFile("logcat", ".crash-index.json");
+        try {
+            indexer.writeIndex(indexFile, "logcat.log");
+
+            JsonObject index = HydraLabClientUtils.GSON.fromJson(FileUtils.readFileToString(indexFile, StandardCharsets.UTF_8), JsonObject.class);
+            assertEquals("logcat.log", index.get("logFile").getAsString());
+            assertEquals(LOG.length(), index.get("bytes").getAsLong());
+            assertEquals(4, index.get("crashCount").getAsInt());
+            assertEquals("ANR", index.getAsJsonArray("crashes").get(1).getAsJsonObject().get("type").getAsString());
+        } finally {
+            FileUtils.deleteQuietly(indexFile);
+        }
+    }
+
+    private static void assertEntry(LogCrashIndexer.CrashEntry entry, LogCrashIndexer.CrashType type, long line, String text) {
+        assertEquals(type, entry.type);
+        assertEquals(line, entry.line);
+        assertEquals(text, entry.text);
+        // the offset points to the start of the line in the log
+        int lineStart = 0;
+        for (int i = 1; i < line; i++) {
+            lineStart = LOG.indexOf('\n', lineStart) + 1;
+        }
+        assertEquals(lineStart, entry.offset);
+    }
+
+    private static LogCrashIndexer index(String log, int chunkSize) {
+        byte[] bytes = log.getBytes(StandardCharsets.UTF_8);
+        LogCrashIndexer indexer = new LogCrashIndexer();
+        for (int off = 0; off < bytes.length; off += chunkSize) {
+            indexer.update(bytes, off, Math.min(chunkSize, bytes.length - off));
+        }
+        indexer.finish();
+        return indexer;
+    }
+}
@@ -0,0 +1,92 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.DeviceTestResult;
+import com.microsoft.hydralab.utils.HydraLabClientUtils.TestTask;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollingStrategyTest {
+    private static final long SECOND = TimeUnit.SECONDS.toMillis(1);
+
+    @Test
+    public void legacyHalvesAThirdOfTheTimeoutDownToFifteenSeconds() {
+        PollingStrategy strategy = new PollingStrategy.BinaryBackoff(180);
+        TestTask running = task(TestTask.TestStatus.RUNNING, 1);
+
+        assertEquals(60 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertEquals(30 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertEquals(15 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertEquals(15 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertEquals(30 * SECOND, strategy.nextDelayMillis(task(TestTask.TestStatus.WAITING, 1), 0));
+
+        strategy.reset();
+        assertEquals(60 * SECOND, strategy.nextDelayMillis(running, 0));
+    }
+
+    @Test
+    public void adaptiveBacksOffWithJitterUpToTheMax() {
+        PollingStrategy strategy = new PollingStrategy.Adaptive(4 * SECOND, 9 * SECOND, 0);
+        TestTask running = task(TestTask.TestStatus.RUNNING, 1);
+
+        assertAround(4 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertAround(6 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertAround(9 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertAround(9 * SECOND, strategy.nextDelayMillis(running, 0));
+
+        strategy.reset();
+        assertAround(4 * SECOND, strategy.nextDelayMillis(running, 0));
+    }
+
+    @Test
+    public void adaptiveSleepsThroughToTheExpectedEnd() {
+        PollingStrategy strategy = new PollingStrategy.Adaptive(5 * SECOND, 60 * SECOND, 100 * SECOND);
+        TestTask running = task(TestTask.TestStatus.RUNNING, 1);
+
+        assertAround(60 * SECOND, strategy.nextDelayMillis(running, 0));
+        assertAround(30 * SECOND, strategy.nextDelayMillis(running, 70 * SECOND));
+        // past the expected end it polls at short intervals again
+        assertAround(5 * SECOND, strategy.nextDelayMillis(running, 100 * SECOND));
+        // while queued the expected duration has not started yet
+        assertAround(5 * SECOND, new PollingStrategy.Adaptive(5 * SECOND, 60 * SECOND, 100 * SECOND)
+                .nextDelayMillis(task(TestTask.TestStatus.WAITING, 1), 0));
+    }
+
+    @Test
+    public void adaptivePollsFastOnceSomeDevicesAreDone() {
+        PollingStrategy strategy = new PollingStrategy.Adaptive(5 * SECOND, 60 * SECOND, 600 * SECOND);
+        TestTask running = task(TestTask.TestStatus.RUNNING, 3);
+        running.deviceTestResults.get(0).testEndTimeMillis = System.currentTimeMillis();
+
+        assertAround(5 * SECOND, strategy.nextDelayMillis(running, 0));
+    }
+
+    @Test
+    public void createPicksTheConfiguredStrategy() {
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        assertTrue(PollingStrategy.create(apiConfig, 600) instanceof PollingStrategy.Adaptive);
+        apiConfig.pollingStrategy = "Legacy";
+        assertTrue(PollingStrategy.create(apiConfig, 600) instanceof PollingStrategy.BinaryBackoff);
+    }
+
+    private static void assertAround(long expected, long actual) {
+        assertTrue(expected + " +/-20%: " + actual, actual >= expected * 0.8 && actual <= expected * 1.2);
+    }
+
+    private static TestTask task(String status, int devices) {
+        TestTask task = new TestTask();
+        task.status = status;
+        task.testDevicesCount = devices;
+        task.deviceTestResults = new ArrayList<>();
+        for (int i = 0; i < devices; i++) {
+            DeviceTestResult deviceTestResult = new DeviceTestResult();
+            deviceTestResult.deviceSerialNumber = "D" + i;
+            task.deviceTestResults.add(deviceTestResult);
+        }
+        return task;
+    }
+}
@@ -0,0 +1,167 @@
+package com.microsoft.hydralab.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+    private static final long OPEN_MILLIS = 50;
+
+    @Test
+    public void opensAfterThresholdAndClosesOnProbeSuccess() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = new RetryPolicy.CircuitBreaker("lab", 2, OPEN_MILLIS);
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertFalse(breaker.allowRequest());
+
+        RetryPolicy.Backoff probe = openedUntilProbe(breaker);
+        probe.succeeded();
+        assertEquals(0, breaker.acquire());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = openBreaker();
+        RetryPolicy.Backoff probe = openedUntilProbe(breaker);
+        probe.failed(new ConnectException("refused"));
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void cancelledProbeLetsTheNextCallProbe() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = openBreaker();
+        RetryPolicy.Backoff probe = openedUntilProbe(breaker);
+        assertEquals(-1, probe.failed(new RunCancellation.CancelledException("test")));
+        assertTrue(breaker.acquire() > 0);
+    }
+
+    @Test
+    public void throttledProbeClosesTheCircuit() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = openBreaker();
+        RetryPolicy.Backoff probe = openedUntilProbe(breaker);
+        probe.failed(new RetryPolicy.RetryableException("busy", 429, -1));
+        assertEquals(0, breaker.acquire());
+    }
+
+    @Test
+    public void abandonedProbeLetsTheNextCallProbe() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = openBreaker();
+        RetryPolicy.Backoff probe = openedUntilProbe(breaker);
+        probe.abandoned();
+        assertTrue(breaker.acquire() > 0);
+    }
+
+    @Test
+    public void probeFailingWithRuntimeExceptionIsReleased() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = openBreaker();
+        Thread.sleep(OPEN_MILLIS + 10);
+        RetryPolicy policy = new RetryPolicy("test", 1, 10, 1000, true, breaker, null);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CompletableFuture<String> result = policy.callAsync(() -> {
+                throw new IllegalStateException("401 Unauthorized");
+            }, Runnable::run, scheduler);
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("the attempt should fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+        assertTrue(breaker.acquire() > 0);
+    }
+
+    @Test
+    public void unfinishedProbeTimesOut() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = openBreaker();
+        openedUntilProbe(breaker);
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.acquire() > 0);
+    }
+
+    @Test
+    public void staleProbeDoesNotReleaseTheNextOne() throws Exception {
+        RetryPolicy.CircuitBreaker breaker = openBreaker();
+        RetryPolicy.Backoff stale = openedUntilProbe(breaker);
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.acquire() > 0);
+        stale.abandoned();
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void callAsyncRetriesTransientFailures() throws Exception {
+        RetryPolicy policy = new RetryPolicy("test", 1, 5, 5000, true, null, null);
+        int[] attempts = {0};
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            String value = policy.callAsync(() -> {
+                if (++attempts[0] < 3) {
+                    throw new RetryPolicy.RetryableException("unavailable", 503, -1);
+                }
+                return "done";
+            }, Runnable::run, scheduler).get(5, TimeUnit.SECONDS);
+            assertEquals("done", value);
+            assertEquals(3, attempts[0]);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void nonIdempotentCallIsNotRetriedAfterItMayHaveLanded() {
+        RetryPolicy policy = new RetryPolicy("test", 1, 5, 5000, false, null, null);
+        RetryPolicy.Backoff backoff = policy.newBackoff();
+        assertEquals(-1, backoff.failed(new IOException("connection reset")));
+        assertEquals(-1, backoff.failed(new RetryPolicy.RetryableException("bad gateway", 502, -1)));
+        assertTrue(backoff.failed(new RetryPolicy.RetryableException("busy", 429, -1)) >= 0);
+        assertTrue(backoff.failed(new ConnectException("refused")) >= 0);
+    }
+
+    @Test
+    public void delayHonoursRetryAfter() {
+        RetryPolicy policy = new RetryPolicy("test", 1, 5, 60_000, true, null, null);
+        assertTrue(policy.newBackoff().failed(new RetryPolicy.RetryableException("busy", 429, 2000)) >= 2000);
+        assertEquals(-1, policy.newBackoff().failed(new RetryPolicy.RetryableException("busy", 429, 120_000)));
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        assertEquals(3000, RetryPolicy.parseRetryAfterMillis("3"));
+        assertEquals(-1, RetryPolicy.parseRetryAfterMillis(null));
+        assertEquals(-1, RetryPolicy.parseRetryAfterMillis("soon"));
+        assertEquals(0, RetryPolicy.parseRetryAfterMillis("Thu, 01 Jan 1970 00:00:00 GMT"));
+    }
+
+    private static RetryPolicy.CircuitBreaker openBreaker() {
+        RetryPolicy.CircuitBreaker breaker = new RetryPolicy.CircuitBreaker("lab", 1, OPEN_MILLIS);
+        breaker.recordFailure();
+        assertFalse(breaker.allowRequest());
+        return breaker;
+    }
+
+    /**
+     * Wait for the circuit to let a probe through and send it.
+     */
+    private static RetryPolicy.Backoff openedUntilProbe(RetryPolicy.CircuitBreaker breaker) throws Exception {
+        Thread.sleep(OPEN_MILLIS + 10);
+        RetryPolicy.Backoff backoff = new RetryPolicy("test", 1, 5, 5000, true, breaker, null).newBackoff();
+        backoff.beforeAttempt();
+        return backoff;
+    }
+}
@@ -0,0 +1,103 @@
+package com.microsoft.hydralab.utils;
+
+import com.google.gson.JsonObject;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RunTelemetryTest {
+    private MockWebServer server;
+    private File dir;
+    private RunTelemetry telemetry;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        dir = Files.createTempDirectory("run-telemetry").toFile();
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put("suite", "com.app.\"Suite\"");
+        labels.put("flavor", "debug");
+        telemetry = new RunTelemetry(labels);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void phasesAndCountersAddUp() throws IOException {
+        telemetry.addPhaseTime(RunTelemetry.Phase.HASH, TimeUnit.MILLISECONDS.toNanos(300));
+        telemetry.addPhaseTime(RunTelemetry.Phase.HASH, TimeUnit.MILLISECONDS.toNanos(200));
+        telemetry.increment(RunTelemetry.Counter.POLLS);
+        telemetry.increment(RunTelemetry.Counter.POLLS);
+        telemetry.add(RunTelemetry.Counter.ARTIFACT_BYTES, 1024);
+        telemetry.setTestTaskId("task-1");
+        telemetry.setFailed(true);
+
+        JsonObject report = writeJson();
+        assertEquals("task-1", report.get("testTaskId").getAsString());
+        assertTrue(report.get("failed").getAsBoolean());
+        assertEquals(500, report.getAsJsonObject("phasesMillis").get("hash").getAsLong());
+        assertEquals(2, report.getAsJsonObject("counters").get("polls").getAsLong());
+        assertEquals(1024, report.getAsJsonObject("counters").get("artifact_bytes").getAsLong());
+    }
+
+    @Test
+    public void eventListenerRecordsTheCallsOfEachOperation() throws IOException {
+        server.enqueue(new MockResponse().setBody("0123456789"));
+        server.enqueue(new MockResponse().setBody("01234"));
+        OkHttpClient client = new OkHttpClient.Builder()
+                .eventListenerFactory(call -> telemetry.newEventListener(RunTelemetry.Operation.STATUS))
+                .build();
+        for (int i = 0; i < 2; i++) {
+            try (Response response = client.newCall(new Request.Builder().url(server.url("/status")).build()).execute()) {
+                response.body().string();
+            }
+        }
+
+        JsonObject status = writeJson().getAsJsonObject("http").getAsJsonObject("status");
+        assertEquals(2, status.get("calls").getAsLong());
+        assertEquals(0, status.get("failures").getAsLong());
+        assertEquals(15, status.get("bytesReceived").getAsLong());
+    }
+
+    @Test
+    public void writesPrometheusTextFormat() throws IOException {
+        telemetry.addPhaseTime(RunTelemetry.Phase.UPLOAD, TimeUnit.MILLISECONDS.toNanos(1500));
+        telemetry.increment(RunTelemetry.Counter.TRIGGER_BUSY_RETRIES);
+
+        File prometheus = new File(dir, RunTelemetry.PROMETHEUS_FILE_NAME);
+        telemetry.writePrometheus(prometheus);
+        String text = FileUtils.readFileToString(prometheus, StandardCharsets.UTF_8);
+        assertTrue(text, text.contains("# TYPE hydra_lab_phase_seconds gauge\n"));
+        // label values are escaped
+        assertTrue(text, text.contains("hydra_lab_phase_seconds{suite=\"com.app.\\\"Suite\\\"\",flavor=\"debug\",phase=\"upload\"} 1.500000\n"));
+        assertTrue(text, text.contains("hydra_lab_events_total{suite=\"com.app.\\\"Suite\\\"\",flavor=\"debug\",event=\"trigger_busy_retries\"} 1\n"));
+    }
+
+    private JsonObject writeJson() throws IOException {
+        File json = new File(dir, RunTelemetry.JSON_FILE_NAME);
+        telemetry.writeJson(json);
+        return HydraLabClientUtils.GSON.fromJson(FileUtils.readFileToString(json, StandardCharsets.UTF_8), JsonObject.class);
+    }
+}
@@ -0,0 +1,110 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestImpactMapTest {
+    private static final List<String> FULL_RUN_FILES = Arrays.asList("build.gradle", "settings.gradle");
+
+    private File dir;
+    private TestImpactMap impactMap;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("test-impact").toFile();
+        impactMap = TestImpactMap.load(dir, "suite");
+        assertTrue(impactMap.select("c1", null, 10, FULL_RUN_FILES).isFullRun());
+        impactMap.update(Collections.singletonList(JUnitReports.write(dir, "c1.xml",
+                "<testcase classname=\"com.app.FooTest\" name=\"a\"/>",
+                "<testcase classname=\"com.app.BarInstrumentedTest\" name=\"b\"/>",
+                "<testcase classname=\"com.app.OtherTest\" name=\"c\"/>")));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void firstRunCoversTheWholeSuite() {
+        TestImpactMap empty = TestImpactMap.load(new File(dir, "none"), "suite");
+        assertTrue(empty.select("c1", Collections.singletonList("app/src/main/java/com/app/Foo.java"), 10, FULL_RUN_FILES).isFullRun());
+    }
+
+    @Test
+    public void selectsTestsNamedAfterChangedClasses() {
+        TestImpactMap.Selection selection = impactMap.select("c2", Arrays.asList(
+                "app/src/main/java/com/app/Foo.java", "app/src/main/kotlin/com/app/Bar.kt"), 10, FULL_RUN_FILES);
+        assertFalse(selection.isFullRun());
+        assertEquals(Arrays.asList("com.app.BarInstrumentedTest", "com.app.FooTest"), Arrays.asList(selection.classes.toArray()));
+    }
+
+    @Test
+    public void selectsChangedTestClasses() {
+        TestImpactMap.Selection selection = impactMap.select("c2", Collections.singletonList("app/src/androidTest/java/com/app/NewTest.java"), 10, FULL_RUN_FILES);
+        assertEquals(Collections.singletonList("com.app.NewTest"), Arrays.asList(selection.classes.toArray()));
+    }
+
+    @Test
+    public void unmappedPathRunsTheWholeSuite() {
+        assertTrue(impactMap.select("c2", Arrays.asList("app/src/main/java/com/app/Foo.java", "app/src/main/java/com/app/Untested.java"),
+                10, FULL_RUN_FILES).isFullRun());
+        assertTrue(impactMap.select("c2", Collections.singletonList("app/src/main/res/values/strings.xml"), 10, FULL_RUN_FILES).isFullRun());
+        assertTrue(impactMap.select("c2", Collections.singletonList("app/src/main/AndroidManifest.xml"), 10, FULL_RUN_FILES).isFullRun());
+        assertTrue(impactMap.select("c2", Collections.singletonList("app/src/main/assets/README.md"), 10, FULL_RUN_FILES).isFullRun());
+    }
+
+    @Test
+    public void docsOnlyChangeSelectsNothing() {
+        TestImpactMap.Selection selection = impactMap.select("c2", Arrays.asList("README.md", "docs/setup.png", ".github/workflows/ci.yml", "LICENSE"),
+                10, FULL_RUN_FILES);
+        assertFalse(selection.isFullRun());
+        assertTrue(selection.classes.isEmpty());
+    }
+
+    @Test
+    public void buildConfigChangeRunsTheWholeSuite() {
+        assertTrue(impactMap.select("c2", Collections.singletonList("app/build.gradle"), 10, FULL_RUN_FILES).isFullRun());
+    }
+
+    @Test
+    public void runsTheWholeSuiteEveryFullRunEveryRuns() throws IOException {
+        List<String> changedPaths = Collections.singletonList("app/src/main/java/com/app/Foo.java");
+        assertFalse(impactMap.select("c2", changedPaths, 2, FULL_RUN_FILES).isFullRun());
+        impactMap.recordSkippedRun();
+        assertTrue(impactMap.select("c3", changedPaths, 2, FULL_RUN_FILES).isFullRun());
+    }
+
+    @Test
+    public void learnsFailuresAndKeepsFailingClassesSelected() throws IOException {
+        List<String> changedPaths = Arrays.asList("app/src/main/java/com/app/Foo.java", "app/src/main/java/com/app/Util.java");
+        impactMap.select("c2", Collections.singletonList("app/src/main/java/com/app/Foo.java"), 10, FULL_RUN_FILES);
+        impactMap.update(Collections.singletonList(JUnitReports.write(dir, "c2.xml",
+                "<testcase classname=\"com.app.FooTest\" name=\"a\"><failure message=\"boom\"/></testcase>")));
+
+        TestImpactMap.Selection selection = impactMap.select("c3", Collections.singletonList("README.md"), 10, FULL_RUN_FILES);
+        assertEquals(Collections.singletonList("com.app.FooTest"), Arrays.asList(selection.classes.toArray()));
+
+        // no test is named after Util.java, so it runs the whole suite and learns from its failure
+        impactMap.select("c3", changedPaths, 10, FULL_RUN_FILES);
+        impactMap.update(Collections.singletonList(JUnitReports.write(dir, "c3.xml",
+                "<testcase classname=\"com.app.FooTest\" name=\"a\"/>",
+                "<testcase classname=\"com.app.OtherTest\" name=\"c\"><error message=\"boom\"/></testcase>")));
+        selection = impactMap.select("c4", Collections.singletonList("app/src/main/java/com/app/Util.java"), 10, FULL_RUN_FILES);
+        assertFalse(selection.isFullRun());
+        assertEquals(Collections.singletonList("com.app.OtherTest"), Arrays.asList(selection.classes.toArray()));
+    }
+}
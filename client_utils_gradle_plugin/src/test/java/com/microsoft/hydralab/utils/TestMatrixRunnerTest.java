@@ -0,0 +1,137 @@
+package com.microsoft.hydralab.utils;
+
+import com.microsoft.hydralab.utils.HydraLabClientUtils.HydraLabAPIConfig;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMatrixRunnerTest {
+    private final List<String> paths = new CopyOnWriteArrayList<>();
+    private final AtomicInteger taskCount = new AtomicInteger();
+    private MockWebServer server;
+    private File dir;
+    private File apk;
+    private File testApk;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = String.valueOf(request.getPath());
+                paths.add(path);
+                if (path.startsWith("/api/package/add")) {
+                    return json("{\"code\":200,\"content\":{\"id\":\"set-1\"}}");
+                }
+                if (path.startsWith("/api/test/task/run/")) {
+                    return json("{\"code\":200,\"content\":{\"testTaskId\":\"task-" + taskCount.incrementAndGet() + "\"}}");
+                }
+                if (path.startsWith("/api/test/task/task-")) {
+                    String taskId = path.substring("/api/test/task/".length()).split("[?/]")[0];
+                    return json("{\"code\":200,\"content\":{\"id\":\"" + taskId + "\",\"status\":\"finished\",\"testDevicesCount\":1,"
+                            + "\"totalTestCount\":2,\"totalFailCount\":0,"
+                            + "\"deviceTestResults\":[{\"deviceSerialNumber\":\"D1\",\"testEndTimeMillis\":1,\"totalCount\":2,\"failCount\":0}]}}");
+                }
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        server.start();
+        dir = Files.createTempDirectory("test-matrix").toFile();
+        apk = apk("app.apk");
+        testApk = apk("app-test.apk");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void cellsShareTheApkUploadAndOneSummary() throws Exception {
+        assertTrue(TestMatrixRunner.run(Arrays.asList(cell("api28"), cell("api33")), 2, dir));
+
+        assertEquals(1, paths.stream().filter(path -> path.startsWith("/api/package/add")).count());
+        assertEquals(2, taskCount.get());
+        String summary = FileUtils.readFileToString(new File(dir, TestMatrixRunner.SUMMARY_FILE_NAME), StandardCharsets.UTF_8);
+        assertTrue(summary, summary.contains("2 cells, 0 failed"));
+        assertTrue(summary, summary.contains("| api28 | PASS |"));
+        assertTrue(summary, summary.contains("| api33 | PASS |"));
+    }
+
+    @Test
+    public void cellThatCannotRunFailsTheMatrixAfterTheOthers() throws Exception {
+        TestMatrixRunner.Cell broken = cell("broken");
+        broken.apkPath = new File(dir, "missing.apk").getPath();
+
+        try {
+            TestMatrixRunner.run(Arrays.asList(broken, cell("api33")), 1, dir);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("could not run"));
+        }
+        assertEquals(1, taskCount.get());
+        String summary = FileUtils.readFileToString(new File(dir, TestMatrixRunner.SUMMARY_FILE_NAME), StandardCharsets.UTF_8);
+        assertTrue(summary, summary.contains("| broken | ERROR |"));
+        assertTrue(summary, summary.contains("| api33 | PASS |"));
+    }
+
+    private TestMatrixRunner.Cell cell(String name) {
+        TestMatrixRunner.Cell cell = new TestMatrixRunner.Cell();
+        cell.name = name;
+        cell.apiConfig = apiConfig();
+        cell.apkPath = apk.getPath();
+        cell.testApkPath = testApk.getPath();
+        cell.buildFlavor = "debug";
+        cell.testSuiteName = "com.app.Suite";
+        cell.timeoutSec = 600;
+        File reportDir = new File(dir, name);
+        assertTrue(reportDir.mkdirs());
+        cell.reportFolderPath = reportDir.getPath();
+        cell.instrumentationArgs = new HashMap<>();
+        cell.extraArgs = new HashMap<>();
+        return cell;
+    }
+
+    private HydraLabAPIConfig apiConfig() {
+        HydraLabAPIConfig apiConfig = HydraLabAPIConfig.defaultAPI();
+        apiConfig.schema = "http";
+        apiConfig.host = server.getHostName() + ":" + server.getPort();
+        apiConfig.apkUploadCacheDir = new File(dir, "cache").getAbsolutePath();
+        apiConfig.connectionWarmUpEnabled = false;
+        apiConfig.telemetryEnabled = false;
+        apiConfig.pollInitialIntervalSec = 1;
+        apiConfig.pollMaxIntervalSec = 1;
+        return apiConfig;
+    }
+
+    private File apk(String name) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.write(file, name, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json; charset=utf-8").setBody(body);
+    }
+}
@@ -0,0 +1,110 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestResultCacheTest {
+    private File dir;
+    private File cacheDir;
+    private File reportDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("test-result-cache").toFile();
+        cacheDir = new File(dir, "cache");
+        reportDir = new File(dir, "report");
+        assertTrue(reportDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void restoresStoredRun() throws IOException {
+        TestResultCache cache = new TestResultCache(cacheDir, 24);
+        cache.store("key", reportDir, record("task-1", false));
+
+        File restoreDir = new File(dir, "restored");
+        TestResultCache.TestRunRecord restored = cache.restore("key", restoreDir, false);
+        assertNotNull(restored);
+        assertEquals("task-1", restored.testTaskId);
+        assertEquals("<testsuite/>", FileUtils.readFileToString(new File(restoreDir, "TEST-suite.xml"), StandardCharsets.UTF_8));
+        assertTrue(TestResultCache.isReusable(restoreDir, false));
+        assertNull(cache.restore("other", restoreDir, false));
+    }
+
+    @Test
+    public void failedRunIsReusableOnlyWithFailures() throws IOException {
+        TestResultCache.writeRecord(reportDir, record("task-1", true));
+        assertFalse(TestResultCache.isReusable(reportDir, false));
+        assertTrue(TestResultCache.isReusable(reportDir, true));
+    }
+
+    @Test
+    public void failedRunIsRestoredOnlyWithFailures() throws IOException {
+        TestResultCache cache = new TestResultCache(cacheDir, 24);
+        cache.store("key", reportDir, record("task-1", true));
+
+        File restoreDir = new File(dir, "restored");
+        assertNull(cache.restore("key", restoreDir, false));
+        assertFalse(new File(restoreDir, "TEST-suite.xml").exists());
+        TestResultCache.TestRunRecord restored = cache.restore("key", restoreDir, true);
+        assertNotNull(restored);
+        assertTrue(restored.failed);
+    }
+
+    @Test
+    public void storeKeepsEntriesOtherBuildsAreFilling() throws IOException {
+        File inProgress = Files.createTempDirectory(mkdirs(cacheDir).toPath(), "other.tmp").toFile();
+        File abandoned = Files.createTempDirectory(cacheDir.toPath(), "dead.tmp").toFile();
+        assertTrue(abandoned.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+
+        new TestResultCache(cacheDir, 24).store("key", reportDir, record("task-1", false));
+        assertTrue(inProgress.isDirectory());
+        assertFalse(abandoned.exists());
+        assertTrue(new File(cacheDir, "key").isDirectory());
+    }
+
+    @Test
+    public void storeRemovesExpiredEntries() throws IOException {
+        TestResultCache cache = new TestResultCache(cacheDir, 1);
+        TestResultCache.TestRunRecord old = record("task-1", false);
+        old.createTimeMillis = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        cache.store("old", reportDir, old);
+        cache.store("new", reportDir, record("task-2", false));
+        assertFalse(new File(cacheDir, "old").exists());
+        assertTrue(new File(cacheDir, "new").isDirectory());
+    }
+
+    private TestResultCache.TestRunRecord record(String testTaskId, boolean failed) throws IOException {
+        FileUtils.write(new File(reportDir, "TEST-suite.xml"), "<testsuite/>", StandardCharsets.UTF_8);
+        TestResultCache.TestRunRecord record = new TestResultCache.TestRunRecord();
+        record.testTaskId = testTaskId;
+        record.failed = failed;
+        record.createTimeMillis = System.currentTimeMillis();
+        record.artifacts = Collections.singletonList("TEST-suite.xml");
+        return record;
+    }
+
+    private static File mkdirs(File dir) {
+        assertTrue(dir.mkdirs());
+        return dir;
+    }
+}
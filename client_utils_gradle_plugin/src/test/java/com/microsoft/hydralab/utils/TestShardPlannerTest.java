@@ -0,0 +1,102 @@
+package com.microsoft.hydralab.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardPlannerTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("test-shards").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void balancesClassesByDuration() throws IOException {
+        TestDurationHistory history = history("<testcase classname=\"A\" name=\"a\" time=\"10\"/>",
+                "<testcase classname=\"B\" name=\"b\" time=\"8\"/>",
+                "<testcase classname=\"C\" name=\"c\" time=\"5\"/>",
+                "<testcase classname=\"D\" name=\"d\" time=\"4\"/>",
+                "<testcase classname=\"E\" name=\"e1\" time=\"1\"/>",
+                "<testcase classname=\"E\" name=\"e2\" time=\"2\"/>");
+        List<TestShardPlanner.Shard> shards = TestShardPlanner.plan(2, TestShardPlanner.DURATION, history);
+
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList("A", "D"), shards.get(0).classes);
+        assertEquals(14, shards.get(0).estimatedSeconds, 0.001);
+        assertEquals(Arrays.asList("B", "C", "E"), shards.get(1).classes);
+        assertEquals(16, shards.get(1).estimatedSeconds, 0.001);
+        // the least loaded shard also runs the classes no shard knows of
+        assertFalse(shards.get(0).instrumentationArgs.containsKey("class"));
+        assertEquals("B,C,E", shards.get(0).instrumentationArgs.get("notClass"));
+        assertEquals("B,C,E", shards.get(1).instrumentationArgs.get("class"));
+        assertEquals("shard2", shards.get(1).getLabel());
+    }
+
+    @Test
+    public void neverPlansAShardWithoutAClass() throws IOException {
+        TestDurationHistory history = history("<testcase classname=\"A\" name=\"a\" time=\"3\"/>",
+                "<testcase classname=\"B\" name=\"b\" time=\"2\"/>");
+        List<TestShardPlanner.Shard> shards = TestShardPlanner.plan(4, TestShardPlanner.DURATION, history);
+        assertEquals(2, shards.size());
+        assertEquals("A", shards.get(0).instrumentationArgs.get("class"));
+        assertEquals("A", shards.get(1).instrumentationArgs.get("notClass"));
+    }
+
+    @Test
+    public void splitsByCountWithoutHistory() {
+        TestDurationHistory history = TestDurationHistory.load(dir, "none");
+        assertTrue(history.isEmpty());
+        assertSplitByCount(TestShardPlanner.plan(3, TestShardPlanner.DURATION, history));
+    }
+
+    @Test
+    public void splitsByCountWhenAskedTo() throws IOException {
+        assertSplitByCount(TestShardPlanner.plan(3, TestShardPlanner.COUNT, history("<testcase classname=\"A\" name=\"a\" time=\"3\"/>")));
+    }
+
+    @Test
+    public void historyFollowsTheLatestRuns() throws IOException {
+        TestDurationHistory history = history("<testcase classname=\"A\" name=\"a\" time=\"10\"/>",
+                "<testcase classname=\"B\" name=\"b\" time=\"1,000.5\"/>");
+        history.update(Arrays.asList(JUnitReports.write(dir, "again.xml", "<testcase classname=\"A\" name=\"a\" time=\"20\"/>"),
+                JUnitReports.write(dir, "other-device.xml", "<testcase classname=\"A\" name=\"a\" time=\"40\"/>")));
+        // the mean of the devices, weighted with the previous duration; B was not reported and is forgotten
+        assertEquals(Collections.singletonMap("A", 20.0), history.getClassSeconds());
+    }
+
+    private static void assertSplitByCount(List<TestShardPlanner.Shard> shards) {
+        assertEquals(3, shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            TestShardPlanner.Shard shard = shards.get(i);
+            assertEquals("3", shard.instrumentationArgs.get("numShards"));
+            assertEquals(String.valueOf(i), shard.instrumentationArgs.get("shardIndex"));
+            assertEquals(-1, shard.estimatedSeconds, 0);
+            assertTrue(shard.classes.isEmpty());
+        }
+    }
+
+    private TestDurationHistory history(String... testCases) throws IOException {
+        TestDurationHistory history = TestDurationHistory.load(dir, "suite");
+        history.update(Collections.singletonList(JUnitReports.write(dir, "history.xml", testCases)));
+        return history;
+    }
+}
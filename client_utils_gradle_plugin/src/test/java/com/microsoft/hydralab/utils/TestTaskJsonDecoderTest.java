@@ -0,0 +1,58 @@
+package com.microsoft.hydralab.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTaskJsonDecoderTest {
+    private static final String RESPONSE = "{\"code\":200,\"message\":\"OK\",\"extra\":{\"nested\":[1,2]},\"content\":{"
+            + "\"id\":\"task-1\",\"status\":\"running\",\"testDevicesCount\":2,\"totalTestCount\":7,\"deviceTestResults\":["
+            + "{\"deviceSerialNumber\":\"D1\",\"totalCount\":7,\"failCount\":1,\"crashStack\":\"java.lang.NullPointerException\","
+            + "\"errorInProcess\":\"stopped\",\"testEndTimeMillis\":42}]}}";
+
+    @Test
+    public void decodesTheEnvelopeAndTheTask() throws IOException {
+        TestTaskJsonDecoder.Envelope envelope = TestTaskJsonDecoder.decode(new StringReader(RESPONSE), false);
+
+        assertEquals(200, envelope.code);
+        assertEquals("OK", envelope.message);
+        assertFalse(envelope.heavyFieldsSkipped);
+        HydraLabClientUtils.TestTask testTask = envelope.content;
+        assertEquals("task-1", testTask.id);
+        assertEquals("running", testTask.status);
+        assertEquals(2, testTask.testDevicesCount);
+        assertEquals(7, testTask.totalTestCount);
+        HydraLabClientUtils.DeviceTestResult deviceTestResult = testTask.deviceTestResults.get(0);
+        assertEquals("D1", deviceTestResult.deviceSerialNumber);
+        assertEquals(1, deviceTestResult.failCount);
+        assertEquals(42, deviceTestResult.testEndTimeMillis);
+        assertEquals("java.lang.NullPointerException", deviceTestResult.crashStack);
+        assertEquals("stopped", deviceTestResult.errorInProcess);
+    }
+
+    @Test
+    public void skipsHeavyFieldsWhilePolling() throws IOException {
+        TestTaskJsonDecoder.Envelope envelope = TestTaskJsonDecoder.decode(new StringReader(RESPONSE), true);
+
+        assertTrue(envelope.heavyFieldsSkipped);
+        HydraLabClientUtils.DeviceTestResult deviceTestResult = envelope.content.deviceTestResults.get(0);
+        assertEquals(7, deviceTestResult.totalCount);
+        assertNull(deviceTestResult.crashStack);
+        assertNull(deviceTestResult.errorInProcess);
+    }
+
+    @Test
+    public void errorEnvelopeHasNoContent() throws IOException {
+        TestTaskJsonDecoder.Envelope envelope = TestTaskJsonDecoder.decode(new StringReader("{\"code\":500,\"message\":\"busy\",\"content\":null}"), true);
+
+        assertEquals(500, envelope.code);
+        assertEquals("busy", envelope.message);
+        assertNull(envelope.content);
+    }
+}
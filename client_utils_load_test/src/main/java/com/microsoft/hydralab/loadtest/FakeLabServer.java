@@ -0,0 +1,640 @@
+package com.microsoft.hydralab.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-alone stand-in of the Hydra Lab API: APK set upload (multipart and chunked), test run trigger, test status and
+ * device blobs. Tasks go through {@code waiting}, {@code running} and {@code finished} on a timer, devices finish one
+ * after the other while the task runs, and a share of the tasks is retried by the lab, which bumps {@code retryTime}.
+ * Every response is delayed by the configured latency, and a share of the triggers is answered as busy. A cancelled task
+ * turns {@code canceled} and gives back the device time it had left.
+ * <p>
+ * A trigger with a {@code callbackUrl} gets the ended task posted to it, the way the lab calls back. A share of the
+ * callbacks is preceded by a post of another task to the same URL, which the client has to turn down.
+ * <p>
+ * Blobs are served like a blob storage: with an ETag, a Content-MD5 on full responses, and byte ranges. A share of the
+ * blob responses is cut off partway by dropping the connection, to exercise the resumed downloads.
+ */
+public class FakeLabServer implements AutoCloseable {
+    public enum Endpoint {
+        UPLOAD, UPLOAD_CHUNK, RUN, RUN_BUSY, STATUS, STATUS_NOT_MODIFIED, CANCEL, BLOB, BLOB_RANGE, BLOB_DROPPED,
+        CALLBACK, CALLBACK_FAILED, CALLBACK_STRAY, CALLBACK_STRAY_ACCEPTED, OTHER
+    }
+
+    private static final Gson GSON = new Gson();
+    private static final String UPLOAD_PATH = "/api/package/add";
+    private static final String UPLOAD_CHUNK_PATH = "/api/package/chunk/";
+    private static final String RUN_PATH = "/api/test/task/run/";
+    private static final String STATUS_PATH = "/api/test/task/";
+    private static final String CANCEL_PATH = "/api/test/task/cancel/";
+    private static final String BLOB_PATH = "/blob/";
+
+    public static class Config {
+        public int port = 0;
+        public long latencyMillis = 50;
+        public long latencyJitterMillis = 50;
+        /**
+         * Share of the run triggers answered with code 500, all devices busy.
+         */
+        public double busyRate = 0.05;
+        /**
+         * Share of the tasks the lab runs twice, the first attempt failing halfway.
+         */
+        public double retryRate = 0.05;
+        public long waitingMillis = 5000;
+        public long runningMillis = 20000;
+        public int deviceCount = 3;
+        public int casesPerDevice = 100;
+        public int logBlobSize = 256 * 1024;
+        public int gifBlobSize = 256 * 1024;
+        /**
+         * Share of the blob responses whose connection is dropped after a random part of the body.
+         */
+        public double dropRate = 0;
+        /**
+         * Share of the callbacks preceded by a post of another task, the client must answer it with 409.
+         */
+        public double callbackStrayRate = 0.1;
+
+        static Config parse(Options options) {
+            Config config = new Config();
+            config.port = options.getInt("port", config.port);
+            config.latencyMillis = options.getLong("latencyMillis", config.latencyMillis);
+            config.latencyJitterMillis = options.getLong("latencyJitterMillis", config.latencyJitterMillis);
+            config.busyRate = options.getDouble("busyRate", config.busyRate);
+            config.retryRate = options.getDouble("retryRate", config.retryRate);
+            config.waitingMillis = options.getLong("waitingMillis", config.waitingMillis);
+            config.runningMillis = options.getLong("runningMillis", config.runningMillis);
+            config.deviceCount = options.getInt("deviceCount", config.deviceCount);
+            config.casesPerDevice = options.getInt("casesPerDevice", config.casesPerDevice);
+            config.logBlobSize = options.getInt("logBlobSize", config.logBlobSize);
+            config.gifBlobSize = options.getInt("gifBlobSize", config.gifBlobSize);
+            config.dropRate = options.getDouble("dropRate", config.dropRate);
+            config.callbackStrayRate = options.getDouble("callbackStrayRate", config.callbackStrayRate);
+            return config;
+        }
+    }
+
+    private final Config config;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService callbackScheduler;
+    private final Map<String, FakeTask> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Long> chunkOffsets = new ConcurrentHashMap<>();
+    private final Map<Endpoint, AtomicLong> requestCounts = new EnumMap<>(Endpoint.class);
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong releasedDeviceMillis = new AtomicLong();
+    private final AtomicInteger idSequence = new AtomicInteger();
+    private final Blob logBlob;
+    private final Blob gifBlob;
+    private final Blob junitReport;
+
+    public FakeLabServer(Config config) throws IOException {
+        this.config = config;
+        for (Endpoint endpoint : Endpoint.values()) {
+            requestCounts.put(endpoint, new AtomicLong());
+        }
+        logBlob = new Blob(logBlob(config.logBlobSize), "text/plain");
+        gifBlob = new Blob(gifBlob(config.gifBlobSize), "image/gif");
+        junitReport = new Blob(junitReport(config.casesPerDevice).getBytes(StandardCharsets.UTF_8), "application/xml");
+        server = HttpServer.create(new InetSocketAddress(config.port), 1024);
+        // responses sleep for the latency, a thread per exchange keeps slow responses from queueing the others
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "fake-lab");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        callbackScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fake-lab-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getHost() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    public long getRequestCount(Endpoint endpoint) {
+        return requestCounts.get(endpoint).get();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * @return device time the cancelled tasks did not use, in milliseconds summed over the devices
+     */
+    public long getReleasedDeviceMillis() {
+        return releasedDeviceMillis.get();
+    }
+
+    /**
+     * @return tasks waiting or running now, the ones no client follows anymore hold their devices for nothing
+     */
+    public int getActiveTaskCount() {
+        long now = System.currentTimeMillis();
+        int active = 0;
+        for (FakeTask task : tasks.values()) {
+            String status = task.stateAt(now, config).status;
+            if ("waiting".equals(status) || "running".equals(status)) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            long delay = config.latencyMillis + (config.latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(config.latencyJitterMillis + 1) : 0);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.startsWith(UPLOAD_CHUNK_PATH)) {
+                handleUploadChunk(exchange, path.substring(UPLOAD_CHUNK_PATH.length()), method);
+            } else if (path.startsWith(UPLOAD_PATH) && "POST".equals(method)) {
+                uploadedBytes.addAndGet(drain(exchange));
+                count(Endpoint.UPLOAD);
+                sendJson(exchange, 200, envelope(200, content("id", "apk-set-" + idSequence.incrementAndGet())), null);
+            } else if (path.startsWith(RUN_PATH) && "POST".equals(method)) {
+                handleRun(exchange);
+            } else if (path.startsWith(CANCEL_PATH) && "GET".equals(method)) {
+                // the cancel path is under the status path, check it first
+                handleCancel(exchange, path.substring(CANCEL_PATH.length()));
+            } else if (path.startsWith(STATUS_PATH) && "GET".equals(method)) {
+                handleStatus(exchange, path.substring(STATUS_PATH.length()));
+            } else if (path.startsWith(BLOB_PATH) && "GET".equals(method)) {
+                handleBlob(exchange, path.endsWith(".xml") ? junitReport : path.endsWith(".gif") ? gifBlob : logBlob);
+            } else {
+                count(Endpoint.OTHER);
+                drain(exchange);
+                send(exchange, "HEAD".equals(method) ? 200 : 404, new byte[0], "text/plain");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            send(exchange, 500, new byte[0], "text/plain");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleUploadChunk(HttpExchange exchange, String uploadId, String method) throws IOException {
+        count(Endpoint.UPLOAD_CHUNK);
+        if ("GET".equals(method)) {
+            Long offset = chunkOffsets.get(uploadId);
+            if (offset == null) {
+                send(exchange, 404, new byte[0], "text/plain");
+            } else {
+                sendJson(exchange, 200, envelope(200, content("offset", offset)), null);
+            }
+            return;
+        }
+        // Content-Range: bytes <first>-<last>/<total>
+        String range = exchange.getRequestHeaders().getFirst("Content-Range");
+        long first = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+        long expected = chunkOffsets.getOrDefault(uploadId, 0L);
+        long length = drain(exchange);
+        uploadedBytes.addAndGet(length);
+        if (first != expected) {
+            send(exchange, 409, new byte[0], "text/plain");
+            return;
+        }
+        chunkOffsets.put(uploadId, first + length);
+        sendJson(exchange, 200, envelope(200, content("offset", first + length)), null);
+    }
+
+    private void handleBlob(HttpExchange exchange, Blob blob) throws IOException {
+        drain(exchange);
+        exchange.getResponseHeaders().add("ETag", blob.etag);
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().add("Content-Type", blob.contentType);
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        int first = 0;
+        int last = blob.bytes.length - 1;
+        boolean partial = range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(blob.etag));
+        if (partial) {
+            // bytes=<first>-[<last>] or bytes=-<suffix length>
+            String spec = range.substring("bytes=".length());
+            int dash = spec.indexOf('-');
+            if (dash == 0) {
+                first = Math.max(0, blob.bytes.length - Integer.parseInt(spec.substring(1)));
+            } else {
+                first = Integer.parseInt(spec.substring(0, dash));
+                if (dash < spec.length() - 1) {
+                    last = Math.min(last, Integer.parseInt(spec.substring(dash + 1)));
+                }
+            }
+            if (first > last) {
+                count(Endpoint.BLOB_RANGE);
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + blob.bytes.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            count(Endpoint.BLOB_RANGE);
+            exchange.getResponseHeaders().add("Content-Range", String.format(Locale.US, "bytes %d-%d/%d", first, last, blob.bytes.length));
+        } else {
+            count(Endpoint.BLOB);
+            exchange.getResponseHeaders().add("Content-MD5", blob.md5);
+        }
+        int length = last - first + 1;
+        exchange.sendResponseHeaders(partial ? 206 : 200, length == 0 ? -1 : length);
+        if (length == 0) {
+            return;
+        }
+        boolean drop = config.dropRate > 0 && ThreadLocalRandom.current().nextDouble() < config.dropRate;
+        OutputStream out = exchange.getResponseBody();
+        if (!drop) {
+            out.write(blob.bytes, first, length);
+            out.close();
+            return;
+        }
+        count(Endpoint.BLOB_DROPPED);
+        out.write(blob.bytes, first, ThreadLocalRandom.current().nextInt(length));
+        out.flush();
+        // closing short of the Content-Length makes the server drop the connection
+        out.close();
+    }
+
+    private void handleRun(HttpExchange exchange) throws IOException {
+        JsonObject trigger;
+        try (InputStream in = exchange.getRequestBody()) {
+            trigger = GSON.fromJson(IOUtils.toString(in, StandardCharsets.UTF_8), JsonObject.class);
+        }
+        if (ThreadLocalRandom.current().nextDouble() < config.busyRate) {
+            count(Endpoint.RUN_BUSY);
+            JsonObject busy = envelope(500, null);
+            busy.addProperty("message", "All devices are busy");
+            sendJson(exchange, 200, busy, null);
+            return;
+        }
+        count(Endpoint.RUN);
+        String callbackUrl = trigger != null && trigger.has("callbackUrl") ? trigger.get("callbackUrl").getAsString() : null;
+        FakeTask task = new FakeTask("task-" + idSequence.incrementAndGet(), System.currentTimeMillis(),
+                ThreadLocalRandom.current().nextDouble() < config.retryRate, callbackUrl);
+        tasks.put(task.id, task);
+        sendJson(exchange, 200, envelope(200, content("testTaskId", task.id)), null);
+        if (callbackUrl != null) {
+            callbackScheduler.schedule(() -> postCallback(task), task.endMillis(config) - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Post the ended task to its callback URL, once. A cancelled task is posted right away, a finished one at its end.
+     */
+    private void postCallback(FakeTask task) {
+        if (!task.claimCallback()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        TaskState state = task.stateAt(now, config);
+        String host = "localhost:" + server.getAddress().getPort();
+        if (config.callbackStrayRate > 0 && ThreadLocalRandom.current().nextDouble() < config.callbackStrayRate) {
+            // the ended state of a task that does not exist, posted where another listener waits
+            FakeTask stray = new FakeTask("stray-" + idSequence.incrementAndGet(), now - config.waitingMillis - config.runningMillis, false, null);
+            int strayStatus = post(task.callbackUrl, envelope(200, taskJson(host, stray, stray.stateAt(now, config))));
+            count(Endpoint.CALLBACK_STRAY);
+            if (strayStatus == 200) {
+                count(Endpoint.CALLBACK_STRAY_ACCEPTED);
+            }
+        }
+        int status = post(task.callbackUrl, envelope(200, taskJson(host, task, state)));
+        count(status == 200 ? Endpoint.CALLBACK : Endpoint.CALLBACK_FAILED);
+    }
+
+    /**
+     * @return status of the response, -1 if the listener could not be reached
+     */
+    private static int post(String url, JsonObject body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(5000);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(GSON.toJson(body).getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            return status;
+        } catch (IOException e) {
+            // the client stopped listening, e.g. the poll saw the end first
+            return -1;
+        }
+    }
+
+    private void handleCancel(HttpExchange exchange, String taskId) throws IOException {
+        drain(exchange);
+        count(Endpoint.CANCEL);
+        FakeTask task = tasks.get(taskId);
+        if (task == null) {
+            sendJson(exchange, 200, envelope(404, null), null);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (task.cancel(now, config)) {
+            releasedDeviceMillis.addAndGet(task.remainingDeviceMillis(now, config));
+            if (task.callbackUrl != null) {
+                callbackScheduler.execute(() -> postCallback(task));
+            }
+        }
+        sendJson(exchange, 200, envelope(200, content("id", task.id)), null);
+    }
+
+    private void handleStatus(HttpExchange exchange, String taskId) throws IOException {
+        drain(exchange);
+        FakeTask task = tasks.get(taskId);
+        if (task == null) {
+            count(Endpoint.STATUS);
+            sendJson(exchange, 200, envelope(404, null), null);
+            return;
+        }
+        TaskState state = task.stateAt(System.currentTimeMillis(), config);
+        String etag = String.format(Locale.US, "\"%s-%d-%d\"", state.status, state.retryTime, state.finishedDevices);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            count(Endpoint.STATUS_NOT_MODIFIED);
+            exchange.getResponseHeaders().add("ETag", etag);
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        count(Endpoint.STATUS);
+        sendJson(exchange, 200, envelope(200, taskJson(exchange.getRequestHeaders().getFirst("Host"), task, state)), etag);
+    }
+
+    private JsonObject taskJson(String host, FakeTask task, TaskState state) {
+        String blobBaseUrl = "http://" + host + BLOB_PATH + task.id + "/";
+        JsonObject content = new JsonObject();
+        content.addProperty("id", task.id);
+        content.addProperty("status", state.status);
+        content.addProperty("message", "waiting".equals(state.status) ? "Waiting for available devices." : "");
+        content.addProperty("retryTime", state.retryTime);
+        content.addProperty("testDevicesCount", config.deviceCount);
+        content.addProperty("startDate", task.createdMillis);
+        content.addProperty("testSuite", "com.microsoft.hydralab.loadtest.Suite");
+        int totalFailCount = 0;
+        JsonArray devices = new JsonArray();
+        for (int i = 0; i < config.deviceCount; i++) {
+            boolean finished = i < state.finishedDevices;
+            boolean failed = finished && i % 10 == 9;
+            JsonObject device = new JsonObject();
+            String base = blobBaseUrl + i + "/";
+            device.addProperty("id", task.id + "-device-" + i);
+            device.addProperty("deviceSerialNumber", String.format(Locale.US, "FAKE%04d", i));
+            device.addProperty("deviceName", "Fake device " + i);
+            device.addProperty("instrumentReportBlobUrl", base + "adb.log");
+            device.addProperty("testXmlReportBlobUrl", base + "report.xml");
+            device.addProperty("logcatBlobUrl", base + "logcat.log");
+            device.addProperty("testGifBlobUrl", base + "rec.gif");
+            device.addProperty("totalCount", finished ? config.casesPerDevice : 0);
+            device.addProperty("failCount", failed ? 1 : 0);
+            device.addProperty("success", finished && !failed);
+            device.addProperty("crashStack", failed ? "java.lang.AssertionError: fake failure\n\tat com.microsoft.hydralab.loadtest.Suite.test(Suite.java:1)" : "");
+            device.addProperty("testStartTimeMillis", task.createdMillis + config.waitingMillis);
+            device.addProperty("testEndTimeMillis", finished ? System.currentTimeMillis() : 0);
+            devices.add(device);
+            totalFailCount += failed ? 1 : 0;
+        }
+        content.addProperty("totalTestCount", state.finishedDevices * config.casesPerDevice);
+        content.addProperty("totalFailCount", totalFailCount);
+        content.add("deviceTestResults", devices);
+        return content;
+    }
+
+    private void count(Endpoint endpoint) {
+        requestCounts.get(endpoint).incrementAndGet();
+    }
+
+    private static JsonObject content(String name, Object value) {
+        JsonObject content = new JsonObject();
+        if (value instanceof Number) {
+            content.addProperty(name, (Number) value);
+        } else {
+            content.addProperty(name, String.valueOf(value));
+        }
+        return content;
+    }
+
+    private static JsonObject envelope(int code, JsonObject content) {
+        JsonObject envelope = new JsonObject();
+        envelope.addProperty("code", code);
+        if (content != null) {
+            envelope.add("content", content);
+        }
+        return envelope;
+    }
+
+    private static long drain(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM);
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, JsonObject body, String etag) throws IOException {
+        if (etag != null) {
+            exchange.getResponseHeaders().add("ETag", etag);
+        }
+        send(exchange, status, GSON.toJson(body).getBytes(StandardCharsets.UTF_8), "application/json; charset=utf-8");
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body, String contentType) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(status, head || body.length == 0 ? -1 : body.length);
+        if (!head && body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    static byte[] logBlob(int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        int line = 0;
+        while (sb.length() < size) {
+            sb.append(String.format(Locale.US, "04-15 10:%02d:%02d.%03d  1234  1234 D FakeLab: log line %d\n",
+                    line / 60000 % 60, line / 1000 % 60, line % 1000, line));
+            line++;
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] gifBlob(int size) {
+        byte[] gif = new byte[size];
+        // fixed seed, the same content across runs so a resume matches
+        new Random(size).nextBytes(gif);
+        return gif;
+    }
+
+    static String junitReport(int cases) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append(String.format(Locale.US, "<testsuite name=\"com.microsoft.hydralab.loadtest.Suite\" tests=\"%d\">\n", cases));
+        for (int i = 0; i < cases; i++) {
+            sb.append(String.format(Locale.US, "  <testcase classname=\"com.microsoft.hydralab.loadtest.Suite\" name=\"case%d\" time=\"0.100\"/>\n", i));
+        }
+        return sb.append("</testsuite>\n").toString();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        callbackScheduler.shutdownNow();
+    }
+
+    private static class Blob {
+        final byte[] bytes;
+        final String contentType;
+        final String etag;
+        final String md5;
+
+        Blob(byte[] bytes, String contentType) {
+            this.bytes = bytes;
+            this.contentType = contentType;
+            try {
+                md5 = Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(bytes));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            etag = "\"" + md5.substring(0, 12) + "\"";
+        }
+    }
+
+    private static class FakeTask {
+        final String id;
+        final long createdMillis;
+        final boolean retried;
+        final String callbackUrl;
+        // 0 until the task is cancelled
+        volatile long cancelledMillis = 0;
+        private final AtomicBoolean callbackPosted = new AtomicBoolean();
+
+        FakeTask(String id, long createdMillis, boolean retried, String callbackUrl) {
+            this.id = id;
+            this.createdMillis = createdMillis;
+            this.retried = retried;
+            this.callbackUrl = callbackUrl;
+        }
+
+        /**
+         * @return whether the caller posts the callback, false once it has been posted
+         */
+        boolean claimCallback() {
+            return callbackPosted.compareAndSet(false, true);
+        }
+
+        long endMillis(Config config) {
+            return createdMillis + config.waitingMillis + config.runningMillis + (retried ? config.runningMillis / 2 : 0);
+        }
+
+        /**
+         * @return whether the task was still going, a finished task stays finished
+         */
+        synchronized boolean cancel(long nowMillis, Config config) {
+            if (cancelledMillis > 0 || "finished".equals(stateAt(nowMillis, config).status)) {
+                return false;
+            }
+            cancelledMillis = nowMillis;
+            return true;
+        }
+
+        long remainingDeviceMillis(long nowMillis, Config config) {
+            long endMillis = endMillis(config);
+            long startMillis = Math.max(nowMillis, createdMillis + config.waitingMillis);
+            return Math.max(0, endMillis - startMillis) * config.deviceCount;
+        }
+
+        TaskState stateAt(long nowMillis, Config config) {
+            if (cancelledMillis > 0 && nowMillis >= cancelledMillis) {
+                return new TaskState("canceled", 0, 0);
+            }
+            long elapsed = nowMillis - createdMillis;
+            if (elapsed < config.waitingMillis) {
+                return new TaskState("waiting", 0, 0);
+            }
+            long running = elapsed - config.waitingMillis;
+            int retryTime = 0;
+            if (retried) {
+                // the first attempt is dropped halfway, the retry starts over with no device finished
+                long firstAttempt = config.runningMillis / 2;
+                if (running < firstAttempt) {
+                    return new TaskState("running", 0, finishedDevices(running, config));
+                }
+                running -= firstAttempt;
+                retryTime = 1;
+            }
+            if (running < config.runningMillis) {
+                return new TaskState("running", retryTime, finishedDevices(running, config));
+            }
+            return new TaskState("finished", retryTime, config.deviceCount);
+        }
+
+        private static int finishedDevices(long running, Config config) {
+            // devices finish evenly spread over the run, the last one at its end
+            return (int) Math.min(config.deviceCount - 1, running * config.deviceCount / Math.max(1, config.runningMillis));
+        }
+    }
+
+    private static class TaskState {
+        final String status;
+        final int retryTime;
+        final int finishedDevices;
+
+        TaskState(String status, int retryTime, int finishedDevices) {
+            this.status = status;
+            this.retryTime = retryTime;
+            this.finishedDevices = finishedDevices;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Config config = Config.parse(new Options(args));
+        FakeLabServer server = new FakeLabServer(config);
+        System.out.printf("Fake Hydra Lab listening on http://%s, point the plugin at it with -PdeviceLabHost=%s -PdeviceLabProtocal=http%n", server.getHost(), server.getHost());
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
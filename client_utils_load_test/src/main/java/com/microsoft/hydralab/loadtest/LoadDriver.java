@@ -0,0 +1,333 @@
+package com.microsoft.hydralab.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.microsoft.hydralab.utils.HydraLabClient;
+import com.microsoft.hydralab.utils.HydraLabClientUtils;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+
+/**
+ * Runs many concurrent {@link HydraLabClient#runTestOnDeviceWithAPK} calls against a {@link FakeLabServer}, started in
+ * process unless {@code --labHost} points at one, and reports the run throughput, latency percentiles and the resources
+ * the client used. The client log goes to a file in the output dir, the report to stdout and {@code load-test-report.json}.
+ * The resource figures include the threads of an in-process fake lab, start it separately to see the client alone.
+ * <p>
+ * Every run's report dir is checked for leftover {@code .part} files and, against an in-process fake lab, for artifacts
+ * whose size differs from the blob served, so runs with {@code --dropRate} show whether the cut-off downloads recovered.
+ * <p>
+ * With {@code --cancelRate}, that share of the runs is interrupted {@code --cancelAfterMillis} after it starts, and the
+ * report shows how many tasks the lab cancelled, the device time they gave back and the tasks still going on the lab.
+ * <p>
+ * With {@code --callback}, every run listens for the completion callback, and the fake lab posts the ended task to it
+ * instead of only being polled. {@code callback_stray_accepted} in the report counts the posts of another task a
+ * listener took, it has to stay 0.
+ */
+public class LoadDriver {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final ScheduledExecutorService CANCEL_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "load-test-cancel");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        int runs = options.getInt("runs", 200);
+        int concurrency = options.getInt("concurrency", runs);
+        int timeoutSec = options.getInt("timeoutSec", 600);
+        int apkSizeMB = options.getInt("apkSizeMB", 8);
+        File outputDir = new File(options.get("outputDir", "build/load-test"));
+        String labHost = options.get("labHost", null);
+
+        FileUtils.deleteQuietly(outputDir);
+        FileUtils.forceMkdir(outputDir);
+        File apk = sparseFile(new File(outputDir, "app.apk"), apkSizeMB * 1024L * 1024L);
+        File testApk = sparseFile(new File(outputDir, "test.apk"), 1024L * 1024L);
+
+        FakeLabServer.Config labConfig = labHost == null ? FakeLabServer.Config.parse(options) : null;
+        FakeLabServer lab = labConfig == null ? null : new FakeLabServer(labConfig);
+        String host = lab == null ? labHost : lab.getHost();
+        PrintStream stdout = System.out;
+        stdout.printf("Running %d test runs, %d at a time, against http://%s%n", runs, concurrency, host);
+
+        // hundreds of clients log every poll, keep it out of the report
+        File clientLog = new File(outputDir, "client.log");
+        PrintStream clientOut = new PrintStream(new FileOutputStream(clientLog), false, "UTF-8");
+        System.setOut(clientOut);
+
+        ResourceSampler sampler = new ResourceSampler();
+        ExecutorService runners = Executors.newFixedThreadPool(concurrency);
+        List<Future<RunResult>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        sampler.start();
+        for (int i = 0; i < runs; i++) {
+            int index = i;
+            futures.add(runners.submit(() -> runOnce(index, host, options, apk, testApk, timeoutSec, outputDir, labConfig)));
+        }
+        List<RunResult> results = new ArrayList<>();
+        for (Future<RunResult> future : futures) {
+            results.add(future.get());
+        }
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        sampler.stop();
+        runners.shutdown();
+        System.setOut(stdout);
+        clientOut.close();
+
+        Report report = new Report();
+        report.runs = runs;
+        report.concurrency = concurrency;
+        report.labHost = host;
+        report.wallMillis = wallMillis;
+        report.runsPerMinute = runs * 60000.0 / Math.max(1, wallMillis);
+        List<Long> latencies = new ArrayList<>();
+        for (RunResult result : results) {
+            latencies.add(result.latencyMillis);
+            report.outcomes.merge(result.outcome, 1, Integer::sum);
+            report.incompleteArtifacts += result.incompleteArtifacts;
+        }
+        Collections.sort(latencies);
+        for (double percentile : new double[]{50, 90, 95, 99, 100}) {
+            report.latencyMillis.put(percentile == 100 ? "max" : String.format(Locale.US, "p%.0f", percentile), percentile(latencies, percentile));
+        }
+        report.client = sampler.summary();
+        if (lab != null) {
+            for (FakeLabServer.Endpoint endpoint : FakeLabServer.Endpoint.values()) {
+                report.labRequests.put(endpoint.name().toLowerCase(Locale.US), lab.getRequestCount(endpoint));
+            }
+            report.labUploadedBytes = lab.getUploadedBytes();
+            report.labReleasedDeviceSeconds = lab.getReleasedDeviceMillis() / 1000.0;
+            report.labTasksStillActive = lab.getActiveTaskCount();
+            lab.close();
+        }
+
+        File reportFile = new File(outputDir, "load-test-report.json");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8)) {
+            GSON.toJson(report, writer);
+        }
+        stdout.println(GSON.toJson(report));
+        stdout.printf("Report written to %s, client log to %s%n", reportFile.getAbsolutePath(), clientLog.getAbsolutePath());
+        System.exit(0);
+    }
+
+    private static RunResult runOnce(int index, String host, Options options, File apk, File testApk, int timeoutSec, File outputDir,
+                                     FakeLabServer.Config labConfig) {
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        apiConfig.schema = "http";
+        apiConfig.host = host;
+        apiConfig.authToken = "load-test";
+        apiConfig.pkgName = "com.microsoft.hydralab.loadtest";
+        apiConfig.testPkgName = "com.microsoft.hydralab.loadtest.test";
+        apiConfig.runningType = "INSTRUMENTATION";
+        apiConfig.chunkedUploadEnabled = options.getBoolean("chunkedUpload", false);
+        apiConfig.apkUploadCacheEnabled = options.getBoolean("apkUploadCache", false);
+        apiConfig.apkUploadCacheDir = new File(outputDir, "cache").getAbsolutePath();
+        apiConfig.testResultCacheEnabled = false;
+        apiConfig.pollInitialIntervalSec = options.getInt("pollInitialIntervalSec", apiConfig.pollInitialIntervalSec);
+        apiConfig.pollMaxIntervalSec = options.getInt("pollMaxIntervalSec", apiConfig.pollMaxIntervalSec);
+        apiConfig.downloadSegmentThresholdMB = options.getInt("downloadSegmentThresholdMB", apiConfig.downloadSegmentThresholdMB);
+        apiConfig.downloadSegmentSizeMB = options.getInt("downloadSegmentSizeMB", apiConfig.downloadSegmentSizeMB);
+        apiConfig.callbackEnabled = options.getBoolean("callback", false);
+        apiConfig.callbackHost = "localhost";
+
+        File reportDir = new File(outputDir, "run-" + index);
+        RunResult result = new RunResult();
+        long start = System.nanoTime();
+        ScheduledFuture<?> cancel = null;
+        if (ThreadLocalRandom.current().nextDouble() < options.getDouble("cancelRate", 0)) {
+            // the way a cancelled build stops the plugin: the thread waiting for the run is interrupted
+            Thread runThread = Thread.currentThread();
+            cancel = CANCEL_SCHEDULER.schedule(runThread::interrupt, options.getLong("cancelAfterMillis", 10000), TimeUnit.MILLISECONDS);
+        }
+        try {
+            FileUtils.forceMkdir(reportDir);
+            HydraLabClient client = new HydraLabClient(apiConfig);
+            client.runTestOnDeviceWithAPK(apk.getAbsolutePath(), testApk.getAbsolutePath(), "loadTest", "com.microsoft.hydralab.loadtest.Suite",
+                    null, null, timeoutSec, reportDir.getAbsolutePath(), null, null);
+            result.outcome = client.isMarkedFail() ? "tests failed" : "passed";
+        } catch (CancellationException e) {
+            result.outcome = "cancelled";
+        } catch (IOException | RuntimeException e) {
+            String message = e.getMessage() == null ? "" : e.getMessage();
+            result.outcome = "error: " + e.getClass().getSimpleName() + ": " + (message.length() > 120 ? message.substring(0, 120) : message);
+        }
+        result.latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (cancel != null && !cancel.cancel(false)) {
+            // the interrupt may land after the run, keep it from hitting the next run of the pool thread
+            try {
+                cancel.get();
+            } catch (InterruptedException | ExecutionException ignored) {
+                // done either way
+            }
+            Thread.interrupted();
+        }
+        result.incompleteArtifacts = countIncompleteArtifacts(reportDir, labConfig);
+        return result;
+    }
+
+    /**
+     * @return part files left behind, plus the artifacts not as large as the blob of the fake lab if it runs in process
+     */
+    private static int countIncompleteArtifacts(File reportDir, FakeLabServer.Config labConfig) {
+        File[] files = reportDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int incomplete = 0;
+        for (File file : files) {
+            String name = file.getName();
+            long expected = -1;
+            if (labConfig != null && name.endsWith(".gif")) {
+                expected = labConfig.gifBlobSize;
+            } else if (labConfig != null && (name.startsWith("ADB-") || name.startsWith("logcat-")) && name.endsWith(".log")) {
+                expected = labConfig.logBlobSize;
+            }
+            if (name.endsWith(".part") || (expected >= 0 && file.length() != expected)) {
+                incomplete++;
+            }
+        }
+        return incomplete;
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        // nearest rank
+        int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size(), rank) - 1));
+    }
+
+    private static File sparseFile(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        return file;
+    }
+
+    private static class RunResult {
+        String outcome;
+        long latencyMillis;
+        int incompleteArtifacts;
+    }
+
+    /**
+     * Peaks of the client JVM sampled while the runs are in flight, plus the CPU and GC time they took.
+     */
+    private static class ResourceSampler {
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-test-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private long startCpuNanos;
+        private long startGcCount;
+        private long startGcMillis;
+        private volatile long peakHeapBytes;
+        private volatile long peakOpenFiles = -1;
+        private ClientResources summary;
+
+        void start() {
+            threads.resetPeakThreadCount();
+            startCpuNanos = processCpuNanos();
+            startGcCount = gcCount();
+            startGcMillis = gcMillis();
+            scheduler.scheduleAtFixedRate(this::sample, 0, 1, TimeUnit.SECONDS);
+        }
+
+        private void sample() {
+            peakHeapBytes = Math.max(peakHeapBytes, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+            if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+                peakOpenFiles = Math.max(peakOpenFiles, ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount());
+            }
+        }
+
+        void stop() {
+            scheduler.shutdownNow();
+            sample();
+            summary = new ClientResources();
+            long cpuNanos = processCpuNanos();
+            summary.cpuSeconds = cpuNanos < 0 ? -1 : (cpuNanos - startCpuNanos) / 1e9;
+            summary.peakThreads = threads.getPeakThreadCount();
+            summary.peakHeapMB = peakHeapBytes / 1048576.0;
+            summary.peakOpenFiles = peakOpenFiles;
+            summary.gcCount = gcCount() - startGcCount;
+            summary.gcMillis = gcMillis() - startGcMillis;
+        }
+
+        ClientResources summary() {
+            return summary;
+        }
+
+        private long processCpuNanos() {
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            }
+            return -1;
+        }
+
+        private static long gcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private static long gcMillis() {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis;
+        }
+    }
+
+    private static class ClientResources {
+        double cpuSeconds;
+        int peakThreads;
+        double peakHeapMB;
+        long peakOpenFiles;
+        long gcCount;
+        long gcMillis;
+    }
+
+    private static class Report {
+        int runs;
+        int concurrency;
+        String labHost;
+        long wallMillis;
+        double runsPerMinute;
+        Map<String, Integer> outcomes = new TreeMap<>();
+        int incompleteArtifacts;
+        Map<String, Long> latencyMillis = new LinkedHashMap<>();
+        ClientResources client;
+        Map<String, Long> labRequests = new LinkedHashMap<>();
+        long labUploadedBytes;
+        double labReleasedDeviceSeconds;
+        int labTasksStillActive;
+    }
+}
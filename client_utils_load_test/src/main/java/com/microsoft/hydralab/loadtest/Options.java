@@ -0,0 +1,49 @@
+package com.microsoft.hydralab.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options in the form of {@code --name=value}.
+ */
+class Options {
+    private final Map<String, String> values = new HashMap<>();
+
+    Options(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg + ", options are given as --name=value");
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+    }
+
+    String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    long getLong(String name, long defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    double getDouble(String name, double defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
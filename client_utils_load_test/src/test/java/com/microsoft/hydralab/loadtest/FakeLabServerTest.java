@@ -0,0 +1,166 @@
+package com.microsoft.hydralab.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.microsoft.hydralab.utils.HydraLabClient;
+import com.microsoft.hydralab.utils.HydraLabClientUtils;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FakeLabServerTest {
+    private static final Gson GSON = new Gson();
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    private final OkHttpClient client = new OkHttpClient();
+    private FakeLabServer lab;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("fake-lab").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (lab != null) {
+            lab.close();
+        }
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void taskGoesFromWaitingThroughRunningToFinished() throws Exception {
+        startLab(0, 0);
+        String taskId = trigger().getAsJsonObject("content").get("testTaskId").getAsString();
+
+        assertEquals("waiting", status(taskId).get("status").getAsString());
+        Thread.sleep(1500);
+        JsonObject running = status(taskId);
+        assertEquals("running", running.get("status").getAsString());
+        Thread.sleep(2000);
+        JsonObject finished = status(taskId);
+        assertEquals("finished", finished.get("status").getAsString());
+        assertEquals(3 * 5, finished.get("totalTestCount").getAsInt());
+        assertEquals(3, finished.getAsJsonArray("deviceTestResults").size());
+    }
+
+    @Test
+    public void unchangedStatusIsAnsweredWith304() throws Exception {
+        startLab(0, 0);
+        String taskId = trigger().getAsJsonObject("content").get("testTaskId").getAsString();
+        String etag;
+        try (Response response = client.newCall(statusRequest(taskId).build()).execute()) {
+            etag = response.header("ETag");
+        }
+
+        try (Response response = client.newCall(statusRequest(taskId).header("If-None-Match", etag).build()).execute()) {
+            assertEquals(304, response.code());
+        }
+        assertEquals(1, lab.getRequestCount(FakeLabServer.Endpoint.STATUS_NOT_MODIFIED));
+    }
+
+    @Test
+    public void retriedTaskBumpsTheRetryTime() throws Exception {
+        startLab(0, 1);
+        String taskId = trigger().getAsJsonObject("content").get("testTaskId").getAsString();
+
+        // waiting plus the first half of the run
+        Thread.sleep(1000 + 1000);
+        assertEquals(1, status(taskId).get("retryTime").getAsInt());
+    }
+
+    @Test
+    public void busyLabAnswersTheTriggerWith500() throws Exception {
+        startLab(1, 0);
+        assertEquals(500, trigger().get("code").getAsInt());
+        assertEquals(1, lab.getRequestCount(FakeLabServer.Endpoint.RUN_BUSY));
+        assertEquals(0, lab.getTaskCount());
+    }
+
+    @Test
+    public void chunkAtTheWrongOffsetIsRejected() throws Exception {
+        startLab(0, 0);
+        Request chunk = new Request.Builder().url("http://" + lab.getHost() + "/api/package/chunk/upload-1")
+                .header("Content-Range", "bytes 10-19/20")
+                .put(RequestBody.create(new byte[10], OCTET_STREAM))
+                .build();
+        try (Response response = client.newCall(chunk).execute()) {
+            assertEquals(409, response.code());
+        }
+    }
+
+    @Test
+    public void clientRunPassesAgainstTheFakeLab() throws Exception {
+        startLab(0, 0);
+        File apk = new File(dir, "app.apk");
+        File testApk = new File(dir, "test.apk");
+        FileUtils.write(apk, "apk", StandardCharsets.UTF_8);
+        FileUtils.write(testApk, "test apk", StandardCharsets.UTF_8);
+        File reportDir = new File(dir, "report");
+        assertTrue(reportDir.mkdirs());
+
+        HydraLabClientUtils.HydraLabAPIConfig apiConfig = HydraLabClientUtils.HydraLabAPIConfig.defaultAPI();
+        apiConfig.schema = "http";
+        apiConfig.host = lab.getHost();
+        apiConfig.apkUploadCacheEnabled = false;
+        apiConfig.pollInitialIntervalSec = 1;
+        apiConfig.pollMaxIntervalSec = 1;
+        HydraLabClient hydraLabClient = new HydraLabClient(apiConfig);
+        hydraLabClient.runTestOnDeviceWithAPK(apk.getPath(), testApk.getPath(), "loadTest", "com.microsoft.hydralab.loadtest.Suite",
+                null, null, 60, reportDir.getPath(), null, null);
+
+        assertFalse(hydraLabClient.isMarkedFail());
+        assertEquals(1, lab.getRequestCount(FakeLabServer.Endpoint.UPLOAD));
+        assertEquals(1, lab.getRequestCount(FakeLabServer.Endpoint.RUN));
+        assertTrue(new File(reportDir, "TEST-com.microsoft.hydralab.loadtest.Suite-FAKE0000.xml").isFile());
+    }
+
+    private void startLab(double busyRate, double retryRate) throws IOException {
+        FakeLabServer.Config config = new FakeLabServer.Config();
+        config.latencyMillis = 0;
+        config.latencyJitterMillis = 0;
+        config.busyRate = busyRate;
+        config.retryRate = retryRate;
+        // long enough for the first status call of a test to come before the run starts
+        config.waitingMillis = 1000;
+        config.runningMillis = 2000;
+        config.casesPerDevice = 5;
+        config.logBlobSize = 1024;
+        lab = new FakeLabServer(config);
+    }
+
+    private JsonObject trigger() throws IOException {
+        Request request = new Request.Builder().url("http://" + lab.getHost() + "/api/test/task/run/")
+                .post(RequestBody.create("{}", MediaType.get("application/json; charset=utf-8")))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            return GSON.fromJson(response.body().string(), JsonObject.class);
+        }
+    }
+
+    private JsonObject status(String taskId) throws IOException {
+        try (Response response = client.newCall(statusRequest(taskId).build()).execute()) {
+            return GSON.fromJson(response.body().string(), JsonObject.class).getAsJsonObject("content");
+        }
+    }
+
+    private Request.Builder statusRequest(String taskId) {
+        return new Request.Builder().url("http://" + lab.getHost() + "/api/test/task/" + taskId);
+    }
+}